@@ -0,0 +1,74 @@
+package com.andrewevl.vpn.cluster;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A message exchanged between cluster nodes.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClusterMessage {
+    
+    public enum Type {
+        /**
+         * Periodic liveness signal; also how nodes discover each other.
+         */
+        HEARTBEAT,
+        /**
+         * New or changed user placements.
+         */
+        ASSIGN,
+        /**
+         * All placements known to the sender, sent to newly seen members.
+         */
+        SNAPSHOT,
+        /**
+         * The sender shuts down and its clients should be moved now.
+         */
+        LEAVE
+    }
+    
+    private Type type;
+    
+    private ClusterNode sender;
+    
+    /**
+     * API addresses of the members the sender knows, so that nodes that only know a
+     * seed find each other.
+     */
+    private List<String> members = new ArrayList<>();
+    
+    private List<Assignment> assignments = new ArrayList<>();
+    
+    /**
+     * The placement of one client on a node. Conflicting placements are resolved
+     * in favour of the higher version, then the higher node id.
+     */
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Assignment {
+        
+        private String clientKey;
+        
+        private String nodeId;
+        
+        private long version;
+        
+        /**
+         * The node the client was provisioned on before it was moved away from a
+         * departed node, or null if it has been provisioned where it is placed.
+         */
+        private String movedFrom;
+        
+        boolean supersedes(Assignment other) {
+            return version != other.version ? version > other.version : nodeId.compareTo(other.nodeId) > 0;
+        }
+    }
+}
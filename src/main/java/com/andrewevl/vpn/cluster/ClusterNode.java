@@ -0,0 +1,29 @@
+package com.andrewevl.vpn.cluster;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A member of the cluster.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClusterNode {
+    
+    /**
+     * Unique, stable identifier of the node.
+     */
+    private String id;
+    
+    /**
+     * Base URL other nodes use to reach this node's API, e.g. {@code http://10.1.0.5:4221}.
+     */
+    private String address;
+    
+    /**
+     * Public address clients connect their tunnels to.
+     */
+    private String endpoint;
+}
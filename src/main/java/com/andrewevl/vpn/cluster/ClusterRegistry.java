@@ -0,0 +1,465 @@
+package com.andrewevl.vpn.cluster;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.LongSupplier;
+import java.util.stream.Stream;
+
+/**
+ * Cluster membership and the replicated placement of clients on nodes.
+ * <p>
+ * Nodes find each other by heartbeating a static list of seed addresses and
+ * every address gossiped in the heartbeats they receive; a node becomes a member
+ * once it has been heard from directly. A member that stays silent for the failure
+ * timeout becomes a suspect: it gets no new clients but keeps the ones it has, since
+ * their peers and configurations exist only there and a GC pause or network blip
+ * must not move them. A member departs when it announces that it leaves or stays
+ * silent for the much longer departure timeout. Every node builds the same
+ * consistent-hash ring from the members that are not suspect. Clients are placed
+ * with bounded load: a client goes to the first node on its ring walk that holds
+ * fewer than {@code (1 + loadFactor)} times the average number of clients, so no
+ * node ends up far above average.
+ * <p>
+ * Placements are replicated by broadcasting them, and a node that sees a new
+ * member sends it a snapshot of all placements. Conflicts are resolved with
+ * Lamport versions. A client provisioned on a node has its peer and configuration
+ * there, so placements on live nodes are never moved. After a membership change
+ * only the coordinator, the live member with the lowest id, moves clients: the
+ * clients of departed nodes go to live ones, remembering where they came from, and
+ * go back when that node returns unless they have been provisioned on their new
+ * node in the meantime. A new node fills up with new clients whose ring walk
+ * reaches it first and with the overflow of nodes at capacity. No external
+ * coordination service is involved.
+ * <p>
+ * State changes happen under the registry's lock; messages are sent after the
+ * lock is released.
+ */
+@Slf4j
+public class ClusterRegistry {
+    
+    private final ClusterNode self;
+    private final ClusterTransport transport;
+    private final List<String> seeds;
+    private final double loadFactor;
+    private final long failureTimeoutMillis;
+    private final long departureTimeoutMillis;
+    private final LongSupplier clock;
+    
+    private final HashRing ring;
+    private final Map<String, Member> members = new HashMap<>();
+    private final Set<String> peers = new HashSet<>();
+    private final Map<String, ClusterMessage.Assignment> assignments = new HashMap<>();
+    private long version;
+    
+    /**
+     * Create a registry containing only this node.
+     * 
+     * @param self this node
+     * @param transport the transport to other nodes
+     * @param seeds the API addresses of nodes to contact first
+     * @param virtualNodes the number of ring points per node
+     * @param loadFactor how far above the average a node's client count may grow
+     * @param failureTimeoutMillis how long a member may stay silent before it is suspected
+     * @param departureTimeoutMillis how long a member may stay silent before its clients are moved
+     * @param clock the time source in milliseconds
+     */
+    public ClusterRegistry(ClusterNode self, ClusterTransport transport, List<String> seeds, int virtualNodes,
+                           double loadFactor, long failureTimeoutMillis, long departureTimeoutMillis,
+                           LongSupplier clock) {
+        if (loadFactor <= 0) {
+            throw new IllegalArgumentException("Load factor must be positive: " + loadFactor);
+        }
+        this.self = self;
+        this.transport = transport;
+        this.seeds = List.copyOf(seeds);
+        this.loadFactor = loadFactor;
+        this.failureTimeoutMillis = failureTimeoutMillis;
+        this.departureTimeoutMillis = departureTimeoutMillis;
+        this.clock = clock;
+        this.ring = new HashRing(virtualNodes);
+        members.put(self.getId(), new Member(self, Long.MAX_VALUE));
+        ring.add(self.getId());
+    }
+    
+    /**
+     * Get the node a client is placed on, placing it if it has no node yet or its
+     * node departed. A client of a suspect node stays with that node.
+     * 
+     * @param clientKey the client key
+     * @return the node
+     */
+    public ClusterNode assign(String clientKey) {
+        List<Outgoing> outbox = new ArrayList<>();
+        ClusterNode node;
+        synchronized (this) {
+            node = ownerOf(clientKey);
+            if (node == null) {
+                Map<String, Integer> load = liveLoad();
+                String nodeId = place(clientKey, load, capacity(assignments.size() + 1));
+                node = members.get(nodeId).node;
+                broadcast(List.of(record(clientKey, nodeId, null)), outbox);
+            }
+        }
+        flush(outbox);
+        return node;
+    }
+    
+    /**
+     * Place a client on this node unless it already has a node. Used for clients
+     * whose configuration already exists locally.
+     * 
+     * @param clientKey the client key
+     * @return the node the client is placed on
+     */
+    public ClusterNode claim(String clientKey) {
+        List<Outgoing> outbox = new ArrayList<>();
+        ClusterNode node;
+        synchronized (this) {
+            node = ownerOf(clientKey);
+            if (node == null) {
+                node = self;
+                broadcast(List.of(record(clientKey, self.getId(), null)), outbox);
+            }
+        }
+        flush(outbox);
+        return node;
+    }
+    
+    /**
+     * Record that a client has been provisioned on this node, so that a client moved
+     * here from a departed node stays here when that node returns.
+     * 
+     * @param clientKey the client key
+     */
+    public void confirm(String clientKey) {
+        List<Outgoing> outbox = new ArrayList<>();
+        synchronized (this) {
+            ClusterMessage.Assignment assignment = assignments.get(clientKey);
+            if (assignment != null && assignment.getMovedFrom() != null
+                    && assignment.getNodeId().equals(self.getId())) {
+                broadcast(List.of(record(clientKey, self.getId(), null)), outbox);
+            }
+        }
+        flush(outbox);
+    }
+    
+    /**
+     * Tell all members that this node leaves, so that its clients are moved right
+     * away instead of after the departure timeout. Delivery is best effort.
+     */
+    public void leave() {
+        List<Outgoing> outbox = new ArrayList<>();
+        synchronized (this) {
+            ClusterMessage message = new ClusterMessage(ClusterMessage.Type.LEAVE, self, List.of(), List.of());
+            members.values().stream()
+                    .filter(member -> member.node != self)
+                    .forEach(member -> outbox.add(new Outgoing(member.node.getAddress(), message)));
+        }
+        flush(outbox);
+    }
+    
+    /**
+     * Send heartbeats to the seeds and all known members, suspect members that have
+     * been silent for a while and drop members that have been silent for too long.
+     */
+    public void heartbeat() {
+        List<Outgoing> outbox = new ArrayList<>();
+        synchronized (this) {
+            long now = clock.getAsLong();
+            List<String> suspected = new ArrayList<>();
+            List<String> departed = new ArrayList<>();
+            members.values().removeIf(member -> {
+                long silence = now - member.lastSeen;
+                if (silence > departureTimeoutMillis) {
+                    departed.add(member.node.getId());
+                    peers.remove(member.node.getAddress());
+                    return true;
+                }
+                if (silence > failureTimeoutMillis && !member.suspect) {
+                    member.suspect = true;
+                    suspected.add(member.node.getId());
+                }
+                return false;
+            });
+            if (!suspected.isEmpty()) {
+                suspected.forEach(ring::remove);
+                log.warn("Cluster members {} stopped responding, keeping their clients", suspected);
+            }
+            if (!departed.isEmpty()) {
+                departed.forEach(ring::remove);
+                log.warn("Cluster members {} departed after {} ms of silence", departed, departureTimeoutMillis);
+                rebalance(outbox);
+            }
+            
+            List<String> memberAddresses = members.values().stream().map(member -> member.node.getAddress()).toList();
+            Set<String> addresses = new LinkedHashSet<>(seeds);
+            addresses.addAll(peers);
+            addresses.addAll(memberAddresses);
+            addresses.remove(self.getAddress());
+            ClusterMessage heartbeat = new ClusterMessage(ClusterMessage.Type.HEARTBEAT, self, memberAddresses, List.of());
+            addresses.forEach(address -> outbox.add(new Outgoing(address, heartbeat)));
+        }
+        flush(outbox);
+    }
+    
+    /**
+     * Handle a message from another node.
+     * 
+     * @param message the message
+     */
+    public void receive(ClusterMessage message) {
+        ClusterNode sender = message.getSender();
+        if (sender == null || self.getId().equals(sender.getId())) {
+            return;
+        }
+        List<Outgoing> outbox = new ArrayList<>();
+        synchronized (this) {
+            if (message.getType() == ClusterMessage.Type.LEAVE) {
+                if (members.remove(sender.getId()) != null) {
+                    ring.remove(sender.getId());
+                    peers.remove(sender.getAddress());
+                    log.info("Cluster member {} left", sender.getId());
+                    rebalance(outbox);
+                }
+            } else {
+                accept(message, outbox);
+            }
+        }
+        flush(outbox);
+    }
+    
+    private void accept(ClusterMessage message, List<Outgoing> outbox) {
+        ClusterNode sender = message.getSender();
+        Member member = members.get(sender.getId());
+        boolean joined = member == null;
+        if (joined) {
+            members.put(sender.getId(), new Member(sender, clock.getAsLong()));
+            ring.add(sender.getId());
+            log.info("Cluster member {} joined at {}", sender.getId(), sender.getAddress());
+            outbox.add(new Outgoing(sender.getAddress(), new ClusterMessage(ClusterMessage.Type.SNAPSHOT,
+                    self, List.of(), new ArrayList<>(assignments.values()))));
+        } else {
+            member.node = sender;
+            member.lastSeen = clock.getAsLong();
+            if (member.suspect) {
+                member.suspect = false;
+                ring.add(sender.getId());
+                log.info("Cluster member {} is responding again", sender.getId());
+            }
+        }
+        
+        if (message.getMembers() != null) {
+            peers.addAll(message.getMembers());
+        }
+        if (message.getAssignments() != null) {
+            message.getAssignments().forEach(this::merge);
+        }
+        // A snapshot may show clients that were moved away from this node or the sender
+        if (joined || message.getType() == ClusterMessage.Type.SNAPSHOT) {
+            rebalance(outbox);
+        }
+    }
+    
+    /**
+     * Find the node a client is placed on.
+     * 
+     * @param clientKey the client key
+     * @return the node, which may be suspect, or empty if the client is unplaced or
+     *         its node departed
+     */
+    public synchronized Optional<ClusterNode> lookup(String clientKey) {
+        return Optional.ofNullable(ownerOf(clientKey));
+    }
+    
+    /**
+     * Get this node.
+     * 
+     * @return this node
+     */
+    public ClusterNode getSelf() {
+        return self;
+    }
+    
+    /**
+     * Get the members, including this node and suspect members.
+     * 
+     * @return the members ordered by id
+     */
+    public synchronized List<ClusterNode> getMembers() {
+        return members.values().stream()
+                .map(member -> member.node)
+                .sorted(Comparator.comparing(ClusterNode::getId))
+                .toList();
+    }
+    
+    /**
+     * Get the ids of the members that stopped responding but have not departed yet.
+     * 
+     * @return the suspect member ids in order
+     */
+    public synchronized List<String> getSuspects() {
+        return members.values().stream()
+                .filter(member -> member.suspect)
+                .map(member -> member.node.getId())
+                .sorted()
+                .toList();
+    }
+    
+    /**
+     * Get the number of clients placed on each member.
+     * 
+     * @return a map of node ids to client counts
+     */
+    public synchronized Map<String, Integer> getLoad() {
+        Map<String, Integer> load = new TreeMap<>();
+        members.keySet().forEach(id -> load.put(id, 0));
+        assignments.values().forEach(assignment -> load.computeIfPresent(assignment.getNodeId(), (id, count) -> count + 1));
+        return load;
+    }
+    
+    /**
+     * Get the number of placed clients.
+     * 
+     * @return the client count
+     */
+    public synchronized int getAssignmentCount() {
+        return assignments.size();
+    }
+    
+    private ClusterNode ownerOf(String clientKey) {
+        ClusterMessage.Assignment assignment = assignments.get(clientKey);
+        Member member = assignment != null ? members.get(assignment.getNodeId()) : null;
+        return member != null ? member.node : null;
+    }
+    
+    private void merge(ClusterMessage.Assignment incoming) {
+        version = Math.max(version, incoming.getVersion());
+        ClusterMessage.Assignment current = assignments.get(incoming.getClientKey());
+        if (current == null || incoming.supersedes(current)) {
+            assignments.put(incoming.getClientKey(), incoming);
+        }
+    }
+    
+    private ClusterMessage.Assignment record(String clientKey, String nodeId, String movedFrom) {
+        ClusterMessage.Assignment assignment = new ClusterMessage.Assignment(clientKey, nodeId, ++version, movedFrom);
+        assignments.put(clientKey, assignment);
+        return assignment;
+    }
+    
+    /**
+     * Place the clients of departed nodes on live ones, and give clients that were
+     * moved away from a node back to it once it is live again, unless they have
+     * been provisioned where they were moved to. Clients of live and suspect nodes
+     * stay where they were provisioned. Only the coordinator does this so that
+     * nodes do not make competing moves.
+     */
+    private void rebalance(List<Outgoing> outbox) {
+        if (!isCoordinator() || assignments.isEmpty()) {
+            return;
+        }
+        Map<String, Integer> load = liveLoad();
+        int capacity = capacity(assignments.size());
+        List<ClusterMessage.Assignment> moved = new ArrayList<>();
+        for (String clientKey : new TreeMap<>(assignments).keySet()) {
+            ClusterMessage.Assignment current = assignments.get(clientKey);
+            String origin = current.getMovedFrom();
+            Member originMember = origin != null ? members.get(origin) : null;
+            if (originMember != null && !originMember.suspect && !origin.equals(current.getNodeId())) {
+                load.merge(origin, 1, Integer::sum);
+                load.computeIfPresent(current.getNodeId(), (id, count) -> count - 1);
+                moved.add(record(clientKey, origin, null));
+            } else if (!members.containsKey(current.getNodeId())) {
+                String target = place(clientKey, load, capacity);
+                load.merge(target, 1, Integer::sum);
+                // The peer state stays on the node it was provisioned on
+                moved.add(record(clientKey, target, origin != null ? origin : current.getNodeId()));
+            }
+        }
+        if (!moved.isEmpty()) {
+            log.info("Moved {} of {} clients after cluster membership change", moved.size(), assignments.size());
+            broadcast(moved, outbox);
+        }
+    }
+    
+    private boolean isCoordinator() {
+        return liveIds().min(String::compareTo).orElseThrow().equals(self.getId());
+    }
+    
+    private Stream<String> liveIds() {
+        return members.values().stream().filter(member -> !member.suspect).map(member -> member.node.getId());
+    }
+    
+    /**
+     * Pick the first node on the client's ring walk that is below capacity.
+     */
+    private String place(String clientKey, Map<String, Integer> load, int capacity) {
+        for (String nodeId : ring.walk(clientKey)) {
+            if (load.getOrDefault(nodeId, 0) < capacity) {
+                return nodeId;
+            }
+        }
+        // Unreachable while capacity * members >= clients, kept as a safe fallback
+        return ring.primary(clientKey);
+    }
+    
+    private int capacity(int clients) {
+        return (int) Math.ceil((1 + loadFactor) * clients / liveIds().count());
+    }
+    
+    private Map<String, Integer> liveLoad() {
+        Map<String, Integer> load = new HashMap<>();
+        liveIds().forEach(id -> load.put(id, 0));
+        assignments.values().forEach(assignment -> load.computeIfPresent(assignment.getNodeId(), (id, count) -> count + 1));
+        return load;
+    }
+    
+    private void broadcast(List<ClusterMessage.Assignment> changed, List<Outgoing> outbox) {
+        ClusterMessage message = new ClusterMessage(ClusterMessage.Type.ASSIGN, self, List.of(), changed);
+        members.values().stream()
+                .filter(member -> member.node != self)
+                .forEach(member -> outbox.add(new Outgoing(member.node.getAddress(), message)));
+    }
+    
+    private void flush(List<Outgoing> outbox) {
+        for (Outgoing outgoing : outbox) {
+            try {
+                transport.send(outgoing.address, outgoing.message);
+            } catch (RuntimeException e) {
+                log.debug("Failed to send {} to {}: {}", outgoing.message.getType(), outgoing.address, e.getMessage());
+            }
+        }
+    }
+    
+    private static final class Member {
+        
+        private ClusterNode node;
+        private long lastSeen;
+        private boolean suspect;
+        
+        Member(ClusterNode node, long lastSeen) {
+            this.node = node;
+            this.lastSeen = lastSeen;
+        }
+    }
+    
+    private static final class Outgoing {
+        
+        private final String address;
+        private final ClusterMessage message;
+        
+        Outgoing(String address, ClusterMessage message) {
+            this.address = address;
+            this.message = message;
+        }
+    }
+}
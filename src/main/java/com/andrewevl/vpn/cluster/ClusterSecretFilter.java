@@ -0,0 +1,64 @@
+package com.andrewevl.vpn.cluster;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Authenticates requests from other cluster nodes by the shared secret they send
+ * in the {@value HttpClusterTransport#SECRET_HEADER} header. A request with the
+ * right secret is authenticated with the {@code CLUSTER_NODE} role; any other
+ * request passes through unauthenticated.
+ */
+public class ClusterSecretFilter extends OncePerRequestFilter {
+    
+    /**
+     * Authority granted to authenticated cluster nodes.
+     */
+    public static final String NODE_ROLE = "CLUSTER_NODE";
+    
+    private final byte[] secret;
+    
+    /**
+     * Create a filter.
+     * 
+     * @param secret the shared cluster secret; when empty no request is authenticated
+     */
+    public ClusterSecretFilter(String secret) {
+        this.secret = secret != null ? secret.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    }
+    
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String presented = request.getHeader(HttpClusterTransport.SECRET_HEADER);
+        // Constant-time comparison so the secret cannot be guessed byte by byte
+        if (secret.length > 0 && presented != null
+                && MessageDigest.isEqual(secret, presented.getBytes(StandardCharsets.UTF_8))) {
+            SecurityContext context = SecurityContextHolder.createEmptyContext();
+            context.setAuthentication(UsernamePasswordAuthenticationToken.authenticated("cluster-node", null,
+                    AuthorityUtils.createAuthorityList("ROLE_" + NODE_ROLE)));
+            SecurityContextHolder.setContext(context);
+        }
+        chain.doFilter(request, response);
+    }
+    
+    /**
+     * Forwarded configuration requests complete asynchronously; authenticate the
+     * async dispatch from the same header too.
+     */
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+}
@@ -0,0 +1,175 @@
+package com.andrewevl.vpn.cluster;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Joins this node to the cluster configured under {@code vpn.cluster} and places
+ * clients on cluster nodes. When clustering is disabled every client is local.
+ */
+@Slf4j
+@Service
+public class ClusterService {
+    
+    private final ClusterRegistry registry;
+    private final ClusterTransport transport;
+    
+    public ClusterService(VpnConfig vpnConfig, ObjectMapper objectMapper) throws UnknownHostException {
+        VpnConfig.ClusterConfig config = vpnConfig.getCluster();
+        if (config.isEnabled()) {
+            if (config.getSharedSecret() == null || config.getSharedSecret().isBlank()) {
+                throw new IllegalStateException("vpn.cluster.shared-secret must be set when clustering is enabled");
+            }
+            String nodeId = config.getNodeId() != null ? config.getNodeId() : InetAddress.getLocalHost().getHostName();
+            String endpoint = config.getEndpoint() != null ? config.getEndpoint() : vpnConfig.getServerAddress();
+            ClusterNode self = new ClusterNode(nodeId, config.getAdvertiseAddress(), endpoint);
+            this.transport = new HttpClusterTransport(objectMapper, config.getSharedSecret());
+            this.registry = new ClusterRegistry(self, transport, config.getSeeds(), config.getVirtualNodes(),
+                    config.getLoadFactor(), config.getFailureTimeoutMillis(), config.getDepartureTimeoutMillis(),
+                    System::currentTimeMillis);
+            log.info("Cluster node {} advertising {} with seeds {}", self.getId(), self.getAddress(), config.getSeeds());
+        } else {
+            this.transport = null;
+            this.registry = null;
+        }
+    }
+    
+    /**
+     * Check if clustering is enabled.
+     * 
+     * @return true if this node is part of a cluster
+     */
+    public boolean isEnabled() {
+        return registry != null;
+    }
+    
+    /**
+     * Get the node a client is placed on, placing it if needed.
+     * 
+     * @param protocol the protocol name
+     * @param username the username of the client
+     * @return the node
+     */
+    public ClusterNode assign(String protocol, String username) {
+        return registry.assign(clientKey(protocol, username));
+    }
+    
+    /**
+     * Place a client whose configuration exists on this node here, unless it is
+     * already placed on a live node.
+     * 
+     * @param protocol the protocol name
+     * @param username the username of the client
+     */
+    public void claim(String protocol, String username) {
+        if (registry != null) {
+            registry.claim(clientKey(protocol, username));
+        }
+    }
+    
+    /**
+     * Record that a client has been provisioned on this node, so that its placement
+     * stays here even if it was moved from a node that returns later.
+     * 
+     * @param protocol the protocol name
+     * @param username the username of the client
+     */
+    public void confirm(String protocol, String username) {
+        if (registry != null) {
+            registry.confirm(clientKey(protocol, username));
+        }
+    }
+    
+    /**
+     * Check if a node is this node.
+     * 
+     * @param node the node
+     * @return true if the node is this node
+     */
+    public boolean isLocal(ClusterNode node) {
+        return registry.getSelf().getId().equals(node.getId());
+    }
+    
+    /**
+     * Have another node generate a client configuration.
+     * 
+     * @param node the node the client is placed on
+     * @param protocol the protocol name
+     * @param username the username of the client
+     * @return the configuration, or null if the node could not provide it
+     */
+    public String forwardClientConfig(ClusterNode node, String protocol, String username) {
+        try {
+            return transport.requestClientConfig(node, protocol, username);
+        } catch (IOException e) {
+            log.error("Failed to get {} configuration for user {} from node {}: {}", protocol, username,
+                    node.getId(), e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Handle a message from another node.
+     * 
+     * @param message the message
+     */
+    public void receive(ClusterMessage message) {
+        if (registry != null) {
+            registry.receive(message);
+        }
+    }
+    
+    /**
+     * Exchange heartbeats with the other nodes.
+     */
+    @Scheduled(fixedDelayString = "${vpn.cluster.heartbeat-interval-millis:1000}")
+    public void heartbeat() {
+        if (registry != null) {
+            registry.heartbeat();
+        }
+    }
+    
+    /**
+     * Announce that this node leaves the cluster, so that its clients are moved
+     * without waiting for the departure timeout.
+     */
+    @PreDestroy
+    public void leave() {
+        if (registry != null) {
+            registry.leave();
+        }
+    }
+    
+    /**
+     * Get the cluster status.
+     * 
+     * @return a map with this node, the members, the suspect members and the number
+     *         of clients per node
+     */
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new HashMap<>();
+        status.put("enabled", isEnabled());
+        if (registry != null) {
+            status.put("self", registry.getSelf());
+            status.put("members", registry.getMembers());
+            status.put("suspects", registry.getSuspects());
+            status.put("load", registry.getLoad());
+            status.put("clients", registry.getAssignmentCount());
+        }
+        return status;
+    }
+    
+    private static String clientKey(String protocol, String username) {
+        return protocol.toLowerCase() + ":" + username;
+    }
+}
@@ -0,0 +1,29 @@
+package com.andrewevl.vpn.cluster;
+
+import java.io.IOException;
+
+/**
+ * Carries messages between cluster nodes.
+ */
+public interface ClusterTransport {
+    
+    /**
+     * Send a message without waiting for it to be delivered. Delivery failures are
+     * tolerated; missed heartbeats are how node failures are detected.
+     * 
+     * @param address the API base URL of the receiving node
+     * @param message the message
+     */
+    void send(String address, ClusterMessage message);
+    
+    /**
+     * Ask a node to generate a client configuration for a user placed on it.
+     * 
+     * @param node the node the user is assigned to
+     * @param protocol the protocol name
+     * @param username the username of the client
+     * @return the client configuration
+     * @throws IOException if the node cannot be reached or fails to generate the configuration
+     */
+    String requestClientConfig(ClusterNode node, String protocol, String username) throws IOException;
+}
@@ -0,0 +1,165 @@
+package com.andrewevl.vpn.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Consistent-hash ring with virtual nodes.
+ * <p>
+ * Each node is placed on the ring at several pseudo-random points so that keys
+ * spread evenly and a membership change only moves the keys between the changed
+ * node's points and their predecessors. The ring is rebuilt into sorted arrays on
+ * every membership change, which is rare, so lookups are a lock-free binary search.
+ */
+public class HashRing {
+    
+    private final int virtualNodes;
+    private final Set<String> nodes = new TreeSet<>();
+    private volatile Points points = new Points(new long[0], new String[0]);
+    
+    /**
+     * Create an empty ring.
+     * 
+     * @param virtualNodes the number of points per node
+     */
+    public HashRing(int virtualNodes) {
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual node count must be positive: " + virtualNodes);
+        }
+        this.virtualNodes = virtualNodes;
+    }
+    
+    /**
+     * Add a node.
+     * 
+     * @param nodeId the node id
+     * @return true if the node was not on the ring yet
+     */
+    public synchronized boolean add(String nodeId) {
+        if (!nodes.add(nodeId)) {
+            return false;
+        }
+        rebuild();
+        return true;
+    }
+    
+    /**
+     * Remove a node.
+     * 
+     * @param nodeId the node id
+     * @return true if the node was on the ring
+     */
+    public synchronized boolean remove(String nodeId) {
+        if (!nodes.remove(nodeId)) {
+            return false;
+        }
+        rebuild();
+        return true;
+    }
+    
+    /**
+     * Get the nodes on the ring.
+     * 
+     * @return the node ids in ascending order
+     */
+    public synchronized List<String> getNodes() {
+        return new ArrayList<>(nodes);
+    }
+    
+    /**
+     * Get the distinct nodes met when walking clockwise from a key's position,
+     * i.e. the key's placement preference.
+     * 
+     * @param key the key
+     * @return the node ids in preference order, or an empty list if the ring is empty
+     */
+    public List<String> walk(String key) {
+        Points current = points;
+        int size = current.hashes.length;
+        if (size == 0) {
+            return Collections.emptyList();
+        }
+        int nodeCount = size / virtualNodes;
+        Set<String> order = new LinkedHashSet<>();
+        int start = current.indexOf(hash(key));
+        for (int i = 0; i < size && order.size() < nodeCount; i++) {
+            order.add(current.owners[(start + i) % size]);
+        }
+        return new ArrayList<>(order);
+    }
+    
+    /**
+     * Get the node a key maps to, ignoring load.
+     * 
+     * @param key the key
+     * @return the node id, or null if the ring is empty
+     */
+    public String primary(String key) {
+        Points current = points;
+        return current.hashes.length == 0 ? null : current.owners[current.indexOf(hash(key))];
+    }
+    
+    private void rebuild() {
+        int size = nodes.size() * virtualNodes;
+        long[][] entries = new long[size][];
+        List<String> ids = new ArrayList<>(nodes);
+        for (int n = 0; n < ids.size(); n++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                entries[n * virtualNodes + v] = new long[] {hash(ids.get(n) + "#" + v), n};
+            }
+        }
+        Arrays.sort(entries, (a, b) -> Long.compare(a[0], b[0]));
+        long[] hashes = new long[size];
+        String[] owners = new String[size];
+        for (int i = 0; i < size; i++) {
+            hashes[i] = entries[i][0];
+            owners[i] = ids.get((int) entries[i][1]);
+        }
+        points = new Points(hashes, owners);
+    }
+    
+    /**
+     * 64-bit FNV-1a followed by the SplitMix64 finalizer to spread similar keys.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+    
+    /**
+     * The sorted ring positions and the node owning each, published together.
+     */
+    private static final class Points {
+        
+        private final long[] hashes;
+        private final String[] owners;
+        
+        Points(long[] hashes, String[] owners) {
+            this.hashes = hashes;
+            this.owners = owners;
+        }
+        
+        /**
+         * Find the first point at or after a hash, wrapping to 0 past the end.
+         */
+        int indexOf(long hash) {
+            int index = Arrays.binarySearch(hashes, hash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return index == hashes.length ? 0 : index;
+        }
+    }
+}
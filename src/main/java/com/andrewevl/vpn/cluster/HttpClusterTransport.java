@@ -0,0 +1,95 @@
+package com.andrewevl.vpn.cluster;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Transport that exchanges JSON messages with the {@code /api/cluster} endpoints
+ * of other nodes, authenticated by the shared cluster secret.
+ */
+@Slf4j
+public class HttpClusterTransport implements ClusterTransport {
+    
+    /**
+     * Request header carrying the shared cluster secret.
+     */
+    public static final String SECRET_HEADER = "X-Cluster-Secret";
+    
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration MESSAGE_TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration CONFIG_TIMEOUT = Duration.ofSeconds(30);
+    
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(CONNECT_TIMEOUT)
+            .build();
+    private final ObjectMapper objectMapper;
+    private final String secret;
+    
+    public HttpClusterTransport(ObjectMapper objectMapper, String secret) {
+        this.objectMapper = objectMapper;
+        this.secret = secret;
+    }
+    
+    @Override
+    public void send(String address, ClusterMessage message) {
+        String body;
+        try {
+            body = objectMapper.writeValueAsString(message);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Failed to serialize cluster message", e);
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(address + "/api/cluster/messages"))
+                .timeout(MESSAGE_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .header(SECRET_HEADER, secret)
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        client.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        log.debug("Failed to send {} to {}: {}", message.getType(), address, error.getMessage());
+                    } else if (response.statusCode() / 100 != 2) {
+                        log.debug("Node {} rejected {} with status {}", address, message.getType(), response.statusCode());
+                    }
+                });
+    }
+    
+    @Override
+    public String requestClientConfig(ClusterNode node, String protocol, String username) throws IOException {
+        URI uri = URI.create(node.getAddress() + "/api/cluster/client-config"
+                + "?protocol=" + URLEncoder.encode(protocol, StandardCharsets.UTF_8)
+                + "&username=" + URLEncoder.encode(username, StandardCharsets.UTF_8));
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(CONFIG_TIMEOUT)
+                .header(SECRET_HEADER, secret)
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<String> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for node " + node.getId(), e);
+        }
+        if (response.statusCode() != 200) {
+            throw new IOException("Node " + node.getId() + " returned status " + response.statusCode());
+        }
+        Map<?, ?> result = objectMapper.readValue(response.body(), Map.class);
+        Object config = result.get("config");
+        if (config == null) {
+            throw new IOException("Node " + node.getId() + " returned no configuration");
+        }
+        return config.toString();
+    }
+}
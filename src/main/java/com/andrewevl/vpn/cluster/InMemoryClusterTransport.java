@@ -0,0 +1,59 @@
+package com.andrewevl.vpn.cluster;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * Transport that delivers messages synchronously between registries in the same
+ * JVM, for running several nodes in one process. Nodes can be disconnected to
+ * simulate failures.
+ */
+public class InMemoryClusterTransport implements ClusterTransport {
+    
+    private final Map<String, ClusterRegistry> registries = new ConcurrentHashMap<>();
+    private final Map<String, BiFunction<String, String, String>> configGenerators = new ConcurrentHashMap<>();
+    private final Set<String> disconnected = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Make a node reachable at its address.
+     * 
+     * @param registry the node's registry
+     * @param configGenerator generates client configurations on the node from a protocol name and username
+     */
+    public void register(ClusterRegistry registry, BiFunction<String, String, String> configGenerator) {
+        String address = registry.getSelf().getAddress();
+        registries.put(address, registry);
+        configGenerators.put(address, configGenerator);
+        disconnected.remove(address);
+    }
+    
+    /**
+     * Drop all messages to and from a node.
+     * 
+     * @param address the node's address
+     */
+    public void disconnect(String address) {
+        disconnected.add(address);
+    }
+    
+    @Override
+    public void send(String address, ClusterMessage message) {
+        ClusterRegistry registry = registries.get(address);
+        if (registry != null && !disconnected.contains(address)
+                && !disconnected.contains(message.getSender().getAddress())) {
+            registry.receive(message);
+        }
+    }
+    
+    @Override
+    public String requestClientConfig(ClusterNode node, String protocol, String username) throws IOException {
+        BiFunction<String, String, String> generator = configGenerators.get(node.getAddress());
+        if (generator == null || disconnected.contains(node.getAddress())) {
+            throw new IOException("Node " + node.getId() + " is unreachable");
+        }
+        return generator.apply(protocol, username);
+    }
+}
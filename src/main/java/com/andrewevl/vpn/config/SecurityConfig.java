@@ -0,0 +1,71 @@
+package com.andrewevl.vpn.config;
+
+import com.andrewevl.vpn.cluster.ClusterSecretFilter;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.config.Customizer;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configurers.AbstractHttpConfigurer;
+import org.springframework.security.config.http.SessionCreationPolicy;
+import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.authentication.AnonymousAuthenticationFilter;
+import org.springframework.security.web.authentication.HttpStatusEntryPoint;
+
+/**
+ * HTTP security.
+ * <p>
+ * Node-to-node endpoints under {@code /api/cluster} authenticate the calling node by
+ * the shared cluster secret. They are called by other nodes, never by browsers, so
+ * they carry no session and are exempt from CSRF protection. The health endpoint is
+ * open so that load balancers and orchestrators can poll it, per protocol too,
+ * without credentials; the probe details stay hidden from them
+ * ({@code management.endpoint.health.show-details}).
+ * Everything else keeps Spring Boot's defaults: form login and HTTP Basic for the
+ * configured user.
+ */
+@Configuration
+public class SecurityConfig {
+    
+    /**
+     * Security for the node-to-node endpoints.
+     * 
+     * @param http the security builder
+     * @param vpnConfig the VPN configuration holding the cluster secret
+     * @return the filter chain for {@code /api/cluster/**}
+     * @throws Exception if the chain cannot be built
+     */
+    @Bean
+    @Order(1)
+    public SecurityFilterChain clusterFilterChain(HttpSecurity http, VpnConfig vpnConfig) throws Exception {
+        http.securityMatcher("/api/cluster/**")
+                .csrf(AbstractHttpConfigurer::disable)
+                .sessionManagement(session -> session.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
+                .addFilterBefore(new ClusterSecretFilter(vpnConfig.getCluster().getSharedSecret()),
+                        AnonymousAuthenticationFilter.class)
+                .authorizeHttpRequests(authorize -> authorize.anyRequest().hasRole(ClusterSecretFilter.NODE_ROLE))
+                .exceptionHandling(exceptions -> exceptions
+                        .authenticationEntryPoint(new HttpStatusEntryPoint(HttpStatus.UNAUTHORIZED)));
+        return http.build();
+    }
+    
+    /**
+     * Security for everything else, equivalent to Spring Boot's default chain except
+     * for the open health endpoint.
+     * 
+     * @param http the security builder
+     * @return the default filter chain
+     * @throws Exception if the chain cannot be built
+     */
+    @Bean
+    @Order(2)
+    public SecurityFilterChain defaultFilterChain(HttpSecurity http) throws Exception {
+        http.authorizeHttpRequests(authorize -> authorize
+                        .requestMatchers("/actuator/health", "/actuator/health/**").permitAll()
+                        .anyRequest().authenticated())
+                .formLogin(Customizer.withDefaults())
+                .httpBasic(Customizer.withDefaults());
+        return http.build();
+    }
+}
@@ -4,7 +4,9 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -30,6 +32,71 @@ public class VpnConfig {
      */
     private Map<String, ProtocolConfig> protocols = new HashMap<>();
     
+    /**
+     * Handshake flood protection settings.
+     */
+    private HandshakeConfig handshake = new HandshakeConfig();
+    
+    /**
+     * Transport session timer settings.
+     */
+    private SessionConfig session = new SessionConfig();
+    
+    /**
+     * Bulk key rotation settings.
+     */
+    private RotationConfig rotation = new RotationConfig();
+    
+    /**
+     * Userspace NAT settings.
+     */
+    private NatConfig nat = new NatConfig();
+    
+    /**
+     * Built-in DNS forwarder settings.
+     */
+    private DnsConfig dns = new DnsConfig();
+    
+    /**
+     * Multi-node cluster settings.
+     */
+    private ClusterConfig cluster = new ClusterConfig();
+    
+    /**
+     * Load-aware endpoint selection settings.
+     */
+    private LoadConfig load = new LoadConfig();
+    
+    /**
+     * Client configuration generation settings.
+     */
+    private ProvisioningConfig provisioning = new ProvisioningConfig();
+    
+    /**
+     * Certificate revocation configuration.
+     */
+    private PkiConfig pki = new PkiConfig();
+    
+    /**
+     * Event journal configuration.
+     */
+    private JournalConfig journal = new JournalConfig();
+    
+    /**
+     * Flight Recorder event stream configuration.
+     */
+    private JfrConfig jfr = new JfrConfig();
+    
+    /**
+     * TCP/TLS stream transport configuration.
+     */
+    private StreamConfig stream = new StreamConfig();
+    
+    /**
+     * Protocol health probe configuration.
+     */
+    private HealthConfig health = new HealthConfig();
+    
     /**
      * Configuration for a specific protocol.
      */
@@ -45,9 +112,546 @@ public class VpnConfig {
          */
         private int port;
         
+        /**
+         * The number of independent instances serving this protocol. Shard N listens
+         * on the configured port plus N and has its own interface and subnet.
+         */
+        private int shards = 1;
+        
+        /**
+         * Directory holding the server keys, the server configuration and the client
+         * configurations. Defaults to {@code config/<protocol>}; shards use
+         * subdirectories of it.
+         */
+        private String directory;
+        
         /**
          * Additional protocol-specific configuration options.
          */
         private Map<String, String> options = new HashMap<>();
     }
+    
+    /**
+     * Configuration for handshake flood protection.
+     */
+    @Data
+    public static class HandshakeConfig {
+        /**
+         * Handshakes per second across all sources above which the server
+         * switches to stateless cookie replies.
+         */
+        private int overloadThreshold = 1000;
+        
+        /**
+         * Handshakes per second a single source may send while under load.
+         */
+        private int perSourceLimit = 20;
+        
+        /**
+         * Number of counters per row of the source-tracking sketch.
+         */
+        private int sketchWidth = 4096;
+        
+        /**
+         * Number of rows (independent hash functions) of the source-tracking sketch.
+         */
+        private int sketchDepth = 4;
+    }
+    
+    /**
+     * Configuration for transport session timers.
+     */
+    @Data
+    public static class SessionConfig {
+        /**
+         * Seconds without outgoing traffic after which a keepalive is sent.
+         */
+        private int keepaliveInterval = 10;
+        
+        /**
+         * Seconds without incoming traffic after which a session is evicted.
+         */
+        private int idleTimeout = 120;
+        
+        /**
+         * Seconds after a handshake after which the session is rekeyed.
+         */
+        private int rekeyAfterTime = 120;
+        
+        /**
+         * Tick duration of the timing wheel in milliseconds.
+         */
+        private long timerTickMillis = 100;
+        
+        /**
+         * Number of buckets in the timing wheel.
+         */
+        private int timerWheelSize = 512;
+        
+        /**
+         * Milliseconds between reads of the peer state reported by the protocol servers.
+         */
+        private long pollIntervalMillis = 5000;
+    }
+    
+    /**
+     * Configuration for scheduled bulk key rotation.
+     */
+    @Data
+    public static class RotationConfig {
+        /**
+         * Whether keys are rotated automatically.
+         */
+        private boolean enabled = false;
+        
+        /**
+         * Age in days after which a client's keys are due for rotation.
+         */
+        private int maxKeyAgeDays = 90;
+        
+        /**
+         * Minutes over which the rotations of one run are spread.
+         */
+        private int windowMinutes = 60;
+        
+        /**
+         * Maximum number of rotations executing at the same time.
+         */
+        private int maxConcurrent = 4;
+        
+        /**
+         * Maximum number of rotations started per second.
+         */
+        private int maxPerSecond = 20;
+        
+        /**
+         * Seconds between rotation batches. Each batch writes a protocol's peer store once.
+         */
+        private int batchIntervalSeconds = 60;
+    }
+    
+    /**
+     * Configuration for the userspace NAT engine.
+     */
+    @Data
+    public static class NatConfig {
+        /**
+         * Whether the in-process NAT engine is available to userspace data planes. Kernel
+         * tunnels keep their iptables MASQUERADE rules either way.
+         */
+        private boolean enabled = false;
+        
+        /**
+         * The IPv4 address translated packets leave from.
+         */
+        private String externalAddress = "0.0.0.0";
+        
+        /**
+         * The first external port handed out to flows.
+         */
+        private int portRangeStart = 20000;
+        
+        /**
+         * The last external port handed out to flows.
+         */
+        private int portRangeEnd = 60999;
+        
+        /**
+         * Seconds after which an idle UDP mapping is removed.
+         */
+        private int udpTimeout = 120;
+        
+        /**
+         * Seconds after which an idle TCP mapping is removed.
+         */
+        private int tcpTimeout = 7440;
+    }
+    
+    /**
+     * Configuration for the caching DNS forwarder on the tunnel gateways.
+     */
+    @Data
+    public static class DnsConfig {
+        /**
+         * Whether the forwarder runs and clients are pointed at the tunnel gateway for DNS.
+         */
+        private boolean enabled = false;
+        
+        /**
+         * Extra addresses the forwarder listens on. The gateway of every protocol and
+         * shard is always listened on and need not be listed.
+         */
+        private List<String> listenAddresses = new ArrayList<>();
+        
+        /**
+         * Port the forwarder listens on.
+         */
+        private int port = 53;
+        
+        /**
+         * Upstream resolver cache misses are forwarded to.
+         */
+        private String upstream = "8.8.8.8";
+        
+        /**
+         * Port of the upstream resolver.
+         */
+        private int upstreamPort = 53;
+        
+        /**
+         * Maximum number of cached responses.
+         */
+        private int cacheSize = 10000;
+        
+        /**
+         * Longest time in seconds a response is cached, whatever its TTL.
+         */
+        private int maxTtl = 3600;
+        
+        /**
+         * Time in seconds responses without records are cached.
+         */
+        private int negativeTtl = 30;
+        
+        /**
+         * Milliseconds to wait for the upstream before answering SERVFAIL.
+         */
+        private long timeoutMillis = 2000;
+        
+        /**
+         * Maximum number of upstream lookups in flight; further questions are answered
+         * SERVFAIL. At most 4096, a sixteenth of the upstream query IDs.
+         */
+        private int maxInFlight = 4096;
+        
+        /**
+         * Milliseconds between attempts to bind gateway addresses whose tunnel is not up yet.
+         */
+        private long bindRetryMillis = 5000;
+    }
+    
+    /**
+     * Configuration for running several nodes as one cluster.
+     */
+    @Data
+    public static class ClusterConfig {
+        /**
+         * Whether this node joins a cluster.
+         */
+        private boolean enabled = false;
+        
+        /**
+         * Unique, stable id of this node. Defaults to the host name.
+         */
+        private String nodeId;
+        
+        /**
+         * Base URL other nodes use to reach this node's API.
+         */
+        private String advertiseAddress = "http://localhost:4221";
+        
+        /**
+         * Public address clients of this node connect to. Defaults to the server address.
+         */
+        private String endpoint;
+        
+        /**
+         * API base URLs of nodes to contact when joining.
+         */
+        private List<String> seeds = new ArrayList<>();
+        
+        /**
+         * Number of points each node has on the consistent-hash ring.
+         */
+        private int virtualNodes = 128;
+        
+        /**
+         * How far above the average client count a node may grow, as a fraction.
+         */
+        private double loadFactor = 0.25;
+        
+        /**
+         * Milliseconds between heartbeats.
+         */
+        private long heartbeatIntervalMillis = 1000;
+        
+        /**
+         * Milliseconds without a heartbeat after which a node is suspected. A suspect
+         * node gets no new clients but keeps the ones it has.
+         */
+        private long failureTimeoutMillis = 5000;
+        
+        /**
+         * Milliseconds without a heartbeat after which a node is considered gone and
+         * its clients are moved to other nodes.
+         */
+        private long departureTimeoutMillis = 600000;
+        
+        /**
+         * Secret shared by all nodes, sent with every node-to-node request. Required
+         * when clustering is enabled.
+         */
+        private String sharedSecret;
+    }
+    
+    /**
+     * Configuration for choosing the endpoints written into client configurations.
+     */
+    @Data
+    public static class LoadConfig {
+        /**
+         * Further public addresses of this server, besides the server address, on
+         * which every protocol port is reachable.
+         */
+        private List<String> additionalAddresses = new ArrayList<>();
+        
+        /**
+         * Maximum number of endpoints written into a client configuration.
+         */
+        private int maxEndpoints = 3;
+        
+        /**
+         * Sessions an endpoint is sized for.
+         */
+        private int maxSessionsPerEndpoint = 1000;
+        
+        /**
+         * Throughput in bytes per second an endpoint is sized for.
+         */
+        private long maxThroughputPerEndpoint = 125_000_000;
+        
+        /**
+         * Weight of the newest sample in the smoothed throughput, between 0 and 1.
+         */
+        private double smoothing = 0.3;
+        
+        /**
+         * Milliseconds between load table refreshes.
+         */
+        private long refreshIntervalMillis = 1000;
+    }
+    
+    /**
+     * Configuration for the executor that generates client configurations.
+     */
+    @Data
+    public static class ProvisioningConfig {
+        /**
+         * Threads generating configurations. 0 uses all cores but one, leaving a core
+         * for request handling.
+         */
+        private int threads = 0;
+        
+        /**
+         * Requests that may wait for a thread before new ones are rejected.
+         */
+        private int queueCapacity = 100;
+        
+        /**
+         * Seconds clients are told to wait before retrying a rejected request.
+         */
+        private int retryAfterSeconds = 5;
+    }
+    
+    /**
+     * Configuration for certificate revocation and CRL publishing.
+     */
+    @Data
+    public static class PkiConfig {
+        /**
+         * Directory holding the CRL signing key and the published CRLs.
+         */
+        private String directory = "config/pki";
+        
+        /**
+         * Distinguished name of the CA that issues the CRLs.
+         */
+        private String issuer = "CN=VPN CA";
+        
+        /**
+         * Number of revocations the Bloom filter is initially sized for. It doubles when outgrown.
+         */
+        private int expectedRevocations = 100000;
+        
+        /**
+         * False positive rate of the Bloom filter; hits are confirmed against the exact index.
+         */
+        private double falsePositiveRate = 0.001;
+        
+        /**
+         * Milliseconds between checks for revocations to publish in a delta CRL.
+         */
+        private long publishIntervalMillis = 5000;
+        
+        /**
+         * Revocations a delta CRL may hold before a new base CRL is issued.
+         */
+        private int maxDeltaEntries = 10000;
+        
+        /**
+         * Minutes after which a new base CRL is issued even if the delta is small.
+         */
+        private int baseIntervalMinutes = 1440;
+        
+        /**
+         * Hours a published CRL stays valid, written as its next update time.
+         */
+        private int validityHours = 48;
+    }
+    
+    /**
+     * Configuration for the audit event journal.
+     */
+    @Data
+    public static class JournalConfig {
+        /**
+         * Whether lifecycle and provisioning events are journaled.
+         */
+        private boolean enabled = true;
+        
+        /**
+         * Directory holding the journal segment files.
+         */
+        private String directory = "journal";
+        
+        /**
+         * Events that may wait for the writer before new ones are dropped, rounded up to a power of two.
+         */
+        private int ringSize = 65536;
+        
+        /**
+         * Size at which a segment file is closed and a new one started.
+         */
+        private long segmentSizeBytes = 64L * 1024 * 1024;
+        
+        /**
+         * Longest time written events may stay unsynced while the writer is busy.
+         */
+        private long syncIntervalMillis = 100;
+    }
+    
+    /**
+     * Configuration for the Flight Recorder event stream behind the jfr actuator endpoint.
+     */
+    @Data
+    public static class JfrConfig {
+        /**
+         * Whether the event stream starts with the application instead of on demand.
+         */
+        private boolean enabledOnStartup = false;
+        
+        /**
+         * Number of recent events kept for the endpoint.
+         */
+        private int recentEvents = 1000;
+        
+        /**
+         * Minimum duration of config generation, peer store write and handshake events to record.
+         */
+        private long thresholdMillis = 0;
+        
+        /**
+         * Milliseconds between packet batch events.
+         */
+        private long packetBatchPeriodMillis = 1000;
+    }
+    
+    /**
+     * Configuration for carrying tunnel datagrams over TCP or TLS where UDP is blocked.
+     */
+    @Data
+    public static class StreamConfig {
+        /**
+         * Whether the stream transport is enabled.
+         */
+        private boolean enabled = false;
+        
+        /**
+         * Address to accept streams on.
+         */
+        private String listenAddress = "0.0.0.0";
+        
+        /**
+         * Port to accept streams on.
+         */
+        private int port = 443;
+        
+        /**
+         * Host of the UDP protocol server datagrams are relayed to.
+         */
+        private String tunnelHost = "127.0.0.1";
+        
+        /**
+         * UDP port of the protocol server datagrams are relayed to.
+         */
+        private int tunnelPort = 51820;
+        
+        /**
+         * PEM certificate chain for TLS; plain TCP is used when unset.
+         */
+        private String tlsCertificate;
+        
+        /**
+         * PEM PKCS#8 private key for TLS.
+         */
+        private String tlsPrivateKey;
+        
+        /**
+         * Number of flushes merged into one write while no read is in progress.
+         */
+        private int flushConsolidationLimit = 256;
+        
+        /**
+         * Number of event loop threads, 0 for twice the number of cores.
+         */
+        private int workerThreads = 0;
+        
+        /**
+         * Whether datagrams towards the tunnel are sent in segmented batches (UDP GSO)
+         * when the epoll transport and the kernel support it.
+         */
+        private boolean udpSegmentation = true;
+        
+        /**
+         * Largest datagram expected from the tunnel.
+         */
+        private int maxDatagramSize = 2048;
+        
+        /**
+         * Number of datagrams read from the tunnel per receive call on epoll, 1 to
+         * read one at a time.
+         */
+        private int receiveBatchSize = 32;
+    }
+    
+    /**
+     * Configuration for the background liveness probes behind the protocol health indicators.
+     */
+    @Data
+    public static class HealthConfig {
+        /**
+         * Whether running protocols are probed.
+         */
+        private boolean enabled = true;
+        
+        /**
+         * Address the protocol ports are probed on.
+         */
+        private String probeAddress = "127.0.0.1";
+        
+        /**
+         * Milliseconds between probe rounds.
+         */
+        private long probeIntervalMillis = 5000;
+        
+        /**
+         * Milliseconds to wait for a probe answer.
+         */
+        private int timeoutMillis = 500;
+        
+        /**
+         * Age in milliseconds after which a cached result is reported as unknown.
+         */
+        private long staleAfterMillis = 15000;
+    }
 }
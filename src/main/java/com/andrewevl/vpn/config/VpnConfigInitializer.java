@@ -1,14 +1,25 @@
 package com.andrewevl.vpn.config;
 
+import com.andrewevl.vpn.dns.DnsService;
+import com.andrewevl.vpn.load.EndpointSelector;
+import com.andrewevl.vpn.model.AbstractProtocol;
 import com.andrewevl.vpn.model.Protocol;
+import com.andrewevl.vpn.model.ShardedProtocol;
 import com.andrewevl.vpn.service.VpnService;
 import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
 import java.lang.reflect.Method;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Initializes VPN protocols with configuration from application properties.
@@ -20,9 +31,12 @@ public class VpnConfigInitializer {
     
     private final VpnConfig vpnConfig;
     private final VpnService vpnService;
+    private final EndpointSelector endpointSelector;
+    private final DnsService dnsService;
     
     /**
-     * Initialize protocols with configuration after bean construction.
+     * Apply configuration to protocols after bean construction. This only sets
+     * fields; file I/O is left to {@link #warmUpProtocols()}.
      */
     @PostConstruct
     public void initializeProtocols() {
@@ -42,62 +56,118 @@ public class VpnConfigInitializer {
                 continue;
             }
             
-            // Set server address
-            try {
-                Method setServerAddressMethod = protocol.getClass().getMethod("setServerAddress", String.class);
-                setServerAddressMethod.invoke(protocol, vpnConfig.getServerAddress());
-                log.debug("Set server address for {}: {}", protocolName, vpnConfig.getServerAddress());
-            } catch (Exception e) {
-                log.warn("Failed to set server address for protocol {}: {}", protocolName, e.getMessage());
-            }
-            
-            // Set port
-            if (protocolConfig.getPort() > 0) {
-                try {
-                    Method setPortMethod = protocol.getClass().getMethod("setPort", int.class);
-                    setPortMethod.invoke(protocol, protocolConfig.getPort());
-                    log.debug("Set port for {}: {}", protocolName, protocolConfig.getPort());
-                } catch (Exception e) {
-                    log.warn("Failed to set port for protocol {}: {}", protocolName, e.getMessage());
+            // Sharded protocols are configured shard by shard, shard N on the configured port plus N
+            if (protocol instanceof ShardedProtocol sharded) {
+                sharded.setEndpointSelector(endpointSelector);
+                List<AbstractProtocol> shards = sharded.getShards();
+                for (int i = 0; i < shards.size(); i++) {
+                    configureProtocol(shards.get(i), protocolName, protocolConfig,
+                            protocolConfig.getPort() > 0 ? protocolConfig.getPort() + i : 0);
                 }
+            } else {
+                configureProtocol(protocol, protocolName, protocolConfig, protocolConfig.getPort());
+            }
+        }
+    }
+    
+    /**
+     * Create every protocol's directories, keys and default configuration files
+     * concurrently once the application is ready and register the clients each one
+     * already has, then auto-start the protocols if configured. Requests that arrive
+     * first initialize the protocol they use on demand.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void warmUpProtocols() {
+        Map<String, Protocol> protocols = vpnService.getAllProtocols();
+        ExecutorService executor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("protocol-init-", 0).factory());
+        long start = System.nanoTime();
+        CompletableFuture<?>[] tasks = protocols.entrySet().stream()
+                .map(entry -> CompletableFuture.runAsync(() -> {
+                    entry.getValue().initialize();
+                    int clients = vpnService.registerExistingClients(entry.getKey());
+                    log.info("Registered {} existing {} clients", clients, entry.getKey());
+                }, executor))
+                .toArray(CompletableFuture[]::new);
+        CompletableFuture.allOf(tasks).whenComplete((ignored, error) -> {
+            executor.shutdown();
+            if (error != null) {
+                log.error("Failed to initialize VPN protocols: {}", error.getMessage(), error);
+            } else {
+                log.info("Initialized {} VPN protocols in {} ms", protocols.size(),
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
             }
             
-            // Apply additional options if supported by the protocol
-            for (Map.Entry<String, String> option : protocolConfig.getOptions().entrySet()) {
-                String optionName = option.getKey();
-                String optionValue = option.getValue();
-                
-                // Convert option name to setter method name (e.g., "cipher" -> "setCipher")
-                String setterName = "set" + optionName.substring(0, 1).toUpperCase() + optionName.substring(1).replace("-", "");
-                
-                try {
-                    // Try to find a setter method for this option
-                    Method setterMethod = findSetterMethod(protocol.getClass(), setterName);
-                    if (setterMethod != null) {
-                        Class<?> paramType = setterMethod.getParameterTypes()[0];
-                        Object convertedValue = convertValue(optionValue, paramType);
-                        setterMethod.invoke(protocol, convertedValue);
-                        log.debug("Set option {} for {}: {}", optionName, protocolName, optionValue);
+            // Auto-start protocols if configured
+            if (vpnConfig.isAutoStartProtocols()) {
+                log.info("Auto-starting VPN protocols");
+                Map<String, Boolean> results = vpnService.startAllProtocols();
+                results.forEach((name, success) -> {
+                    if (success) {
+                        log.info("Successfully started protocol: {}", name);
                     } else {
-                        log.debug("No setter method found for option: {}", optionName);
+                        log.error("Failed to start protocol: {}", name);
                     }
-                } catch (Exception e) {
-                    log.warn("Failed to set option {} for protocol {}: {}", optionName, protocolName, e.getMessage());
-                }
+                });
+                // The gateway addresses exist now; bind the DNS forwarder without waiting for the retry
+                dnsService.bindPending();
+            }
+        });
+    }
+    
+    /**
+     * Apply server address, port, options and enabled features to one protocol instance.
+     */
+    private void configureProtocol(Protocol protocol, String protocolName, VpnConfig.ProtocolConfig protocolConfig, int port) {
+        // Set server address
+        try {
+            Method setServerAddressMethod = protocol.getClass().getMethod("setServerAddress", String.class);
+            setServerAddressMethod.invoke(protocol, vpnConfig.getServerAddress());
+            log.debug("Set server address for {}: {}", protocolName, vpnConfig.getServerAddress());
+        } catch (Exception e) {
+            log.warn("Failed to set server address for protocol {}: {}", protocolName, e.getMessage());
+        }
+        
+        // Set port
+        if (port > 0) {
+            try {
+                Method setPortMethod = protocol.getClass().getMethod("setPort", int.class);
+                setPortMethod.invoke(protocol, port);
+                log.debug("Set port for {}: {}", protocolName, port);
+            } catch (Exception e) {
+                log.warn("Failed to set port for protocol {}: {}", protocolName, e.getMessage());
             }
         }
         
-        // Auto-start protocols if configured
-        if (vpnConfig.isAutoStartProtocols()) {
-            log.info("Auto-starting VPN protocols");
-            Map<String, Boolean> results = vpnService.startAllProtocols();
-            results.forEach((name, success) -> {
-                if (success) {
-                    log.info("Successfully started protocol: {}", name);
+        // Apply additional options if supported by the protocol
+        for (Map.Entry<String, String> option : protocolConfig.getOptions().entrySet()) {
+            String optionName = option.getKey();
+            String optionValue = option.getValue();
+            
+            // Convert option name to setter method name (e.g., "cipher" -> "setCipher")
+            String setterName = "set" + optionName.substring(0, 1).toUpperCase() + optionName.substring(1).replace("-", "");
+            
+            try {
+                // Try to find a setter method for this option
+                Method setterMethod = findSetterMethod(protocol.getClass(), setterName);
+                if (setterMethod != null) {
+                    Class<?> paramType = setterMethod.getParameterTypes()[0];
+                    Object convertedValue = convertValue(optionValue, paramType);
+                    setterMethod.invoke(protocol, convertedValue);
+                    log.debug("Set option {} for {}: {}", optionName, protocolName, optionValue);
                 } else {
-                    log.error("Failed to start protocol: {}", name);
+                    log.debug("No setter method found for option: {}", optionName);
                 }
-            });
+            } catch (Exception e) {
+                log.warn("Failed to set option {} for protocol {}: {}", optionName, protocolName, e.getMessage());
+            }
+        }
+        
+        // Offer every configured address, order endpoints by live load, and point
+        // clients at the built-in DNS forwarder once it serves their gateway
+        if (protocol instanceof AbstractProtocol abstractProtocol) {
+            abstractProtocol.setAdditionalAddresses(vpnConfig.getLoad().getAdditionalAddresses());
+            abstractProtocol.setEndpointSelector(endpointSelector);
+            abstractProtocol.setLocalDnsAvailable(dnsService::isServing);
         }
     }
     
@@ -0,0 +1,83 @@
+package com.andrewevl.vpn.controller;
+
+import com.andrewevl.vpn.cluster.ClusterMessage;
+import com.andrewevl.vpn.cluster.ClusterService;
+import com.andrewevl.vpn.service.VpnService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * REST controller for cluster status and node-to-node communication.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/cluster")
+@RequiredArgsConstructor
+public class ClusterController {
+    
+    private final ClusterService clusterService;
+    private final VpnService vpnService;
+    
+    /**
+     * Get the cluster members and the number of clients placed on each.
+     * 
+     * @return the cluster status
+     */
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getClusterStatus() {
+        return ResponseEntity.ok(clusterService.getStatus());
+    }
+    
+    /**
+     * Receive a heartbeat or placement update from another node.
+     * 
+     * @param message the message
+     * @return an acknowledgement
+     */
+    @PostMapping("/messages")
+    public ResponseEntity<Map<String, Object>> receiveMessage(@RequestBody ClusterMessage message) {
+        Map<String, Object> result = new HashMap<>();
+        if (!clusterService.isEnabled()) {
+            result.put("error", "Clustering is disabled on this node");
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(result);
+        }
+        clusterService.receive(message);
+        result.put("accepted", true);
+        return ResponseEntity.ok(result);
+    }
+    
+    /**
+     * Generate a client configuration on this node for a client another node placed here.
+     * 
+     * @param protocol the protocol name
+     * @param username the username for the client
+     * @return the client configuration
+     */
+    @PostMapping("/client-config")
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> generateClientConfig(
+            @RequestParam String protocol,
+            @RequestParam String username) {
+        
+        log.info("Generating forwarded client configuration for protocol {} and user {}", protocol, username);
+        return vpnService.generateLocalClientConfigAsync(protocol, username).thenApply(config -> {
+            Map<String, Object> result = new HashMap<>();
+            result.put("protocol", protocol);
+            result.put("username", username);
+            
+            if (config != null) {
+                result.put("config", config);
+                return ResponseEntity.ok(result);
+            } else {
+                result.put("error", "Failed to generate client configuration");
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(result);
+            }
+        });
+    }
+}
@@ -0,0 +1,79 @@
+package com.andrewevl.vpn.controller;
+
+import com.andrewevl.vpn.journal.EventJournal;
+import com.andrewevl.vpn.journal.JournalEvent;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * REST controller for reading the audit event journal.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/vpn/journal")
+@RequiredArgsConstructor
+public class JournalController {
+    
+    private static final int MAX_EVENTS = 10000;
+    
+    private final EventJournal eventJournal;
+    
+    /**
+     * Get the journaled events in a time range.
+     * 
+     * @param from the start of the range, inclusive; defaults to one hour before {@code to}
+     * @param to the end of the range, exclusive; defaults to now
+     * @param limit the maximum number of events to return
+     * @return the events, oldest first
+     */
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getEvents(
+            @RequestParam(required = false) Instant from,
+            @RequestParam(required = false) Instant to,
+            @RequestParam(defaultValue = "1000") int limit) {
+        
+        Map<String, Object> result = new HashMap<>();
+        if (limit < 1 || limit > MAX_EVENTS) {
+            result.put("error", "Limit must be between 1 and " + MAX_EVENTS);
+            return ResponseEntity.badRequest().body(result);
+        }
+        Instant end = to != null ? to : Instant.now();
+        Instant start = from != null ? from : end.minus(Duration.ofHours(1));
+        
+        try {
+            List<Map<String, Object>> events = eventJournal.query(start, end, limit).stream()
+                    .map(JournalController::toMap)
+                    .toList();
+            result.put("from", start);
+            result.put("to", end);
+            result.put("events", events);
+            result.put("count", events.size());
+            result.put("dropped", eventJournal.getDroppedCount());
+            return ResponseEntity.ok(result);
+        } catch (IOException e) {
+            log.error("Failed to read event journal: {}", e.getMessage(), e);
+            result.put("error", "Failed to read event journal");
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(result);
+        }
+    }
+    
+    private static Map<String, Object> toMap(JournalEvent event) {
+        Map<String, Object> eventInfo = new HashMap<>();
+        eventInfo.put("timestamp", event.getTimestamp());
+        eventInfo.put("type", event.getType());
+        eventInfo.put("protocol", event.getProtocol());
+        eventInfo.put("subject", event.getSubject());
+        eventInfo.put("success", event.isSuccess());
+        return eventInfo;
+    }
+}
@@ -0,0 +1,61 @@
+package com.andrewevl.vpn.controller;
+
+import com.andrewevl.vpn.service.KeyRotationService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * REST controller for monitoring and triggering bulk key rotation.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/vpn/key-rotation")
+@RequiredArgsConstructor
+public class KeyRotationController {
+    
+    private final KeyRotationService keyRotationService;
+    
+    /**
+     * Get the progress of the current or most recent rotation run.
+     * 
+     * @return the rotation progress
+     */
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getRotationStatus() {
+        Map<String, Object> result = new HashMap<>();
+        keyRotationService.getCurrentRun().ifPresentOrElse(
+                run -> result.put("run", run.getProgress()),
+                () -> result.put("run", null));
+        return ResponseEntity.ok(result);
+    }
+    
+    /**
+     * Start a rotation run for all clients whose keys are due.
+     * 
+     * @return the progress of the started run
+     */
+    @PostMapping("/run")
+    public ResponseEntity<Map<String, Object>> startRotation() {
+        log.info("Starting key rotation run");
+        Map<String, Object> result = new HashMap<>();
+        result.put("action", "rotate");
+        
+        return keyRotationService.startRun()
+                .map(run -> {
+                    result.put("success", true);
+                    result.put("run", run.getProgress());
+                    return ResponseEntity.ok(result);
+                })
+                .orElseGet(() -> {
+                    result.put("success", false);
+                    result.put("error", "A rotation run is already in progress or no keys are due");
+                    return ResponseEntity.status(HttpStatus.CONFLICT).body(result);
+                });
+    }
+}
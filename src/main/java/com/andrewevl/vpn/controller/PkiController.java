@@ -0,0 +1,177 @@
+package com.andrewevl.vpn.controller;
+
+import com.andrewevl.vpn.pki.RevocationService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * REST controller for revoking client certificates and fetching the CRLs.
+ */
+@Slf4j
+@RestController
+@RequestMapping("/api/vpn/pki")
+@RequiredArgsConstructor
+public class PkiController {
+    
+    private static final MediaType PKIX_CRL = MediaType.parseMediaType("application/pkix-crl");
+    
+    private final RevocationService revocationService;
+    
+    /**
+     * Revoke a certificate.
+     * 
+     * @param serial the certificate serial number in hexadecimal
+     * @param reason the RFC 5280 CRL reason code
+     * @return the result of the operation
+     */
+    @PostMapping("/revocations")
+    public ResponseEntity<Map<String, Object>> revoke(
+            @RequestParam String serial,
+            @RequestParam(defaultValue = "0") int reason) {
+        
+        Map<String, Object> result = new HashMap<>();
+        result.put("serial", serial);
+        BigInteger serialNumber = parseSerial(serial);
+        if (serialNumber == null) {
+            result.put("error", "Serial must be a positive hexadecimal number");
+            return ResponseEntity.badRequest().body(result);
+        }
+        
+        try {
+            boolean revoked = revocationService.revoke(serialNumber, reason);
+            result.put("success", true);
+            result.put("alreadyRevoked", !revoked);
+            return ResponseEntity.ok(result);
+        } catch (IllegalArgumentException e) {
+            result.put("success", false);
+            result.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(result);
+        } catch (IllegalStateException | IOException | GeneralSecurityException e) {
+            log.error("Failed to persist revocation of {}: {}", serial, e.getMessage(), e);
+            result.put("success", false);
+            result.put("error", "Revocation could not be persisted");
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(result);
+        }
+    }
+    
+    /**
+     * Revoke several certificates at once. All of them go out in a single delta CRL.
+     * 
+     * @param serials the certificate serial numbers in hexadecimal
+     * @param reason the RFC 5280 CRL reason code
+     * @return the result of the operation
+     */
+    @PostMapping("/revocations/batch")
+    public ResponseEntity<Map<String, Object>> revokeAll(
+            @RequestBody List<String> serials,
+            @RequestParam(defaultValue = "0") int reason) {
+        
+        Map<String, Object> result = new HashMap<>();
+        Map<BigInteger, String> serialNumbers = new LinkedHashMap<>();
+        for (String serial : serials) {
+            BigInteger serialNumber = parseSerial(serial);
+            if (serialNumber == null) {
+                result.put("serial", serial);
+                result.put("error", "Serial must be a positive hexadecimal number");
+                return ResponseEntity.badRequest().body(result);
+            }
+            serialNumbers.put(serialNumber, serial);
+        }
+        
+        try {
+            Map<BigInteger, Boolean> revoked = revocationService.revokeAll(serialNumbers.keySet(), reason);
+            List<String> alreadyRevoked = new ArrayList<>();
+            revoked.forEach((serialNumber, newlyRevoked) -> {
+                if (!newlyRevoked) {
+                    alreadyRevoked.add(serialNumbers.get(serialNumber));
+                }
+            });
+            result.put("success", true);
+            result.put("revoked", revoked.size() - alreadyRevoked.size());
+            result.put("alreadyRevoked", alreadyRevoked);
+            return ResponseEntity.ok(result);
+        } catch (IllegalArgumentException e) {
+            result.put("success", false);
+            result.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(result);
+        } catch (IllegalStateException | IOException | GeneralSecurityException e) {
+            log.error("Failed to persist revocation of {} certificates: {}", serials.size(), e.getMessage(), e);
+            result.put("success", false);
+            result.put("error", "Revocations could not be persisted");
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(result);
+        }
+    }
+    
+    /**
+     * Check whether a certificate is revoked.
+     * 
+     * @param serial the certificate serial number in hexadecimal
+     * @return the revocation status of the certificate
+     */
+    @GetMapping("/revocations/{serial}")
+    public ResponseEntity<Map<String, Object>> getRevocation(@PathVariable String serial) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("serial", serial);
+        BigInteger serialNumber = parseSerial(serial);
+        if (serialNumber == null) {
+            result.put("error", "Serial must be a positive hexadecimal number");
+            return ResponseEntity.badRequest().body(result);
+        }
+        
+        result.put("revoked", false);
+        revocationService.getRevocation(serialNumber).ifPresent(revocation -> {
+            result.put("revoked", true);
+            result.put("revokedAt", revocation.getRevokedAt());
+            result.put("reason", revocation.getReason());
+        });
+        return ResponseEntity.ok(result);
+    }
+    
+    /**
+     * Get the latest base CRL.
+     * 
+     * @return the DER-encoded CRL
+     */
+    @GetMapping("/crl")
+    public ResponseEntity<byte[]> getBaseCrl() {
+        return crlResponse(revocationService.getBaseCrl());
+    }
+    
+    /**
+     * Get the latest delta CRL.
+     * 
+     * @return the DER-encoded CRL
+     */
+    @GetMapping("/crl/delta")
+    public ResponseEntity<byte[]> getDeltaCrl() {
+        return crlResponse(revocationService.getDeltaCrl());
+    }
+    
+    private static ResponseEntity<byte[]> crlResponse(Optional<byte[]> crl) {
+        return crl.map(der -> ResponseEntity.ok().contentType(PKIX_CRL).body(der))
+                .orElseGet(() -> ResponseEntity.status(HttpStatus.NOT_FOUND).build());
+    }
+    
+    private static BigInteger parseSerial(String serial) {
+        try {
+            BigInteger serialNumber = new BigInteger(serial, 16);
+            return serialNumber.signum() > 0 ? serialNumber : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.andrewevl.vpn.controller;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.service.ProvisioningQueueFullException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns a full provisioning queue into 429 Too Many Requests, so that callers back
+ * off instead of queueing without bound. Applies only to the controllers that
+ * provision client configurations.
+ */
+@Slf4j
+@RestControllerAdvice(assignableTypes = {VpnController.class, ClusterController.class})
+@RequiredArgsConstructor
+public class ProvisioningExceptionHandler {
+    
+    private final VpnConfig vpnConfig;
+    
+    /**
+     * Reject a request that found the provisioning queue full.
+     * 
+     * @param e the rejection
+     * @return a 429 response with a Retry-After header
+     */
+    @ExceptionHandler(ProvisioningQueueFullException.class)
+    public ResponseEntity<Map<String, Object>> handleRejected(ProvisioningQueueFullException e) {
+        int retryAfter = vpnConfig.getProvisioning().getRetryAfterSeconds();
+        log.warn("Provisioning queue full, asking client to retry in {}s", retryAfter);
+        
+        Map<String, Object> result = new HashMap<>();
+        result.put("error", "Too many client configuration requests");
+        result.put("retryAfterSeconds", retryAfter);
+        
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter))
+                .body(result);
+    }
+}
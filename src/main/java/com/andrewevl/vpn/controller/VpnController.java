@@ -1,15 +1,24 @@
 package com.andrewevl.vpn.controller;
 
+import com.andrewevl.vpn.load.LoadTable;
+import com.andrewevl.vpn.model.ClientPage;
+import com.andrewevl.vpn.model.ClientQuery;
 import com.andrewevl.vpn.model.Protocol;
+import com.andrewevl.vpn.model.ShardedProtocol;
+import com.andrewevl.vpn.service.ClientRegistry;
 import com.andrewevl.vpn.service.VpnService;
+import com.andrewevl.vpn.stream.StreamTransportService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.Instant;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 /**
@@ -21,7 +30,12 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class VpnController {
     
+    private static final int MAX_CLIENTS_PAGE_SIZE = 1000;
+    
     private final VpnService vpnService;
+    private final LoadTable loadTable;
+    private final ClientRegistry clientRegistry;
+    private final StreamTransportService streamTransportService;
     
     /**
      * Get all available protocols and their status.
@@ -41,6 +55,9 @@ public class VpnController {
                             protocolInfo.put("name", protocol.getName());
                             protocolInfo.put("running", protocol.isRunning());
                             protocolInfo.put("port", protocol.getDefaultPort());
+                            if (protocol instanceof ShardedProtocol sharded) {
+                                protocolInfo.put("shards", sharded.getShards().size());
+                            }
                             return protocolInfo;
                         }
                 ));
@@ -107,6 +124,12 @@ public class VpnController {
         Map<String, Object> result = new HashMap<>();
         result.put("protocol", name);
         result.put("running", running);
+        vpnService.getProtocol(name).ifPresent(protocol -> {
+            if (protocol instanceof ShardedProtocol sharded) {
+                result.put("peers", sharded.getPeerCount());
+                result.put("shards", sharded.getShardStatus());
+            }
+        });
         
         return ResponseEntity.ok(result);
     }
@@ -119,24 +142,109 @@ public class VpnController {
      * @return the client configuration
      */
     @PostMapping("/protocols/{name}/client-config")
-    public ResponseEntity<Map<String, Object>> generateClientConfig(
+    public CompletableFuture<ResponseEntity<Map<String, Object>>> generateClientConfig(
             @PathVariable String name,
             @RequestParam String username) {
         
         log.info("Generating client configuration for protocol {} and user {}", name, username);
-        String config = vpnService.generateClientConfig(name, username);
+        return vpnService.generateClientConfigAsync(name, username).thenApply(config -> {
+            Map<String, Object> result = new HashMap<>();
+            result.put("protocol", name);
+            result.put("username", username);
+            
+            if (config != null) {
+                result.put("config", config);
+                return ResponseEntity.ok(result);
+            } else {
+                result.put("error", "Failed to generate client configuration");
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(result);
+            }
+        });
+    }
+    
+    /**
+     * List the clients of a protocol, one page at a time.
+     * 
+     * @param name the protocol name
+     * @param prefix only list usernames starting with this prefix
+     * @param status only list "connected" or "disconnected" clients
+     * @param handshakeAfter only list clients whose last handshake is at or after this time
+     * @param handshakeBefore only list clients whose last handshake is before this time
+     * @param cursor the next-page cursor of the previous response
+     * @param limit the maximum number of clients to return
+     * @return the clients and the cursor of the next page, if any
+     */
+    @GetMapping("/protocols/{name}/clients")
+    public ResponseEntity<Map<String, Object>> listClients(
+            @PathVariable String name,
+            @RequestParam(required = false) String prefix,
+            @RequestParam(required = false) String status,
+            @RequestParam(required = false) Instant handshakeAfter,
+            @RequestParam(required = false) Instant handshakeBefore,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "100") int limit) {
         
         Map<String, Object> result = new HashMap<>();
         result.put("protocol", name);
-        result.put("username", username);
+        if (vpnService.getProtocol(name).isEmpty()) {
+            result.put("error", "Unknown protocol");
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(result);
+        }
+        if (limit < 1 || limit > MAX_CLIENTS_PAGE_SIZE) {
+            result.put("error", "Limit must be between 1 and " + MAX_CLIENTS_PAGE_SIZE);
+            return ResponseEntity.badRequest().body(result);
+        }
+        if (status != null && !status.equals("connected") && !status.equals("disconnected")) {
+            result.put("error", "Status must be connected or disconnected");
+            return ResponseEntity.badRequest().body(result);
+        }
         
-        if (config != null) {
-            result.put("config", config);
-            return ResponseEntity.ok(result);
-        } else {
-            result.put("error", "Failed to generate client configuration");
-            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(result);
+        ClientQuery query = new ClientQuery();
+        query.setPrefix(prefix);
+        query.setConnected(status == null ? null : status.equals("connected"));
+        query.setHandshakeAfter(handshakeAfter);
+        query.setHandshakeBefore(handshakeBefore);
+        query.setCursor(cursor);
+        query.setLimit(limit);
+        
+        ClientPage page;
+        try {
+            page = clientRegistry.findClients(name, query);
+        } catch (IllegalArgumentException e) {
+            result.put("error", e.getMessage());
+            return ResponseEntity.badRequest().body(result);
+        }
+        
+        List<Map<String, Object>> clients = page.getClients().stream()
+                .map(client -> {
+                    Map<String, Object> clientInfo = new HashMap<>();
+                    clientInfo.put("username", client.getUsername());
+                    clientInfo.put("status", client.isConnected() ? "connected" : "disconnected");
+                    clientInfo.put("createdAt", client.getCreatedAt());
+                    clientInfo.put("keysRotatedAt", client.getKeysRotatedAt());
+                    clientInfo.put("lastHandshakeAt", client.getLastHandshakeAt());
+                    return clientInfo;
+                })
+                .toList();
+        result.put("clients", clients);
+        result.put("count", clients.size());
+        result.put("nextCursor", page.getNextCursor());
+        return ResponseEntity.ok(result);
+    }
+    
+    /**
+     * Get the live load of the endpoints of this node.
+     * 
+     * @return the CPU load and the sessions, throughput and saturation of each endpoint,
+     *         plus the stream transport's streams and frame counters when it is enabled
+     */
+    @GetMapping("/load")
+    public ResponseEntity<Map<String, Object>> getLoad() {
+        Map<String, Object> result = loadTable.getSnapshot();
+        if (streamTransportService.isEnabled()) {
+            result.put("stream", streamTransportService.getStats());
         }
+        return ResponseEntity.ok(result);
     }
     
     /**
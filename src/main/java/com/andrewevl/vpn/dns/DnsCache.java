@@ -0,0 +1,120 @@
+package com.andrewevl.vpn.dns;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size-bounded, TTL-aware cache of DNS responses keyed by question.
+ * Entries live for the smallest TTL in the response, capped at a maximum, and the
+ * least recently used entry is evicted when the cache is full. Responses handed out
+ * have their TTLs reduced by the time spent in the cache. Not thread-safe; the
+ * forwarder only touches it from its event loop.
+ */
+public class DnsCache {
+    
+    private final int maxEntries;
+    private final long maxTtlSeconds;
+    private final long negativeTtlSeconds;
+    private final LinkedHashMap<String, Entry> entries;
+    
+    private long hits;
+    private long misses;
+    
+    /**
+     * Create a cache.
+     * 
+     * @param maxEntries the maximum number of cached responses
+     * @param maxTtlSeconds the longest time a response is cached
+     * @param negativeTtlSeconds how long responses without records are cached
+     */
+    public DnsCache(int maxEntries, long maxTtlSeconds, long negativeTtlSeconds) {
+        this.maxEntries = maxEntries;
+        this.maxTtlSeconds = maxTtlSeconds;
+        this.negativeTtlSeconds = negativeTtlSeconds;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > DnsCache.this.maxEntries;
+            }
+        };
+    }
+    
+    /**
+     * Look up a response.
+     * 
+     * @param key the question key
+     * @param id the ID of the query to answer
+     * @param now the current {@link System#nanoTime()}
+     * @return a copy of the cached response addressed to the query, or null on a miss
+     */
+    public byte[] get(String key, int id, long now) {
+        Entry entry = entries.get(key);
+        if (entry == null || now - entry.expiresAt >= 0) {
+            if (entry != null) {
+                entries.remove(key);
+            }
+            misses++;
+            return null;
+        }
+        hits++;
+        byte[] response = entry.response.clone();
+        DnsMessages.setId(response, id);
+        DnsMessages.decrementTtls(response, TimeUnit.NANOSECONDS.toSeconds(now - entry.storedAt));
+        return response;
+    }
+    
+    /**
+     * Store a response if it is cacheable.
+     * 
+     * @param key the question key
+     * @param response the response
+     * @param now the current {@link System#nanoTime()}
+     */
+    public void put(String key, byte[] response, long now) {
+        int rcode = DnsMessages.rcode(response);
+        if (DnsMessages.isTruncated(response)
+                || (rcode != DnsMessages.RCODE_NOERROR && rcode != DnsMessages.RCODE_NXDOMAIN)) {
+            return;
+        }
+        long ttl = DnsMessages.minTtl(response);
+        if (ttl < 0) {
+            ttl = negativeTtlSeconds;
+        }
+        ttl = Math.min(ttl, maxTtlSeconds);
+        if (ttl == 0) {
+            return;
+        }
+        entries.put(key, new Entry(response.clone(), now, now + TimeUnit.SECONDS.toNanos(ttl)));
+    }
+    
+    /**
+     * Get the number of cached responses.
+     * 
+     * @return the entry count
+     */
+    public int size() {
+        return entries.size();
+    }
+    
+    /**
+     * Get the number of lookups answered from the cache.
+     * 
+     * @return the hit count
+     */
+    public long getHits() {
+        return hits;
+    }
+    
+    /**
+     * Get the number of lookups not answered from the cache.
+     * 
+     * @return the miss count
+     */
+    public long getMisses() {
+        return misses;
+    }
+    
+    private record Entry(byte[] response, long storedAt, long expiresAt) {
+    }
+}
@@ -0,0 +1,321 @@
+package com.andrewevl.vpn.dns;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caching DNS forwarder for tunnel clients.
+ * <p>
+ * Listens on the tunnel gateway addresses and forwards cache misses to a single
+ * upstream resolver. Identical questions that arrive while a lookup is in flight
+ * are coalesced onto that lookup, so a burst of clients asking for the same name
+ * costs one upstream query. All channels share one event loop, so the cache and
+ * the in-flight table are only ever touched by a single thread and need no locks.
+ * <p>
+ * The listen addresses normally belong to tunnel interfaces that come up after the
+ * forwarder is created, so addresses that cannot be bound yet are kept pending and
+ * retried by {@link #bindPending()}. The number of lookups in flight is capped well
+ * below the 65,536 upstream IDs; questions beyond the cap are answered SERVFAIL.
+ */
+@Slf4j
+public class DnsForwarder {
+    
+    /**
+     * Upper bound for the in-flight cap, one sixteenth of the upstream ID space.
+     */
+    public static final int MAX_IN_FLIGHT_LIMIT = 0x10000 / 16;
+    
+    private final List<InetSocketAddress> listenAddresses;
+    private final InetSocketAddress upstream;
+    private final long timeoutMillis;
+    private final int maxInFlight;
+    private final DnsCache cache;
+    
+    private final Map<String, InFlight> inFlightByKey = new HashMap<>();
+    private final Map<Integer, InFlight> inFlightById = new HashMap<>();
+    
+    private EventLoopGroup group;
+    private Channel upstreamChannel;
+    private final Map<InetSocketAddress, InetSocketAddress> boundAddresses = new ConcurrentHashMap<>();
+    
+    private long upstreamQueries;
+    private long coalescedQueries;
+    private long rejectedQueries;
+    
+    /**
+     * Create a forwarder.
+     * 
+     * @param listenAddresses the addresses to answer queries on
+     * @param upstream the resolver cache misses are forwarded to
+     * @param cache the response cache
+     * @param timeoutMillis how long to wait for the upstream before answering SERVFAIL
+     * @param maxInFlight the maximum number of upstream lookups in flight
+     */
+    public DnsForwarder(List<InetSocketAddress> listenAddresses, InetSocketAddress upstream,
+                        DnsCache cache, long timeoutMillis, int maxInFlight) {
+        if (maxInFlight <= 0 || maxInFlight > MAX_IN_FLIGHT_LIMIT) {
+            throw new IllegalArgumentException("maxInFlight must be between 1 and " + MAX_IN_FLIGHT_LIMIT);
+        }
+        this.listenAddresses = listenAddresses;
+        this.upstream = upstream;
+        this.cache = cache;
+        this.timeoutMillis = timeoutMillis;
+        this.maxInFlight = maxInFlight;
+    }
+    
+    /**
+     * Bind the upstream socket and every listen address that can be bound now.
+     * 
+     * @return the listen addresses actually bound, which differ from the configured ones for port 0
+     * @throws InterruptedException if interrupted while binding
+     */
+    public synchronized List<InetSocketAddress> start() throws InterruptedException {
+        group = new NioEventLoopGroup(1, new DefaultThreadFactory("dns-forwarder", true));
+        upstreamChannel = new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .handler(new UpstreamHandler())
+                .bind(0)
+                .sync()
+                .channel();
+        return bindPending();
+    }
+    
+    /**
+     * Try again to bind the listen addresses that could not be bound so far,
+     * typically because their tunnel interface was not up yet.
+     * 
+     * @return the listen addresses newly bound by this call
+     * @throws InterruptedException if interrupted while binding
+     */
+    public synchronized List<InetSocketAddress> bindPending() throws InterruptedException {
+        List<InetSocketAddress> bound = new ArrayList<>();
+        if (group == null) {
+            return bound;
+        }
+        for (InetSocketAddress address : listenAddresses) {
+            if (boundAddresses.containsKey(address)) {
+                continue;
+            }
+            ChannelFuture future = new Bootstrap()
+                    .group(group)
+                    .channel(NioDatagramChannel.class)
+                    .handler(new ClientHandler())
+                    .bind(address)
+                    .await();
+            if (future.isSuccess()) {
+                InetSocketAddress local = (InetSocketAddress) future.channel().localAddress();
+                boundAddresses.put(address, local);
+                bound.add(local);
+                log.info("DNS forwarder listening on {}, upstream {}", local, upstream);
+            } else {
+                log.debug("Cannot bind DNS forwarder to {} yet: {}", address, future.cause().getMessage());
+            }
+        }
+        return bound;
+    }
+    
+    /**
+     * Check if every listen address is bound.
+     * 
+     * @return true if no listen address is pending
+     */
+    public boolean isFullyBound() {
+        return boundAddresses.size() == listenAddresses.size();
+    }
+    
+    /**
+     * Check if the forwarder is listening on any address.
+     * 
+     * @return true if at least one listen address is bound
+     */
+    public boolean isListening() {
+        return !boundAddresses.isEmpty();
+    }
+    
+    /**
+     * Check if the forwarder is listening on an address.
+     * 
+     * @param host the IP address or host name of a listen address
+     * @return true if a listen address with that host is bound
+     */
+    public boolean isListening(String host) {
+        return boundAddresses.keySet().stream().anyMatch(address -> address.getHostString().equals(host));
+    }
+    
+    /**
+     * Close all sockets and stop the event loop.
+     */
+    public synchronized void stop() {
+        if (group != null) {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            group = null;
+        }
+        boundAddresses.clear();
+    }
+    
+    /**
+     * Get forwarder statistics. Values are read without synchronization and may be
+     * slightly stale.
+     * 
+     * @return a map of statistic names to values
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("cacheSize", cache.size());
+        stats.put("cacheHits", cache.getHits());
+        stats.put("cacheMisses", cache.getMisses());
+        stats.put("upstreamQueries", upstreamQueries);
+        stats.put("coalescedQueries", coalescedQueries);
+        stats.put("rejectedQueries", rejectedQueries);
+        stats.put("listening", boundAddresses.size());
+        stats.put("pendingListenAddresses", listenAddresses.size() - boundAddresses.size());
+        return stats;
+    }
+    
+    private void onQuery(Channel channel, InetSocketAddress sender, byte[] query) {
+        if (query.length < DnsMessages.HEADER_LENGTH || DnsMessages.isResponse(query)) {
+            return;
+        }
+        String key = DnsMessages.questionKey(query);
+        if (key == null) {
+            reply(channel, sender, DnsMessages.servfail(query));
+            return;
+        }
+        
+        byte[] cached = cache.get(key, DnsMessages.id(query), System.nanoTime());
+        if (cached != null) {
+            reply(channel, sender, cached);
+            return;
+        }
+        
+        Waiter waiter = new Waiter(channel, sender, DnsMessages.id(query), query);
+        InFlight inFlight = inFlightByKey.get(key);
+        if (inFlight != null) {
+            inFlight.waiters.add(waiter);
+            coalescedQueries++;
+            return;
+        }
+        
+        if (inFlightById.size() >= maxInFlight) {
+            rejectedQueries++;
+            reply(channel, sender, DnsMessages.servfail(query));
+            return;
+        }
+        int upstreamId = newUpstreamId();
+        inFlight = new InFlight(key, upstreamId);
+        inFlight.waiters.add(waiter);
+        InFlight lookup = inFlight;
+        inFlight.timeout = channel.eventLoop().schedule(() -> onTimeout(lookup), timeoutMillis, TimeUnit.MILLISECONDS);
+        inFlightByKey.put(key, inFlight);
+        inFlightById.put(upstreamId, inFlight);
+        
+        byte[] forwarded = query.clone();
+        DnsMessages.setId(forwarded, upstreamId);
+        upstreamQueries++;
+        upstreamChannel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(forwarded), upstream));
+    }
+    
+    private void onUpstreamResponse(InetSocketAddress sender, byte[] response) {
+        if (!upstream.equals(sender) || response.length < DnsMessages.HEADER_LENGTH
+                || !DnsMessages.isResponse(response)) {
+            return;
+        }
+        InFlight inFlight = inFlightById.get(DnsMessages.id(response));
+        if (inFlight == null || !inFlight.key.equals(DnsMessages.questionKey(response))) {
+            // Late, duplicate or spoofed answer
+            return;
+        }
+        complete(inFlight);
+        cache.put(inFlight.key, response, System.nanoTime());
+        
+        for (Waiter waiter : inFlight.waiters) {
+            byte[] answer = response.clone();
+            DnsMessages.setId(answer, waiter.id);
+            reply(waiter.channel, waiter.sender, answer);
+        }
+    }
+    
+    private void onTimeout(InFlight inFlight) {
+        if (inFlightById.get(inFlight.upstreamId) != inFlight) {
+            return;
+        }
+        complete(inFlight);
+        log.debug("Upstream DNS timeout for {}", inFlight.key);
+        for (Waiter waiter : inFlight.waiters) {
+            reply(waiter.channel, waiter.sender, DnsMessages.servfail(waiter.query));
+        }
+    }
+    
+    private void complete(InFlight inFlight) {
+        inFlightByKey.remove(inFlight.key);
+        inFlightById.remove(inFlight.upstreamId);
+        if (inFlight.timeout != null) {
+            inFlight.timeout.cancel(false);
+        }
+    }
+    
+    private int newUpstreamId() {
+        // Random IDs make off-path spoofing of upstream answers harder. With at most
+        // a sixteenth of the IDs in use, a free one is found in about one try.
+        int id;
+        do {
+            id = ThreadLocalRandom.current().nextInt(0x10000);
+        } while (inFlightById.containsKey(id));
+        return id;
+    }
+    
+    private static void reply(Channel channel, InetSocketAddress recipient, byte[] message) {
+        channel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(message), recipient));
+    }
+    
+    private final class ClientHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            onQuery(ctx.channel(), packet.sender(), ByteBufUtil.getBytes(packet.content()));
+        }
+    }
+    
+    private final class UpstreamHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            onUpstreamResponse(packet.sender(), ByteBufUtil.getBytes(packet.content()));
+        }
+    }
+    
+    private static final class InFlight {
+        private final String key;
+        private final int upstreamId;
+        private final List<Waiter> waiters = new ArrayList<>(1);
+        private ScheduledFuture<?> timeout;
+        
+        InFlight(String key, int upstreamId) {
+            this.key = key;
+            this.upstreamId = upstreamId;
+        }
+    }
+    
+    private record Waiter(Channel channel, InetSocketAddress sender, int id, byte[] query) {
+    }
+}
@@ -0,0 +1,175 @@
+package com.andrewevl.vpn.dns;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Minimal DNS wire-format helpers for forwarding and caching.
+ * Only the header, the first question and resource record framing are parsed;
+ * record data is never interpreted.
+ */
+public final class DnsMessages {
+    
+    public static final int HEADER_LENGTH = 12;
+    public static final int RCODE_NOERROR = 0;
+    public static final int RCODE_SERVFAIL = 2;
+    public static final int RCODE_NXDOMAIN = 3;
+    
+    private static final int TYPE_OPT = 41;
+    
+    private DnsMessages() {
+    }
+    
+    public static int id(byte[] message) {
+        return ((message[0] & 0xFF) << 8) | (message[1] & 0xFF);
+    }
+    
+    public static void setId(byte[] message, int id) {
+        message[0] = (byte) (id >>> 8);
+        message[1] = (byte) id;
+    }
+    
+    public static boolean isResponse(byte[] message) {
+        return (message[2] & 0x80) != 0;
+    }
+    
+    public static boolean isTruncated(byte[] message) {
+        return (message[2] & 0x02) != 0;
+    }
+    
+    public static int rcode(byte[] message) {
+        return message[3] & 0x0F;
+    }
+    
+    /**
+     * Build the cache and coalescing key of a message from its single question.
+     * 
+     * @param message the query or response
+     * @return the lowercased question name, type and class, or null if the message
+     *         is malformed or does not carry exactly one question
+     */
+    public static String questionKey(byte[] message) {
+        if (message.length < HEADER_LENGTH || count(message, 4) != 1) {
+            return null;
+        }
+        StringBuilder name = new StringBuilder();
+        int offset = HEADER_LENGTH;
+        while (offset < message.length) {
+            int length = message[offset] & 0xFF;
+            if (length == 0) {
+                offset++;
+                break;
+            }
+            if ((length & 0xC0) != 0 || offset + 1 + length > message.length) {
+                // Questions are never compressed in practice; refuse rather than chase pointers
+                return null;
+            }
+            name.append(new String(message, offset + 1, length, StandardCharsets.US_ASCII)).append('.');
+            offset += 1 + length;
+        }
+        if (offset + 4 > message.length) {
+            return null;
+        }
+        int type = ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+        int qclass = ((message[offset + 2] & 0xFF) << 8) | (message[offset + 3] & 0xFF);
+        return name.toString().toLowerCase(Locale.ROOT) + "/" + type + "/" + qclass;
+    }
+    
+    /**
+     * Find the smallest TTL among the answer, authority and additional records.
+     * 
+     * @param message the response
+     * @return the smallest TTL in seconds, or -1 if the message has no records or is malformed
+     */
+    public static long minTtl(byte[] message) {
+        long[] min = {Long.MAX_VALUE};
+        boolean valid = forEachRecord(message, (buffer, ttlOffset) -> {
+            min[0] = Math.min(min[0], buffer.getInt(ttlOffset) & 0xFFFFFFFFL);
+        });
+        return valid && min[0] != Long.MAX_VALUE ? min[0] : -1;
+    }
+    
+    /**
+     * Subtract the time a response spent in the cache from all of its TTLs.
+     * 
+     * @param message the response, modified in place
+     * @param elapsedSeconds the number of seconds to subtract
+     */
+    public static void decrementTtls(byte[] message, long elapsedSeconds) {
+        if (elapsedSeconds <= 0) {
+            return;
+        }
+        forEachRecord(message, (buffer, ttlOffset) -> {
+            long ttl = buffer.getInt(ttlOffset) & 0xFFFFFFFFL;
+            buffer.putInt(ttlOffset, (int) Math.max(0, ttl - elapsedSeconds));
+        });
+    }
+    
+    /**
+     * Turn a query into a SERVFAIL response carrying the same question.
+     * 
+     * @param query the query
+     * @return the response
+     */
+    public static byte[] servfail(byte[] query) {
+        byte[] response = query.clone();
+        response[2] = (byte) (response[2] | 0x80);
+        response[3] = (byte) ((response[3] & 0xF0) | 0x80 | RCODE_SERVFAIL);
+        return response;
+    }
+    
+    private interface TtlVisitor {
+        void visit(ByteBuffer buffer, int ttlOffset);
+    }
+    
+    private static boolean forEachRecord(byte[] message, TtlVisitor visitor) {
+        if (message.length < HEADER_LENGTH) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(message);
+        int offset = HEADER_LENGTH;
+        for (int i = count(message, 4); i > 0; i--) {
+            offset = skipName(message, offset) + 4;
+            if (offset < 4 || offset > message.length) {
+                return false;
+            }
+        }
+        int records = count(message, 6) + count(message, 8) + count(message, 10);
+        for (int i = 0; i < records; i++) {
+            offset = skipName(message, offset);
+            if (offset < 0 || offset + 10 > message.length) {
+                return false;
+            }
+            int type = buffer.getShort(offset) & 0xFFFF;
+            int dataLength = buffer.getShort(offset + 8) & 0xFFFF;
+            if (type != TYPE_OPT) {
+                // The TTL field of an OPT pseudo-record holds EDNS flags, not a TTL
+                visitor.visit(buffer, offset + 4);
+            }
+            offset += 10 + dataLength;
+            if (offset > message.length) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static int skipName(byte[] message, int offset) {
+        while (offset < message.length) {
+            int length = message[offset] & 0xFF;
+            if (length == 0) {
+                return offset + 1;
+            }
+            if ((length & 0xC0) == 0xC0) {
+                return offset + 2;
+            }
+            offset += 1 + length;
+        }
+        return -1;
+    }
+    
+    private static int count(byte[] message, int offset) {
+        return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+    }
+}
@@ -0,0 +1,124 @@
+package com.andrewevl.vpn.dns;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.service.VpnService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs the caching DNS forwarder when it is enabled.
+ * <p>
+ * The gateway addresses only exist once the tunnels are up, so listen addresses
+ * that cannot be bound at startup are retried on a fixed delay. Protocols point
+ * clients at a gateway only once {@link #isServing(String)} reports it bound, and
+ * push the public resolvers until then.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class DnsService {
+    
+    private final VpnConfig vpnConfig;
+    private final VpnService vpnService;
+    
+    private DnsForwarder forwarder;
+    
+    /**
+     * Start the forwarder if it is enabled, binding whatever listen addresses
+     * already exist. The forwarder listens on the gateway of every protocol and
+     * shard, 10.8.N.1 for OpenVPN and 10.0.N.1 for WireGuard, plus any configured
+     * extra addresses.
+     */
+    @PostConstruct
+    public void start() {
+        VpnConfig.DnsConfig config = vpnConfig.getDns();
+        if (!config.isEnabled()) {
+            return;
+        }
+        Set<String> hosts = new LinkedHashSet<>();
+        vpnService.getAllProtocols().values().forEach(protocol -> hosts.addAll(protocol.getGatewayAddresses()));
+        hosts.addAll(config.getListenAddresses());
+        List<InetSocketAddress> listenAddresses = hosts.stream()
+                .map(address -> new InetSocketAddress(address, config.getPort()))
+                .toList();
+        DnsCache cache = new DnsCache(config.getCacheSize(), config.getMaxTtl(), config.getNegativeTtl());
+        forwarder = new DnsForwarder(listenAddresses,
+                new InetSocketAddress(config.getUpstream(), config.getUpstreamPort()),
+                cache, config.getTimeoutMillis(), config.getMaxInFlight());
+        try {
+            forwarder.start();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while starting DNS forwarder");
+            return;
+        }
+        if (!forwarder.isFullyBound()) {
+            log.info("DNS forwarder will bind the remaining gateway addresses once their tunnels are up");
+        }
+    }
+    
+    /**
+     * Bind the listen addresses that could not be bound so far. Called on a fixed
+     * delay and after the protocols have been started.
+     */
+    @Scheduled(fixedDelayString = "${vpn.dns.bind-retry-millis:5000}")
+    public void bindPending() {
+        if (forwarder == null || forwarder.isFullyBound()) {
+            return;
+        }
+        try {
+            forwarder.bindPending();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Stop the forwarder.
+     */
+    @PreDestroy
+    public void stop() {
+        if (forwarder != null) {
+            forwarder.stop();
+        }
+    }
+    
+    /**
+     * Check if the forwarder is serving tunnel clients on at least one address.
+     * 
+     * @return true if the forwarder is enabled and a listen address is bound
+     */
+    public boolean isEnabled() {
+        return forwarder != null && forwarder.isListening();
+    }
+    
+    /**
+     * Check if the forwarder is serving on a gateway address, so that clients can
+     * be pointed at it.
+     * 
+     * @param address the gateway IP address
+     * @return true if the forwarder is enabled and bound to the address
+     */
+    public boolean isServing(String address) {
+        return forwarder != null && forwarder.isListening(address);
+    }
+    
+    /**
+     * Get forwarder statistics.
+     * 
+     * @return a map of statistic names to values, empty if the forwarder is disabled
+     */
+    public Map<String, Object> getStats() {
+        return forwarder != null ? forwarder.getStats() : Map.of();
+    }
+}
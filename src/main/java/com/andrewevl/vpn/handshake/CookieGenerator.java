@@ -0,0 +1,146 @@
+package com.andrewevl.vpn.handshake;
+
+import org.bouncycastle.crypto.digests.Blake2sDigest;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Stateless cookie generator in the style of the WireGuard cookie mechanism.
+ * A cookie is a keyed BLAKE2s MAC over the source address and port, keyed with a
+ * secret that rotates every two minutes, so issuing and checking cookies requires
+ * no per-source state on the server. Also checks the first MAC of a handshake,
+ * which proves the sender knows the responder's public key.
+ */
+public class CookieGenerator {
+    
+    /**
+     * Length of a cookie and of a handshake MAC in bytes.
+     */
+    public static final int MAC_LENGTH = 16;
+    
+    /**
+     * Maximum age of the cookie secret before it is replaced.
+     */
+    public static final long SECRET_MAX_AGE_MILLIS = 120_000;
+    
+    private static final byte[] MAC1_LABEL = "mac1----".getBytes(StandardCharsets.US_ASCII);
+    
+    private final SecureRandom random = new SecureRandom();
+    
+    private volatile byte[] currentSecret;
+    private volatile byte[] previousSecret;
+    private volatile long secretCreatedAt;
+    
+    public CookieGenerator() {
+        this.currentSecret = newSecret();
+        this.previousSecret = currentSecret;
+        this.secretCreatedAt = System.currentTimeMillis();
+    }
+    
+    /**
+     * Create the cookie for a source with the current secret.
+     * 
+     * @param source the source address of the handshake
+     * @return the cookie
+     */
+    public byte[] cookieFor(InetSocketAddress source) {
+        return cookie(currentSecret, source);
+    }
+    
+    /**
+     * Check the second MAC of a handshake message. The MAC covers everything that
+     * precedes it and is keyed with the cookie previously handed to the source.
+     * Cookies issued with the previous secret are still accepted so that rotation
+     * does not invalidate cookies already in flight.
+     * 
+     * @param source the source address of the handshake
+     * @param message the handshake message
+     * @param macOffset the offset of the second MAC within the message
+     * @return true if the MAC is valid for the source
+     */
+    public boolean isValidMac(InetSocketAddress source, byte[] message, int macOffset) {
+        if (macOffset < 0 || message.length < macOffset + MAC_LENGTH) {
+            return false;
+        }
+        byte[] current = currentSecret;
+        byte[] previous = previousSecret;
+        return macMatches(cookie(current, source), message, macOffset)
+                || (previous != current && macMatches(cookie(previous, source), message, macOffset));
+    }
+    
+    /**
+     * Derive the key of the first handshake MAC, HASH("mac1----" || public key).
+     * 
+     * @param responderPublicKey the public key of the interface the handshake is sent to
+     * @return the key
+     */
+    public static byte[] mac1Key(byte[] responderPublicKey) {
+        Blake2sDigest digest = new Blake2sDigest(256);
+        digest.update(MAC1_LABEL, 0, MAC1_LABEL.length);
+        digest.update(responderPublicKey, 0, responderPublicKey.length);
+        byte[] key = new byte[32];
+        digest.doFinal(key, 0);
+        return key;
+    }
+    
+    /**
+     * Check the first MAC of a handshake message. The MAC covers everything that
+     * precedes it and is keyed with {@link #mac1Key}, so it needs no secret and
+     * weeds out junk before any other work.
+     * 
+     * @param mac1Key the key derived from the responder's public key
+     * @param message the handshake message
+     * @param macOffset the offset of the first MAC within the message
+     * @return true if the MAC is valid
+     */
+    public static boolean isValidMac1(byte[] mac1Key, byte[] message, int macOffset) {
+        return macOffset >= 0 && message.length >= macOffset + MAC_LENGTH
+                && macMatches(mac1Key, message, macOffset);
+    }
+    
+    /**
+     * Replace the secret if it is older than {@link #SECRET_MAX_AGE_MILLIS}.
+     * 
+     * @param now the current time in milliseconds
+     */
+    public void rotateIfExpired(long now) {
+        if (now - secretCreatedAt >= SECRET_MAX_AGE_MILLIS) {
+            previousSecret = currentSecret;
+            currentSecret = newSecret();
+            secretCreatedAt = now;
+        }
+    }
+    
+    private static boolean macMatches(byte[] key, byte[] message, int macOffset) {
+        byte[] expected = mac(key, message, 0, macOffset);
+        byte[] actual = new byte[MAC_LENGTH];
+        System.arraycopy(message, macOffset, actual, 0, MAC_LENGTH);
+        return MessageDigest.isEqual(expected, actual);
+    }
+    
+    private byte[] cookie(byte[] secret, InetSocketAddress source) {
+        byte[] address = source.getAddress().getAddress();
+        byte[] input = new byte[address.length + 2];
+        System.arraycopy(address, 0, input, 0, address.length);
+        input[address.length] = (byte) (source.getPort() >>> 8);
+        input[address.length + 1] = (byte) source.getPort();
+        return mac(secret, input, 0, input.length);
+    }
+    
+    private static byte[] mac(byte[] key, byte[] data, int offset, int length) {
+        Blake2sDigest digest = new Blake2sDigest(key, MAC_LENGTH, null, null);
+        digest.update(data, offset, length);
+        byte[] out = new byte[MAC_LENGTH];
+        digest.doFinal(out, 0);
+        return out;
+    }
+    
+    private byte[] newSecret() {
+        byte[] secret = new byte[32];
+        random.nextBytes(secret);
+        return secret;
+    }
+}
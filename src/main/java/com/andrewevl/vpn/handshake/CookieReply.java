@@ -0,0 +1,151 @@
+package com.andrewevl.vpn.handshake;
+
+import org.bouncycastle.crypto.digests.Blake2sDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * WireGuard handshake message layout and the cookie reply message.
+ * A cookie reply carries the cookie encrypted with XChaCha20-Poly1305 under a key
+ * derived from the responder's public key, authenticated against the first MAC of
+ * the initiation it answers, so only the initiator that sent it can use the cookie.
+ */
+public final class CookieReply {
+    
+    /**
+     * Message type of a handshake initiation.
+     */
+    public static final byte INITIATION_TYPE = 1;
+    
+    /**
+     * Length of a handshake initiation in bytes.
+     */
+    public static final int INITIATION_LENGTH = 148;
+    
+    /**
+     * Message type of a cookie reply.
+     */
+    public static final byte COOKIE_REPLY_TYPE = 3;
+    
+    /**
+     * Length of a cookie reply in bytes.
+     */
+    public static final int COOKIE_REPLY_LENGTH = 64;
+    
+    private static final int SENDER_INDEX_OFFSET = 4;
+    private static final int MAC1_OFFSET = INITIATION_LENGTH - 2 * CookieGenerator.MAC_LENGTH;
+    private static final int NONCE_LENGTH = 24;
+    private static final byte[] COOKIE_LABEL = "cookie--".getBytes(StandardCharsets.US_ASCII);
+    
+    private static final SecureRandom RANDOM = new SecureRandom();
+    
+    private CookieReply() {
+    }
+    
+    /**
+     * Build the cookie reply to a handshake initiation.
+     * 
+     * @param responderPublicKey the public key of the interface the initiation was sent to
+     * @param initiation the handshake initiation
+     * @param cookie the cookie for the initiator's source address
+     * @return the cookie reply message
+     */
+    public static byte[] seal(byte[] responderPublicKey, byte[] initiation, byte[] cookie) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        byte[] mac1 = new byte[CookieGenerator.MAC_LENGTH];
+        System.arraycopy(initiation, MAC1_OFFSET, mac1, 0, mac1.length);
+        
+        ByteBuffer reply = ByteBuffer.allocate(COOKIE_REPLY_LENGTH);
+        reply.put(COOKIE_REPLY_TYPE).put(new byte[3]);
+        // The receiver of the reply is the sender of the initiation
+        reply.put(initiation, SENDER_INDEX_OFFSET, 4);
+        reply.put(nonce);
+        reply.put(xchacha20Poly1305(cookieKey(responderPublicKey), nonce, cookie, mac1));
+        return reply.array();
+    }
+    
+    /**
+     * Encrypt with XChaCha20-Poly1305: HChaCha20 derives a subkey from the key and
+     * the first 16 bytes of the nonce, and ChaCha20-Poly1305 encrypts under it with
+     * the remaining 8 bytes as the nonce.
+     */
+    static byte[] xchacha20Poly1305(byte[] key, byte[] nonce, byte[] plaintext, byte[] associatedData) {
+        byte[] subNonce = new byte[12];
+        System.arraycopy(nonce, 16, subNonce, 4, 8);
+        try {
+            Cipher cipher = Cipher.getInstance("ChaCha20-Poly1305");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(hChaCha20(key, nonce), "ChaCha20"),
+                    new IvParameterSpec(subNonce));
+            cipher.updateAAD(associatedData);
+            return cipher.doFinal(plaintext);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("ChaCha20-Poly1305 is not available", e);
+        }
+    }
+    
+    /**
+     * The HChaCha20 function: the ChaCha20 block function without the final
+     * addition, over the key and a 16-byte nonce, returning words 0-3 and 12-15.
+     */
+    static byte[] hChaCha20(byte[] key, byte[] nonce) {
+        ByteBuffer keyWords = ByteBuffer.wrap(key).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer nonceWords = ByteBuffer.wrap(nonce, 0, 16).order(ByteOrder.LITTLE_ENDIAN);
+        int[] x = new int[16];
+        x[0] = 0x61707865;
+        x[1] = 0x3320646e;
+        x[2] = 0x79622d32;
+        x[3] = 0x6b206574;
+        for (int i = 0; i < 8; i++) {
+            x[4 + i] = keyWords.getInt();
+        }
+        for (int i = 0; i < 4; i++) {
+            x[12 + i] = nonceWords.getInt();
+        }
+        for (int round = 0; round < 10; round++) {
+            quarterRound(x, 0, 4, 8, 12);
+            quarterRound(x, 1, 5, 9, 13);
+            quarterRound(x, 2, 6, 10, 14);
+            quarterRound(x, 3, 7, 11, 15);
+            quarterRound(x, 0, 5, 10, 15);
+            quarterRound(x, 1, 6, 11, 12);
+            quarterRound(x, 2, 7, 8, 13);
+            quarterRound(x, 3, 4, 9, 14);
+        }
+        ByteBuffer out = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < 4; i++) {
+            out.putInt(x[i]);
+        }
+        for (int i = 12; i < 16; i++) {
+            out.putInt(x[i]);
+        }
+        return out.array();
+    }
+    
+    private static void quarterRound(int[] x, int a, int b, int c, int d) {
+        x[a] += x[b];
+        x[d] = Integer.rotateLeft(x[d] ^ x[a], 16);
+        x[c] += x[d];
+        x[b] = Integer.rotateLeft(x[b] ^ x[c], 12);
+        x[a] += x[b];
+        x[d] = Integer.rotateLeft(x[d] ^ x[a], 8);
+        x[c] += x[d];
+        x[b] = Integer.rotateLeft(x[b] ^ x[c], 7);
+    }
+    
+    private static byte[] cookieKey(byte[] responderPublicKey) {
+        Blake2sDigest digest = new Blake2sDigest(256);
+        digest.update(COOKIE_LABEL, 0, COOKIE_LABEL.length);
+        digest.update(responderPublicKey, 0, responderPublicKey.length);
+        byte[] key = new byte[32];
+        digest.doFinal(key, 0);
+        return key;
+    }
+}
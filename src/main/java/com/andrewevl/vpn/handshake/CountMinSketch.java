@@ -0,0 +1,99 @@
+package com.andrewevl.vpn.handshake;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Fixed-memory count-min sketch keyed by 64-bit values.
+ * Estimates never undercount; collisions can only make a key look busier
+ * than it is. Counters are updated lock-free and may be read concurrently.
+ */
+public class CountMinSketch {
+    
+    private final int width;
+    private final int depth;
+    private final int mask;
+    private final long[] seeds;
+    private final AtomicIntegerArray counters;
+    
+    /**
+     * Create a sketch.
+     * 
+     * @param width the number of counters per row, rounded up to a power of two
+     * @param depth the number of rows
+     */
+    public CountMinSketch(int width, int depth) {
+        if (width <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("Sketch width and depth must be positive");
+        }
+        this.width = Integer.bitCount(width) == 1 ? width : Integer.highestOneBit(width) << 1;
+        this.depth = depth;
+        this.mask = this.width - 1;
+        this.seeds = new long[depth];
+        for (int i = 0; i < depth; i++) {
+            seeds[i] = mix(0x9E3779B97F4A7C15L * (i + 1));
+        }
+        this.counters = new AtomicIntegerArray(this.width * depth);
+    }
+    
+    /**
+     * Record one occurrence of a key.
+     * 
+     * @param key the key
+     * @return the estimated count for the key after the increment
+     */
+    public int increment(long key) {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int value = counters.incrementAndGet(index(row, key));
+            if (value < min) {
+                min = value;
+            }
+        }
+        return min;
+    }
+    
+    /**
+     * Estimate the count for a key.
+     * 
+     * @param key the key
+     * @return the estimated count
+     */
+    public int estimate(long key) {
+        int min = Integer.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int value = counters.get(index(row, key));
+            if (value < min) {
+                min = value;
+            }
+        }
+        return min;
+    }
+    
+    /**
+     * Reset all counters to zero.
+     */
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+    }
+    
+    /**
+     * Get the memory footprint of the counters in bytes.
+     * 
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return (long) counters.length() * Integer.BYTES;
+    }
+    
+    private int index(int row, long key) {
+        return row * width + (int) (mix(key ^ seeds[row]) & mask);
+    }
+    
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -0,0 +1,221 @@
+package com.andrewevl.vpn.handshake;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.jfr.HandshakeEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for incoming handshakes.
+ * Runs before any handshake cryptography. A handshake whose first MAC does not
+ * match the responder's public key is dropped outright, uncounted, since it cannot
+ * be a real handshake for this server. While the handshake rate is below the
+ * overload threshold every handshake is admitted. Once it crosses the threshold the
+ * server answers handshakes that lack a valid cookie MAC with a stateless cookie
+ * reply, and sources that exceed their per-source limit are dropped. Per-source
+ * rates live in a fixed-size count-min sketch, so a flood of spoofed sources cannot
+ * grow server memory.
+ */
+@Slf4j
+@Component
+public class HandshakeGuard {
+    
+    /**
+     * Outcome of inspecting a handshake.
+     */
+    public enum Verdict {
+        /** Process the handshake. */
+        ACCEPT,
+        /** Answer with a cookie reply instead of processing the handshake. */
+        COOKIE_REPLY,
+        /** Discard the handshake. */
+        DROP
+    }
+    
+    // The message layout the guard checks is WireGuard's
+    private static final String PROTOCOL = "WireGuard";
+    
+    private final VpnConfig.HandshakeConfig config;
+    private final CountMinSketch sourceRates;
+    private final CookieGenerator cookieGenerator = new CookieGenerator();
+    
+    private final AtomicLong windowCount = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong cookieReplies = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    
+    private final AtomicBoolean underLoad = new AtomicBoolean();
+    private volatile long lastRate = 0;
+    private volatile Mac1Key mac1Key;
+    
+    public HandshakeGuard(VpnConfig vpnConfig) {
+        this.config = vpnConfig.getHandshake();
+        this.sourceRates = new CountMinSketch(config.getSketchWidth(), config.getSketchDepth());
+        log.info("Handshake guard initialized: overload threshold {}/s, per-source limit {}/s, sketch {} bytes",
+                config.getOverloadThreshold(), config.getPerSourceLimit(), sourceRates.sizeInBytes());
+    }
+    
+    /**
+     * Decide what to do with a handshake initiation.
+     * The first and second MACs are expected in the last two
+     * {@link CookieGenerator#MAC_LENGTH} bytes of the message, as in WireGuard.
+     * 
+     * @param source the source address of the handshake
+     * @param message the handshake message
+     * @param responderPublicKey the public key of the interface the initiation was sent to,
+     *                           or null if unknown, in which case the first MAC is not checked
+     * @return the verdict
+     */
+    public Verdict inspect(InetSocketAddress source, byte[] message, byte[] responderPublicKey) {
+        HandshakeEvent event = new HandshakeEvent();
+        event.begin();
+        Verdict verdict = decide(source, message, responderPublicKey);
+        if (event.shouldCommit()) {
+            event.protocol = PROTOCOL;
+            event.source = source.toString();
+            event.verdict = verdict.name();
+            event.commit();
+        }
+        return verdict;
+    }
+    
+    private Verdict decide(InetSocketAddress source, byte[] message, byte[] responderPublicKey) {
+        if (responderPublicKey != null && !CookieGenerator.isValidMac1(mac1KeyFor(responderPublicKey), message,
+                message.length - 2 * CookieGenerator.MAC_LENGTH)) {
+            dropped.incrementAndGet();
+            return Verdict.DROP;
+        }
+        
+        // Read before counting, so a handshake within the threshold is not turned away
+        // by a later one that has already flipped the switch
+        boolean overloaded = underLoad.get();
+        long count = windowCount.incrementAndGet();
+        if (count > config.getOverloadThreshold()) {
+            overloaded = true;
+            // Only the thread that flips the switch logs it
+            if (underLoad.compareAndSet(false, true)) {
+                log.warn("Handshake rate exceeded {}/s, switching to cookie replies", config.getOverloadThreshold());
+            }
+        }
+        
+        if (!overloaded) {
+            accepted.incrementAndGet();
+            return Verdict.ACCEPT;
+        }
+        
+        if (!cookieGenerator.isValidMac(source, message, message.length - CookieGenerator.MAC_LENGTH)) {
+            cookieReplies.incrementAndGet();
+            return Verdict.COOKIE_REPLY;
+        }
+        
+        // The source has proven it owns its address, so it can be rate limited by it
+        if (sourceRates.increment(sourceKey(source.getAddress())) > config.getPerSourceLimit()) {
+            dropped.incrementAndGet();
+            return Verdict.DROP;
+        }
+        
+        accepted.incrementAndGet();
+        return Verdict.ACCEPT;
+    }
+    
+    /**
+     * Create the cookie to seal into a cookie reply for a source.
+     * 
+     * @param source the source address of the handshake
+     * @return the cookie
+     */
+    public byte[] cookieFor(InetSocketAddress source) {
+        return cookieGenerator.cookieFor(source);
+    }
+    
+    /**
+     * Create the cookie reply to a handshake initiation that {@link #inspect} answered
+     * with {@link Verdict#COOKIE_REPLY}.
+     * 
+     * @param source the source address of the handshake
+     * @param initiation the handshake initiation
+     * @param responderPublicKey the public key of the interface the initiation was sent to
+     * @return the cookie reply message
+     */
+    public byte[] cookieReply(InetSocketAddress source, byte[] initiation, byte[] responderPublicKey) {
+        return CookieReply.seal(responderPublicKey, initiation, cookieGenerator.cookieFor(source));
+    }
+    
+    /**
+     * Check if the guard is currently in overload mode.
+     * 
+     * @return true if handshakes are answered with cookie replies
+     */
+    public boolean isUnderLoad() {
+        return underLoad.get();
+    }
+    
+    /**
+     * Close the current one-second window: reset per-source counters, leave overload
+     * mode once the rate has fallen below the threshold and rotate the cookie secret.
+     */
+    @Scheduled(fixedRate = 1000)
+    public void rollWindow() {
+        lastRate = windowCount.getAndSet(0);
+        sourceRates.clear();
+        
+        if (lastRate <= config.getOverloadThreshold() && underLoad.compareAndSet(true, false)) {
+            log.info("Handshake rate back to {}/s, leaving overload mode", lastRate);
+        }
+        
+        cookieGenerator.rotateIfExpired(System.currentTimeMillis());
+    }
+    
+    /**
+     * Get handshake admission statistics.
+     * 
+     * @return a map of statistic names to values
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("underLoad", underLoad.get());
+        stats.put("lastRate", lastRate);
+        stats.put("accepted", accepted.get());
+        stats.put("cookieReplies", cookieReplies.get());
+        stats.put("dropped", dropped.get());
+        return stats;
+    }
+    
+    /**
+     * Get the first MAC key for a public key, deriving it only when the key changes.
+     */
+    private byte[] mac1KeyFor(byte[] responderPublicKey) {
+        Mac1Key cached = mac1Key;
+        if (cached == null || !Arrays.equals(cached.publicKey(), responderPublicKey)) {
+            cached = new Mac1Key(responderPublicKey.clone(), CookieGenerator.mac1Key(responderPublicKey));
+            mac1Key = cached;
+        }
+        return cached.key();
+    }
+    
+    private record Mac1Key(byte[] publicKey, byte[] key) {
+    }
+    
+    /**
+     * Map an address to a sketch key. IPv6 sources are tracked per /64, since a
+     * single host usually controls a whole prefix.
+     */
+    private static long sourceKey(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        long key = 0;
+        int length = Math.min(bytes.length, 8);
+        for (int i = 0; i < length; i++) {
+            key = (key << 8) | (bytes[i] & 0xFF);
+        }
+        return key;
+    }
+}
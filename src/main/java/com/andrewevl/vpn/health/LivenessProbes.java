@@ -0,0 +1,220 @@
+package com.andrewevl.vpn.health;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.net.SocketTimeoutException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Liveness probes for protocol servers. Probes block for at most their timeout
+ * and are meant to run on background threads.
+ */
+public final class LivenessProbes {
+    
+    /**
+     * A WireGuard message of unknown type, which a live server drops without answering.
+     */
+    private static final byte[] UDP_PROBE = {0x7F, 0, 0, 0};
+    
+    private static final int P_CONTROL_HARD_RESET_CLIENT_V2 = 7;
+    private static final int P_CONTROL_HARD_RESET_SERVER_V2 = 8;
+    private static final int OPCODE_SHIFT = 3;
+    private static final int SESSION_ID_LENGTH = 8;
+    private static final int PACKET_ID_LENGTH = 4;
+    
+    private LivenessProbes() {
+    }
+    
+    /**
+     * Check that a process holds a UDP port. Nothing listening on a local port
+     * makes the kernel answer with ICMP port unreachable, which a connected socket
+     * reports on the next receive; a reply or silence until the timeout counts as
+     * bound. This cannot tell a serving process from a hung one, so it is only used
+     * for servers such as WireGuard that never answer unauthenticated packets.
+     * 
+     * @param address the address and port to probe
+     * @param timeoutMillis how long to wait for an answer
+     * @return the probe result
+     */
+    public static ProbeResult udpPortBound(InetSocketAddress address, int timeoutMillis) {
+        long start = System.nanoTime();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(address);
+            socket.setSoTimeout(timeoutMillis);
+            socket.send(new DatagramPacket(UDP_PROBE, UDP_PROBE.length));
+            try {
+                socket.receive(new DatagramPacket(new byte[512], 512));
+            } catch (SocketTimeoutException e) {
+                // Silent servers such as WireGuard never answer unauthenticated packets
+            }
+            return ProbeResult.up(start);
+        } catch (PortUnreachableException e) {
+            return ProbeResult.down(start, "port unreachable");
+        } catch (IOException e) {
+            return ProbeResult.down(start, e.getMessage());
+        }
+    }
+    
+    /**
+     * Open an OpenVPN session the way a client does, with a
+     * {@code P_CONTROL_HARD_RESET_CLIENT_V2} packet, and expect the server's
+     * {@code P_CONTROL_HARD_RESET_SERVER_V2} acknowledging it. Only the server's
+     * event loop sends that reply, so silence means the server is down or hung.
+     * The session is abandoned afterwards and expires on the server. Servers using
+     * {@code tls-auth} or {@code tls-crypt} drop the unauthenticated packet and
+     * cannot be probed this way.
+     * 
+     * @param address the address and port of the server
+     * @param timeoutMillis how long to wait for the reply
+     * @return the probe result
+     */
+    public static ProbeResult openVpnReset(InetSocketAddress address, int timeoutMillis) {
+        long start = System.nanoTime();
+        byte[] sessionId = new byte[SESSION_ID_LENGTH];
+        ThreadLocalRandom.current().nextBytes(sessionId);
+        // Opcode and key ID, session ID, empty ACK array, message packet ID 0
+        ByteBuffer reset = ByteBuffer.allocate(1 + SESSION_ID_LENGTH + 1 + PACKET_ID_LENGTH);
+        reset.put((byte) (P_CONTROL_HARD_RESET_CLIENT_V2 << OPCODE_SHIFT)).put(sessionId).put((byte) 0).putInt(0);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.connect(address);
+            socket.setSoTimeout(timeoutMillis);
+            socket.send(new DatagramPacket(reset.array(), reset.capacity()));
+            DatagramPacket reply = new DatagramPacket(new byte[1500], 1500);
+            socket.receive(reply);
+            return isResetReply(Arrays.copyOf(reply.getData(), reply.getLength()), sessionId)
+                    ? ProbeResult.up(start)
+                    : ProbeResult.down(start, "unexpected reply");
+        } catch (SocketTimeoutException e) {
+            return ProbeResult.down(start, "no reply");
+        } catch (PortUnreachableException e) {
+            return ProbeResult.down(start, "port unreachable");
+        } catch (IOException e) {
+            return ProbeResult.down(start, e.getMessage());
+        }
+    }
+    
+    /**
+     * Check that a packet is a server reset acknowledging the given session: after
+     * the opcode and the server's session ID comes the ACK array, followed by the
+     * session ID it acknowledges when the array is not empty.
+     */
+    static boolean isResetReply(byte[] packet, byte[] sessionId) {
+        if (packet.length < 1 + SESSION_ID_LENGTH + 1
+                || (packet[0] & 0xFF) >>> OPCODE_SHIFT != P_CONTROL_HARD_RESET_SERVER_V2) {
+            return false;
+        }
+        int acks = packet[1 + SESSION_ID_LENGTH] & 0xFF;
+        if (acks == 0) {
+            return true;
+        }
+        int remoteSession = 1 + SESSION_ID_LENGTH + 1 + acks * PACKET_ID_LENGTH;
+        return packet.length >= remoteSession + SESSION_ID_LENGTH
+                && Arrays.equals(packet, remoteSession, remoteSession + SESSION_ID_LENGTH,
+                        sessionId, 0, SESSION_ID_LENGTH);
+    }
+    
+    /**
+     * Ping an OpenVPN management interface on a Unix socket: read its banner, ask
+     * for the server's process ID and expect a {@code SUCCESS} answer.
+     * 
+     * @param socketPath the path of the management socket
+     * @param timeoutMillis how long to wait for the whole exchange
+     * @return the probe result
+     */
+    public static ProbeResult openVpnManagement(Path socketPath, int timeoutMillis) {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socketPath));
+             Selector selector = Selector.open()) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            LineReader in = new LineReader(channel, selector, deadline);
+            String line = in.readLine();
+            if (line == null || !line.startsWith(">INFO:")) {
+                return ProbeResult.down(start, "unexpected banner: " + line);
+            }
+            write(channel, "pid\r\n");
+            // Skip real-time notifications, which start with '>'
+            do {
+                line = in.readLine();
+            } while (line != null && line.startsWith(">"));
+            write(channel, "quit\r\n");
+            if (line == null || !line.startsWith("SUCCESS:")) {
+                return ProbeResult.down(start, "unexpected answer: " + line);
+            }
+            return ProbeResult.up(start);
+        } catch (IOException e) {
+            return ProbeResult.down(start, e.getMessage());
+        }
+    }
+    
+    private static void write(SocketChannel channel, String command) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(command.getBytes(StandardCharsets.US_ASCII));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+    
+    /**
+     * Reads CRLF or LF terminated lines from a non-blocking channel until a deadline.
+     */
+    private static final class LineReader {
+        
+        private final SocketChannel channel;
+        private final Selector selector;
+        private final long deadline;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1024);
+        private final StringBuilder line = new StringBuilder();
+        
+        LineReader(SocketChannel channel, Selector selector, long deadline) {
+            this.channel = channel;
+            this.selector = selector;
+            this.deadline = deadline;
+            buffer.flip();
+        }
+        
+        /**
+         * Read the next line.
+         * 
+         * @return the line without its terminator, or null at the end of the stream
+         */
+        String readLine() throws IOException {
+            while (true) {
+                while (buffer.hasRemaining()) {
+                    char c = (char) (buffer.get() & 0xFF);
+                    if (c == '\n') {
+                        int end = line.length() > 0 && line.charAt(line.length() - 1) == '\r' ? line.length() - 1 : line.length();
+                        String complete = line.substring(0, end);
+                        line.setLength(0);
+                        return complete;
+                    }
+                    line.append(c);
+                }
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                selector.select(remainingMillis);
+                selector.selectedKeys().clear();
+                buffer.clear();
+                int read = channel.read(buffer);
+                buffer.flip();
+                if (read < 0) {
+                    return null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.andrewevl.vpn.health;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of one liveness probe.
+ */
+@Getter
+@AllArgsConstructor
+public class ProbeResult {
+    
+    /**
+     * Whether the probed server answered as a live one would.
+     */
+    private final boolean up;
+    
+    /**
+     * How long the probe took in microseconds.
+     */
+    private final long latencyMicros;
+    
+    /**
+     * Why the probe failed, or null if it succeeded.
+     */
+    private final String error;
+    
+    static ProbeResult up(long startNanos) {
+        return new ProbeResult(true, elapsedMicros(startNanos), null);
+    }
+    
+    static ProbeResult down(long startNanos, String error) {
+        return new ProbeResult(false, elapsedMicros(startNanos), error);
+    }
+    
+    private static long elapsedMicros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,39 @@
+package com.andrewevl.vpn.health;
+
+import com.andrewevl.vpn.service.VpnService;
+import org.springframework.boot.actuate.health.CompositeHealthContributor;
+import org.springframework.boot.actuate.health.HealthContributor;
+import org.springframework.boot.actuate.health.HealthIndicator;
+import org.springframework.boot.actuate.health.NamedContributor;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Groups the protocol health indicators under {@code /actuator/health/protocols},
+ * with one component per protocol, for example {@code /actuator/health/protocols/wireguard}.
+ */
+@Component("protocols")
+public class ProtocolHealthContributor implements CompositeHealthContributor {
+    
+    private final Map<String, HealthIndicator> indicators = new TreeMap<>();
+    
+    public ProtocolHealthContributor(VpnService vpnService, ProtocolHealthMonitor monitor) {
+        vpnService.getAllProtocols().keySet()
+                .forEach(name -> indicators.put(name, new ProtocolHealthIndicator(monitor, name)));
+    }
+    
+    @Override
+    public HealthContributor getContributor(String name) {
+        return indicators.get(name);
+    }
+    
+    @Override
+    public Iterator<NamedContributor<HealthContributor>> iterator() {
+        return indicators.entrySet().stream()
+                .map(entry -> NamedContributor.<HealthContributor>of(entry.getKey(), entry.getValue()))
+                .iterator();
+    }
+}
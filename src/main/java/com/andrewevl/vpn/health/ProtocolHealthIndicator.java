@@ -0,0 +1,21 @@
+package com.andrewevl.vpn.health;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthIndicator;
+
+/**
+ * Health of one protocol, read from the results of the background probes.
+ * Never probes itself, so health checks cost a map lookup however often they come.
+ */
+@RequiredArgsConstructor
+public class ProtocolHealthIndicator implements HealthIndicator {
+    
+    private final ProtocolHealthMonitor monitor;
+    private final String protocolName;
+    
+    @Override
+    public Health health() {
+        return monitor.getHealth(protocolName);
+    }
+}
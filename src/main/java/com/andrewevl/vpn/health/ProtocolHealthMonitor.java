@@ -0,0 +1,149 @@
+package com.andrewevl.vpn.health;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.model.AbstractProtocol;
+import com.andrewevl.vpn.model.OpenVpnProtocol;
+import com.andrewevl.vpn.model.Protocol;
+import com.andrewevl.vpn.model.ShardedProtocol;
+import com.andrewevl.vpn.service.VpnService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Probes every running protocol on a background schedule and keeps the latest
+ * health of each one, so that health checks are answered from memory.
+ * <p>
+ * Each protocol is probed on its own virtual thread, and a protocol whose
+ * previous probe is still running is skipped, so a hanging server neither
+ * delays the others nor piles up probes. A stopped protocol is reported as
+ * {@link Status#UNKNOWN} rather than down, since stopping it was deliberate; a
+ * result older than the configured staleness limit is reported the same way.
+ * <p>
+ * OpenVPN servers are asked to open a session and must answer, unless their
+ * control channel needs a shared key the monitor does not have; those and
+ * WireGuard servers, which never answer unauthenticated packets, only get a
+ * check that their port is bound. An OpenVPN management interface on a Unix
+ * socket is pinged as well.
+ */
+@Slf4j
+@Service
+public class ProtocolHealthMonitor {
+    
+    private final VpnService vpnService;
+    private final VpnConfig.HealthConfig config;
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final Set<String> probing = ConcurrentHashMap.newKeySet();
+    
+    public ProtocolHealthMonitor(VpnService vpnService, VpnConfig vpnConfig) {
+        this.vpnService = vpnService;
+        this.config = vpnConfig.getHealth();
+    }
+    
+    /**
+     * Start a probe of every protocol that is not still being probed.
+     */
+    @Scheduled(fixedDelayString = "${vpn.health.probe-interval-millis:5000}")
+    public void probeAll() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        vpnService.getAllProtocols().forEach((name, protocol) -> {
+            if (probing.add(name)) {
+                Thread.ofVirtual().name("health-probe-" + name).start(() -> {
+                    try {
+                        snapshots.put(name, new Snapshot(probe(protocol), System.currentTimeMillis()));
+                    } catch (RuntimeException e) {
+                        log.warn("Health probe of {} failed: {}", name, e.getMessage());
+                    } finally {
+                        probing.remove(name);
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Get the latest health of a protocol without probing it.
+     * 
+     * @param name the protocol name
+     * @return the cached health, or unknown if there is no recent probe result
+     */
+    public Health getHealth(String name) {
+        Snapshot snapshot = snapshots.get(name);
+        if (snapshot == null) {
+            return Health.unknown().withDetail("reason", config.isEnabled() ? "not probed yet" : "probes disabled").build();
+        }
+        if (System.currentTimeMillis() - snapshot.probedAt > config.getStaleAfterMillis()) {
+            return Health.unknown().withDetails(snapshot.health.getDetails()).withDetail("stale", true).build();
+        }
+        return snapshot.health;
+    }
+    
+    private Health probe(Protocol protocol) {
+        Instant checkedAt = Instant.now();
+        if (!protocol.isRunning()) {
+            return Health.unknown().withDetail("running", false).withDetail("checkedAt", checkedAt).build();
+        }
+        List<AbstractProtocol> instances = protocol instanceof ShardedProtocol sharded
+                ? sharded.getShards()
+                : protocol instanceof AbstractProtocol single ? List.of(single) : List.of();
+        
+        boolean up = true;
+        List<Map<String, Object>> endpoints = new ArrayList<>();
+        for (AbstractProtocol instance : instances) {
+            Map<String, Object> details = new LinkedHashMap<>();
+            details.put("port", instance.getPort());
+            InetSocketAddress address = new InetSocketAddress(config.getProbeAddress(), instance.getPort());
+            if (instance instanceof OpenVpnProtocol openVpn && !openVpn.isControlChannelAuthenticated()) {
+                ProbeResult handshake = LivenessProbes.openVpnReset(address, config.getTimeoutMillis());
+                up &= handshake.isUp();
+                details.put("handshake", describe(handshake));
+            } else {
+                ProbeResult portBound = LivenessProbes.udpPortBound(address, config.getTimeoutMillis());
+                up &= portBound.isUp();
+                details.put("portBound", describe(portBound));
+            }
+            if (instance instanceof OpenVpnProtocol openVpn) {
+                Optional<Path> socket = openVpn.getManagementSocket();
+                if (socket.isPresent()) {
+                    ProbeResult management = LivenessProbes.openVpnManagement(socket.get(), config.getTimeoutMillis());
+                    up &= management.isUp();
+                    details.put("management", describe(management));
+                }
+            }
+            endpoints.add(details);
+        }
+        return (up ? Health.up() : Health.down())
+                .withDetail("running", true)
+                .withDetail("checkedAt", checkedAt)
+                .withDetail("endpoints", endpoints)
+                .build();
+    }
+    
+    private static Map<String, Object> describe(ProbeResult result) {
+        Map<String, Object> details = new LinkedHashMap<>();
+        details.put("up", result.isUp());
+        details.put("latencyMicros", result.getLatencyMicros());
+        if (result.getError() != null) {
+            details.put("error", result.getError());
+        }
+        return details;
+    }
+    
+    private record Snapshot(Health health, long probedAt) {
+    }
+}
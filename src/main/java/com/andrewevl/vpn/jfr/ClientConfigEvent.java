@@ -0,0 +1,35 @@
+package com.andrewevl.vpn.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for generating one client configuration.
+ */
+@Name(ClientConfigEvent.NAME)
+@Label("Client Config")
+@Description("A client configuration was generated")
+@Category({"VPN", "Provisioning"})
+@StackTrace(false)
+public class ClientConfigEvent extends Event {
+    
+    public static final String NAME = "com.andrewevl.vpn.ClientConfig";
+    
+    @Label("Protocol")
+    public String protocol;
+    
+    @Label("User")
+    public String user;
+    
+    @Label("Config Size")
+    @DataAmount
+    public long bytes;
+    
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,37 @@
+package com.andrewevl.vpn.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a handshake, either inspected by admission control
+ * before any handshake cryptography or completed on an open session.
+ */
+@Name(HandshakeEvent.NAME)
+@Label("Handshake")
+@Description("A handshake was inspected by admission control or completed on a session")
+@Category({"VPN", "Handshake"})
+@StackTrace(false)
+public class HandshakeEvent extends Event {
+    
+    public static final String NAME = "com.andrewevl.vpn.Handshake";
+    
+    @Label("Protocol")
+    public String protocol;
+    
+    @Label("User")
+    @Description("The peer's username, null before the handshake is authenticated")
+    public String user;
+    
+    @Label("Source")
+    @Description("The source address, null if not known")
+    public String source;
+    
+    @Label("Verdict")
+    @Description("ACCEPT, COOKIE_REPLY or DROP from admission control, or COMPLETED")
+    public String verdict;
+}
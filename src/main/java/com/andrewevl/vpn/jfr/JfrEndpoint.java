@@ -0,0 +1,57 @@
+package com.andrewevl.vpn.jfr;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.lang.Nullable;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Actuator endpoint that switches the Flight Recorder event stream on and off
+ * and returns the recent events. Polling with {@code since} set to the start
+ * time of the last event received tails the stream.
+ */
+@Component
+@Endpoint(id = "jfr")
+@RequiredArgsConstructor
+public class JfrEndpoint {
+    
+    private final JfrEventStream eventStream;
+    
+    /**
+     * Get the recent events.
+     * 
+     * @param since only return events that started after this time
+     * @return whether the stream is running and the recent events
+     */
+    @ReadOperation
+    public Map<String, Object> events(@Nullable Instant since) {
+        List<Map<String, Object>> events = eventStream.getRecentEvents(since);
+        Map<String, Object> result = new HashMap<>();
+        result.put("streaming", eventStream.isRunning());
+        result.put("events", events);
+        result.put("count", events.size());
+        return result;
+    }
+    
+    /**
+     * Start or stop the event stream.
+     * 
+     * @param enabled true to start streaming, false to stop
+     * @return whether the stream is running and whether this call changed that
+     */
+    @WriteOperation
+    public Map<String, Object> toggle(boolean enabled) {
+        boolean changed = enabled ? eventStream.start() : eventStream.stop();
+        Map<String, Object> result = new HashMap<>();
+        result.put("streaming", eventStream.isRunning());
+        result.put("changed", changed);
+        return result;
+    }
+}
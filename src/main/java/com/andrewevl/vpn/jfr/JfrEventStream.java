@@ -0,0 +1,186 @@
+package com.andrewevl.vpn.jfr;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.nat.NatService;
+import com.andrewevl.vpn.stream.StreamTransportService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.ValueDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streams this application's Flight Recorder events in-process and keeps the
+ * most recent ones for the {@code jfr} actuator endpoint.
+ * <p>
+ * The events are ordinary JFR events, so they can also be captured with
+ * {@code -XX:StartFlightRecording} or {@code jcmd JFR.start}. While no
+ * recording enables them, emitting one costs a disabled check; this stream is
+ * the switch that turns them on for a running node without DEBUG logging.
+ */
+@Slf4j
+@Service
+public class JfrEventStream {
+    
+    static final List<String> EVENT_NAMES = List.of(ProtocolLifecycleEvent.NAME, ClientConfigEvent.NAME,
+            PeerStoreWriteEvent.NAME, HandshakeEvent.NAME, PacketBatchEvent.NAME);
+    private static final Set<String> BUILT_IN_FIELDS = Set.of("startTime", "duration", "eventThread", "stackTrace");
+    
+    private final VpnConfig.JfrConfig config;
+    private final NatService natService;
+    private final StreamTransportService streamTransportService;
+    private final Runnable packetBatchHook = this::emitPacketBatch;
+    private final Deque<Map<String, Object>> recentEvents = new ArrayDeque<>();
+    
+    private RecordingStream stream;
+    
+    // Only touched by the Flight Recorder periodic task thread
+    private long lastTranslatedPackets;
+    private long lastDroppedPackets;
+    private long lastTranslatedBytes;
+    private long lastStreamFramesIn;
+    private long lastStreamFramesOut;
+    private long lastStreamDroppedDatagrams;
+    
+    public JfrEventStream(VpnConfig vpnConfig, NatService natService, StreamTransportService streamTransportService) {
+        this.config = vpnConfig.getJfr();
+        this.natService = natService;
+        this.streamTransportService = streamTransportService;
+    }
+    
+    /**
+     * Register the periodic packet event and start streaming if configured to.
+     */
+    @PostConstruct
+    public void initialize() {
+        FlightRecorder.addPeriodicEvent(PacketBatchEvent.class, packetBatchHook);
+        if (config.isEnabledOnStartup()) {
+            start();
+        }
+    }
+    
+    /**
+     * Start streaming the application's events.
+     * 
+     * @return false if the stream was already running
+     */
+    public synchronized boolean start() {
+        if (stream != null) {
+            return false;
+        }
+        RecordingStream recordingStream = new RecordingStream();
+        Duration threshold = Duration.ofMillis(config.getThresholdMillis());
+        recordingStream.enable(ProtocolLifecycleEvent.NAME).withoutStackTrace();
+        recordingStream.enable(ClientConfigEvent.NAME).withThreshold(threshold).withoutStackTrace();
+        recordingStream.enable(PeerStoreWriteEvent.NAME).withThreshold(threshold).withoutStackTrace();
+        recordingStream.enable(HandshakeEvent.NAME).withThreshold(threshold).withoutStackTrace();
+        recordingStream.enable(PacketBatchEvent.NAME)
+                .withPeriod(Duration.ofMillis(config.getPacketBatchPeriodMillis()));
+        EVENT_NAMES.forEach(name -> recordingStream.onEvent(name, this::remember));
+        recordingStream.startAsync();
+        stream = recordingStream;
+        log.info("Started Flight Recorder event stream");
+        return true;
+    }
+    
+    /**
+     * Stop streaming. The recent events are kept.
+     * 
+     * @return false if the stream was not running
+     */
+    public synchronized boolean stop() {
+        if (stream == null) {
+            return false;
+        }
+        stream.close();
+        stream = null;
+        log.info("Stopped Flight Recorder event stream");
+        return true;
+    }
+    
+    /**
+     * Check if the stream is running.
+     * 
+     * @return true if events are being streamed
+     */
+    public synchronized boolean isRunning() {
+        return stream != null;
+    }
+    
+    /**
+     * Get the most recent events, oldest first.
+     * 
+     * @param since only return events that started after this time, or null for all
+     * @return the events as maps of field names to values
+     */
+    public List<Map<String, Object>> getRecentEvents(Instant since) {
+        synchronized (recentEvents) {
+            return recentEvents.stream()
+                    .filter(event -> since == null || ((Instant) event.get("startTime")).isAfter(since))
+                    .toList();
+        }
+    }
+    
+    /**
+     * Stop streaming and unregister the periodic packet event.
+     */
+    @PreDestroy
+    public void shutdown() {
+        stop();
+        FlightRecorder.removePeriodicEvent(packetBatchHook);
+    }
+    
+    private void remember(RecordedEvent event) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("event", event.getEventType().getName());
+        fields.put("startTime", event.getStartTime());
+        fields.put("durationMicros", event.getDuration().toNanos() / 1000);
+        for (ValueDescriptor field : event.getEventType().getFields()) {
+            if (!BUILT_IN_FIELDS.contains(field.getName())) {
+                fields.put(field.getName(), event.getValue(field.getName()));
+            }
+        }
+        synchronized (recentEvents) {
+            if (recentEvents.size() >= config.getRecentEvents()) {
+                recentEvents.removeFirst();
+            }
+            recentEvents.addLast(fields);
+        }
+    }
+    
+    private void emitPacketBatch() {
+        long translatedPackets = natService.getTranslatedCount();
+        long droppedPackets = natService.getDroppedCount();
+        long translatedBytes = natService.getTranslatedBytes();
+        PacketBatchEvent event = new PacketBatchEvent();
+        event.translatedPackets = translatedPackets - lastTranslatedPackets;
+        event.droppedPackets = droppedPackets - lastDroppedPackets;
+        event.translatedBytes = translatedBytes - lastTranslatedBytes;
+        event.activeMappings = natService.getMappingCount();
+        long streamFramesIn = streamTransportService.getFramesIn();
+        long streamFramesOut = streamTransportService.getFramesOut();
+        long streamDroppedDatagrams = streamTransportService.getDroppedDatagrams();
+        event.streamFramesIn = streamFramesIn - lastStreamFramesIn;
+        event.streamFramesOut = streamFramesOut - lastStreamFramesOut;
+        event.streamDroppedDatagrams = streamDroppedDatagrams - lastStreamDroppedDatagrams;
+        event.commit();
+        lastTranslatedPackets = translatedPackets;
+        lastDroppedPackets = droppedPackets;
+        lastTranslatedBytes = translatedBytes;
+        lastStreamFramesIn = streamFramesIn;
+        lastStreamFramesOut = streamFramesOut;
+        lastStreamDroppedDatagrams = streamDroppedDatagrams;
+    }
+}
@@ -0,0 +1,54 @@
+package com.andrewevl.vpn.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Periodic Flight Recorder event summarizing the packets the data plane handled
+ * since the previous one: datagrams carried by the TCP/TLS stream transport and
+ * packets translated by the userspace NAT engines. Emitted from counters the data
+ * plane keeps anyway, so the packet path itself carries no per-packet event.
+ * <p>
+ * The NAT fields stay zero while no packet path creates a NAT engine; the
+ * kernel forwards and translates tunnel traffic today.
+ */
+@Name(PacketBatchEvent.NAME)
+@Label("Packet Batch")
+@Description("Datagrams carried by the stream transport and packets translated by the userspace NAT engines during the last period")
+@Category({"VPN", "Data Plane"})
+@Period("1 s")
+@StackTrace(false)
+public class PacketBatchEvent extends Event {
+    
+    public static final String NAME = "com.andrewevl.vpn.PacketBatch";
+    
+    @Label("Stream Frames In")
+    @Description("Tunnel datagrams received over TCP or TLS streams")
+    public long streamFramesIn;
+    
+    @Label("Stream Frames Out")
+    @Description("Tunnel datagrams sent over TCP or TLS streams")
+    public long streamFramesOut;
+    
+    @Label("Stream Dropped Datagrams")
+    public long streamDroppedDatagrams;
+    
+    @Label("Translated Packets")
+    public long translatedPackets;
+    
+    @Label("Dropped Packets")
+    public long droppedPackets;
+    
+    @Label("Translated Bytes")
+    @DataAmount
+    public long translatedBytes;
+    
+    @Label("Active Mappings")
+    public int activeMappings;
+}
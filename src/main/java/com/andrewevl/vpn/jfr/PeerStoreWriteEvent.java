@@ -0,0 +1,43 @@
+package com.andrewevl.vpn.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for rewriting a protocol's peer store, the server
+ * configuration that lists every client. The duration includes waiting for
+ * the peer store lock; the user is only set when a single peer was written.
+ */
+@Name(PeerStoreWriteEvent.NAME)
+@Label("Peer Store Write")
+@Description("A protocol's server configuration was rewritten to add or update peers")
+@Category({"VPN", "Provisioning"})
+@StackTrace(false)
+public class PeerStoreWriteEvent extends Event {
+    
+    public static final String NAME = "com.andrewevl.vpn.PeerStoreWrite";
+    
+    @Label("Protocol")
+    public String protocol;
+    
+    @Label("User")
+    public String user;
+    
+    @Label("Peers Written")
+    public int updated;
+    
+    @Label("Path")
+    public String path;
+    
+    @Label("Bytes Written")
+    @DataAmount
+    public long bytes;
+    
+    @Label("Peers")
+    public int peers;
+}
@@ -0,0 +1,34 @@
+package com.andrewevl.vpn.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for starting or stopping a protocol server.
+ */
+@Name(ProtocolLifecycleEvent.NAME)
+@Label("Protocol Lifecycle")
+@Description("A protocol server was started or stopped")
+@Category({"VPN", "Protocol"})
+@StackTrace(false)
+public class ProtocolLifecycleEvent extends Event {
+    
+    public static final String NAME = "com.andrewevl.vpn.ProtocolLifecycle";
+    
+    @Label("Protocol")
+    public String protocol;
+    
+    @Label("Action")
+    @Description("start or stop")
+    public String action;
+    
+    @Label("Port")
+    public int port;
+    
+    @Label("Success")
+    public boolean success;
+}
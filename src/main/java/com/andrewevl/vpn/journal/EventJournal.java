@@ -0,0 +1,165 @@
+package com.andrewevl.vpn.journal;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only binary journal of lifecycle and provisioning events, for audit.
+ * <p>
+ * Recording an event only claims and fills a slot in a preallocated ring; it
+ * never blocks, allocates a buffer or touches disk, and if the ring is full the
+ * event is dropped and counted rather than slowing the caller. A single writer
+ * thread drains the ring into segment files and fsyncs once per drained batch,
+ * so a burst of events costs one fsync. When the ring is empty the writer
+ * sleeps briefly instead of being signalled, which keeps wake-ups off the
+ * recording path.
+ */
+@Slf4j
+@Service
+public class EventJournal {
+    
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int DRAIN_BATCH = 1024;
+    
+    private final VpnConfig.JournalConfig config;
+    private final EventRingBuffer ring;
+    private final Path directory;
+    
+    private volatile boolean running;
+    private Thread writerThread;
+    
+    public EventJournal(VpnConfig vpnConfig) {
+        this.config = vpnConfig.getJournal();
+        this.ring = new EventRingBuffer(config.getRingSize());
+        this.directory = Paths.get(config.getDirectory());
+    }
+    
+    /**
+     * Start the writer thread if the journal is enabled.
+     */
+    @PostConstruct
+    public void start() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            log.error("Failed to create event journal directory {}, journal disabled: {}",
+                    directory, e.getMessage(), e);
+            return;
+        }
+        running = true;
+        writerThread = new Thread(this::runWriter, "event-journal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        log.info("Event journal writing to {} with a ring of {} events", directory, ring.capacity());
+    }
+    
+    /**
+     * Record an event without blocking.
+     * 
+     * @param type the event type
+     * @param protocol the protocol the event concerns
+     * @param subject the user the event concerns, or null for protocol-wide events
+     * @param success whether the operation succeeded
+     */
+    public void record(JournalEventType type, String protocol, String subject, boolean success) {
+        if (!running) {
+            return;
+        }
+        Instant now = Instant.now();
+        ring.tryPublish(now.getEpochSecond(), now.getNano(), type, protocol, subject, success);
+    }
+    
+    /**
+     * Read the recorded events in a time range. Events recorded in the last few
+     * milliseconds may not have been written yet.
+     * 
+     * @param from the start of the range, inclusive
+     * @param to the end of the range, exclusive
+     * @param limit the maximum number of events to return
+     * @return the events, oldest first
+     * @throws IOException if the segment files cannot be read
+     */
+    public List<JournalEvent> query(Instant from, Instant to, int limit) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        return SegmentReader.read(directory, from, to, limit);
+    }
+    
+    /**
+     * Get the number of events dropped because the ring was full.
+     * 
+     * @return the dropped event count
+     */
+    public long getDroppedCount() {
+        return ring.getDroppedCount();
+    }
+    
+    /**
+     * Stop the writer thread after it has written and synced every recorded event.
+     */
+    @PreDestroy
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void runWriter() {
+        try (SegmentWriter writer = new SegmentWriter(directory, config.getSegmentSizeBytes())) {
+            long lastSync = System.nanoTime();
+            long syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(config.getSyncIntervalMillis());
+            while (running || !ring.isEmpty()) {
+                int drained = ring.drain(slot -> {
+                    try {
+                        writer.append(slot);
+                    } catch (IOException e) {
+                        throw new JournalWriteException(e);
+                    }
+                }, DRAIN_BATCH);
+                
+                // Group commit: sync when the ring runs dry, or periodically under sustained load
+                long now = System.nanoTime();
+                if (writer.hasUnsynced() && (drained == 0 || now - lastSync >= syncIntervalNanos)) {
+                    writer.sync();
+                    lastSync = now;
+                }
+                if (drained == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        } catch (IOException | JournalWriteException e) {
+            running = false;
+            log.error("Event journal writer failed, journal disabled: {}", e.getMessage(), e);
+        }
+    }
+    
+    private static final class JournalWriteException extends RuntimeException {
+        
+        JournalWriteException(IOException cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+}
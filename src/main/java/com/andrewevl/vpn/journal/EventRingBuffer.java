@@ -0,0 +1,122 @@
+package com.andrewevl.vpn.journal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded ring of preallocated event slots with many producers and a single
+ * consumer, after the LMAX Disruptor.
+ * <p>
+ * Producers claim a sequence with one CAS, fill the slot for that sequence in
+ * place and publish it by writing the sequence into the slot. The consumer
+ * reads slots in sequence order until it reaches one that is not yet published
+ * and only then advances its own sequence, which frees the whole batch for
+ * reuse at once. A producer that finds the ring full drops its event instead
+ * of waiting, so publishing never blocks.
+ */
+class EventRingBuffer {
+    
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final LongAdder dropped = new LongAdder();
+    
+    /**
+     * The last sequence the consumer has finished with. Written only by the consumer.
+     */
+    private volatile long consumed = -1;
+    
+    EventRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Ring capacity must be positive");
+        }
+        int size = Integer.bitCount(capacity) == 1 ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+    }
+    
+    /**
+     * Publish an event.
+     * 
+     * @return false if the ring was full and the event was dropped
+     */
+    boolean tryPublish(long epochSecond, int nano, JournalEventType type, String protocol, String subject,
+                       boolean success) {
+        long sequence;
+        do {
+            sequence = claimed.get() + 1;
+            if (sequence - consumed > slots.length) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence - 1, sequence));
+        
+        Slot slot = slots[(int) sequence & mask];
+        slot.epochSecond = epochSecond;
+        slot.nano = nano;
+        slot.type = type;
+        slot.protocol = protocol;
+        slot.subject = subject;
+        slot.success = success;
+        // The volatile write publishes the fields above to the consumer
+        slot.published = sequence;
+        return true;
+    }
+    
+    /**
+     * Hand published events to a handler in sequence order. Consumer thread only.
+     * 
+     * @param handler the handler, which must not keep the slot
+     * @param limit the maximum number of events to hand over
+     * @return the number of events handed over
+     */
+    int drain(SlotHandler handler, int limit) {
+        long next = consumed + 1;
+        int count = 0;
+        while (count < limit) {
+            Slot slot = slots[(int) next & mask];
+            if (slot.published != next) {
+                break;
+            }
+            handler.onEvent(slot);
+            next++;
+            count++;
+        }
+        if (count > 0) {
+            consumed = next - 1;
+        }
+        return count;
+    }
+    
+    boolean isEmpty() {
+        return claimed.get() == consumed;
+    }
+    
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+    
+    int capacity() {
+        return slots.length;
+    }
+    
+    static final class Slot {
+        
+        volatile long published = -1;
+        long epochSecond;
+        int nano;
+        JournalEventType type;
+        String protocol;
+        String subject;
+        boolean success;
+    }
+    
+    @FunctionalInterface
+    interface SlotHandler {
+        
+        void onEvent(Slot slot);
+    }
+}
@@ -0,0 +1,27 @@
+package com.andrewevl.vpn.journal;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.Instant;
+
+/**
+ * An event read back from the event journal.
+ */
+@Getter
+@AllArgsConstructor
+public class JournalEvent {
+    
+    private final Instant timestamp;
+    
+    private final JournalEventType type;
+    
+    private final String protocol;
+    
+    /**
+     * The user the event concerns, or null for protocol-wide events.
+     */
+    private final String subject;
+    
+    private final boolean success;
+}
@@ -0,0 +1,43 @@
+package com.andrewevl.vpn.journal;
+
+/**
+ * Kinds of events recorded in the event journal. The code is what is written
+ * to disk, so existing codes must never change.
+ */
+public enum JournalEventType {
+    
+    PROTOCOL_STARTED(1),
+    PROTOCOL_STOPPED(2),
+    CLIENT_CONFIG_GENERATED(3);
+    
+    private final int code;
+    
+    JournalEventType(int code) {
+        this.code = code;
+    }
+    
+    /**
+     * Get the on-disk code of this type.
+     * 
+     * @return the code
+     */
+    public int getCode() {
+        return code;
+    }
+    
+    /**
+     * Find the type for an on-disk code.
+     * 
+     * @param code the code
+     * @return the type
+     * @throws IllegalArgumentException if the code is unknown
+     */
+    public static JournalEventType fromCode(int code) {
+        for (JournalEventType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown journal event type " + code);
+    }
+}
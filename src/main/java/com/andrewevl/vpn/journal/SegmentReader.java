@@ -0,0 +1,118 @@
+package com.andrewevl.vpn.journal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads events back from journal segment files written by {@link SegmentWriter}.
+ * Segments are named after their first event, so a time-range read opens only
+ * the segments that can overlap the range. Reading a segment stops at the first
+ * incomplete or corrupt record, which is where a crash may have cut it off.
+ */
+final class SegmentReader {
+    
+    private static final int MAX_RECORD_BYTES = SegmentWriter.HEADER_BYTES + 4 + 2 * Short.MAX_VALUE;
+    
+    private SegmentReader() {
+    }
+    
+    /**
+     * Read the events in a time range.
+     * 
+     * @param directory the journal directory
+     * @param from the start of the range, inclusive
+     * @param to the end of the range, exclusive
+     * @param limit the maximum number of events to return
+     * @return the events, oldest first
+     */
+    static List<JournalEvent> read(Path directory, Instant from, Instant to, int limit) throws IOException {
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(directory)) {
+            segments = files.filter(path -> path.getFileName().toString().endsWith(SegmentWriter.SEGMENT_SUFFIX))
+                    .sorted()
+                    .toList();
+        }
+        
+        long fromMillis = from.toEpochMilli();
+        long toMillis = to.toEpochMilli();
+        List<JournalEvent> events = new ArrayList<>();
+        for (int i = 0; i < segments.size() && events.size() < limit; i++) {
+            if (firstEventMillis(segments.get(i)) > toMillis) {
+                break;
+            }
+            if (i + 1 < segments.size() && firstEventMillis(segments.get(i + 1)) < fromMillis) {
+                // The next segment starts before the range, so all of this one is earlier still
+                continue;
+            }
+            readSegment(segments.get(i), from, to, limit, events);
+        }
+        return events;
+    }
+    
+    private static void readSegment(Path segment, Instant from, Instant to, int limit, List<JournalEvent> events)
+            throws IOException {
+        CRC32C crc = new CRC32C();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 1 << 16))) {
+            while (events.size() < limit) {
+                byte[] payload;
+                int checksum;
+                try {
+                    int length = in.readInt();
+                    if (length < SegmentWriter.HEADER_BYTES + 4 || length > MAX_RECORD_BYTES) {
+                        return;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    return;
+                }
+                
+                JournalEvent event = decode(ByteBuffer.wrap(payload));
+                if (!event.getTimestamp().isBefore(from) && event.getTimestamp().isBefore(to)) {
+                    events.add(event);
+                }
+            }
+        }
+    }
+    
+    private static JournalEvent decode(ByteBuffer record) {
+        Instant timestamp = Instant.ofEpochSecond(record.getLong(), record.getInt());
+        JournalEventType type = JournalEventType.fromCode(record.get());
+        boolean success = record.get() != 0;
+        String protocol = readString(record);
+        String subject = readString(record);
+        return new JournalEvent(timestamp, type, protocol, subject, success);
+    }
+    
+    private static String readString(ByteBuffer record) {
+        int length = record.getShort();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+    
+    private static long firstEventMillis(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SegmentWriter.SEGMENT_SUFFIX.length()));
+    }
+}
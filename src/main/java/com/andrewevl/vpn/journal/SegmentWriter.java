@@ -0,0 +1,136 @@
+package com.andrewevl.vpn.journal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Appends encoded events to journal segment files. Used only by the journal's
+ * writer thread.
+ * <p>
+ * Events are encoded into a buffer that is written out when full or on
+ * {@link #sync()}; {@code sync} also forces the segment to disk, so one fsync
+ * covers every event appended since the previous one. A segment is named
+ * after the time of its first event and is closed once it reaches the size
+ * limit.
+ * <p>
+ * A record is {@code [int length][long epochSecond][int nano][byte type][byte success]
+ * [short protocolLength][protocol][short subjectLength][subject][int crc32c]},
+ * where the length covers everything between itself and the checksum and a
+ * subject length of -1 means no subject.
+ */
+class SegmentWriter implements AutoCloseable {
+    
+    static final String SEGMENT_SUFFIX = ".seg";
+    static final int HEADER_BYTES = 8 + 4 + 1 + 1;
+    private static final int MAX_STRING_CHARS = Short.MAX_VALUE / 3;
+    
+    private final Path directory;
+    private final long segmentSizeBytes;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+    private final CRC32C crc = new CRC32C();
+    
+    private FileChannel segment;
+    private long segmentBytes;
+    private boolean unsynced;
+    
+    SegmentWriter(Path directory, long segmentSizeBytes) {
+        this.directory = directory;
+        this.segmentSizeBytes = segmentSizeBytes;
+    }
+    
+    /**
+     * Encode an event into the write buffer.
+     */
+    void append(EventRingBuffer.Slot slot) throws IOException {
+        byte[] protocol = encode(slot.protocol);
+        byte[] subject = slot.subject == null ? null : encode(slot.subject);
+        int length = HEADER_BYTES + 2 + protocol.length + 2 + (subject == null ? 0 : subject.length);
+        int recordBytes = 4 + length + 4;
+        if (segment == null || segmentBytes + recordBytes > segmentSizeBytes) {
+            roll(slot.epochSecond * 1000 + slot.nano / 1_000_000);
+        }
+        if (buffer.remaining() < recordBytes) {
+            writeBuffer();
+        }
+        
+        buffer.putInt(length);
+        int payloadStart = buffer.position();
+        buffer.putLong(slot.epochSecond);
+        buffer.putInt(slot.nano);
+        buffer.put((byte) slot.type.getCode());
+        buffer.put((byte) (slot.success ? 1 : 0));
+        buffer.putShort((short) protocol.length);
+        buffer.put(protocol);
+        if (subject == null) {
+            buffer.putShort((short) -1);
+        } else {
+            buffer.putShort((short) subject.length);
+            buffer.put(subject);
+        }
+        crc.reset();
+        crc.update(buffer.duplicate().position(payloadStart).limit(payloadStart + length));
+        buffer.putInt((int) crc.getValue());
+        segmentBytes += recordBytes;
+        unsynced = true;
+    }
+    
+    /**
+     * Write out buffered events and force the segment to disk if anything was
+     * appended since the last sync.
+     */
+    void sync() throws IOException {
+        if (!unsynced) {
+            return;
+        }
+        writeBuffer();
+        segment.force(false);
+        unsynced = false;
+    }
+    
+    boolean hasUnsynced() {
+        return unsynced;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (segment != null) {
+            sync();
+            segment.close();
+            segment = null;
+        }
+    }
+    
+    private void roll(long firstEventMillis) throws IOException {
+        close();
+        // Two segments opened within the same millisecond get consecutive names
+        Path path = directory.resolve(segmentName(firstEventMillis));
+        while (path.toFile().exists()) {
+            path = directory.resolve(segmentName(++firstEventMillis));
+        }
+        segment = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        segmentBytes = 0;
+    }
+    
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            segment.write(buffer);
+        }
+        buffer.clear();
+    }
+    
+    static String segmentName(long firstEventMillis) {
+        return String.format("%019d", firstEventMillis) + SEGMENT_SUFFIX;
+    }
+    
+    private static byte[] encode(String value) {
+        // Lengths are written as shorts; nothing recorded comes close, but never corrupt a record
+        String bounded = value.length() <= MAX_STRING_CHARS ? value : value.substring(0, MAX_STRING_CHARS);
+        return bounded.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,57 @@
+package com.andrewevl.vpn.load;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.model.Endpoint;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders candidate endpoints so that clients try the least saturated first.
+ */
+@Component
+public class EndpointSelector {
+    
+    private final LoadTable loadTable;
+    private final int maxEndpoints;
+    
+    public EndpointSelector(LoadTable loadTable, VpnConfig vpnConfig) {
+        this.loadTable = loadTable;
+        this.maxEndpoints = vpnConfig.getLoad().getMaxEndpoints();
+    }
+    
+    /**
+     * Rank endpoints by saturation, least saturated first. Endpoints at capacity
+     * are only kept if every candidate is at capacity. Equally loaded endpoints
+     * keep their original order.
+     * 
+     * @param candidates the endpoints to choose from
+     * @return at most the configured number of endpoints, best first
+     */
+    public List<Endpoint> rank(List<Endpoint> candidates) {
+        Map<Endpoint, Double> saturation = new HashMap<>();
+        candidates.forEach(endpoint -> saturation.put(endpoint, loadTable.getSaturation(endpoint)));
+        
+        List<Endpoint> ranked = new ArrayList<>(candidates);
+        ranked.sort(Comparator.comparingDouble(saturation::get));
+        if (ranked.size() > 1 && saturation.get(ranked.get(0)) < 1.0) {
+            ranked.removeIf(endpoint -> saturation.get(endpoint) >= 1.0);
+        }
+        return ranked.size() > maxEndpoints ? new ArrayList<>(ranked.subList(0, maxEndpoints)) : ranked;
+    }
+    
+    /**
+     * Get the saturation of a group of endpoints served by the same instance, which
+     * is that of its least saturated endpoint.
+     * 
+     * @param endpoints the endpoints
+     * @return the lowest saturation, or 0 if there are no endpoints
+     */
+    public double getSaturation(List<Endpoint> endpoints) {
+        return endpoints.stream().mapToDouble(loadTable::getSaturation).min().orElse(0);
+    }
+}
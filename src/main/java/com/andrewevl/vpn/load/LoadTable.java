@@ -0,0 +1,163 @@
+package com.andrewevl.vpn.load;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.model.Endpoint;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Live load of every endpoint this node serves.
+ * <p>
+ * Session counts follow the {@link com.andrewevl.vpn.session.SessionManager} and
+ * traffic is recorded from the peer counters read by the
+ * {@link com.andrewevl.vpn.session.PeerStatusPoller}, with a single atomic update
+ * each. A periodic refresh folds the traffic since the last refresh into
+ * an exponentially weighted throughput and samples the node's CPU load, so the
+ * table costs O(endpoints) per refresh and nothing per lookup. The saturation of
+ * an endpoint is its most constrained resource: the largest of its session count,
+ * its throughput and the node CPU load, each as a fraction of capacity.
+ */
+@Component
+public class LoadTable {
+    
+    private final VpnConfig.LoadConfig config;
+    private final DoubleSupplier cpuSampler;
+    private final Map<Endpoint, Entry> entries = new ConcurrentHashMap<>();
+    
+    private volatile double cpuLoad;
+    private long lastRefreshNanos = System.nanoTime();
+    
+    @Autowired
+    public LoadTable(VpnConfig vpnConfig) {
+        this(vpnConfig.getLoad(), systemCpuSampler());
+    }
+    
+    LoadTable(VpnConfig.LoadConfig config, DoubleSupplier cpuSampler) {
+        this.config = config;
+        this.cpuSampler = cpuSampler;
+    }
+    
+    /**
+     * Record that a session was established through an endpoint.
+     * 
+     * @param endpoint the endpoint
+     */
+    public void sessionOpened(Endpoint endpoint) {
+        entry(endpoint).sessions.incrementAndGet();
+    }
+    
+    /**
+     * Record that a session through an endpoint ended.
+     * 
+     * @param endpoint the endpoint
+     */
+    public void sessionClosed(Endpoint endpoint) {
+        entry(endpoint).sessions.updateAndGet(sessions -> Math.max(0, sessions - 1));
+    }
+    
+    /**
+     * Record traffic through an endpoint.
+     * 
+     * @param endpoint the endpoint
+     * @param bytes the number of bytes sent or received
+     */
+    public void recordTraffic(Endpoint endpoint, long bytes) {
+        entry(endpoint).bytes.add(bytes);
+    }
+    
+    /**
+     * Fold recent traffic into the smoothed throughput of each endpoint and sample
+     * the CPU load.
+     */
+    @Scheduled(fixedRateString = "${vpn.load.refresh-interval-millis:1000}")
+    public synchronized void refresh() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1e-3, (now - lastRefreshNanos) / 1e9);
+        lastRefreshNanos = now;
+        
+        double smoothing = config.getSmoothing();
+        for (Entry entry : entries.values()) {
+            double rate = entry.bytes.sumThenReset() / seconds;
+            entry.throughput += smoothing * (rate - entry.throughput);
+        }
+        
+        double cpu = cpuSampler.getAsDouble();
+        if (cpu >= 0) {
+            cpuLoad = cpu;
+        }
+    }
+    
+    /**
+     * Get how close an endpoint is to its capacity.
+     * 
+     * @param endpoint the endpoint
+     * @return the saturation, where 1.0 means a resource is at capacity
+     */
+    public double getSaturation(Endpoint endpoint) {
+        Entry entry = entries.get(endpoint);
+        double saturation = cpuLoad;
+        if (entry != null) {
+            saturation = Math.max(saturation, entry.sessions.get() / (double) config.getMaxSessionsPerEndpoint());
+            saturation = Math.max(saturation, entry.throughput / config.getMaxThroughputPerEndpoint());
+        }
+        return saturation;
+    }
+    
+    /**
+     * Get the number of sessions through an endpoint.
+     * 
+     * @param endpoint the endpoint
+     * @return the session count
+     */
+    public int getSessions(Endpoint endpoint) {
+        Entry entry = entries.get(endpoint);
+        return entry == null ? 0 : entry.sessions.get();
+    }
+    
+    /**
+     * Get the current load of every endpoint.
+     * 
+     * @return a map of endpoints to their sessions, throughput and saturation
+     */
+    public Map<String, Object> getSnapshot() {
+        Map<String, Object> endpoints = new HashMap<>();
+        entries.forEach((endpoint, entry) -> {
+            Map<String, Object> load = new HashMap<>();
+            load.put("sessions", entry.sessions.get());
+            load.put("bytesPerSecond", Math.round(entry.throughput));
+            load.put("saturation", getSaturation(endpoint));
+            endpoints.put(endpoint.getHost() + ":" + endpoint.getPort(), load);
+        });
+        Map<String, Object> snapshot = new HashMap<>();
+        snapshot.put("cpuLoad", cpuLoad);
+        snapshot.put("endpoints", endpoints);
+        return snapshot;
+    }
+    
+    private Entry entry(Endpoint endpoint) {
+        return entries.computeIfAbsent(endpoint, key -> new Entry());
+    }
+    
+    private static DoubleSupplier systemCpuSampler() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os::getCpuLoad;
+        }
+        return () -> -1;
+    }
+    
+    private static final class Entry {
+        
+        private final AtomicInteger sessions = new AtomicInteger();
+        private final LongAdder bytes = new LongAdder();
+        private volatile double throughput;
+    }
+}
@@ -1,16 +1,39 @@
 package com.andrewevl.vpn.model;
 
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.jfr.ClientConfigEvent;
+import com.andrewevl.vpn.jfr.ProtocolLifecycleEvent;
+import com.andrewevl.vpn.load.EndpointSelector;
 import lombok.Getter;
 import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
 /**
  * Abstract base class for VPN protocol implementations.
  * Provides common functionality for all protocols.
  */
 public abstract class AbstractProtocol implements Protocol {
     
+    private static final long COMMAND_TIMEOUT_SECONDS = 5;
+    
     protected final Logger logger = LoggerFactory.getLogger(getClass());
     
     @Getter
@@ -21,9 +44,40 @@ public abstract class AbstractProtocol implements Protocol {
     @Setter
     protected String serverAddress;
     
+    /**
+     * Further public addresses the protocol port is reachable on.
+     */
+    @Getter
+    @Setter
+    protected List<String> additionalAddresses = new ArrayList<>();
+    
+    /**
+     * Orders endpoints by load when generating client configurations; when unset
+     * the server address comes first.
+     */
+    @Setter
+    protected EndpointSelector endpointSelector;
+    
+    /**
+     * Tells whether the built-in DNS forwarder is serving on a tunnel gateway address.
+     * Clients are pointed at their gateway for DNS only while it is.
+     */
+    @Setter
+    protected Predicate<String> localDnsAvailable = address -> false;
+    
     @Getter
     protected boolean running = false;
     
+    /**
+     * The endpoint each client's configuration was last generated with, which is
+     * the one its traffic is counted against.
+     */
+    private final Map<String, Endpoint> clientEndpoints = new ConcurrentHashMap<>();
+    
+    @Getter
+    private volatile boolean initialized = false;
+    private final ReentrantLock initializationLock = new ReentrantLock();
+    
     /**
      * Constructor with default port.
      */
@@ -51,34 +105,234 @@ public abstract class AbstractProtocol implements Protocol {
         this.serverAddress = serverAddress;
     }
     
+    @Override
+    public void initialize() {
+        if (initialized) {
+            return;
+        }
+        initializationLock.lock();
+        try {
+            if (!initialized) {
+                doInitialize();
+                initialized = true;
+            }
+        } catch (IOException e) {
+            // Left uninitialized, so the next use tries again
+            logger.error("Failed to initialize {} configuration: {}", getName(), e.getMessage(), e);
+        } finally {
+            initializationLock.unlock();
+        }
+    }
+    
+    /**
+     * Get the configuration directory of a protocol from
+     * {@code vpn.protocols.<name>.directory}.
+     * 
+     * @param vpnConfig the VPN configuration
+     * @param protocolName the protocol name
+     * @param defaultDirectory the directory to use if none is configured
+     * @return the configuration directory of shard 0
+     */
+    protected static String configDirectory(VpnConfig vpnConfig, String protocolName, String defaultDirectory) {
+        VpnConfig.ProtocolConfig config = vpnConfig.getProtocols().get(protocolName.toLowerCase());
+        return config != null && config.getDirectory() != null ? config.getDirectory() : defaultDirectory;
+    }
+    
     @Override
     public boolean startServer() {
         logger.info("Starting {} server on port {}", getName(), port);
+        ProtocolLifecycleEvent event = new ProtocolLifecycleEvent();
+        event.begin();
+        boolean success = false;
         try {
+            initialize();
             doStart();
             running = true;
+            success = true;
             logger.info("{} server started successfully", getName());
             return true;
         } catch (Exception e) {
             logger.error("Failed to start {} server: {}", getName(), e.getMessage(), e);
             return false;
+        } finally {
+            commitLifecycleEvent(event, "start", success);
         }
     }
     
     @Override
     public boolean stopServer() {
         logger.info("Stopping {} server", getName());
+        ProtocolLifecycleEvent event = new ProtocolLifecycleEvent();
+        event.begin();
+        boolean success = false;
         try {
             doStop();
             running = false;
+            success = true;
             logger.info("{} server stopped successfully", getName());
             return true;
         } catch (Exception e) {
             logger.error("Failed to stop {} server: {}", getName(), e.getMessage(), e);
             return false;
+        } finally {
+            commitLifecycleEvent(event, "stop", success);
         }
     }
     
+    private void commitLifecycleEvent(ProtocolLifecycleEvent event, String action, boolean success) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.protocol = getName();
+            event.action = action;
+            event.port = port;
+            event.success = success;
+            event.commit();
+        }
+    }
+    
+    @Override
+    public List<Endpoint> getEndpoints() {
+        List<Endpoint> endpoints = new ArrayList<>();
+        endpoints.add(new Endpoint(serverAddress != null ? serverAddress : "server_ip_address", port));
+        additionalAddresses.forEach(address -> endpoints.add(new Endpoint(address, port)));
+        return endpoints;
+    }
+    
+    /**
+     * Get the endpoints to write into a client configuration, best first.
+     * 
+     * @return at least one endpoint
+     */
+    protected List<Endpoint> selectEndpoints() {
+        List<Endpoint> endpoints = getEndpoints();
+        return endpointSelector != null ? endpointSelector.rank(endpoints) : endpoints;
+    }
+    
+    /**
+     * Remember the endpoint a client's configuration points it at first.
+     * 
+     * @param username the username of the client
+     * @param endpoint the endpoint written first into its configuration
+     */
+    protected void rememberEndpoint(String username, Endpoint endpoint) {
+        clientEndpoints.put(username, endpoint);
+    }
+    
+    /**
+     * Get the endpoint a client's traffic arrives through. Neither WireGuard nor
+     * OpenVPN report the local address a peer reached, so this is the endpoint its
+     * configuration was generated with, or the primary endpoint for clients
+     * provisioned before this process started.
+     * 
+     * @param username the username of the client
+     * @return the endpoint
+     */
+    protected Endpoint endpointOf(String username) {
+        Endpoint endpoint = clientEndpoints.get(username);
+        return endpoint != null ? endpoint : getEndpoints().get(0);
+    }
+    
+    /**
+     * Run a command and collect its standard output.
+     * 
+     * @param command the command and its arguments
+     * @return the output lines
+     * @throws IOException if the command cannot be run, times out or exits with an error
+     */
+    protected List<String> readCommandOutput(String... command) throws IOException {
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            List<String> lines;
+            try (BufferedReader reader = process.inputReader()) {
+                lines = reader.lines().toList();
+            }
+            if (!process.waitFor(COMMAND_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("Timed out: " + String.join(" ", command));
+            }
+            if (process.exitValue() != 0) {
+                throw new IOException("Exit code " + process.exitValue() + ": " + String.join(" ", command));
+            }
+            return lines;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted: " + String.join(" ", command), e);
+        } finally {
+            process.destroy();
+        }
+    }
+    
+    /**
+     * Find client configuration files in a directory.
+     * 
+     * @param directory the configuration directory
+     * @param extension the extension of client configuration files, including the dot
+     * @param excluded file names that are not client configurations
+     * @return a map of usernames to the time their configuration was last written
+     */
+    protected Map<String, Instant> findClientConfigs(String directory, String extension, String... excluded) {
+        Map<String, Instant> clients = new HashMap<>();
+        if (!Files.isDirectory(Paths.get(directory))) {
+            return clients;
+        }
+        try (Stream<Path> files = Files.list(Paths.get(directory))) {
+            files.filter(file -> file.getFileName().toString().endsWith(extension))
+                    .filter(file -> !Arrays.asList(excluded).contains(file.getFileName().toString()))
+                    .forEach(file -> {
+                        String fileName = file.getFileName().toString();
+                        String username = fileName.substring(0, fileName.length() - extension.length());
+                        try {
+                            clients.put(username, Files.getLastModifiedTime(file).toInstant());
+                        } catch (IOException e) {
+                            logger.warn("Failed to read modification time of {}: {}", file, e.getMessage());
+                        }
+                    });
+        } catch (IOException e) {
+            logger.warn("Failed to list client configurations in {}: {}", directory, e.getMessage());
+        }
+        return clients;
+    }
+    
+    /**
+     * Finish and commit the Flight Recorder event of a client configuration
+     * generation started by {@code generateClientConfig}.
+     * 
+     * @param event the event, begun when generation started
+     * @param username the username of the client
+     * @param config the generated configuration, or null if generation failed
+     * @return the configuration, so that callers can return through this method
+     */
+    protected String recordClientConfig(ClientConfigEvent event, String username, String config) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.protocol = getName();
+            event.user = username;
+            event.bytes = config != null ? config.length() : 0;
+            event.success = config != null;
+            event.commit();
+        }
+        return config;
+    }
+    
+    /**
+     * Create another instance of this protocol that serves as shard {@code index}
+     * of a {@link ShardedProtocol}, with its own port, subnet and configuration
+     * directory.
+     * 
+     * @param index the shard index, at least 1
+     * @return the new shard
+     */
+    public abstract AbstractProtocol createShard(int index);
+    
+    /**
+     * Implementation-specific initialization, run by {@link #initialize()} at most
+     * once successfully. Constructors do no I/O, so directories, keys and default
+     * configuration files are created here, after options have been applied.
+     * 
+     * @throws IOException if the configuration cannot be created
+     */
+    protected void doInitialize() throws IOException {
+    }
+    
     /**
      * Implementation-specific start logic.
      * 
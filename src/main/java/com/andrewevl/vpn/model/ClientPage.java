@@ -0,0 +1,21 @@
+package com.andrewevl.vpn.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * One page of a client listing.
+ */
+@Getter
+@AllArgsConstructor
+public class ClientPage {
+    
+    private final List<ClientRecord> clients;
+    
+    /**
+     * The cursor of the next page, or null if this is the last page.
+     */
+    private final String nextCursor;
+}
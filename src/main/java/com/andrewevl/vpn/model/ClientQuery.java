@@ -0,0 +1,39 @@
+package com.andrewevl.vpn.model;
+
+import lombok.Data;
+
+import java.time.Instant;
+
+/**
+ * Filters and paging for a listing of the clients of one protocol.
+ */
+@Data
+public class ClientQuery {
+    
+    /**
+     * Only include clients whose username starts with this prefix, or null for all.
+     */
+    private String prefix;
+    
+    /**
+     * Only include connected (true) or disconnected (false) clients, or null for both.
+     */
+    private Boolean connected;
+    
+    /**
+     * Only include clients whose last handshake is at or after this time, or null.
+     */
+    private Instant handshakeAfter;
+    
+    /**
+     * Only include clients whose last handshake is before this time, or null.
+     */
+    private Instant handshakeBefore;
+    
+    /**
+     * The cursor returned with the previous page, or null for the first page.
+     */
+    private String cursor;
+    
+    private int limit = 100;
+}
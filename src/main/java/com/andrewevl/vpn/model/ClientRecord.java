@@ -0,0 +1,40 @@
+package com.andrewevl.vpn.model;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import java.time.Instant;
+
+/**
+ * A client provisioned for a protocol.
+ */
+@Getter
+public class ClientRecord {
+    
+    private final String protocol;
+    
+    private final String username;
+    
+    @Setter
+    private volatile Instant createdAt;
+    
+    @Setter
+    private volatile Instant keysRotatedAt;
+    
+    /**
+     * When the client last completed a handshake, or null if it never has.
+     * Updated through the client registry, which indexes it.
+     */
+    @Setter
+    private volatile Instant lastHandshakeAt;
+    
+    @Setter
+    private volatile boolean connected;
+    
+    public ClientRecord(String protocol, String username, Instant createdAt) {
+        this.protocol = protocol;
+        this.username = username;
+        this.createdAt = createdAt;
+        this.keysRotatedAt = createdAt;
+    }
+}
@@ -0,0 +1,18 @@
+package com.andrewevl.vpn.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * An address and port clients can connect their tunnel to.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class Endpoint {
+    
+    private String host;
+    
+    private int port;
+}
@@ -1,6 +1,10 @@
 package com.andrewevl.vpn.model;
 
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.jfr.ClientConfigEvent;
+import com.andrewevl.vpn.util.AsyncFiles;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
@@ -8,9 +12,20 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 /**
  * Implementation of the OpenVPN protocol.
@@ -21,30 +36,100 @@ public class OpenVpnProtocol extends AbstractProtocol {
     
     private static final String PROTOCOL_NAME = "OpenVPN";
     private static final int DEFAULT_PORT = 1194;
+    private static final String BASE_CONFIG_DIR = "config/openvpn";
+    private static final Pattern REMOTE_LINE = Pattern.compile("(?m)^remote .*$");
+    private static final List<String> PUBLIC_DNS_PUSH = List.of(
+            "push \"dhcp-option DNS 8.8.8.8\"",
+            "push \"dhcp-option DNS 8.8.4.4\"");
+    
+    // Version 1 status files print local time as "%Y-%m-%d %H:%M:%S" since 2.5, ctime style before
+    private static final List<DateTimeFormatter> STATUS_TIME_FORMATS = List.of(
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"),
+            DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.ENGLISH));
     
     private Process serverProcess;
-    private final String configDir = "config/openvpn";
-    private final String serverConfigPath = configDir + "/server.conf";
-    private final String clientConfigTemplate = configDir + "/client-template.conf";
+    private final String baseDirectory;
+    private final String subnet;
+    private final String gatewayAddress;
+    private final List<String> localDnsPush;
+    private final String configDir;
+    private final String serverConfigPath;
+    private final String clientConfigTemplate;
+    private final String managementSocket;
     
     public OpenVpnProtocol() {
-        super(DEFAULT_PORT);
-        initializeConfigDirectory();
+        this(DEFAULT_PORT);
     }
     
     public OpenVpnProtocol(int port) {
+        this(port, 0, BASE_CONFIG_DIR);
+    }
+    
+    /**
+     * Constructor used by Spring, which takes the configuration directory from
+     * {@code vpn.protocols.openvpn.directory}.
+     * 
+     * @param vpnConfig the VPN configuration
+     */
+    @Autowired
+    public OpenVpnProtocol(VpnConfig vpnConfig) {
+        this(DEFAULT_PORT, 0, configDirectory(vpnConfig, PROTOCOL_NAME, BASE_CONFIG_DIR));
+    }
+    
+    /**
+     * Constructor for one shard of a sharded OpenVPN server. Shard 0 uses the base
+     * configuration directory; shard N uses {@code shardN} below it and the
+     * 10.8.N.0/24 subnet.
+     * 
+     * @param port the port to use for this shard
+     * @param shardIndex the index of the shard
+     * @param baseDirectory the configuration directory of shard 0
+     */
+    public OpenVpnProtocol(int port, int shardIndex, String baseDirectory) {
         super(port);
-        initializeConfigDirectory();
+        this.baseDirectory = baseDirectory;
+        this.subnet = "10.8." + shardIndex + ".0";
+        this.gatewayAddress = "10.8." + shardIndex + ".1";
+        this.localDnsPush = List.of("push \"dhcp-option DNS " + gatewayAddress + "\"");
+        this.configDir = shardIndex == 0 ? baseDirectory : baseDirectory + "/shard" + shardIndex;
+        this.serverConfigPath = configDir + "/server.conf";
+        this.clientConfigTemplate = configDir + "/client-template.conf";
+        this.managementSocket = configDir + "/management.sock";
     }
     
-    private void initializeConfigDirectory() {
-        try {
-            Files.createDirectories(Paths.get(configDir));
-            createDefaultServerConfig();
-            createClientConfigTemplate();
-        } catch (IOException e) {
-            logger.error("Failed to initialize OpenVPN config directory: {}", e.getMessage(), e);
-        }
+    /**
+     * Get the Unix socket of the management interface, as named by a
+     * {@code management <path> unix} line of the server configuration. A socket
+     * file is reachable only by local users its file permissions admit, unlike a
+     * TCP management port, which any local process can connect to without a
+     * password.
+     * 
+     * @return the socket path, or empty if the management interface is disabled or
+     *         not on a Unix socket
+     */
+    public Optional<Path> getManagementSocket() {
+        return serverOption("management")
+                .filter(arguments -> arguments.length > 2 && arguments[2].equals("unix"))
+                .map(arguments -> Paths.get(arguments[1]));
+    }
+    
+    /**
+     * Check whether the control channel is wrapped with {@code tls-auth} or
+     * {@code tls-crypt}, in which case the server silently drops control packets
+     * not authenticated with the shared key.
+     * 
+     * @return true if control packets need the shared key
+     */
+    public boolean isControlChannelAuthenticated() {
+        return serverOption("tls-auth").isPresent() || serverOption("tls-crypt").isPresent()
+                || serverOption("tls-crypt-v2").isPresent();
+    }
+    
+    @Override
+    protected void doInitialize() throws IOException {
+        Files.createDirectories(Paths.get(configDir));
+        createDefaultServerConfig();
+        createClientConfigTemplate();
     }
     
     private void createDefaultServerConfig() throws IOException {
@@ -58,11 +143,10 @@ public class OpenVpnProtocol extends AbstractProtocol {
             lines.add("cert server.crt");
             lines.add("key server.key");
             lines.add("dh dh.pem");
-            lines.add("server 10.8.0.0 255.255.255.0");
+            lines.add("server " + subnet + " 255.255.255.0");
             lines.add("ifconfig-pool-persist ipp.txt");
             lines.add("push \"redirect-gateway def1 bypass-dhcp\"");
-            lines.add("push \"dhcp-option DNS 8.8.8.8\"");
-            lines.add("push \"dhcp-option DNS 8.8.4.4\"");
+            lines.addAll(dnsPush());
             lines.add("keepalive 10 120");
             lines.add("cipher AES-256-GCM");
             lines.add("user nobody");
@@ -70,9 +154,10 @@ public class OpenVpnProtocol extends AbstractProtocol {
             lines.add("persist-key");
             lines.add("persist-tun");
             lines.add("status openvpn-status.log");
+            lines.add("management " + managementSocket + " unix");
             lines.add("verb 3");
             
-            Files.write(configPath, lines);
+            AsyncFiles.writeLines(configPath, lines);
             logger.info("Created default OpenVPN server configuration");
         }
     }
@@ -106,7 +191,7 @@ public class OpenVpnProtocol extends AbstractProtocol {
             lines.add("{{TLS_AUTH_KEY}}");
             lines.add("</tls-auth>");
             
-            Files.write(templatePath, lines);
+            AsyncFiles.writeLines(templatePath, lines);
             logger.info("Created OpenVPN client configuration template");
         }
     }
@@ -121,6 +206,8 @@ public class OpenVpnProtocol extends AbstractProtocol {
             throw new IOException("Server configuration file not found: " + serverConfigPath);
         }
         
+        applyDnsPushOptions();
+        
         List<String> command = new ArrayList<>();
         command.add("openvpn");
         command.add("--config");
@@ -136,6 +223,57 @@ public class OpenVpnProtocol extends AbstractProtocol {
         logger.info("Would execute command: {}", String.join(" ", command));
     }
     
+    /**
+     * Make the pushed DNS servers in an existing server configuration match the
+     * current DNS mode. OpenVPN reads pushed options only at startup, so a server
+     * started before the forwarder was bound to its gateway keeps pushing the public
+     * resolvers until its next start.
+     */
+    private void applyDnsPushOptions() throws IOException {
+        Path configPath = Paths.get(serverConfigPath);
+        List<String> lines = AsyncFiles.readAllLines(configPath);
+        List<String> newLines = new ArrayList<>();
+        boolean dnsWritten = false;
+        for (String line : lines) {
+            if (line.startsWith("push \"dhcp-option DNS ")) {
+                if (!dnsWritten) {
+                    newLines.addAll(dnsPush());
+                    dnsWritten = true;
+                }
+            } else {
+                newLines.add(line);
+            }
+        }
+        
+        if (dnsWritten && !newLines.equals(lines)) {
+            AsyncFiles.writeLines(configPath, newLines);
+            logger.info("Updated pushed DNS servers in OpenVPN server configuration");
+        }
+    }
+    
+    private List<String> dnsPush() {
+        return localDnsAvailable.test(gatewayAddress) ? localDnsPush : PUBLIC_DNS_PUSH;
+    }
+    
+    /**
+     * Find the first line of the server configuration setting an option.
+     * 
+     * @return the option name and its arguments, or empty if the option is not set
+     *         or the configuration cannot be read
+     */
+    private Optional<String[]> serverOption(String name) {
+        try {
+            return AsyncFiles.readAllLines(Paths.get(serverConfigPath)).stream()
+                    .map(String::trim)
+                    .filter(line -> line.startsWith(name + " ") || line.equals(name))
+                    .map(line -> line.split("\\s+"))
+                    .findFirst();
+        } catch (IOException e) {
+            logger.debug("Failed to read OpenVPN server configuration: {}", e.getMessage());
+            return Optional.empty();
+        }
+    }
+    
     @Override
     protected void doStop() throws Exception {
         if (serverProcess != null && serverProcess.isAlive()) {
@@ -159,14 +297,23 @@ public class OpenVpnProtocol extends AbstractProtocol {
     
     @Override
     public String generateClientConfig(String username) {
+        initialize();
+        ClientConfigEvent event = new ClientConfigEvent();
+        event.begin();
         try {
-            String template = new String(Files.readAllBytes(Paths.get(clientConfigTemplate)));
+            String template = new String(AsyncFiles.readAllBytes(Paths.get(clientConfigTemplate)));
             
             // In a real implementation, we would generate certificates and keys
             // For demonstration, we'll use placeholders
             String clientId = UUID.randomUUID().toString();
             
-            template = template.replace("{{SERVER_ADDRESS}}", serverAddress != null ? serverAddress : "server_ip_address");
+            // OpenVPN tries remotes in order, so list them least loaded first
+            List<Endpoint> endpoints = selectEndpoints();
+            rememberEndpoint(username, endpoints.get(0));
+            String remotes = endpoints.stream()
+                    .map(endpoint -> "remote " + endpoint.getHost() + " " + endpoint.getPort())
+                    .collect(Collectors.joining("\n"));
+            template = REMOTE_LINE.matcher(template).replaceFirst(Matcher.quoteReplacement(remotes));
             template = template.replace("{{CA_CERTIFICATE}}", "# CA Certificate would be here");
             template = template.replace("{{CLIENT_CERTIFICATE}}", "# Client Certificate for " + username + " would be here");
             template = template.replace("{{CLIENT_KEY}}", "# Client Key for " + username + " would be here");
@@ -174,13 +321,127 @@ public class OpenVpnProtocol extends AbstractProtocol {
             
             // Save the client config to a file
             String clientConfigPath = configDir + "/" + username + ".ovpn";
-            Files.write(Paths.get(clientConfigPath), template.getBytes());
+            AsyncFiles.writeBytes(Paths.get(clientConfigPath), template.getBytes());
             
             logger.info("Generated OpenVPN client configuration for user: {}", username);
-            return template;
+            return recordClientConfig(event, username, template);
         } catch (IOException e) {
             logger.error("Failed to generate client configuration: {}", e.getMessage(), e);
+            return recordClientConfig(event, username, null);
+        }
+    }
+    
+    /**
+     * Client configurations carry placeholders instead of per-user certificates,
+     * so regenerating one replaces no key and leaves no serial to revoke.
+     */
+    @Override
+    public boolean supportsKeyRotation() {
+        return false;
+    }
+    
+    @Override
+    public Map<String, Instant> getExistingClients() {
+        return findClientConfigs(configDir, ".ovpn");
+    }
+    
+    /**
+     * Read the connected clients from the status file named by the {@code status}
+     * option of the server configuration. Clients that are not listed are not
+     * connected.
+     */
+    @Override
+    public List<PeerStatus> getPeerStatus() {
+        if (!running) {
+            return List.of();
+        }
+        try {
+            Path statusPath = serverOption("status")
+                    .filter(arguments -> arguments.length > 1)
+                    .map(arguments -> Paths.get(arguments[1]))
+                    .orElse(null);
+            if (statusPath == null || !Files.exists(statusPath)) {
+                return List.of();
+            }
+            return parseStatus(AsyncFiles.readAllLines(statusPath));
+        } catch (IOException e) {
+            logger.debug("Failed to read OpenVPN status: {}", e.getMessage());
+            return List.of();
+        }
+    }
+    
+    /**
+     * Parse an OpenVPN status file. Version 1 lists clients under a
+     * {@code Common Name,...} header; versions 2 and 3 prefix client lines with
+     * {@code CLIENT_LIST} and describe their columns in a {@code HEADER} line, with
+     * commas or tabs as separators. Columns are located by name, and the connection
+     * time stands in for the handshake time.
+     */
+    List<PeerStatus> parseStatus(List<String> status) {
+        List<PeerStatus> peers = new ArrayList<>();
+        List<String> columns = null;
+        boolean inClientList = false;
+        for (String line : status) {
+            String[] fields = line.split(line.indexOf('\t') >= 0 ? "\t" : ",", -1);
+            if (fields.length > 2 && fields[0].equals("HEADER") && fields[1].equals("CLIENT_LIST")) {
+                columns = List.of(fields).subList(2, fields.length);
+            } else if (fields[0].equals("CLIENT_LIST") && columns != null) {
+                addClient(peers, columns, List.of(fields).subList(1, fields.length));
+            } else if (fields[0].equals("Common Name")) {
+                columns = List.of(fields);
+                inClientList = true;
+            } else if (fields[0].equals("ROUTING TABLE")) {
+                inClientList = false;
+            } else if (inClientList) {
+                addClient(peers, columns, List.of(fields));
+            }
+        }
+        return peers;
+    }
+    
+    private void addClient(List<PeerStatus> peers, List<String> columns, List<String> values) {
+        int name = columns.indexOf("Common Name");
+        int received = columns.indexOf("Bytes Received");
+        int sent = columns.indexOf("Bytes Sent");
+        if (name < 0 || received < 0 || sent < 0 || values.size() < columns.size()
+                || values.get(name).equals("UNDEF")) {
+            return;
+        }
+        try {
+            String username = values.get(name);
+            peers.add(new PeerStatus(username, endpointOf(username), connectedSince(columns, values),
+                    Long.parseLong(values.get(received)), Long.parseLong(values.get(sent))));
+        } catch (NumberFormatException e) {
+            logger.debug("Skipping malformed OpenVPN client line: {}", values);
+        }
+    }
+    
+    private static Instant connectedSince(List<String> columns, List<String> values) {
+        int epochSeconds = columns.indexOf("Connected Since (time_t)");
+        if (epochSeconds >= 0) {
+            return Instant.ofEpochSecond(Long.parseLong(values.get(epochSeconds)));
+        }
+        int since = columns.indexOf("Connected Since");
+        if (since < 0) {
             return null;
         }
+        for (DateTimeFormatter format : STATUS_TIME_FORMATS) {
+            try {
+                return LocalDateTime.parse(values.get(since), format).atZone(ZoneId.systemDefault()).toInstant();
+            } catch (DateTimeParseException e) {
+                // Try the next format
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public List<String> getGatewayAddresses() {
+        return List.of(gatewayAddress);
+    }
+    
+    @Override
+    public AbstractProtocol createShard(int index) {
+        return new OpenVpnProtocol(port + index, index, baseDirectory);
     }
 }
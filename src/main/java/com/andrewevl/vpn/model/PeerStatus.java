@@ -0,0 +1,36 @@
+package com.andrewevl.vpn.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.time.Instant;
+
+/**
+ * Live state of one peer as reported by a running protocol server.
+ */
+@Data
+@AllArgsConstructor
+public class PeerStatus {
+    
+    private String username;
+    
+    /**
+     * The endpoint the peer's configuration points it at, or null if unknown.
+     */
+    private Endpoint endpoint;
+    
+    /**
+     * When the peer last completed a handshake, or null if it never has.
+     */
+    private Instant lastHandshakeAt;
+    
+    /**
+     * Bytes received from the peer since the server started.
+     */
+    private long receivedBytes;
+    
+    /**
+     * Bytes sent to the peer since the server started.
+     */
+    private long sentBytes;
+}
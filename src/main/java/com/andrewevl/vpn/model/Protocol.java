@@ -1,5 +1,11 @@
 package com.andrewevl.vpn.model;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Interface representing a VPN protocol.
  * Each protocol implementation should provide methods for starting, stopping,
@@ -14,6 +20,15 @@ public interface Protocol {
      */
     boolean startServer();
     
+    /**
+     * Create the directories, keys and default configuration files the protocol
+     * needs if they do not exist yet. Runs in the background once the application
+     * is ready and again before first use; calls after the first successful one do
+     * nothing.
+     */
+    default void initialize() {
+    }
+    
     /**
      * Stop the VPN protocol server.
      * 
@@ -49,4 +64,64 @@ public interface Protocol {
      * @return the client configuration as a string
      */
     String generateClientConfig(String username);
+    
+    /**
+     * Generate client configurations for several users at once. Protocols that
+     * keep all peers in one file override this to update it once per batch.
+     * 
+     * @param usernames the usernames of the clients
+     * @return a map of usernames to their configuration, or to null where generation failed
+     */
+    default Map<String, String> generateClientConfigs(Collection<String> usernames) {
+        Map<String, String> configs = new LinkedHashMap<>();
+        usernames.forEach(username -> configs.put(username, generateClientConfig(username)));
+        return configs;
+    }
+    
+    /**
+     * Get the endpoints clients of this protocol can connect to.
+     * 
+     * @return the endpoints, preferred first
+     */
+    default List<Endpoint> getEndpoints() {
+        return List.of();
+    }
+    
+    /**
+     * Get the tunnel gateway addresses of this protocol, one per interface.
+     * 
+     * @return the gateway IP addresses
+     */
+    default List<String> getGatewayAddresses() {
+        return List.of();
+    }
+    
+    /**
+     * Check whether regenerating a client's configuration replaces its keys. Key
+     * rotation skips protocols where it does not.
+     * 
+     * @return true if generating a configuration again issues new client keys
+     */
+    default boolean supportsKeyRotation() {
+        return true;
+    }
+    
+    /**
+     * Find clients whose configurations already exist on disk.
+     * 
+     * @return a map of usernames to the time their configuration was last written
+     */
+    default Map<String, Instant> getExistingClients() {
+        return Map.of();
+    }
+    
+    /**
+     * Read the live state of the peers known to the running server.
+     * 
+     * @return the peers, or an empty list if the server is not running or its
+     *         state cannot be read
+     */
+    default List<PeerStatus> getPeerStatus() {
+        return List.of();
+    }
 }
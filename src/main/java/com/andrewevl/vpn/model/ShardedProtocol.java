@@ -0,0 +1,316 @@
+package com.andrewevl.vpn.model;
+
+import com.andrewevl.vpn.load.EndpointSelector;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A protocol backed by several independent instances (shards) of the same
+ * protocol, each with its own port, subnet, configuration files and peers.
+ * <p>
+ * Every shard owns a single-threaded event loop and all peer-store writes for a
+ * shard run on it, so writes to one shard are serialized without a lock while
+ * different shards proceed in parallel. A new user is assigned to the least
+ * saturated shard, or the one with the fewest peers when load is equal, and stays
+ * there; regenerating their configuration goes back to the same shard.
+ */
+@Slf4j
+public class ShardedProtocol implements Protocol {
+    
+    private static final int MAX_SHARDS = 256;
+    
+    private final List<Shard> shards;
+    private final Map<String, Shard> assignments = new ConcurrentHashMap<>();
+    private final ReentrantLock assignmentLock = new ReentrantLock();
+    private volatile boolean assignmentsLoaded;
+    private volatile EndpointSelector endpointSelector;
+    
+    /**
+     * Create a sharded protocol.
+     * 
+     * @param primary the instance that becomes shard 0; the others are created from it
+     * @param shardCount the total number of shards
+     */
+    public ShardedProtocol(AbstractProtocol primary, int shardCount) {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARDS + ": " + shardCount);
+        }
+        List<Shard> created = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            AbstractProtocol protocol = i == 0 ? primary : primary.createShard(i);
+            created.add(new Shard(i, protocol, new DefaultEventLoop(
+                    new DefaultThreadFactory(primary.getName().toLowerCase() + "-shard-" + i, true))));
+        }
+        this.shards = List.copyOf(created);
+    }
+    
+    /**
+     * Initialize all shards in parallel, each on its own event loop so that
+     * initialization never overlaps a peer-store write on the same shard, then
+     * assign the users they already have to them.
+     */
+    @Override
+    public void initialize() {
+        List<Future<?>> pending = new ArrayList<>(shards.size());
+        for (Shard shard : shards) {
+            pending.add(shard.eventLoop.submit(shard.protocol::initialize));
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                pending.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while initializing {} shards", getName());
+                return;
+            } catch (ExecutionException e) {
+                log.error("Failed to initialize {} shard {}: {}", getName(), i, e.getCause().getMessage(), e.getCause());
+            }
+        }
+        loadAssignments();
+    }
+    
+    /**
+     * Assign every user that already has a configuration to the shard holding it.
+     * Runs once, on initialization or on the first request that needs a shard, so
+     * constructing the protocol reads no files.
+     */
+    private void loadAssignments() {
+        if (assignmentsLoaded) {
+            return;
+        }
+        assignmentLock.lock();
+        try {
+            if (!assignmentsLoaded) {
+                for (Shard shard : shards) {
+                    shard.protocol.getExistingClients().keySet().forEach(username -> {
+                        if (assignments.putIfAbsent(username, shard) == null) {
+                            shard.peers.incrementAndGet();
+                        }
+                    });
+                }
+                assignmentsLoaded = true;
+                log.info("{} running as {} shards with {} existing peers", getName(), shards.size(),
+                        assignments.size());
+            }
+        } finally {
+            assignmentLock.unlock();
+        }
+    }
+    
+    @Override
+    public boolean startServer() {
+        boolean success = true;
+        for (Shard shard : shards) {
+            success &= shard.protocol.startServer();
+        }
+        return success;
+    }
+    
+    @Override
+    public boolean stopServer() {
+        boolean success = true;
+        for (Shard shard : shards) {
+            success &= shard.protocol.stopServer();
+        }
+        return success;
+    }
+    
+    /**
+     * Check if the server is running, which requires every shard to be running.
+     * 
+     * @return true if all shards are running, false otherwise
+     */
+    @Override
+    public boolean isRunning() {
+        return shards.stream().allMatch(shard -> shard.protocol.isRunning());
+    }
+    
+    @Override
+    public String getName() {
+        return shards.get(0).protocol.getName();
+    }
+    
+    @Override
+    public int getDefaultPort() {
+        return shards.get(0).protocol.getDefaultPort();
+    }
+    
+    @Override
+    public String generateClientConfig(String username) {
+        Shard shard = shardFor(username);
+        try {
+            return shard.eventLoop.submit(() -> shard.protocol.generateClientConfig(username)).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while generating {} configuration for user {}", getName(), username);
+            return null;
+        } catch (ExecutionException e) {
+            log.error("Failed to generate {} configuration on shard {}: {}", getName(), shard.index,
+                    e.getCause().getMessage(), e.getCause());
+            return null;
+        }
+    }
+    
+    /**
+     * Generate configurations for several users, as one batch per shard with the
+     * shards working in parallel.
+     * 
+     * @param usernames the usernames of the clients
+     * @return a map of usernames to their configuration, or to null where generation failed
+     */
+    @Override
+    public Map<String, String> generateClientConfigs(Collection<String> usernames) {
+        Map<Shard, List<String>> batches = new LinkedHashMap<>();
+        usernames.forEach(username -> batches.computeIfAbsent(shardFor(username), shard -> new ArrayList<>()).add(username));
+        Map<Shard, Future<Map<String, String>>> pending = new LinkedHashMap<>();
+        batches.forEach((shard, batch) ->
+                pending.put(shard, shard.eventLoop.submit(() -> shard.protocol.generateClientConfigs(batch))));
+        
+        Map<String, String> configs = new LinkedHashMap<>();
+        usernames.forEach(username -> configs.put(username, null));
+        for (Map.Entry<Shard, Future<Map<String, String>>> entry : pending.entrySet()) {
+            try {
+                configs.putAll(entry.getValue().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("Interrupted while generating {} configurations", getName());
+                return configs;
+            } catch (ExecutionException e) {
+                log.error("Failed to generate {} configurations on shard {}: {}", getName(), entry.getKey().index,
+                        e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return configs;
+    }
+    
+    /**
+     * Get the shard of a user, assigning a new user to the least loaded shard.
+     */
+    private Shard shardFor(String username) {
+        loadAssignments();
+        return assignments.computeIfAbsent(username, key -> {
+            EndpointSelector selector = endpointSelector;
+            Shard leastLoaded = shards.stream()
+                    .min(Comparator.comparingDouble((Shard candidate) ->
+                                    selector != null ? selector.getSaturation(candidate.protocol.getEndpoints()) : 0)
+                            .thenComparingInt(candidate -> candidate.peers.get())
+                            .thenComparingInt(candidate -> candidate.index))
+                    .orElseThrow();
+            leastLoaded.peers.incrementAndGet();
+            return leastLoaded;
+        });
+    }
+    
+    @Override
+    public boolean supportsKeyRotation() {
+        return shards.get(0).protocol.supportsKeyRotation();
+    }
+    
+    @Override
+    public Map<String, Instant> getExistingClients() {
+        Map<String, Instant> clients = new HashMap<>();
+        for (Shard shard : shards) {
+            shard.protocol.getExistingClients().forEach((username, writtenAt) ->
+                    clients.merge(username, writtenAt, (a, b) -> a.isAfter(b) ? a : b));
+        }
+        return clients;
+    }
+    
+    @Override
+    public List<Endpoint> getEndpoints() {
+        return shards.stream().flatMap(shard -> shard.protocol.getEndpoints().stream()).toList();
+    }
+    
+    @Override
+    public List<String> getGatewayAddresses() {
+        return shards.stream().flatMap(shard -> shard.protocol.getGatewayAddresses().stream()).toList();
+    }
+    
+    @Override
+    public List<PeerStatus> getPeerStatus() {
+        return shards.stream().flatMap(shard -> shard.protocol.getPeerStatus().stream()).toList();
+    }
+    
+    /**
+     * Use live load to place new users and to order the endpoints of every shard.
+     * 
+     * @param endpointSelector the selector
+     */
+    public void setEndpointSelector(EndpointSelector endpointSelector) {
+        this.endpointSelector = endpointSelector;
+        shards.forEach(shard -> shard.protocol.setEndpointSelector(endpointSelector));
+    }
+    
+    /**
+     * Get the protocol instances behind this protocol, in shard order.
+     * 
+     * @return the shards
+     */
+    public List<AbstractProtocol> getShards() {
+        return shards.stream().map(shard -> shard.protocol).toList();
+    }
+    
+    /**
+     * Get the status of every shard.
+     * 
+     * @return one map per shard with its index, port, running state and peer count
+     */
+    public List<Map<String, Object>> getShardStatus() {
+        List<Map<String, Object>> status = new ArrayList<>();
+        for (Shard shard : shards) {
+            Map<String, Object> shardInfo = new HashMap<>();
+            shardInfo.put("index", shard.index);
+            shardInfo.put("port", shard.protocol.getPort());
+            shardInfo.put("running", shard.protocol.isRunning());
+            shardInfo.put("peers", shard.peers.get());
+            status.add(shardInfo);
+        }
+        return status;
+    }
+    
+    /**
+     * Get the total number of peers across all shards.
+     * 
+     * @return the peer count
+     */
+    public int getPeerCount() {
+        return assignments.size();
+    }
+    
+    /**
+     * Stop the shard event loops.
+     */
+    public void shutdown() {
+        shards.forEach(shard -> shard.eventLoop.shutdownGracefully());
+    }
+    
+    private static final class Shard {
+        
+        private final int index;
+        private final AbstractProtocol protocol;
+        private final EventLoop eventLoop;
+        private final AtomicInteger peers = new AtomicInteger();
+        
+        Shard(int index, AbstractProtocol protocol, EventLoop eventLoop) {
+            this.index = index;
+            this.protocol = protocol;
+            this.eventLoop = eventLoop;
+        }
+    }
+}
@@ -1,15 +1,27 @@
 package com.andrewevl.vpn.model;
 
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.jfr.ClientConfigEvent;
+import com.andrewevl.vpn.jfr.PeerStoreWriteEvent;
+import com.andrewevl.vpn.util.AsyncFiles;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Implementation of the WireGuard protocol.
@@ -20,33 +32,68 @@ public class WireGuardProtocol extends AbstractProtocol {
     
     private static final String PROTOCOL_NAME = "WireGuard";
     private static final int DEFAULT_PORT = 51820;
+    private static final String BASE_CONFIG_DIR = "config/wireguard";
     
     private Process serverProcess;
-    private final String configDir = "config/wireguard";
-    private final String serverConfigPath = configDir + "/wg0.conf";
-    private final String privateKeyPath = configDir + "/privatekey";
-    private final String publicKeyPath = configDir + "/publickey";
+    private final String baseDirectory;
+    private final String interfaceName;
+    private final String subnetPrefix;
+    private final String gatewayAddress;
+    private final String configDir;
+    private final String serverConfigPath;
+    private final String privateKeyPath;
+    private final String publicKeyPath;
+    // Not a monitor: the peer store is written while holding it, and blocking inside
+    // synchronized would pin a virtual thread to its carrier
+    private final ReentrantLock serverConfigLock = new ReentrantLock();
     
     public WireGuardProtocol() {
-        super(DEFAULT_PORT);
-        initializeConfigDirectory();
+        this(DEFAULT_PORT);
     }
     
     public WireGuardProtocol(int port) {
+        this(port, 0, BASE_CONFIG_DIR);
+    }
+    
+    /**
+     * Constructor used by Spring, which takes the configuration directory from
+     * {@code vpn.protocols.wireguard.directory}.
+     * 
+     * @param vpnConfig the VPN configuration
+     */
+    @Autowired
+    public WireGuardProtocol(VpnConfig vpnConfig) {
+        this(DEFAULT_PORT, 0, configDirectory(vpnConfig, PROTOCOL_NAME, BASE_CONFIG_DIR));
+    }
+    
+    /**
+     * Constructor for one shard of a sharded WireGuard server. Shard 0 uses the
+     * {@code wg0} interface and the base configuration directory; shard N uses
+     * {@code wgN}, its own subdirectory and the 10.0.N.0/24 subnet.
+     * 
+     * @param port the port to use for this shard
+     * @param shardIndex the index of the shard
+     * @param baseDirectory the configuration directory of shard 0
+     */
+    public WireGuardProtocol(int port, int shardIndex, String baseDirectory) {
         super(port);
-        initializeConfigDirectory();
+        this.baseDirectory = baseDirectory;
+        this.interfaceName = "wg" + shardIndex;
+        this.subnetPrefix = "10.0." + shardIndex + ".";
+        this.gatewayAddress = subnetPrefix + "1";
+        this.configDir = shardIndex == 0 ? baseDirectory : baseDirectory + "/" + interfaceName;
+        this.serverConfigPath = configDir + "/" + interfaceName + ".conf";
+        this.privateKeyPath = configDir + "/privatekey";
+        this.publicKeyPath = configDir + "/publickey";
     }
     
-    private void initializeConfigDirectory() {
-        try {
-            Files.createDirectories(Paths.get(configDir));
-            if (!Files.exists(Paths.get(privateKeyPath)) || !Files.exists(Paths.get(publicKeyPath))) {
-                generateServerKeys();
-            }
-            createDefaultServerConfig();
-        } catch (IOException e) {
-            logger.error("Failed to initialize WireGuard config directory: {}", e.getMessage(), e);
+    @Override
+    protected void doInitialize() throws IOException {
+        Files.createDirectories(Paths.get(configDir));
+        if (!Files.exists(Paths.get(privateKeyPath)) || !Files.exists(Paths.get(publicKeyPath))) {
+            generateServerKeys();
         }
+        createDefaultServerConfig();
     }
     
     private void generateServerKeys() {
@@ -56,11 +103,11 @@ public class WireGuardProtocol extends AbstractProtocol {
         try {
             // Simulate private key
             String privateKey = UUID.randomUUID().toString().replace("-", "");
-            Files.write(Paths.get(privateKeyPath), privateKey.getBytes());
+            AsyncFiles.writeBytes(Paths.get(privateKeyPath), privateKey.getBytes());
             
             // Simulate public key
             String publicKey = UUID.randomUUID().toString().replace("-", "");
-            Files.write(Paths.get(publicKeyPath), publicKey.getBytes());
+            AsyncFiles.writeBytes(Paths.get(publicKeyPath), publicKey.getBytes());
             
             logger.info("Generated WireGuard server keys");
         } catch (IOException e) {
@@ -71,17 +118,19 @@ public class WireGuardProtocol extends AbstractProtocol {
     private void createDefaultServerConfig() throws IOException {
         Path configPath = Paths.get(serverConfigPath);
         if (!Files.exists(configPath)) {
-            String privateKey = new String(Files.readAllBytes(Paths.get(privateKeyPath)));
+            String privateKey = new String(AsyncFiles.readAllBytes(Paths.get(privateKeyPath)));
             
             List<String> lines = new ArrayList<>();
             lines.add("[Interface]");
             lines.add("PrivateKey = " + privateKey);
-            lines.add("Address = 10.0.0.1/24");
+            lines.add("Address = " + gatewayAddress + "/24");
             lines.add("ListenPort = " + port);
-            lines.add("PostUp = iptables -A FORWARD -i wg0 -j ACCEPT; iptables -t nat -A POSTROUTING -o eth0 -j MASQUERADE");
-            lines.add("PostDown = iptables -D FORWARD -i wg0 -j ACCEPT; iptables -t nat -D POSTROUTING -o eth0 -j MASQUERADE");
+            lines.add("PostUp = iptables -A FORWARD -i " + interfaceName
+                    + " -j ACCEPT; iptables -t nat -A POSTROUTING -o eth0 -j MASQUERADE");
+            lines.add("PostDown = iptables -D FORWARD -i " + interfaceName
+                    + " -j ACCEPT; iptables -t nat -D POSTROUTING -o eth0 -j MASQUERADE");
             
-            Files.write(configPath, lines);
+            AsyncFiles.writeLines(configPath, lines);
             logger.info("Created default WireGuard server configuration");
         }
     }
@@ -98,7 +147,7 @@ public class WireGuardProtocol extends AbstractProtocol {
         List<String> command = new ArrayList<>();
         command.add("wg-quick");
         command.add("up");
-        command.add("wg0");
+        command.add(interfaceName);
         
         ProcessBuilder processBuilder = new ProcessBuilder(command);
         processBuilder.redirectErrorStream(true);
@@ -118,7 +167,7 @@ public class WireGuardProtocol extends AbstractProtocol {
         List<String> command = new ArrayList<>();
         command.add("wg-quick");
         command.add("down");
-        command.add("wg0");
+        command.add(interfaceName);
         
         ProcessBuilder processBuilder = new ProcessBuilder(command);
         processBuilder.redirectErrorStream(true);
@@ -151,63 +200,243 @@ public class WireGuardProtocol extends AbstractProtocol {
     
     @Override
     public String generateClientConfig(String username) {
+        return generateClientConfigs(List.of(username)).get(username);
+    }
+    
+    /**
+     * Generate configurations for several clients and add or update all their
+     * peers with a single rewrite of the server configuration, so a batch costs
+     * one peer store write instead of one per client.
+     * 
+     * @param usernames the usernames of the clients
+     * @return a map of usernames to their configuration, or to null where generation failed
+     */
+    @Override
+    public Map<String, String> generateClientConfigs(Collection<String> usernames) {
+        initialize();
+        Map<String, String> configs = new LinkedHashMap<>();
+        Map<String, ClientConfigEvent> events = new LinkedHashMap<>();
+        Map<String, String> clientPublicKeys = new LinkedHashMap<>();
+        String serverPublicKey;
         try {
-            // In a real implementation, we would generate client keys
-            // For demonstration, we'll simulate it
-            String clientPrivateKey = UUID.randomUUID().toString().replace("-", "");
-            String clientPublicKey = UUID.randomUUID().toString().replace("-", "");
-            String serverPublicKey = new String(Files.readAllBytes(Paths.get(publicKeyPath)));
-            
-            // Create client configuration
-            List<String> lines = new ArrayList<>();
-            lines.add("[Interface]");
-            lines.add("PrivateKey = " + clientPrivateKey);
-            lines.add("Address = 10.0.0." + (10 + Math.abs(username.hashCode() % 240)) + "/32");
-            lines.add("DNS = 8.8.8.8, 8.8.4.4");
-            lines.add("");
-            lines.add("[Peer]");
-            lines.add("PublicKey = " + serverPublicKey);
-            lines.add("AllowedIPs = 0.0.0.0/0");
-            lines.add("Endpoint = " + (serverAddress != null ? serverAddress : "server_ip_address") + ":" + port);
-            lines.add("PersistentKeepalive = 25");
+            serverPublicKey = new String(AsyncFiles.readAllBytes(Paths.get(publicKeyPath)));
+        } catch (IOException e) {
+            logger.error("Failed to read WireGuard server public key: {}", e.getMessage(), e);
+            usernames.forEach(username -> configs.put(username, null));
+            return configs;
+        }
+        
+        for (String username : usernames) {
+            ClientConfigEvent event = new ClientConfigEvent();
+            event.begin();
+            try {
+                // In a real implementation, we would generate client keys
+                // For demonstration, we'll simulate it
+                String clientPrivateKey = UUID.randomUUID().toString().replace("-", "");
+                String clientPublicKey = UUID.randomUUID().toString().replace("-", "");
+                
+                // Create client configuration
+                List<String> lines = new ArrayList<>();
+                lines.add("[Interface]");
+                lines.add("PrivateKey = " + clientPrivateKey);
+                lines.add("Address = " + clientAddress(username) + "/32");
+                lines.add("DNS = " + (localDnsAvailable.test(gatewayAddress) ? gatewayAddress : "8.8.8.8, 8.8.4.4"));
+                lines.add("");
+                lines.add("[Peer]");
+                lines.add("PublicKey = " + serverPublicKey);
+                lines.add("AllowedIPs = 0.0.0.0/0");
+                // WireGuard peers have a single endpoint, so take the least loaded one
+                Endpoint endpoint = selectEndpoints().get(0);
+                lines.add("Endpoint = " + endpoint.getHost() + ":" + endpoint.getPort());
+                rememberEndpoint(username, endpoint);
+                lines.add("PersistentKeepalive = 25");
+                
+                // Save the client config to a file
+                String clientConfigPath = configDir + "/" + username + ".conf";
+                AsyncFiles.writeLines(Paths.get(clientConfigPath), lines);
+                
+                configs.put(username, String.join("\n", lines));
+                clientPublicKeys.put(username, clientPublicKey);
+                events.put(username, event);
+            } catch (IOException e) {
+                logger.error("Failed to generate client configuration: {}", e.getMessage(), e);
+                configs.put(username, recordClientConfig(event, username, null));
+            }
+        }
+        
+        if (!clientPublicKeys.isEmpty()) {
+            try {
+                // Add clients to server config
+                addClientsToServerConfig(clientPublicKeys);
+            } catch (IOException e) {
+                logger.error("Failed to add {} clients to WireGuard server configuration: {}",
+                        clientPublicKeys.size(), e.getMessage(), e);
+                clientPublicKeys.keySet().forEach(username -> configs.put(username, null));
+            }
+        }
+        events.forEach((username, event) -> {
+            String config = configs.get(username);
+            if (config != null) {
+                logger.info("Generated WireGuard client configuration for user: {}", username);
+            }
+            recordClientConfig(event, username, config);
+        });
+        return configs;
+    }
+    
+    private String clientAddress(String username) {
+        return subnetPrefix + (10 + Math.abs(username.hashCode() % 240));
+    }
+    
+    /**
+     * Add new peers and replace the keys of existing ones, so regenerated configs
+     * keep working, in one read and one write of the server configuration.
+     */
+    private void addClientsToServerConfig(Map<String, String> clientPublicKeys) throws IOException {
+        PeerStoreWriteEvent event = new PeerStoreWriteEvent();
+        event.begin();
+        serverConfigLock.lock();
+        try {
+            List<String> newLines = new ArrayList<>(AsyncFiles.readAllLines(Paths.get(serverConfigPath)));
             
-            // Save the client config to a file
-            String clientConfigPath = configDir + "/" + username + ".conf";
-            Files.write(Paths.get(clientConfigPath), lines);
+            // Find the key line of every existing client in one pass
+            Map<String, Integer> keyLines = new HashMap<>();
+            String client = null;
+            for (int i = 0; i < newLines.size(); i++) {
+                String line = newLines.get(i);
+                if (line.startsWith("# ")) {
+                    client = line.substring(2);
+                } else if (client != null && line.startsWith("PublicKey = ")) {
+                    keyLines.putIfAbsent(client, i);
+                    client = null;
+                }
+            }
             
-            // Add client to server config
-            addClientToServerConfig(username, clientPublicKey);
+            int added = 0;
+            for (Map.Entry<String, String> entry : clientPublicKeys.entrySet()) {
+                Integer keyLine = keyLines.get(entry.getKey());
+                if (keyLine != null) {
+                    newLines.set(keyLine, "PublicKey = " + entry.getValue());
+                } else {
+                    newLines.add("");
+                    newLines.add("# " + entry.getKey());
+                    newLines.add("[Peer]");
+                    newLines.add("PublicKey = " + entry.getValue());
+                    newLines.add("AllowedIPs = " + clientAddress(entry.getKey()) + "/32");
+                    keyLines.put(entry.getKey(), newLines.size() - 2);
+                    added++;
+                }
+            }
             
-            logger.info("Generated WireGuard client configuration for user: {}", username);
-            return String.join("\n", lines);
+            AsyncFiles.writeLines(Paths.get(serverConfigPath), newLines);
+            logger.info("Added {} and updated {} clients in WireGuard server configuration",
+                    added, clientPublicKeys.size() - added);
+            recordPeerStoreWrite(event, clientPublicKeys.size() == 1 ? clientPublicKeys.keySet().iterator().next() : null,
+                    clientPublicKeys.size(), newLines);
+        } finally {
+            serverConfigLock.unlock();
+        }
+    }
+    
+    private void recordPeerStoreWrite(PeerStoreWriteEvent event, String username, int updated, List<String> lines) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.protocol = getName();
+            event.user = username;
+            event.updated = updated;
+            event.path = serverConfigPath;
+            event.bytes = lines.stream().mapToLong(line -> line.length() + 1).sum();
+            event.peers = (int) lines.stream().filter(line -> line.equals("[Peer]")).count();
+            event.commit();
+        }
+    }
+    
+    /**
+     * Get the server's public key, which also keys the cookie replies sent on
+     * behalf of this interface.
+     * 
+     * @return the decoded public key
+     * @throws IOException if the key cannot be read
+     */
+    public byte[] getServerPublicKey() throws IOException {
+        initialize();
+        return Base64.getDecoder().decode(new String(AsyncFiles.readAllBytes(Paths.get(publicKeyPath))).trim());
+    }
+    
+    @Override
+    public Map<String, Instant> getExistingClients() {
+        return findClientConfigs(configDir, ".conf", interfaceName + ".conf");
+    }
+    
+    /**
+     * Read the peers of the interface from {@code wg show <interface> dump}, naming
+     * them by the client comment above their key in the server configuration.
+     * Peers that are not provisioned clients are left out.
+     */
+    @Override
+    public List<PeerStatus> getPeerStatus() {
+        if (!running) {
+            return List.of();
+        }
+        try {
+            List<String> dump = readCommandOutput("wg", "show", interfaceName, "dump");
+            return parseDump(dump, usernamesByKey(AsyncFiles.readAllLines(Paths.get(serverConfigPath))));
         } catch (IOException e) {
-            logger.error("Failed to generate client configuration: {}", e.getMessage(), e);
-            return null;
+            logger.debug("Failed to read WireGuard peers of {}: {}", interfaceName, e.getMessage());
+            return List.of();
         }
     }
     
-    private void addClientToServerConfig(String username, String clientPublicKey) throws IOException {
-        List<String> lines = Files.readAllLines(Paths.get(serverConfigPath));
-        List<String> newLines = new ArrayList<>(lines);
-        
-        // Check if client already exists
-        boolean clientExists = false;
-        for (int i = 0; i < lines.size(); i++) {
-            if (lines.get(i).contains("# " + username)) {
-                clientExists = true;
-                break;
+    /**
+     * Parse the output of {@code wg show <interface> dump}: one line for the
+     * interface, then one tab-separated line per peer with its public key, preshared
+     * key, remote endpoint, allowed IPs, latest handshake in epoch seconds (0 if
+     * none), bytes received, bytes sent and keepalive interval.
+     */
+    List<PeerStatus> parseDump(List<String> dump, Map<String, String> usernamesByKey) {
+        List<PeerStatus> peers = new ArrayList<>();
+        for (int i = 1; i < dump.size(); i++) {
+            String[] fields = dump.get(i).split("\t");
+            if (fields.length < 7) {
+                continue;
+            }
+            String username = usernamesByKey.get(fields[0]);
+            if (username == null) {
+                continue;
+            }
+            try {
+                long handshakeSeconds = Long.parseLong(fields[4]);
+                peers.add(new PeerStatus(username, endpointOf(username),
+                        handshakeSeconds > 0 ? Instant.ofEpochSecond(handshakeSeconds) : null,
+                        Long.parseLong(fields[5]), Long.parseLong(fields[6])));
+            } catch (NumberFormatException e) {
+                logger.debug("Skipping malformed WireGuard peer line: {}", dump.get(i));
             }
         }
-        
-        if (!clientExists) {
-            newLines.add("");
-            newLines.add("# " + username);
-            newLines.add("[Peer]");
-            newLines.add("PublicKey = " + clientPublicKey);
-            newLines.add("AllowedIPs = 10.0.0." + (10 + Math.abs(username.hashCode() % 240)) + "/32");
-            
-            Files.write(Paths.get(serverConfigPath), newLines);
-            logger.info("Added client {} to WireGuard server configuration", username);
+        return peers;
+    }
+    
+    static Map<String, String> usernamesByKey(List<String> serverConfig) {
+        Map<String, String> usernames = new HashMap<>();
+        String client = null;
+        for (String line : serverConfig) {
+            if (line.startsWith("# ")) {
+                client = line.substring(2);
+            } else if (client != null && line.startsWith("PublicKey = ")) {
+                usernames.put(line.substring("PublicKey = ".length()).trim(), client);
+                client = null;
+            }
         }
+        return usernames;
+    }
+    
+    @Override
+    public List<String> getGatewayAddresses() {
+        return List.of(gatewayAddress);
+    }
+    
+    @Override
+    public AbstractProtocol createShard(int index) {
+        return new WireGuardProtocol(port + index, index, baseDirectory);
     }
 }
@@ -0,0 +1,34 @@
+package com.andrewevl.vpn.nat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packet sink that keeps copies of the packets it receives.
+ * Lets the NAT engine run in tests and on development machines without
+ * root privileges, a TUN device or iptables.
+ */
+public class InMemoryPacketSink implements PacketSink {
+    
+    private final List<ByteBuffer> packets = new ArrayList<>();
+    
+    @Override
+    public synchronized void send(ByteBuffer packet) {
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet.duplicate());
+        copy.flip();
+        packets.add(copy);
+    }
+    
+    /**
+     * Remove and return all packets received so far.
+     * 
+     * @return the packets in the order they were received
+     */
+    public synchronized List<ByteBuffer> drain() {
+        List<ByteBuffer> drained = new ArrayList<>(packets);
+        packets.clear();
+        return drained;
+    }
+}
@@ -0,0 +1,145 @@
+package com.andrewevl.vpn.nat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for reading and rewriting IPv4 packets in place.
+ * All offsets are relative to the buffer's position, which must be the start
+ * of the IPv4 header.
+ */
+public final class IpPackets {
+    
+    public static final int PROTOCOL_TCP = 6;
+    public static final int PROTOCOL_UDP = 17;
+    
+    public static final int IP_CHECKSUM_OFFSET = 10;
+    public static final int IP_SOURCE_OFFSET = 12;
+    public static final int IP_DESTINATION_OFFSET = 16;
+    
+    public static final int L4_SOURCE_PORT_OFFSET = 0;
+    public static final int L4_DESTINATION_PORT_OFFSET = 2;
+    public static final int UDP_CHECKSUM_OFFSET = 6;
+    public static final int TCP_CHECKSUM_OFFSET = 16;
+    
+    private IpPackets() {
+    }
+    
+    /**
+     * Check that a packet is an unfragmented (or first-fragment) IPv4 TCP or UDP
+     * packet with a complete transport header.
+     * 
+     * @param packet the packet
+     * @return true if the packet can be translated
+     */
+    public static boolean isTranslatable(ByteBuffer packet) {
+        int start = packet.position();
+        if (packet.remaining() < 20 || (packet.get(start) & 0xF0) != 0x40) {
+            return false;
+        }
+        int fragmentOffset = packet.getShort(start + 6) & 0x1FFF;
+        if (fragmentOffset != 0) {
+            return false;
+        }
+        int protocol = protocol(packet);
+        int minimumTransportHeader = protocol == PROTOCOL_TCP ? 20 : protocol == PROTOCOL_UDP ? 8 : -1;
+        return minimumTransportHeader > 0 && packet.remaining() >= headerLength(packet) + minimumTransportHeader;
+    }
+    
+    public static int headerLength(ByteBuffer packet) {
+        return (packet.get(packet.position()) & 0x0F) * 4;
+    }
+    
+    public static int protocol(ByteBuffer packet) {
+        return packet.get(packet.position() + 9) & 0xFF;
+    }
+    
+    public static int address(ByteBuffer packet, int offset) {
+        return packet.getInt(packet.position() + offset);
+    }
+    
+    public static int port(ByteBuffer packet, int offset) {
+        return packet.getShort(packet.position() + headerLength(packet) + offset) & 0xFFFF;
+    }
+    
+    /**
+     * Replace an address in the IP header and fix the IP and transport checksums.
+     * 
+     * @param packet the packet
+     * @param offset {@link #IP_SOURCE_OFFSET} or {@link #IP_DESTINATION_OFFSET}
+     * @param newAddress the new address
+     */
+    public static void rewriteAddress(ByteBuffer packet, int offset, int newAddress) {
+        int start = packet.position();
+        int oldAddress = packet.getInt(start + offset);
+        packet.putInt(start + offset, newAddress);
+        adjustChecksum(packet, start + IP_CHECKSUM_OFFSET, oldAddress >>> 16, newAddress >>> 16, false);
+        adjustChecksum(packet, start + IP_CHECKSUM_OFFSET, oldAddress & 0xFFFF, newAddress & 0xFFFF, false);
+        // The transport checksum covers the addresses through the pseudo-header
+        int transportChecksum = transportChecksumOffset(packet);
+        boolean udp = protocol(packet) == PROTOCOL_UDP;
+        adjustChecksum(packet, transportChecksum, oldAddress >>> 16, newAddress >>> 16, udp);
+        adjustChecksum(packet, transportChecksum, oldAddress & 0xFFFF, newAddress & 0xFFFF, udp);
+    }
+    
+    /**
+     * Replace a port in the transport header and fix the transport checksum.
+     * 
+     * @param packet the packet
+     * @param offset {@link #L4_SOURCE_PORT_OFFSET} or {@link #L4_DESTINATION_PORT_OFFSET}
+     * @param newPort the new port
+     */
+    public static void rewritePort(ByteBuffer packet, int offset, int newPort) {
+        int position = packet.position() + headerLength(packet) + offset;
+        int oldPort = packet.getShort(position) & 0xFFFF;
+        packet.putShort(position, (short) newPort);
+        adjustChecksum(packet, transportChecksumOffset(packet), oldPort, newPort, protocol(packet) == PROTOCOL_UDP);
+    }
+    
+    /**
+     * Compute the one's complement checksum over a range, as used by IP, TCP and UDP.
+     * 
+     * @param packet the buffer
+     * @param from the absolute start offset
+     * @param length the number of bytes
+     * @param initial the initial sum, for example of a pseudo-header
+     * @return the checksum
+     */
+    public static int checksum(ByteBuffer packet, int from, int length, long initial) {
+        long sum = initial;
+        int i = 0;
+        for (; i + 1 < length; i += 2) {
+            sum += packet.getShort(from + i) & 0xFFFF;
+        }
+        if (i < length) {
+            sum += (packet.get(from + i) & 0xFF) << 8;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) (~sum & 0xFFFF);
+    }
+    
+    private static int transportChecksumOffset(ByteBuffer packet) {
+        int transportStart = packet.position() + headerLength(packet);
+        return transportStart + (protocol(packet) == PROTOCOL_TCP ? TCP_CHECKSUM_OFFSET : UDP_CHECKSUM_OFFSET);
+    }
+    
+    /**
+     * Incrementally update a checksum for one changed 16-bit word (RFC 1624, eqn. 3).
+     * A UDP checksum of zero means "no checksum" and is left untouched.
+     */
+    private static void adjustChecksum(ByteBuffer packet, int position, int oldWord, int newWord, boolean udp) {
+        int checksum = packet.getShort(position) & 0xFFFF;
+        if (udp && checksum == 0) {
+            return;
+        }
+        int sum = (~checksum & 0xFFFF) + (~oldWord & 0xFFFF) + (newWord & 0xFFFF);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        sum = (sum & 0xFFFF) + (sum >>> 16);
+        int updated = ~sum & 0xFFFF;
+        if (udp && updated == 0) {
+            updated = 0xFFFF;
+        }
+        packet.putShort(position, (short) updated);
+    }
+}
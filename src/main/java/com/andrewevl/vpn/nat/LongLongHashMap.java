@@ -0,0 +1,233 @@
+package com.andrewevl.vpn.nat;
+
+/**
+ * Open-addressing hash map from primitive longs to primitive longs.
+ * Uses linear probing with backward-shift deletion, so lookups never box and
+ * removals leave no tombstones behind. Not thread-safe.
+ */
+public class LongLongHashMap {
+    
+    private static final long FREE = 0;
+    private static final float LOAD_FACTOR = 0.6f;
+    
+    private final long missingValue;
+    
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int resizeAt;
+    private int size;
+    
+    private boolean hasFreeKey;
+    private long freeKeyValue;
+    
+    /**
+     * Create a map.
+     * 
+     * @param expectedSize the number of entries to size the table for
+     * @param missingValue the value returned for absent keys
+     */
+    public LongLongHashMap(int expectedSize, long missingValue) {
+        this.missingValue = missingValue;
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+    
+    /**
+     * Get the value for a key.
+     * 
+     * @param key the key
+     * @return the value, or the missing value if the key is absent
+     */
+    public long get(long key) {
+        if (key == FREE) {
+            return hasFreeKey ? freeKeyValue : missingValue;
+        }
+        int index = slot(key);
+        long current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                return values[index];
+            }
+            index = (index + 1) & mask;
+        }
+        return missingValue;
+    }
+    
+    /**
+     * Associate a value with a key.
+     * 
+     * @param key the key
+     * @param value the value
+     * @return the previous value, or the missing value if the key was absent
+     */
+    public long put(long key, long value) {
+        if (key == FREE) {
+            long previous = hasFreeKey ? freeKeyValue : missingValue;
+            if (!hasFreeKey) {
+                size++;
+            }
+            hasFreeKey = true;
+            freeKeyValue = value;
+            return previous;
+        }
+        int index = slot(key);
+        long current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                long previous = values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        if (++size > resizeAt) {
+            rehash(keys.length << 1);
+        }
+        return missingValue;
+    }
+    
+    /**
+     * Remove a key.
+     * 
+     * @param key the key
+     * @return the removed value, or the missing value if the key was absent
+     */
+    public long remove(long key) {
+        if (key == FREE) {
+            if (!hasFreeKey) {
+                return missingValue;
+            }
+            hasFreeKey = false;
+            size--;
+            return freeKeyValue;
+        }
+        int index = slot(key);
+        long current;
+        while ((current = keys[index]) != FREE) {
+            if (current == key) {
+                long previous = values[index];
+                shiftKeysBack(index);
+                size--;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        return missingValue;
+    }
+    
+    /**
+     * Remove every entry the predicate rejects. The surviving entries are copied
+     * into a fresh table of the same capacity, so this runs in time linear in
+     * the capacity.
+     * 
+     * @param keep decides, for a key and its value, whether the entry stays
+     * @return the number of removed entries
+     */
+    public int retainIf(EntryPredicate keep) {
+        int removed = 0;
+        if (hasFreeKey && !keep.test(FREE, freeKeyValue)) {
+            hasFreeKey = false;
+            size--;
+            removed++;
+        }
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(oldKeys.length);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key == FREE) {
+                continue;
+            }
+            if (!keep.test(key, oldValues[i])) {
+                size--;
+                removed++;
+                continue;
+            }
+            int index = slot(key);
+            while (keys[index] != FREE) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = key;
+            values[index] = oldValues[i];
+        }
+        return removed;
+    }
+    
+    /**
+     * Get the number of entries.
+     * 
+     * @return the entry count
+     */
+    public int size() {
+        return size;
+    }
+    
+    private void shiftKeysBack(int gap) {
+        int index = gap;
+        for (;;) {
+            index = (index + 1) & mask;
+            long key = keys[index];
+            if (key == FREE) {
+                break;
+            }
+            int home = slot(key);
+            // Move the entry into the gap unless its home slot lies cyclically in (gap, index]
+            boolean homeBetween = gap <= index ? (gap < home && home <= index) : (gap < home || home <= index);
+            if (!homeBetween) {
+                keys[gap] = key;
+                values[gap] = values[index];
+                gap = index;
+            }
+        }
+        keys[gap] = FREE;
+        values[gap] = 0;
+    }
+    
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long key = oldKeys[i];
+            if (key != FREE) {
+                int index = slot(key);
+                while (keys[index] != FREE) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = key;
+                values[index] = oldValues[i];
+            }
+        }
+    }
+    
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new long[capacity];
+        mask = capacity - 1;
+        resizeAt = (int) (capacity * LOAD_FACTOR);
+    }
+    
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+    
+    /**
+     * Predicate over a key and its value.
+     */
+    @FunctionalInterface
+    public interface EntryPredicate {
+        
+        /**
+         * Test an entry.
+         * 
+         * @param key the key
+         * @param value the value
+         * @return true if the entry should stay
+         */
+        boolean test(long key, long value);
+    }
+}
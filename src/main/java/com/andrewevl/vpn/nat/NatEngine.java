@@ -0,0 +1,126 @@
+package com.andrewevl.vpn.nat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Userspace source NAT between the tunnel and the uplink, the in-process
+ * equivalent of {@code iptables -t nat -A POSTROUTING -j MASQUERADE}.
+ * Packets are rewritten in place; checksums are updated incrementally.
+ */
+public class NatEngine {
+    
+    private final int externalAddress;
+    private final NatTable table;
+    private final PacketSink uplink;
+    private final PacketSink tunnel;
+    
+    private final LongAdder translated = new LongAdder();
+    private final LongAdder translatedBytes = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    
+    /**
+     * Create an engine.
+     * 
+     * @param externalAddress the IPv4 address outbound packets are rewritten to
+     * @param table the connection-tracking table
+     * @param uplink the sink for translated outbound packets
+     * @param tunnel the sink for translated inbound packets
+     */
+    public NatEngine(int externalAddress, NatTable table, PacketSink uplink, PacketSink tunnel) {
+        this.externalAddress = externalAddress;
+        this.table = table;
+        this.uplink = uplink;
+        this.tunnel = tunnel;
+    }
+    
+    /**
+     * Translate a packet leaving the tunnel and send it to the uplink.
+     * 
+     * @param packet the packet, positioned at its IPv4 header
+     * @return true if the packet was translated and sent
+     */
+    public boolean outbound(ByteBuffer packet) {
+        if (!IpPackets.isTranslatable(packet)) {
+            dropped.increment();
+            return false;
+        }
+        int protocol = IpPackets.protocol(packet);
+        int source = IpPackets.address(packet, IpPackets.IP_SOURCE_OFFSET);
+        int sourcePort = IpPackets.port(packet, IpPackets.L4_SOURCE_PORT_OFFSET);
+        int destination = IpPackets.address(packet, IpPackets.IP_DESTINATION_OFFSET);
+        int destinationPort = IpPackets.port(packet, IpPackets.L4_DESTINATION_PORT_OFFSET);
+        
+        int externalPort = table.mapOutbound(protocol, source, sourcePort, destination, destinationPort,
+                System.currentTimeMillis());
+        if (externalPort == NatTable.NOT_FOUND) {
+            dropped.increment();
+            return false;
+        }
+        
+        IpPackets.rewriteAddress(packet, IpPackets.IP_SOURCE_OFFSET, externalAddress);
+        IpPackets.rewritePort(packet, IpPackets.L4_SOURCE_PORT_OFFSET, externalPort);
+        translated.increment();
+        translatedBytes.add(packet.remaining());
+        uplink.send(packet);
+        return true;
+    }
+    
+    /**
+     * Translate a packet arriving from the uplink and send it into the tunnel.
+     * 
+     * @param packet the packet, positioned at its IPv4 header
+     * @return true if the packet matched a mapping to its source and was sent
+     */
+    public boolean inbound(ByteBuffer packet) {
+        if (!IpPackets.isTranslatable(packet)
+                || IpPackets.address(packet, IpPackets.IP_DESTINATION_OFFSET) != externalAddress) {
+            dropped.increment();
+            return false;
+        }
+        int protocol = IpPackets.protocol(packet);
+        int source = IpPackets.address(packet, IpPackets.IP_SOURCE_OFFSET);
+        int sourcePort = IpPackets.port(packet, IpPackets.L4_SOURCE_PORT_OFFSET);
+        int destinationPort = IpPackets.port(packet, IpPackets.L4_DESTINATION_PORT_OFFSET);
+        
+        long internal = table.lookupInbound(protocol, destinationPort, source, sourcePort, System.currentTimeMillis());
+        if (internal == NatTable.NOT_FOUND) {
+            dropped.increment();
+            return false;
+        }
+        
+        IpPackets.rewriteAddress(packet, IpPackets.IP_DESTINATION_OFFSET, (int) (internal >>> 32));
+        IpPackets.rewritePort(packet, IpPackets.L4_DESTINATION_PORT_OFFSET, (int) (internal & 0xFFFF));
+        translated.increment();
+        translatedBytes.add(packet.remaining());
+        tunnel.send(packet);
+        return true;
+    }
+    
+    /**
+     * Get the number of translated packets.
+     * 
+     * @return the translated packet count
+     */
+    public long getTranslatedCount() {
+        return translated.sum();
+    }
+    
+    /**
+     * Get the number of bytes in translated packets.
+     * 
+     * @return the translated byte count
+     */
+    public long getTranslatedBytes() {
+        return translatedBytes.sum();
+    }
+    
+    /**
+     * Get the number of dropped packets.
+     * 
+     * @return the dropped packet count
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+}
@@ -0,0 +1,119 @@
+package com.andrewevl.vpn.nat;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the shared connection-tracking table and creates NAT engines for
+ * userspace data planes when userspace NAT is enabled. Tunnels run by the kernel
+ * never pass through an engine, so they keep their iptables MASQUERADE rules.
+ */
+@Slf4j
+@Service
+public class NatService {
+    
+    private final VpnConfig.NatConfig config;
+    private final NatTable table;
+    private final int externalAddress;
+    private final List<NatEngine> engines = new CopyOnWriteArrayList<>();
+    
+    public NatService(VpnConfig vpnConfig) throws UnknownHostException {
+        this.config = vpnConfig.getNat();
+        this.table = config.isEnabled()
+                ? new NatTable(config.getPortRangeStart(), config.getPortRangeEnd(),
+                        Runtime.getRuntime().availableProcessors())
+                : null;
+        this.externalAddress = ByteBuffer.wrap(InetAddress.getByName(config.getExternalAddress()).getAddress()).getInt();
+        if (config.isEnabled()) {
+            log.info("Userspace NAT enabled: external address {}, ports {}-{}; kernel tunnels still use iptables",
+                    config.getExternalAddress(), config.getPortRangeStart(), config.getPortRangeEnd());
+        }
+    }
+    
+    /**
+     * Check if userspace NAT is enabled.
+     * 
+     * @return true if traffic is translated in-process
+     */
+    public boolean isEnabled() {
+        return config.isEnabled();
+    }
+    
+    /**
+     * Create a NAT engine backed by the shared table.
+     * 
+     * @param uplink the sink for translated outbound packets
+     * @param tunnel the sink for translated inbound packets
+     * @return the engine
+     * @throws IllegalStateException if userspace NAT is disabled
+     */
+    public NatEngine createEngine(PacketSink uplink, PacketSink tunnel) {
+        if (table == null) {
+            throw new IllegalStateException("Userspace NAT is disabled");
+        }
+        NatEngine engine = new NatEngine(externalAddress, table, uplink, tunnel);
+        engines.add(engine);
+        return engine;
+    }
+    
+    /**
+     * Get the number of active mappings.
+     * 
+     * @return the mapping count, or 0 if userspace NAT is disabled
+     */
+    public int getMappingCount() {
+        return table == null ? 0 : table.size();
+    }
+    
+    /**
+     * Get the number of packets translated by all engines.
+     * 
+     * @return the translated packet count
+     */
+    public long getTranslatedCount() {
+        return engines.stream().mapToLong(NatEngine::getTranslatedCount).sum();
+    }
+    
+    /**
+     * Get the number of bytes in packets translated by all engines.
+     * 
+     * @return the translated byte count
+     */
+    public long getTranslatedBytes() {
+        return engines.stream().mapToLong(NatEngine::getTranslatedBytes).sum();
+    }
+    
+    /**
+     * Get the number of packets dropped by all engines.
+     * 
+     * @return the dropped packet count
+     */
+    public long getDroppedCount() {
+        return engines.stream().mapToLong(NatEngine::getDroppedCount).sum();
+    }
+    
+    /**
+     * Remove idle mappings.
+     */
+    @Scheduled(fixedDelay = 10_000)
+    public void expireIdleMappings() {
+        if (table == null) {
+            return;
+        }
+        int removed = table.expireIdle(System.currentTimeMillis(),
+                TimeUnit.SECONDS.toMillis(config.getUdpTimeout()),
+                TimeUnit.SECONDS.toMillis(config.getTcpTimeout()));
+        if (removed > 0) {
+            log.debug("Expired {} idle NAT mappings, {} remaining", removed, table.size());
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.andrewevl.vpn.nat;
+
+/**
+ * Connection-tracking table for source NAT.
+ * <p>
+ * The external port range is split into one partition per core. A flow is
+ * always handled by the partition its key hashes to and is given a port from
+ * that partition's own range, so partitions never share state and each one is
+ * guarded by its own lock. Within a partition the external port is the index of
+ * the flow's slot, which makes inbound lookups a plain array access; outbound
+ * lookups go through an open-addressing map keyed by the packed flow key.
+ * Mappings are endpoint-independent: one internal address and port keep the same
+ * external port for every destination. Filtering is address- and port-dependent:
+ * each mapping remembers the remote endpoints its internal endpoint has sent to,
+ * and inbound packets from any other endpoint are refused, as with conntrack.
+ */
+public class NatTable {
+    
+    /**
+     * Returned when no mapping exists or no port is available.
+     */
+    public static final long NOT_FOUND = -1;
+    
+    private final int portStart;
+    private final int portsPerPartition;
+    private final Partition[] partitions;
+    
+    /**
+     * Create a table.
+     * 
+     * @param portStart the first external port to allocate
+     * @param portEnd the last external port to allocate
+     * @param partitionCount the number of partitions, usually the number of cores
+     */
+    public NatTable(int portStart, int portEnd, int partitionCount) {
+        int portCount = portEnd - portStart + 1;
+        if (portStart <= 0 || portEnd > 65535 || portCount < partitionCount || partitionCount <= 0) {
+            throw new IllegalArgumentException("Invalid NAT port range " + portStart + "-" + portEnd
+                    + " for " + partitionCount + " partitions");
+        }
+        this.portStart = portStart;
+        this.portsPerPartition = portCount / partitionCount;
+        this.partitions = new Partition[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new Partition(portStart + i * portsPerPartition, portsPerPartition);
+        }
+    }
+    
+    /**
+     * Find or create the mapping for an outbound flow.
+     * 
+     * @param protocol the IP protocol number
+     * @param internalAddress the internal IPv4 address
+     * @param internalPort the internal port
+     * @param remoteAddress the IPv4 address the packet is sent to
+     * @param remotePort the port the packet is sent to
+     * @param now the current time in milliseconds
+     * @return the external port, or {@link #NOT_FOUND} if the partition has no free port
+     */
+    public int mapOutbound(int protocol, int internalAddress, int internalPort, int remoteAddress, int remotePort,
+                           long now) {
+        long flowKey = flowKey(protocol, internalAddress, internalPort);
+        return partitions[partitionOf(flowKey)].map(flowKey, protocol, remote(remoteAddress, remotePort), now);
+    }
+    
+    /**
+     * Find the internal endpoint for an inbound packet.
+     * 
+     * @param protocol the IP protocol number
+     * @param externalPort the external port the packet is addressed to
+     * @param remoteAddress the IPv4 address the packet comes from
+     * @param remotePort the port the packet comes from
+     * @param now the current time in milliseconds
+     * @return the internal address in the upper 32 bits and port in the lower 16 bits,
+     *         or {@link #NOT_FOUND} if there is no mapping or the internal endpoint
+     *         has not sent to the remote endpoint
+     */
+    public long lookupInbound(int protocol, int externalPort, int remoteAddress, int remotePort, long now) {
+        int offset = externalPort - portStart;
+        if (offset < 0) {
+            return NOT_FOUND;
+        }
+        int partition = offset / portsPerPartition;
+        if (partition >= partitions.length) {
+            return NOT_FOUND;
+        }
+        long flowKey = partitions[partition].lookup(offset % portsPerPartition, protocol,
+                remote(remoteAddress, remotePort), now);
+        if (flowKey == NOT_FOUND) {
+            return NOT_FOUND;
+        }
+        return ((flowKey >>> 16) & 0xFFFFFFFFL) << 32 | (flowKey & 0xFFFF);
+    }
+    
+    /**
+     * Remove mappings that have been idle for longer than their protocol's timeout.
+     * 
+     * @param now the current time in milliseconds
+     * @param udpTimeoutMillis the idle timeout of UDP mappings
+     * @param tcpTimeoutMillis the idle timeout of TCP mappings
+     * @return the number of removed mappings
+     */
+    public int expireIdle(long now, long udpTimeoutMillis, long tcpTimeoutMillis) {
+        int removed = 0;
+        for (Partition partition : partitions) {
+            removed += partition.expire(now, udpTimeoutMillis, tcpTimeoutMillis);
+        }
+        return removed;
+    }
+    
+    /**
+     * Get the number of active mappings.
+     * 
+     * @return the mapping count
+     */
+    public int size() {
+        int size = 0;
+        for (Partition partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+    
+    private int partitionOf(long flowKey) {
+        long h = flowKey * 0x9E3779B97F4A7C15L;
+        return (int) ((h >>> 32) % partitions.length);
+    }
+    
+    static long flowKey(int protocol, int address, int port) {
+        return ((long) protocol << 48) | ((address & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+    
+    private static long remote(int address, int port) {
+        return ((address & 0xFFFFFFFFL) << 16) | (port & 0xFFFF);
+    }
+    
+    private static final class Partition {
+        
+        private static final long TIME_MASK = (1L << 48) - 1;
+        
+        private final int firstPort;
+        private final long[] flowKeys;
+        private final long[] lastSeen;
+        private final LongLongHashMap slots;
+        // Remote endpoints each slot has sent to, keyed by slot and endpoint, with the protocol and time last seen
+        private final LongLongHashMap permits;
+        private int cursor;
+        private int used;
+        
+        Partition(int firstPort, int portCount) {
+            this.firstPort = firstPort;
+            this.flowKeys = new long[portCount];
+            this.lastSeen = new long[portCount];
+            this.slots = new LongLongHashMap(Math.min(portCount, 1024), NOT_FOUND);
+            this.permits = new LongLongHashMap(Math.min(portCount, 1024), NOT_FOUND);
+        }
+        
+        synchronized int map(long flowKey, int protocol, long remote, long now) {
+            long slot = slots.get(flowKey);
+            if (slot != NOT_FOUND) {
+                lastSeen[(int) slot] = now;
+                permits.put(permitKey((int) slot, remote), permit(protocol, now));
+                return firstPort + (int) slot;
+            }
+            if (used == flowKeys.length) {
+                return (int) NOT_FOUND;
+            }
+            while (flowKeys[cursor] != 0) {
+                cursor = cursor + 1 == flowKeys.length ? 0 : cursor + 1;
+            }
+            int free = cursor;
+            flowKeys[free] = flowKey;
+            lastSeen[free] = now;
+            slots.put(flowKey, free);
+            permits.put(permitKey(free, remote), permit(protocol, now));
+            used++;
+            return firstPort + free;
+        }
+        
+        synchronized long lookup(int slot, int protocol, long remote, long now) {
+            long flowKey = flowKeys[slot];
+            // A packet of another protocol must not keep the mapping or its permits alive
+            if (flowKey == 0 || (int) (flowKey >>> 48) != protocol) {
+                return NOT_FOUND;
+            }
+            long permitKey = permitKey(slot, remote);
+            long permit = permits.get(permitKey);
+            if (permit == NOT_FOUND || (int) (permit >>> 48) != protocol) {
+                return NOT_FOUND;
+            }
+            lastSeen[slot] = now;
+            permits.put(permitKey, permit(protocol, now));
+            return flowKey;
+        }
+        
+        synchronized int expire(long now, long udpTimeoutMillis, long tcpTimeoutMillis) {
+            int removed = 0;
+            for (int i = 0; i < flowKeys.length; i++) {
+                long flowKey = flowKeys[i];
+                if (flowKey == 0) {
+                    continue;
+                }
+                long timeout = (flowKey >>> 48) == IpPackets.PROTOCOL_TCP ? tcpTimeoutMillis : udpTimeoutMillis;
+                if (now - lastSeen[i] > timeout) {
+                    slots.remove(flowKey);
+                    flowKeys[i] = 0;
+                    used--;
+                    removed++;
+                }
+            }
+            // Drop the permits of removed slots, and idle permits of live ones
+            permits.retainIf((permitKey, permit) -> {
+                long flowKey = flowKeys[(int) (permitKey >>> 48)];
+                long timeout = (flowKey >>> 48) == IpPackets.PROTOCOL_TCP ? tcpTimeoutMillis : udpTimeoutMillis;
+                return flowKey != 0 && (flowKey >>> 48) == (permit >>> 48) && now - (permit & TIME_MASK) <= timeout;
+            });
+            return removed;
+        }
+        
+        synchronized int size() {
+            return used;
+        }
+        
+        private static long permitKey(int slot, long remote) {
+            // A partition holds at most 65535 ports, so the slot fits in the top 16 bits
+            return ((long) slot << 48) | remote;
+        }
+        
+        private static long permit(int protocol, long now) {
+            // The key has no bits to spare, so the protocol goes above the 48-bit timestamp
+            return ((long) protocol << 48) | (now & TIME_MASK);
+        }
+    }
+}
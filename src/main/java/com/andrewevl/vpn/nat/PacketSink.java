@@ -0,0 +1,18 @@
+package com.andrewevl.vpn.nat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for translated packets.
+ */
+@FunctionalInterface
+public interface PacketSink {
+    
+    /**
+     * Emit a packet. The buffer's position is the start of the IPv4 header and its
+     * limit the end of the packet; the sink must copy the bytes if it keeps them.
+     * 
+     * @param packet the packet
+     */
+    void send(ByteBuffer packet);
+}
@@ -0,0 +1,131 @@
+package com.andrewevl.vpn.pki;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.TBSCertList;
+import org.bouncycastle.asn1.x509.Time;
+import org.bouncycastle.asn1.x509.V2TBSCertListGenerator;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Builds and signs X.509 v2 CRLs (RFC 5280) from revocation entries.
+ * A CRL issued with a base CRL number is a delta CRL: it carries a critical
+ * delta CRL indicator and lists only the revocations made since that base.
+ */
+public class CrlIssuer {
+    
+    private final X500Name issuer;
+    private final PrivateKey signingKey;
+    private final AlgorithmIdentifier signatureAlgorithm;
+    private final String jcaSignatureAlgorithm;
+    
+    /**
+     * Create an issuer.
+     * 
+     * @param issuerName the distinguished name of the CA, for example {@code CN=VPN CA}
+     * @param caKeys the CA's EC or RSA key pair
+     */
+    public CrlIssuer(String issuerName, KeyPair caKeys) {
+        this.issuer = new X500Name(issuerName);
+        this.signingKey = caKeys.getPrivate();
+        if (signingKey.getAlgorithm().equals("RSA")) {
+            this.signatureAlgorithm = new AlgorithmIdentifier(PKCSObjectIdentifiers.sha256WithRSAEncryption, DERNull.INSTANCE);
+            this.jcaSignatureAlgorithm = "SHA256withRSA";
+        } else {
+            this.signatureAlgorithm = new AlgorithmIdentifier(X9ObjectIdentifiers.ecdsa_with_SHA256);
+            this.jcaSignatureAlgorithm = "SHA256withECDSA";
+        }
+    }
+    
+    /**
+     * Issue a CRL.
+     * 
+     * @param entries the revocations to list
+     * @param crlNumber the number of this CRL
+     * @param baseCrlNumber the number of the base CRL for a delta CRL, or null for a base CRL
+     * @param thisUpdate the issue time
+     * @param nextUpdate the time by which the next CRL will be issued
+     * @return the DER encoding of the signed CRL
+     * @throws GeneralSecurityException if signing fails
+     * @throws IOException if encoding fails
+     */
+    public byte[] issue(Collection<RevokedCertificate> entries, BigInteger crlNumber, BigInteger baseCrlNumber,
+                        Instant thisUpdate, Instant nextUpdate) throws GeneralSecurityException, IOException {
+        V2TBSCertListGenerator generator = new V2TBSCertListGenerator();
+        generator.setSignature(signatureAlgorithm);
+        generator.setIssuer(issuer);
+        generator.setThisUpdate(new Time(Date.from(thisUpdate)));
+        generator.setNextUpdate(new Time(Date.from(nextUpdate)));
+        for (RevokedCertificate entry : entries) {
+            generator.addCRLEntry(new ASN1Integer(entry.getSerial()), new Time(Date.from(entry.getRevokedAt())),
+                    entry.getReason());
+        }
+        
+        List<Extension> extensions = new ArrayList<>();
+        extensions.add(new Extension(Extension.cRLNumber, false,
+                new DEROctetString(new CRLNumber(crlNumber).getEncoded(ASN1Encoding.DER))));
+        if (baseCrlNumber != null) {
+            extensions.add(new Extension(Extension.deltaCRLIndicator, true,
+                    new DEROctetString(new CRLNumber(baseCrlNumber).getEncoded(ASN1Encoding.DER))));
+        }
+        generator.setExtensions(new Extensions(extensions.toArray(new Extension[0])));
+        TBSCertList tbsCertList = generator.generateTBSCertList();
+        
+        Signature signature = Signature.getInstance(jcaSignatureAlgorithm);
+        signature.initSign(signingKey);
+        signature.update(tbsCertList.getEncoded(ASN1Encoding.DER));
+        
+        ASN1EncodableVector certList = new ASN1EncodableVector();
+        certList.add(tbsCertList);
+        certList.add(signatureAlgorithm);
+        certList.add(new DERBitString(signature.sign()));
+        return new DERSequence(certList).getEncoded(ASN1Encoding.DER);
+    }
+    
+    /**
+     * Encode a DER CRL as PEM, the format OpenVPN's {@code crl-verify} reads.
+     * 
+     * @param der the DER encoding of the CRL
+     * @return the PEM text
+     */
+    public static String toPem(byte[] der) {
+        return "-----BEGIN X509 CRL-----\n"
+                + Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(der)
+                + "\n-----END X509 CRL-----\n";
+    }
+    
+    /**
+     * Check that a reason code is one RFC 5280 allows in a CRL entry.
+     * 
+     * @param reason the reason code
+     * @return true if the code is valid
+     */
+    public static boolean isValidReason(int reason) {
+        return reason >= CRLReason.unspecified && reason <= CRLReason.aACompromise && reason != 7;
+    }
+}
@@ -0,0 +1,143 @@
+package com.andrewevl.vpn.pki;
+
+import java.math.BigInteger;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory index of revoked certificates.
+ * <p>
+ * A Bloom filter answers almost every check for a valid certificate without
+ * touching the exact index; only filter hits are confirmed against the sorted
+ * serial index. A second index orders revocations by sequence so the entries
+ * revoked since a base CRL can be listed without scanning the rest. Revocations
+ * are serialized; checks are lock-free. The filter doubles in size whenever the
+ * index outgrows it, so its false positive rate holds as the list grows.
+ */
+public class RevocationIndex {
+    
+    private final ConcurrentSkipListMap<BigInteger, RevokedCertificate> bySerial = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, RevokedCertificate> bySequence = new ConcurrentSkipListMap<>();
+    private final double falsePositiveRate;
+    
+    private volatile SerialBloomFilter filter;
+    private volatile long lastSequence;
+    private int filterCapacity;
+    
+    /**
+     * Create an index.
+     * 
+     * @param expectedRevocations the number of revocations the filter is initially sized for
+     * @param falsePositiveRate the false positive rate of the filter
+     */
+    public RevocationIndex(int expectedRevocations, double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+        this.filterCapacity = expectedRevocations;
+        this.filter = new SerialBloomFilter(expectedRevocations, falsePositiveRate);
+    }
+    
+    /**
+     * Revoke a certificate.
+     * 
+     * @param serial the certificate serial number
+     * @param revokedAt when the certificate was revoked
+     * @param reason the RFC 5280 CRL reason code
+     * @return true if the certificate was not already revoked
+     */
+    public synchronized boolean revoke(BigInteger serial, Instant revokedAt, int reason) {
+        if (bySerial.containsKey(serial)) {
+            return false;
+        }
+        if (bySerial.size() >= filterCapacity) {
+            growFilter();
+        }
+        RevokedCertificate entry = new RevokedCertificate(serial, revokedAt, reason, lastSequence + 1);
+        // Set the filter bits first so a check never sees the entry without them
+        filter.add(serial);
+        bySerial.put(serial, entry);
+        bySequence.put(entry.getSequence(), entry);
+        lastSequence = entry.getSequence();
+        return true;
+    }
+    
+    /**
+     * Check whether a certificate is revoked.
+     * 
+     * @param serial the certificate serial number
+     * @return true if the certificate is revoked
+     */
+    public boolean isRevoked(BigInteger serial) {
+        return filter.mightContain(serial) && bySerial.containsKey(serial);
+    }
+    
+    /**
+     * Find the revocation of a certificate.
+     * 
+     * @param serial the certificate serial number
+     * @return the revocation, or empty if the certificate is not revoked
+     */
+    public Optional<RevokedCertificate> get(BigInteger serial) {
+        if (!filter.mightContain(serial)) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(bySerial.get(serial));
+    }
+    
+    /**
+     * Get all revocations.
+     * 
+     * @return an unmodifiable view of the revocations, in serial order
+     */
+    public Collection<RevokedCertificate> getAll() {
+        return Collections.unmodifiableCollection(bySerial.values());
+    }
+    
+    /**
+     * Get the revocations made after a given one.
+     * 
+     * @param sequence the sequence number of the last revocation to skip
+     * @return an unmodifiable view of the later revocations, in revocation order
+     */
+    public Collection<RevokedCertificate> getRevokedAfter(long sequence) {
+        return Collections.unmodifiableCollection(bySequence.tailMap(sequence, false).values());
+    }
+    
+    /**
+     * Get the sequence number of the latest revocation.
+     * 
+     * @return the sequence number, or 0 if nothing has been revoked
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+    
+    /**
+     * Get the number of revoked certificates.
+     * 
+     * @return the revocation count
+     */
+    public int size() {
+        return bySerial.size();
+    }
+    
+    /**
+     * Get the memory footprint of the Bloom filter in bytes.
+     * 
+     * @return the size in bytes
+     */
+    public long getFilterSizeInBytes() {
+        return filter.sizeInBytes();
+    }
+    
+    private void growFilter() {
+        filterCapacity *= 2;
+        SerialBloomFilter grown = new SerialBloomFilter(filterCapacity, falsePositiveRate);
+        for (BigInteger serial : bySerial.keySet()) {
+            grown.add(serial);
+        }
+        filter = grown;
+    }
+}
@@ -0,0 +1,437 @@
+package com.andrewevl.vpn.pki;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.util.AsyncFiles;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.asn1.ASN1Encodable;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.pkcs.PrivateKeyInfo;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.CertificateList;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.TBSCertList;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Revokes certificates and publishes the revocation list.
+ * <p>
+ * Checking touches only the in-memory {@link RevocationIndex}, so it does not
+ * slow down as the list grows. A revocation goes out in a delta CRL that lists
+ * only what changed since the last base CRL, and the full base CRL is reissued
+ * only when the delta grows past its limit or the base gets old.
+ * <p>
+ * Revocations are group committed: a caller records its revocation in the index
+ * and waits for the next publish, and one publish writes a single delta covering
+ * every revocation recorded before it started. Callers that arrive while a delta
+ * is being written share the following one instead of each signing the whole
+ * delta again. Every CRL is forced to storage and its directory synced before
+ * any revocation in it is acknowledged. The published files are also the durable
+ * state; the index is rebuilt from them on startup, so an acknowledged revocation
+ * survives a crash. The scheduled publish reissues the base CRL when it is due
+ * and retries deltas whose write failed.
+ */
+@Slf4j
+@Service
+public class RevocationService {
+    
+    private static final String BASE_CRL_FILE = "crl.pem";
+    private static final String DELTA_CRL_FILE = "crl-delta.pem";
+    private static final String PRIVATE_KEY_FILE = "ca.key";
+    private static final String PUBLIC_KEY_FILE = "ca.pub";
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+    
+    private final VpnConfig.PkiConfig config;
+    private final RevocationIndex index;
+    private final AtomicBoolean deltaPending = new AtomicBoolean();
+    // Not a monitor: callers wait here through file writes, which would pin a virtual thread
+    private final ReentrantLock publishLock = new ReentrantLock();
+    
+    private volatile CrlIssuer issuer;
+    private BigInteger crlNumber = BigInteger.ZERO;
+    private BigInteger baseCrlNumber;
+    private long baseSequence;
+    private Instant baseIssuedAt;
+    private volatile byte[] baseCrl;
+    private volatile byte[] deltaCrl;
+    // Every revocation up to this index sequence is in a CRL on storage
+    private volatile long durableSequence;
+    
+    public RevocationService(VpnConfig vpnConfig) {
+        this.config = vpnConfig.getPki();
+        this.index = new RevocationIndex(config.getExpectedRevocations(), config.getFalsePositiveRate());
+    }
+    
+    /**
+     * Load the CRL signing key and the published CRLs, creating the key on first start.
+     */
+    @PostConstruct
+    public void initialize() {
+        Path directory = Paths.get(config.getDirectory());
+        publishLock.lock();
+        try {
+            Files.createDirectories(directory);
+            issuer = new CrlIssuer(config.getIssuer(), loadOrCreateKeys(directory));
+            loadPublishedCrls(directory);
+            durableSequence = index.getLastSequence();
+            log.info("Certificate revocation initialized: {} revoked, CRL number {}", index.size(), crlNumber);
+        } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+            log.error("Failed to initialize CRL publishing, revocations will not be published: {}",
+                    e.getMessage(), e);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+    
+    /**
+     * Revoke a certificate. The revocation takes effect for {@link #isRevoked}
+     * immediately and is on storage in a delta CRL before this method returns,
+     * possibly written together with revocations made concurrently. If the write
+     * fails the certificate stays revoked in memory and the scheduled publish
+     * retries, but the caller learns that the revocation is not durable yet.
+     * 
+     * @param serial the certificate serial number
+     * @param reason the RFC 5280 CRL reason code
+     * @return true if the certificate was not already revoked
+     * @throws IllegalStateException if CRL publishing failed to initialize
+     * @throws IOException if the delta CRL cannot be written
+     * @throws GeneralSecurityException if the delta CRL cannot be signed
+     */
+    public boolean revoke(BigInteger serial, int reason) throws IOException, GeneralSecurityException {
+        return revokeAll(List.of(serial), reason).get(serial);
+    }
+    
+    /**
+     * Revoke several certificates with a single delta CRL, as when offboarding a
+     * group of users. Behaves like {@link #revoke} for each certificate.
+     * 
+     * @param serials the certificate serial numbers
+     * @param reason the RFC 5280 CRL reason code
+     * @return for every serial, true if the certificate was not already revoked
+     * @throws IllegalStateException if CRL publishing failed to initialize
+     * @throws IOException if the delta CRL cannot be written
+     * @throws GeneralSecurityException if the delta CRL cannot be signed
+     */
+    public Map<BigInteger, Boolean> revokeAll(Collection<BigInteger> serials, int reason)
+            throws IOException, GeneralSecurityException {
+        if (!CrlIssuer.isValidReason(reason)) {
+            throw new IllegalArgumentException("Invalid CRL reason code " + reason);
+        }
+        if (issuer == null) {
+            throw new IllegalStateException("CRL publishing is not initialized, revocations cannot be persisted");
+        }
+        Map<BigInteger, Boolean> results = new LinkedHashMap<>();
+        long sequence = 0;
+        Instant now = Instant.now();
+        for (BigInteger serial : serials) {
+            results.put(serial, index.revoke(serial, now, reason));
+            // Also wait for an earlier revocation of the same serial that is not on storage yet
+            sequence = Math.max(sequence, index.get(serial).map(RevokedCertificate::getSequence).orElse(0L));
+        }
+        if (results.containsValue(true)) {
+            deltaPending.set(true);
+        }
+        awaitDurable(sequence);
+        results.forEach((serial, revoked) -> {
+            if (revoked) {
+                log.info("Revoked certificate {}", serial.toString(16));
+            }
+        });
+        return results;
+    }
+    
+    /**
+     * Check whether a certificate is revoked. Only reads memory.
+     * 
+     * @param serial the certificate serial number
+     * @return true if the certificate is revoked
+     */
+    public boolean isRevoked(BigInteger serial) {
+        return index.isRevoked(serial);
+    }
+    
+    /**
+     * Find the revocation of a certificate.
+     * 
+     * @param serial the certificate serial number
+     * @return the revocation, or empty if the certificate is not revoked
+     */
+    public Optional<RevokedCertificate> getRevocation(BigInteger serial) {
+        return index.get(serial);
+    }
+    
+    /**
+     * Get the number of revoked certificates.
+     * 
+     * @return the revocation count
+     */
+    public int getRevocationCount() {
+        return index.size();
+    }
+    
+    /**
+     * Get the latest base CRL.
+     * 
+     * @return the DER encoding of the CRL, or empty if none has been published
+     */
+    public Optional<byte[]> getBaseCrl() {
+        return Optional.ofNullable(baseCrl);
+    }
+    
+    /**
+     * Get the latest delta CRL.
+     * 
+     * @return the DER encoding of the CRL, or empty if none has been published
+     */
+    public Optional<byte[]> getDeltaCrl() {
+        return Optional.ofNullable(deltaCrl);
+    }
+    
+    /**
+     * Publish pending revocations, issuing a new base CRL when one is due and a
+     * delta CRL otherwise.
+     */
+    @Scheduled(fixedDelayString = "${vpn.pki.publish-interval-millis:5000}")
+    public void publish() {
+        publishLock.lock();
+        try {
+            publishPending(Instant.now());
+        } catch (IOException | GeneralSecurityException e) {
+            log.error("Failed to publish CRL: {}", e.getMessage(), e);
+        } finally {
+            publishLock.unlock();
+        }
+    }
+    
+    /**
+     * Wait until every revocation up to a sequence is on storage. The first waiter
+     * to get the lock publishes everything recorded so far; the others find their
+     * revocation already covered when they get it, or publish the next batch.
+     */
+    private void awaitDurable(long sequence) throws IOException, GeneralSecurityException {
+        if (durableSequence >= sequence) {
+            return;
+        }
+        publishLock.lock();
+        try {
+            if (durableSequence < sequence) {
+                publishPending(Instant.now());
+            }
+        } finally {
+            publishLock.unlock();
+        }
+    }
+    
+    private void publishPending(Instant now) throws IOException, GeneralSecurityException {
+        if (issuer == null) {
+            return;
+        }
+        boolean baseDue = baseCrl == null
+                || index.getLastSequence() - baseSequence > config.getMaxDeltaEntries()
+                || Duration.between(baseIssuedAt, now).toMinutes() >= config.getBaseIntervalMinutes();
+        if (baseDue) {
+            issueBaseCrl(now);
+            issueDeltaCrl(now);
+        } else if (deltaPending.get()) {
+            issueDeltaCrl(now);
+        }
+    }
+    
+    private void issueBaseCrl(Instant now) throws IOException, GeneralSecurityException {
+        // Everything up to this sequence is in the snapshot; later entries also go in the next delta
+        long sequence = index.getLastSequence();
+        List<RevokedCertificate> entries = List.copyOf(index.getAll());
+        BigInteger number = crlNumber.add(BigInteger.ONE);
+        byte[] der = issuer.issue(entries, number, null, now, now.plus(Duration.ofHours(config.getValidityHours())));
+        write(BASE_CRL_FILE, der);
+        crlNumber = number;
+        baseCrl = der;
+        baseCrlNumber = number;
+        baseSequence = sequence;
+        baseIssuedAt = now;
+        durableSequence = Math.max(durableSequence, sequence);
+        log.info("Issued base CRL {} with {} entries", number, entries.size());
+    }
+    
+    private void issueDeltaCrl(Instant now) throws IOException, GeneralSecurityException {
+        // Cleared first so a revocation arriving meanwhile sets it again, restored if this one is not written
+        deltaPending.set(false);
+        // Read before the entries, so everything up to it is in the delta
+        long sequence = index.getLastSequence();
+        List<RevokedCertificate> entries = List.copyOf(index.getRevokedAfter(baseSequence));
+        BigInteger number = crlNumber.add(BigInteger.ONE);
+        byte[] der;
+        try {
+            der = issuer.issue(entries, number, baseCrlNumber, now,
+                    now.plus(Duration.ofHours(config.getValidityHours())));
+            write(DELTA_CRL_FILE, der);
+        } catch (IOException | GeneralSecurityException e) {
+            deltaPending.set(true);
+            throw e;
+        }
+        crlNumber = number;
+        deltaCrl = der;
+        durableSequence = Math.max(durableSequence, sequence);
+        log.debug("Issued delta CRL {} on base {} with {} entries", number, baseCrlNumber, entries.size());
+    }
+    
+    private void write(String fileName, byte[] der) throws IOException {
+        // Replace the file atomically so readers never see a partial CRL, and force both
+        // the contents and the rename to storage so a crash cannot lose an acknowledged one
+        Path directory = Paths.get(config.getDirectory());
+        Path target = directory.resolve(fileName);
+        Path temporary = directory.resolve(fileName + ".tmp");
+        AsyncFiles.writeBytesDurably(temporary, CrlIssuer.toPem(der).getBytes(StandardCharsets.US_ASCII));
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(directory);
+    }
+    
+    private static void syncDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (AccessDeniedException e) {
+            // Windows cannot open a directory as a channel; its renames are durable once they return
+            log.debug("Cannot sync directory {}: {}", directory, e.getMessage());
+        }
+    }
+    
+    private void loadPublishedCrls(Path directory) throws IOException {
+        Path basePath = directory.resolve(BASE_CRL_FILE);
+        if (!Files.exists(basePath)) {
+            return;
+        }
+        byte[] baseDer = readPem(basePath);
+        TBSCertList base = CertificateList.getInstance(baseDer).getTBSCertList();
+        loadEntries(base);
+        baseCrl = baseDer;
+        baseCrlNumber = crlNumberOf(base.getExtensions(), Extension.cRLNumber);
+        baseSequence = index.getLastSequence();
+        baseIssuedAt = base.getThisUpdate().getDate().toInstant();
+        crlNumber = baseCrlNumber;
+        
+        Path deltaPath = directory.resolve(DELTA_CRL_FILE);
+        if (Files.exists(deltaPath)) {
+            byte[] deltaDer = readPem(deltaPath);
+            TBSCertList delta = CertificateList.getInstance(deltaDer).getTBSCertList();
+            if (baseCrlNumber.equals(crlNumberOf(delta.getExtensions(), Extension.deltaCRLIndicator))) {
+                loadEntries(delta);
+                deltaCrl = deltaDer;
+                crlNumber = crlNumberOf(delta.getExtensions(), Extension.cRLNumber);
+            }
+        }
+    }
+    
+    private void loadEntries(TBSCertList crl) {
+        for (TBSCertList.CRLEntry entry : crl.getRevokedCertificates()) {
+            int reason = CRLReason.unspecified;
+            Extensions extensions = entry.getExtensions();
+            if (extensions != null && extensions.getExtension(Extension.reasonCode) != null) {
+                reason = CRLReason.getInstance(extensions.getExtension(Extension.reasonCode).getParsedValue())
+                        .getValue().intValue();
+            }
+            index.revoke(entry.getUserCertificate().getValue(),
+                    entry.getRevocationDate().getDate().toInstant(), reason);
+        }
+    }
+    
+    private static BigInteger crlNumberOf(Extensions extensions, ASN1ObjectIdentifier oid) {
+        if (extensions == null || extensions.getExtension(oid) == null) {
+            return null;
+        }
+        ASN1Encodable value = extensions.getExtension(oid).getParsedValue();
+        return CRLNumber.getInstance(value).getCRLNumber();
+    }
+    
+    private static byte[] readPem(Path path) throws IOException {
+        String pem = new String(AsyncFiles.readAllBytes(path), StandardCharsets.US_ASCII);
+        String body = pem.replaceAll("-----(BEGIN|END) X509 CRL-----", "");
+        return Base64.getMimeDecoder().decode(body);
+    }
+    
+    private static KeyPair loadOrCreateKeys(Path directory) throws IOException, GeneralSecurityException {
+        Path privatePath = directory.resolve(PRIVATE_KEY_FILE);
+        Path publicPath = directory.resolve(PUBLIC_KEY_FILE);
+        if (Files.exists(privatePath) && Files.exists(publicPath)) {
+            restrictToOwner(privatePath);
+            byte[] privateKey = AsyncFiles.readAllBytes(privatePath);
+            boolean rsa = PKCSObjectIdentifiers.rsaEncryption.equals(
+                    PrivateKeyInfo.getInstance(privateKey).getPrivateKeyAlgorithm().getAlgorithm());
+            KeyFactory keyFactory = KeyFactory.getInstance(rsa ? "RSA" : "EC");
+            return new KeyPair(
+                    keyFactory.generatePublic(new X509EncodedKeySpec(AsyncFiles.readAllBytes(publicPath))),
+                    keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKey)));
+        }
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair keys = generator.generateKeyPair();
+        createOwnerOnly(privatePath);
+        AsyncFiles.writeBytes(privatePath, keys.getPrivate().getEncoded());
+        AsyncFiles.writeBytes(publicPath, keys.getPublic().getEncoded());
+        log.info("Created CRL signing key in {}", directory);
+        return keys;
+    }
+    
+    /**
+     * Create an empty file only the owner can read and write, so the key is never
+     * readable by others, not even between its creation and its first write.
+     */
+    private static void createOwnerOnly(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        if (Files.getFileStore(path.getParent()).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } else {
+            Files.createFile(path);
+            File file = path.toFile();
+            boolean restricted = file.setReadable(false, false) && file.setReadable(true, true)
+                    && file.setWritable(false, false) && file.setWritable(true, true);
+            if (!restricted) {
+                log.warn("Could not restrict access to {}", path);
+            }
+        }
+    }
+    
+    private static void restrictToOwner(Path path) throws IOException {
+        if (Files.getFileStore(path).supportsFileAttributeView(PosixFileAttributeView.class)
+                && !Files.getPosixFilePermissions(path).equals(OWNER_ONLY)) {
+            Files.setPosixFilePermissions(path, OWNER_ONLY);
+            log.warn("Restricted {} to its owner", path);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.andrewevl.vpn.pki;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.math.BigInteger;
+import java.time.Instant;
+
+/**
+ * A revoked certificate as listed in a CRL.
+ */
+@Getter
+@AllArgsConstructor
+public class RevokedCertificate {
+    
+    private final BigInteger serial;
+    
+    private final Instant revokedAt;
+    
+    /**
+     * The RFC 5280 CRL reason code.
+     */
+    private final int reason;
+    
+    /**
+     * The position of the revocation in revocation order, starting at 1.
+     */
+    private final long sequence;
+}
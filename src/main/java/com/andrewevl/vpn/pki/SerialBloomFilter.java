@@ -0,0 +1,102 @@
+package com.andrewevl.vpn.pki;
+
+import java.math.BigInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size Bloom filter over certificate serial numbers.
+ * A negative answer is exact; a positive answer may be a false positive and
+ * must be confirmed against an exact index. Bits are set lock-free and may be
+ * read concurrently.
+ */
+public class SerialBloomFilter {
+    
+    private final int bitCount;
+    private final int hashCount;
+    private final AtomicLongArray bits;
+    
+    /**
+     * Create a filter sized for a number of serials and a false positive rate.
+     * 
+     * @param expectedInsertions the number of serials the filter is sized for
+     * @param falsePositiveRate the false positive rate at that number of serials
+     */
+    public SerialBloomFilter(int expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid Bloom filter size " + expectedInsertions
+                    + " or false positive rate " + falsePositiveRate);
+        }
+        double ln2 = Math.log(2);
+        long optimalBits = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, optimalBits));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedInsertions * ln2));
+        this.bits = new AtomicLongArray((bitCount + 63) / 64);
+    }
+    
+    /**
+     * Add a serial.
+     * 
+     * @param serial the serial number
+     */
+    public void add(BigInteger serial) {
+        long hash = hash(serial);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = bitIndex(h1 + i * h2);
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+            long current;
+            while (((current = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                // Another bit in the same word changed; retry
+            }
+        }
+    }
+    
+    /**
+     * Check whether a serial may have been added.
+     * 
+     * @param serial the serial number
+     * @return false if the serial was certainly never added
+     */
+    public boolean mightContain(BigInteger serial) {
+        long hash = hash(serial);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = bitIndex(h1 + i * h2);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Get the memory footprint of the bits in bytes.
+     * 
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return (long) bits.length() * Long.BYTES;
+    }
+    
+    private int bitIndex(int combinedHash) {
+        return (combinedHash & Integer.MAX_VALUE) % bitCount;
+    }
+    
+    private static long hash(BigInteger serial) {
+        // Serials are up to 20 bytes; fold them 64 bits at a time
+        long hash = serial.bitLength();
+        for (BigInteger rest = serial; rest.signum() != 0; rest = rest.shiftRight(64)) {
+            hash = mix(hash ^ rest.longValue());
+        }
+        return mix(hash);
+    }
+    
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return z ^ (z >>> 33);
+    }
+}
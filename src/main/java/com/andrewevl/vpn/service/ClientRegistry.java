@@ -0,0 +1,308 @@
+package com.andrewevl.vpn.service;
+
+import com.andrewevl.vpn.model.ClientPage;
+import com.andrewevl.vpn.model.ClientQuery;
+import com.andrewevl.vpn.model.ClientRecord;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * In-memory registry of provisioned clients across all protocols.
+ * <p>
+ * Besides the primary map, each protocol keeps three secondary indexes for
+ * listings: clients sorted by username, which serves prefix searches and
+ * username-ordered paging; connected clients sorted by username, which serves the
+ * connected filter; and clients sorted by last handshake, which serves handshake
+ * time ranges. All are skip lists, so a page costs a seek plus the entries it
+ * returns rather than a scan of every client. The disconnected filter, and the
+ * status filter within a handshake range, are applied to the entries walked, so
+ * their cost grows with the clients skipped; disconnected clients are the
+ * majority, so few are skipped in practice.
+ * <p>
+ * Handshakes and the connected flag come from the
+ * {@link com.andrewevl.vpn.session.SessionManager}, which the peer status poller
+ * feeds from the state the protocol servers report.
+ */
+@Service
+public class ClientRegistry {
+    
+    private static final String USERNAME_CURSOR = "u";
+    private static final String HANDSHAKE_CURSOR = "h";
+    
+    private final Map<String, ClientRecord> clients = new ConcurrentHashMap<>();
+    private final Map<String, ProtocolIndex> indexes = new ConcurrentHashMap<>();
+    
+    /**
+     * Register a client, or return the existing record if it is already known.
+     * 
+     * @param protocol the protocol name
+     * @param username the username of the client
+     * @param createdAt when the client's keys were created
+     * @return the client record
+     */
+    public ClientRecord register(String protocol, String username, Instant createdAt) {
+        return clients.computeIfAbsent(key(protocol, username), k -> {
+            ClientRecord record = new ClientRecord(protocol.toLowerCase(), username, createdAt);
+            index(record.getProtocol()).byUsername.put(username, record);
+            return record;
+        });
+    }
+    
+    /**
+     * Record a completed handshake of a known client. Handshakes older than the
+     * one already recorded are ignored.
+     * 
+     * @param protocol the protocol name
+     * @param username the username of the client
+     * @param handshakeAt when the handshake completed
+     */
+    public void recordHandshake(String protocol, String username, Instant handshakeAt) {
+        ClientRecord record = clients.get(key(protocol, username));
+        if (record == null) {
+            return;
+        }
+        ProtocolIndex index = index(record.getProtocol());
+        synchronized (record) {
+            Instant previous = record.getLastHandshakeAt();
+            if (previous != null) {
+                if (previous.isAfter(handshakeAt)) {
+                    return;
+                }
+                index.byHandshake.remove(new HandshakeKey(previous.toEpochMilli(), username));
+            }
+            record.setLastHandshakeAt(handshakeAt);
+            index.byHandshake.put(new HandshakeKey(handshakeAt.toEpochMilli(), username), record);
+        }
+    }
+    
+    /**
+     * Record whether a known client has an open session.
+     * 
+     * @param protocol the protocol name
+     * @param username the username of the client
+     * @param connected true if the client has an open session
+     */
+    public void setConnected(String protocol, String username, boolean connected) {
+        ClientRecord record = clients.get(key(protocol, username));
+        if (record == null) {
+            return;
+        }
+        ProtocolIndex index = index(record.getProtocol());
+        synchronized (record) {
+            record.setConnected(connected);
+            if (connected) {
+                index.connectedByUsername.put(username, record);
+            } else {
+                index.connectedByUsername.remove(username);
+            }
+        }
+    }
+    
+    /**
+     * List the clients of a protocol one page at a time.
+     * <p>
+     * Pages are ordered by username, except for queries with a handshake range
+     * and no prefix, which are ordered by last handshake and walk only that range
+     * of the handshake index. Clients that have never completed a handshake never
+     * match a handshake range.
+     * 
+     * @param protocol the protocol name
+     * @param query the filters, cursor and page size
+     * @return the page of matching clients
+     * @throws IllegalArgumentException if the cursor is malformed or belongs to a
+     *         query with a different ordering
+     */
+    public ClientPage findClients(String protocol, ClientQuery query) {
+        ProtocolIndex index = indexes.get(protocol.toLowerCase());
+        boolean byHandshake = (query.getPrefix() == null || query.getPrefix().isEmpty())
+                && (query.getHandshakeAfter() != null || query.getHandshakeBefore() != null);
+        String[] cursor = decodeCursor(query.getCursor(), byHandshake ? HANDSHAKE_CURSOR : USERNAME_CURSOR);
+        if (index == null) {
+            return new ClientPage(List.of(), null);
+        }
+        
+        Collection<ClientRecord> candidates;
+        if (byHandshake) {
+            NavigableMap<HandshakeKey, ClientRecord> range = index.byHandshake;
+            if (cursor != null) {
+                range = range.tailMap(new HandshakeKey(Long.parseLong(cursor[1]), cursor[2]), false);
+            } else if (query.getHandshakeAfter() != null) {
+                range = range.tailMap(new HandshakeKey(query.getHandshakeAfter().toEpochMilli(), ""), true);
+            }
+            if (query.getHandshakeBefore() != null) {
+                range = range.headMap(new HandshakeKey(query.getHandshakeBefore().toEpochMilli(), ""), false);
+            }
+            candidates = range.values();
+        } else {
+            // Connected clients are few next to all provisioned ones, so they have
+            // their own index; disconnected ones are most clients and are filtered
+            NavigableMap<String, ClientRecord> range = Boolean.TRUE.equals(query.getConnected())
+                    ? index.connectedByUsername
+                    : index.byUsername;
+            if (cursor != null) {
+                range = range.tailMap(cursor[1], false);
+            } else if (query.getPrefix() != null) {
+                range = range.tailMap(query.getPrefix(), true);
+            }
+            candidates = range.values();
+        }
+        
+        // Collect one extra match to learn whether another page exists
+        List<ClientRecord> matches = new ArrayList<>(query.getLimit() + 1);
+        for (ClientRecord record : candidates) {
+            if (query.getPrefix() != null && !record.getUsername().startsWith(query.getPrefix())) {
+                // The username index is sorted, so no later entry can match either
+                break;
+            }
+            if (matches(record, query)) {
+                matches.add(record);
+                if (matches.size() > query.getLimit()) {
+                    break;
+                }
+            }
+        }
+        if (matches.size() <= query.getLimit()) {
+            return new ClientPage(matches, null);
+        }
+        matches.remove(matches.size() - 1);
+        ClientRecord last = matches.get(matches.size() - 1);
+        String nextCursor = byHandshake
+                ? encodeCursor(HANDSHAKE_CURSOR, Long.toString(last.getLastHandshakeAt().toEpochMilli()), last.getUsername())
+                : encodeCursor(USERNAME_CURSOR, last.getUsername());
+        return new ClientPage(matches, nextCursor);
+    }
+    
+    /**
+     * Record that a client's keys have been replaced.
+     * 
+     * @param protocol the protocol name
+     * @param username the username of the client
+     * @param rotatedAt when the keys were replaced
+     */
+    public void markRotated(String protocol, String username, Instant rotatedAt) {
+        register(protocol, username, rotatedAt).setKeysRotatedAt(rotatedAt);
+    }
+    
+    /**
+     * Find a client.
+     * 
+     * @param protocol the protocol name
+     * @param username the username of the client
+     * @return the client record, or empty if the client is unknown
+     */
+    public Optional<ClientRecord> getClient(String protocol, String username) {
+        return Optional.ofNullable(clients.get(key(protocol, username)));
+    }
+    
+    /**
+     * Get all clients of all protocols.
+     * 
+     * @return an unmodifiable view of the client records
+     */
+    public Collection<ClientRecord> getAllClients() {
+        return Collections.unmodifiableCollection(clients.values());
+    }
+    
+    /**
+     * Get the clients whose keys were last replaced before a given time.
+     * 
+     * @param cutoff the cutoff time
+     * @return the clients due for rotation
+     */
+    public List<ClientRecord> getClientsRotatedBefore(Instant cutoff) {
+        return clients.values().stream()
+                .filter(client -> client.getKeysRotatedAt().isBefore(cutoff))
+                .toList();
+    }
+    
+    /**
+     * Get the number of registered clients.
+     * 
+     * @return the client count
+     */
+    public int size() {
+        return clients.size();
+    }
+    
+    private ProtocolIndex index(String protocol) {
+        return indexes.computeIfAbsent(protocol, p -> new ProtocolIndex());
+    }
+    
+    private static boolean matches(ClientRecord record, ClientQuery query) {
+        if (query.getConnected() != null && record.isConnected() != query.getConnected()) {
+            return false;
+        }
+        if (query.getHandshakeAfter() == null && query.getHandshakeBefore() == null) {
+            return true;
+        }
+        // Compare at the index's millisecond precision so both orderings agree
+        Instant handshakeAt = record.getLastHandshakeAt();
+        if (handshakeAt == null) {
+            return false;
+        }
+        long handshakeMillis = handshakeAt.toEpochMilli();
+        return (query.getHandshakeAfter() == null || handshakeMillis >= query.getHandshakeAfter().toEpochMilli())
+                && (query.getHandshakeBefore() == null || handshakeMillis < query.getHandshakeBefore().toEpochMilli());
+    }
+    
+    private static String encodeCursor(String... parts) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(String.join("\n", parts).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static String[] decodeCursor(String cursor, String expectedType) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        int expectedLength = expectedType.equals(HANDSHAKE_CURSOR) ? 3 : 2;
+        String[] parts;
+        try {
+            parts = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", expectedLength);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor", e);
+        }
+        if (parts.length != expectedLength || !parts[0].equals(expectedType)) {
+            throw new IllegalArgumentException("Cursor does not belong to this query");
+        }
+        if (expectedType.equals(HANDSHAKE_CURSOR)) {
+            try {
+                Long.parseLong(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor", e);
+            }
+        }
+        return parts;
+    }
+    
+    private static String key(String protocol, String username) {
+        return protocol.toLowerCase() + ":" + username;
+    }
+    
+    private static final class ProtocolIndex {
+        
+        private final ConcurrentSkipListMap<String, ClientRecord> byUsername = new ConcurrentSkipListMap<>();
+        private final ConcurrentSkipListMap<String, ClientRecord> connectedByUsername = new ConcurrentSkipListMap<>();
+        private final ConcurrentSkipListMap<HandshakeKey, ClientRecord> byHandshake = new ConcurrentSkipListMap<>();
+    }
+    
+    private record HandshakeKey(long millis, String username) implements Comparable<HandshakeKey> {
+        
+        @Override
+        public int compareTo(HandshakeKey other) {
+            int byTime = Long.compare(millis, other.millis);
+            return byTime != 0 ? byTime : username.compareTo(other.username);
+        }
+    }
+}
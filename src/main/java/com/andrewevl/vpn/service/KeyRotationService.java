@@ -0,0 +1,300 @@
+package com.andrewevl.vpn.service;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.model.ClientRecord;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Rotates client keys that have reached the configured maximum age.
+ * <p>
+ * A run splits the due clients into batches, one per batch interval, and spreads
+ * the batches evenly over the rotation window, each starting at a random point
+ * inside its own slot so that runs started on several nodes do not line up. A
+ * batch updates each protocol's peer store once, so a run rewrites the store once
+ * per batch instead of once per client. On top of that, rotations are capped per
+ * second and the number of batches in flight is bounded, so rotating tens of
+ * thousands of clients never hits key generation and the peer store all at once.
+ */
+@Slf4j
+@Service
+public class KeyRotationService {
+    
+    private final VpnConfig.RotationConfig config;
+    private final BiFunction<String, List<String>, Map<String, Boolean>> rotator;
+    private final Predicate<String> rotatable;
+    private final ClientRegistry clientRegistry;
+    
+    private final ExecutorService dispatcher = Executors.newSingleThreadExecutor(
+            new DefaultThreadFactory("key-rotation-dispatcher", true));
+    private final ExecutorService workers;
+    private final Semaphore permits;
+    private final AtomicReference<RotationRun> currentRun = new AtomicReference<>();
+    
+    @Autowired
+    public KeyRotationService(VpnConfig vpnConfig, VpnService vpnService, ClientRegistry clientRegistry) {
+        this(vpnConfig, vpnService::rotateClientKeys, vpnService::supportsKeyRotation, clientRegistry);
+    }
+    
+    /**
+     * Create a rotation service with a custom rotation function that can rotate
+     * the keys of every protocol.
+     * 
+     * @param vpnConfig the VPN configuration
+     * @param rotator rotates the keys of a batch of clients of one protocol and reports the outcome per user
+     * @param clientRegistry the registry of clients to rotate
+     */
+    KeyRotationService(VpnConfig vpnConfig, BiFunction<String, List<String>, Map<String, Boolean>> rotator,
+                       ClientRegistry clientRegistry) {
+        this(vpnConfig, rotator, protocol -> true, clientRegistry);
+    }
+    
+    /**
+     * Create a rotation service with a custom rotation function.
+     * 
+     * @param vpnConfig the VPN configuration
+     * @param rotator rotates the keys of a batch of clients of one protocol and reports the outcome per user
+     * @param rotatable tells whether a protocol's client keys can be rotated; clients of other protocols are skipped
+     * @param clientRegistry the registry of clients to rotate
+     */
+    KeyRotationService(VpnConfig vpnConfig, BiFunction<String, List<String>, Map<String, Boolean>> rotator,
+                       Predicate<String> rotatable, ClientRegistry clientRegistry) {
+        this.config = vpnConfig.getRotation();
+        this.rotator = rotator;
+        this.rotatable = rotatable;
+        this.clientRegistry = clientRegistry;
+        this.workers = Executors.newFixedThreadPool(config.getMaxConcurrent(),
+                new DefaultThreadFactory("key-rotation", true));
+        this.permits = new Semaphore(config.getMaxConcurrent());
+    }
+    
+    /**
+     * Start a rotation run for clients whose keys are due, if rotation is enabled.
+     */
+    @Scheduled(fixedDelayString = "${vpn.rotation.check-interval-millis:60000}")
+    public void rotateDueKeys() {
+        if (config.isEnabled()) {
+            startRun();
+        }
+    }
+    
+    /**
+     * Start a rotation run for all clients whose keys are due.
+     * Does nothing if a run is already in progress or no keys are due.
+     * 
+     * @return the started run, or empty if no run was started
+     */
+    public Optional<RotationRun> startRun() {
+        return startRun(Duration.ofMinutes(config.getWindowMinutes()),
+                Duration.ofSeconds(Math.max(1, config.getBatchIntervalSeconds())));
+    }
+    
+    /**
+     * Start a rotation run over the given window with the given batch interval.
+     * 
+     * @param window the duration over which the batches are spread
+     * @param batchInterval the time between batches
+     * @return the started run, or empty if no run was started
+     */
+    Optional<RotationRun> startRun(Duration window, Duration batchInterval) {
+        RotationRun previous = currentRun.get();
+        if (previous != null && !previous.isDone()) {
+            return Optional.empty();
+        }
+        
+        Instant cutoff = Instant.now().minus(Duration.ofDays(config.getMaxKeyAgeDays()));
+        List<ClientRecord> due = new ArrayList<>(clientRegistry.getClientsRotatedBefore(cutoff));
+        // Regenerating a configuration of such a protocol would only reset its rotation date
+        due.removeIf(client -> !rotatable.test(client.getProtocol()));
+        if (due.isEmpty()) {
+            return Optional.empty();
+        }
+        // Shuffle so one protocol's peer store is not hammered for the first half of the window
+        Collections.shuffle(due);
+        
+        RotationRun run = new RotationRun(due.size(), window, batchInterval);
+        if (!currentRun.compareAndSet(previous, run)) {
+            return Optional.empty();
+        }
+        log.info("Starting key rotation for {} clients over {} minutes", due.size(), window.toMinutes());
+        dispatcher.execute(() -> dispatch(run, due));
+        return Optional.of(run);
+    }
+    
+    /**
+     * Get the current or most recent rotation run.
+     * 
+     * @return the run, or empty if no run has been started
+     */
+    public Optional<RotationRun> getCurrentRun() {
+        return Optional.ofNullable(currentRun.get());
+    }
+    
+    /**
+     * Stop dispatching and abandon the current run.
+     */
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+        workers.shutdownNow();
+    }
+    
+    private void dispatch(RotationRun run, List<ClientRecord> due) {
+        long start = System.nanoTime();
+        long windowNanos = run.window.toNanos();
+        long intervalNanos = Math.max(1, run.batchInterval.toNanos());
+        int batches = (int) Math.max(1, Math.min(due.size(), (windowNanos + intervalNanos - 1) / intervalNanos));
+        long slotNanos = Math.max(1, windowNanos / batches);
+        long minGapNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, config.getMaxPerSecond());
+        long nextAllowed = start;
+        
+        try {
+            for (int i = 0; i < batches; i++) {
+                List<ClientRecord> batch = due.subList(i * due.size() / batches, (i + 1) * due.size() / batches);
+                long target = start + i * slotNanos + ThreadLocalRandom.current().nextLong(slotNanos);
+                target = Math.max(target, nextAllowed);
+                sleepUntil(target);
+                // The rate cap counts clients, so a batch of n holds off the next one for n gaps
+                nextAllowed = Math.max(System.nanoTime(), target) + batch.size() * minGapNanos;
+                
+                permits.acquire();
+                run.inFlight.addAndGet(batch.size());
+                workers.execute(() -> rotate(run, batch));
+            }
+            // Wait for the last rotations to finish
+            permits.acquire(config.getMaxConcurrent());
+            permits.release(config.getMaxConcurrent());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Key rotation interrupted after {} of {} clients", run.completed.get(), run.planned);
+        } finally {
+            run.finish();
+            log.info("Key rotation finished: {} rotated, {} failed in {} s",
+                    run.completed.get(), run.failed.get(), run.elapsed().toSeconds());
+        }
+    }
+    
+    private void rotate(RotationRun run, List<ClientRecord> batch) {
+        Map<String, List<String>> byProtocol = new LinkedHashMap<>();
+        batch.forEach(client -> byProtocol.computeIfAbsent(client.getProtocol(), key -> new ArrayList<>())
+                .add(client.getUsername()));
+        try {
+            byProtocol.forEach((protocol, usernames) -> {
+                try {
+                    Map<String, Boolean> results = rotator.apply(protocol, usernames);
+                    for (String username : usernames) {
+                        if (Boolean.TRUE.equals(results.get(username))) {
+                            run.completed.incrementAndGet();
+                        } else {
+                            run.failed.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    run.failed.addAndGet(usernames.size());
+                    log.error("Failed to rotate {} keys for {} clients: {}", protocol, usernames.size(), e.getMessage(), e);
+                } finally {
+                    run.inFlight.addAndGet(-usernames.size());
+                }
+            });
+        } finally {
+            permits.release();
+        }
+    }
+    
+    private static void sleepUntil(long deadline) throws InterruptedException {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+    
+    /**
+     * Progress of a single rotation run.
+     */
+    public static class RotationRun {
+        
+        private final int planned;
+        private final Duration window;
+        private final Duration batchInterval;
+        private final Instant startedAt = Instant.now();
+        private final long startNanos = System.nanoTime();
+        private final AtomicInteger completed = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private volatile long finishNanos = -1;
+        
+        RotationRun(int planned, Duration window, Duration batchInterval) {
+            this.planned = planned;
+            this.window = window;
+            this.batchInterval = batchInterval;
+        }
+        
+        /**
+         * Check if the run has finished.
+         * 
+         * @return true if all rotations have been attempted
+         */
+        public boolean isDone() {
+            return finishNanos >= 0;
+        }
+        
+        /**
+         * Get the progress of the run.
+         * 
+         * @return a map of progress fields to values
+         */
+        public Map<String, Object> getProgress() {
+            int done = completed.get() + failed.get();
+            double elapsedSeconds = elapsed().toMillis() / 1000.0;
+            
+            Map<String, Object> progress = new HashMap<>();
+            progress.put("startedAt", startedAt.toString());
+            progress.put("windowMinutes", window.toMinutes());
+            progress.put("planned", planned);
+            progress.put("completed", completed.get());
+            progress.put("failed", failed.get());
+            progress.put("inFlight", inFlight.get());
+            progress.put("percentComplete", planned == 0 ? 100.0 : 100.0 * done / planned);
+            progress.put("elapsedSeconds", elapsedSeconds);
+            progress.put("throughputPerSecond", elapsedSeconds > 0 ? done / elapsedSeconds : 0.0);
+            progress.put("done", isDone());
+            return progress;
+        }
+        
+        Duration elapsed() {
+            long end = isDone() ? finishNanos : System.nanoTime();
+            return Duration.ofNanos(end - startNanos);
+        }
+        
+        void finish() {
+            finishNanos = System.nanoTime();
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.andrewevl.vpn.service;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when a client configuration request finds the provisioning queue full.
+ */
+public class ProvisioningQueueFullException extends RejectedExecutionException {
+    
+    public ProvisioningQueueFullException(RejectedExecutionException cause) {
+        super("Provisioning queue is full", cause);
+    }
+}
@@ -1,14 +1,34 @@
 package com.andrewevl.vpn.service;
 
+import com.andrewevl.vpn.cluster.ClusterNode;
+import com.andrewevl.vpn.cluster.ClusterService;
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.journal.EventJournal;
+import com.andrewevl.vpn.journal.JournalEventType;
+import com.andrewevl.vpn.model.AbstractProtocol;
 import com.andrewevl.vpn.model.Protocol;
+import com.andrewevl.vpn.model.ShardedProtocol;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * Service for managing VPN protocols and connections.
@@ -18,13 +38,58 @@ import java.util.Optional;
 public class VpnService {
     
     private final Map<String, Protocol> protocols;
+    private final ClientRegistry clientRegistry;
+    private final ClusterService clusterService;
+    private final EventJournal eventJournal;
+    private final ThreadPoolExecutor provisioningExecutor;
+    private final ExecutorService forwardingExecutor = Executors.newVirtualThreadPerTaskExecutor();
     
     @Autowired
-    public VpnService(List<Protocol> protocolList) {
+    public VpnService(List<Protocol> protocolList, ClientRegistry clientRegistry, VpnConfig vpnConfig,
+                      ClusterService clusterService, EventJournal eventJournal) {
+        this.clientRegistry = clientRegistry;
+        this.clusterService = clusterService;
+        this.eventJournal = eventJournal;
+        VpnConfig.ProvisioningConfig provisioning = vpnConfig.getProvisioning();
+        int threads = provisioning.getThreads() > 0
+                ? provisioning.getThreads()
+                : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        // Bounded queue and abort policy: when full, callers are told to back off instead of piling up
+        this.provisioningExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(provisioning.getQueueCapacity()),
+                new DefaultThreadFactory("client-config", true), new ThreadPoolExecutor.AbortPolicy());
         protocols = new HashMap<>();
-        protocolList.forEach(protocol -> protocols.put(protocol.getName().toLowerCase(), protocol));
-        log.info("VPN Service initialized with {} protocols: {}", protocols.size(), 
-                protocols.keySet());
+        protocolList.forEach(protocol -> {
+            String name = protocol.getName().toLowerCase();
+            VpnConfig.ProtocolConfig protocolConfig = vpnConfig.getProtocols().get(name);
+            int shards = protocolConfig != null ? protocolConfig.getShards() : 1;
+            if (shards > 1 && protocol instanceof AbstractProtocol abstractProtocol) {
+                protocol = new ShardedProtocol(abstractProtocol, shards);
+            }
+            protocols.put(name, protocol);
+        });
+        log.info("VPN Service initialized with {} protocols: {}", protocols.size(), protocols.keySet());
+    }
+    
+    /**
+     * Register the clients a protocol already has on disk with the client registry
+     * and claim them in the cluster. Reads the protocol's configuration directory,
+     * so it runs during warm-up rather than while the context is refreshed.
+     * 
+     * @param name the protocol name
+     * @return the number of existing clients, 0 if the protocol is not found
+     */
+    public int registerExistingClients(String name) {
+        Protocol protocol = protocols.get(name.toLowerCase());
+        if (protocol == null) {
+            return 0;
+        }
+        Map<String, Instant> existing = protocol.getExistingClients();
+        existing.forEach((username, createdAt) -> {
+            clientRegistry.register(name.toLowerCase(), username, createdAt);
+            clusterService.claim(name.toLowerCase(), username);
+        });
+        return existing.size();
     }
     
     /**
@@ -54,7 +119,7 @@ public class VpnService {
      */
     public boolean startProtocol(String name) {
         return getProtocol(name)
-                .map(Protocol::startServer)
+                .map(protocol -> startServer(name, protocol))
                 .orElseGet(() -> {
                     log.error("Protocol not found: {}", name);
                     return false;
@@ -69,7 +134,7 @@ public class VpnService {
      */
     public boolean stopProtocol(String name) {
         return getProtocol(name)
-                .map(Protocol::stopServer)
+                .map(protocol -> stopServer(name, protocol))
                 .orElseGet(() -> {
                     log.error("Protocol not found: {}", name);
                     return false;
@@ -92,21 +157,197 @@ public class VpnService {
     }
     
     /**
-     * Generate a client configuration for a protocol.
+     * Generate a client configuration for a protocol. In a cluster the configuration
+     * is generated by, and points at, the node the client is placed on.
      * 
      * @param protocolName the protocol name
      * @param username the username for the client
      * @return the client configuration, or null if the protocol is not found
      */
     public String generateClientConfig(String protocolName, String username) {
+        ClusterNode owner = remoteOwner(protocolName, username);
+        if (owner != null) {
+            return forwardClientConfig(owner, protocolName, username);
+        }
+        return generateLocalClientConfig(protocolName, username);
+    }
+    
+    /**
+     * Get the other node a client is placed on.
+     * 
+     * @return the node, or null if the client is placed on this node
+     */
+    private ClusterNode remoteOwner(String protocolName, String username) {
+        if (clusterService.isEnabled() && getProtocol(protocolName).isPresent()) {
+            ClusterNode node = clusterService.assign(protocolName, username);
+            if (!clusterService.isLocal(node)) {
+                return node;
+            }
+        }
+        return null;
+    }
+    
+    private String forwardClientConfig(ClusterNode owner, String protocolName, String username) {
+        log.debug("Forwarding {} configuration for user {} to node {}", protocolName, username, owner.getId());
+        return clusterService.forwardClientConfig(owner, protocolName, username);
+    }
+    
+    /**
+     * Generate a client configuration on this node, regardless of cluster placement.
+     * 
+     * @param protocolName the protocol name
+     * @param username the username for the client
+     * @return the client configuration, or null if the protocol is not found
+     */
+    public String generateLocalClientConfig(String protocolName, String username) {
         return getProtocol(protocolName)
-                .map(protocol -> protocol.generateClientConfig(username))
+                .map(protocol -> {
+                    String config = protocol.generateClientConfig(username);
+                    if (config != null) {
+                        clientRegistry.markRotated(protocolName, username, Instant.now());
+                        clusterService.confirm(protocolName, username);
+                    }
+                    eventJournal.record(JournalEventType.CLIENT_CONFIG_GENERATED, protocolName.toLowerCase(),
+                            username, config != null);
+                    return config;
+                })
                 .orElseGet(() -> {
                     log.error("Protocol not found: {}", protocolName);
                     return null;
                 });
     }
     
+    /**
+     * Generate a client configuration on the provisioning executor, so that the
+     * calling thread is not held for the duration of key generation. A request for
+     * a client placed on another node only waits on the network, so it is forwarded
+     * from a virtual thread and never takes a provisioning thread or queue slot.
+     * 
+     * @param protocolName the protocol name
+     * @param username the username for the client
+     * @return a future completed with the client configuration, or with null if the protocol is not found
+     * @throws ProvisioningQueueFullException if the provisioning queue is full
+     */
+    public CompletableFuture<String> generateClientConfigAsync(String protocolName, String username) {
+        ClusterNode owner = remoteOwner(protocolName, username);
+        if (owner != null) {
+            return CompletableFuture.supplyAsync(() -> forwardClientConfig(owner, protocolName, username),
+                    forwardingExecutor);
+        }
+        return provision(() -> generateLocalClientConfig(protocolName, username));
+    }
+    
+    /**
+     * Generate a client configuration on this node on the provisioning executor.
+     * 
+     * @param protocolName the protocol name
+     * @param username the username for the client
+     * @return a future completed with the client configuration, or with null if the protocol is not found
+     * @throws ProvisioningQueueFullException if the provisioning queue is full
+     */
+    public CompletableFuture<String> generateLocalClientConfigAsync(String protocolName, String username) {
+        return provision(() -> generateLocalClientConfig(protocolName, username));
+    }
+    
+    /**
+     * Get the number of configuration requests waiting for a provisioning thread.
+     * 
+     * @return the queue length
+     */
+    public int getProvisioningQueueLength() {
+        return provisioningExecutor.getQueue().size();
+    }
+    
+    private <T> CompletableFuture<T> provision(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, provisioningExecutor);
+        } catch (RejectedExecutionException e) {
+            throw new ProvisioningQueueFullException(e);
+        }
+    }
+    
+    /**
+     * Check whether a protocol issues new client keys when a configuration is
+     * generated again.
+     * 
+     * @param protocolName the protocol name
+     * @return true if the protocol's client keys can be rotated, false otherwise or if the protocol is not found
+     */
+    public boolean supportsKeyRotation(String protocolName) {
+        return getProtocol(protocolName).map(Protocol::supportsKeyRotation).orElse(false);
+    }
+    
+    /**
+     * Replace the keys of an existing client.
+     * 
+     * @param protocolName the protocol name
+     * @param username the username of the client
+     * @return true if the keys were replaced, false otherwise or if the protocol cannot rotate keys
+     */
+    public boolean rotateClientKeys(String protocolName, String username) {
+        if (!supportsKeyRotation(protocolName)) {
+            log.warn("Not rotating {} keys for user {}: the protocol does not issue per-user keys",
+                    protocolName, username);
+            return false;
+        }
+        boolean rotated = generateClientConfig(protocolName, username) != null;
+        if (rotated) {
+            log.debug("Rotated {} keys for user {}", protocolName, username);
+        }
+        return rotated;
+    }
+    
+    /**
+     * Replace the keys of several clients of one protocol. Clients placed on this
+     * node are rotated as one batch, so the protocol's peer store is written once;
+     * clients placed on other nodes are forwarded one by one.
+     * 
+     * @param protocolName the protocol name
+     * @param usernames the usernames of the clients
+     * @return a map of usernames to whether their keys were replaced
+     */
+    public Map<String, Boolean> rotateClientKeys(String protocolName, List<String> usernames) {
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        Optional<Protocol> protocol = getProtocol(protocolName);
+        if (protocol.isEmpty()) {
+            log.error("Protocol not found: {}", protocolName);
+            usernames.forEach(username -> results.put(username, false));
+            return results;
+        }
+        if (!protocol.get().supportsKeyRotation()) {
+            log.warn("Not rotating {} keys for {} clients: the protocol does not issue per-user keys",
+                    protocolName, usernames.size());
+            usernames.forEach(username -> results.put(username, false));
+            return results;
+        }
+        
+        List<String> local = new ArrayList<>();
+        for (String username : usernames) {
+            if (clusterService.isEnabled() && !clusterService.isLocal(clusterService.assign(protocolName, username))) {
+                results.put(username, rotateClientKeys(protocolName, username));
+            } else {
+                local.add(username);
+            }
+        }
+        if (local.isEmpty()) {
+            return results;
+        }
+        
+        Map<String, String> configs = protocol.get().generateClientConfigs(local);
+        Instant rotatedAt = Instant.now();
+        for (String username : local) {
+            boolean rotated = configs.get(username) != null;
+            if (rotated) {
+                clientRegistry.markRotated(protocolName, username, rotatedAt);
+                clusterService.confirm(protocolName, username);
+            }
+            eventJournal.record(JournalEventType.CLIENT_CONFIG_GENERATED, protocolName.toLowerCase(), username, rotated);
+            results.put(username, rotated);
+        }
+        log.debug("Rotated a batch of {} {} keys", local.size(), protocolName);
+        return results;
+    }
+    
     /**
      * Start all protocol servers.
      * 
@@ -115,12 +356,26 @@ public class VpnService {
     public Map<String, Boolean> startAllProtocols() {
         Map<String, Boolean> results = new HashMap<>();
         protocols.forEach((name, protocol) -> {
-            boolean success = protocol.startServer();
+            boolean success = startServer(name, protocol);
             results.put(name, success);
         });
         return results;
     }
     
+    /**
+     * Stop the provisioning executor and release the resources held by sharded protocols.
+     */
+    @PreDestroy
+    public void shutdown() {
+        provisioningExecutor.shutdownNow();
+        forwardingExecutor.shutdownNow();
+        protocols.values().forEach(protocol -> {
+            if (protocol instanceof ShardedProtocol sharded) {
+                sharded.shutdown();
+            }
+        });
+    }
+    
     /**
      * Stop all protocol servers.
      * 
@@ -129,9 +384,21 @@ public class VpnService {
     public Map<String, Boolean> stopAllProtocols() {
         Map<String, Boolean> results = new HashMap<>();
         protocols.forEach((name, protocol) -> {
-            boolean success = protocol.stopServer();
+            boolean success = stopServer(name, protocol);
             results.put(name, success);
         });
         return results;
     }
+    
+    private boolean startServer(String name, Protocol protocol) {
+        boolean success = protocol.startServer();
+        eventJournal.record(JournalEventType.PROTOCOL_STARTED, name.toLowerCase(), null, success);
+        return success;
+    }
+    
+    private boolean stopServer(String name, Protocol protocol) {
+        boolean success = protocol.stopServer();
+        eventJournal.record(JournalEventType.PROTOCOL_STOPPED, name.toLowerCase(), null, success);
+        return success;
+    }
 }
@@ -0,0 +1,128 @@
+package com.andrewevl.vpn.session;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.load.LoadTable;
+import com.andrewevl.vpn.model.PeerStatus;
+import com.andrewevl.vpn.model.Protocol;
+import com.andrewevl.vpn.service.VpnService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Feeds sessions, and through them the client registry and the load table, from
+ * the peer state the protocol servers report.
+ * <p>
+ * Each poll reads the peers of every protocol once. A peer that completed a
+ * handshake within the idle timeout gets a session; a handshake newer than the one
+ * seen at the previous poll is a rekey. Growth of a peer's byte counters since the
+ * previous poll is recorded as traffic through its endpoint, and received bytes
+ * count as activity that keeps its session alive. Sessions of peers the server no
+ * longer lists are closed, and quiet ones expire through the session timer.
+ */
+@Slf4j
+@Component
+public class PeerStatusPoller {
+    
+    private final Supplier<Map<String, Protocol>> protocols;
+    private final SessionManager sessionManager;
+    private final LoadTable loadTable;
+    private final Duration idleTimeout;
+    private final Map<String, Counters> counters = new HashMap<>();
+    
+    @Autowired
+    public PeerStatusPoller(VpnService vpnService, SessionManager sessionManager, LoadTable loadTable,
+                            VpnConfig vpnConfig) {
+        this(vpnService::getAllProtocols, sessionManager, loadTable, vpnConfig);
+    }
+    
+    PeerStatusPoller(Supplier<Map<String, Protocol>> protocols, SessionManager sessionManager, LoadTable loadTable,
+                     VpnConfig vpnConfig) {
+        this.protocols = protocols;
+        this.sessionManager = sessionManager;
+        this.loadTable = loadTable;
+        this.idleTimeout = Duration.ofSeconds(vpnConfig.getSession().getIdleTimeout());
+    }
+    
+    /**
+     * Read the peers of every protocol and bring the sessions up to date.
+     */
+    @Scheduled(fixedDelayString = "${vpn.session.poll-interval-millis:5000}")
+    public synchronized void poll() {
+        protocols.get().forEach((name, protocol) -> update(name, protocol.getPeerStatus()));
+    }
+    
+    /**
+     * Bring the sessions of one protocol up to date with the peers its server lists.
+     * 
+     * @param protocol the protocol name
+     * @param peers the peers the server lists
+     */
+    synchronized void update(String protocol, List<PeerStatus> peers) {
+        Instant freshAfter = Instant.now().minus(idleTimeout);
+        Set<String> listed = new HashSet<>();
+        for (PeerStatus peer : peers) {
+            String username = peer.getUsername();
+            listed.add(username);
+            Instant handshakeAt = peer.getLastHandshakeAt();
+            Counters previous = counters.put(TransportSession.key(protocol, username),
+                    new Counters(handshakeAt, peer.getReceivedBytes(), peer.getSentBytes()));
+            // The first sighting only sets the baseline, the counters run from server start
+            long received = previous == null ? 0 : growth(previous.received, peer.getReceivedBytes());
+            long sent = previous == null ? 0 : growth(previous.sent, peer.getSentBytes());
+            boolean newHandshake = handshakeAt != null
+                    && (previous == null || previous.handshakeAt == null || handshakeAt.isAfter(previous.handshakeAt));
+            
+            Optional<TransportSession> session = sessionManager.getSession(protocol, username);
+            if (session.isEmpty()) {
+                // A quiet peer evicted by the session timer is only reopened by new activity
+                if (handshakeAt != null && handshakeAt.isAfter(freshAfter) && (newHandshake || received > 0)) {
+                    session = Optional.of(sessionManager.openSession(protocol, username, peer.getEndpoint(), handshakeAt));
+                }
+            } else if (newHandshake) {
+                sessionManager.handshakeCompleted(session.get(), handshakeAt);
+            }
+            session.ifPresent(open -> {
+                if (received > 0) {
+                    open.onPacketReceived();
+                }
+                if (sent > 0) {
+                    open.onPacketSent();
+                }
+            });
+            if (peer.getEndpoint() != null && received + sent > 0) {
+                loadTable.recordTraffic(peer.getEndpoint(), received + sent);
+            }
+        }
+        
+        for (TransportSession session : List.copyOf(sessionManager.getSessions())) {
+            if (session.getProtocol().equalsIgnoreCase(protocol) && !listed.contains(session.getUsername())) {
+                sessionManager.closeSession(session.getProtocol(), session.getUsername());
+            }
+        }
+        String prefix = TransportSession.key(protocol, "");
+        counters.keySet().removeIf(key -> key.startsWith(prefix) && !listed.contains(key.substring(prefix.length())));
+    }
+    
+    /**
+     * Get how much a counter grew; a counter that went down was reset by a server
+     * restart and counts from zero.
+     */
+    private static long growth(long previous, long current) {
+        return current >= previous ? current - previous : current;
+    }
+    
+    private record Counters(Instant handshakeAt, long received, long sent) {
+    }
+}
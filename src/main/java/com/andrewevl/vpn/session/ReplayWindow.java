@@ -0,0 +1,108 @@
+package com.andrewevl.vpn.session;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sliding-window anti-replay filter for the 64-bit counters of a transport session.
+ * <p>
+ * The window is a ring of {@value #SLOTS} longs. Each long packs a 32-bit block tag
+ * in its upper half and a 32-bit bitmap for that block in its lower half, so a
+ * slot is claimed and marked with a single compare-and-set. Checks never lock and
+ * never allocate, and any number of receive threads may call {@link #accept(long)}
+ * concurrently. Counters may arrive in any order as long as they are within
+ * {@value #WINDOW_SIZE} of the highest counter seen; each counter is accepted at
+ * most once. Block tags are compared modulo 2^32, so the counter must not jump by
+ * 2^36 or more in one step, which holds for any session that rekeys on schedule.
+ */
+public class ReplayWindow {
+    
+    /**
+     * Number of 64-bit words in the ring.
+     */
+    public static final int SLOTS = 64;
+    
+    /**
+     * Number of counters tracked per word.
+     */
+    public static final int BITS_PER_SLOT = 32;
+    
+    /**
+     * Number of counters behind the highest one that are still accepted.
+     * One slot is kept spare so the block being filled never evicts the
+     * oldest block still inside the window.
+     */
+    public static final int WINDOW_SIZE = (SLOTS - 1) * BITS_PER_SLOT;
+    
+    /**
+     * Highest counter value ever accepted.
+     */
+    public static final long REJECT_AFTER = Long.MAX_VALUE - WINDOW_SIZE;
+    
+    private static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int BLOCK_SHIFT = 5;
+    private static final int BIT_MASK = BITS_PER_SLOT - 1;
+    
+    private final long[] words = new long[SLOTS];
+    private final AtomicLong highest = new AtomicLong(-1);
+    
+    /**
+     * Check a counter and mark it as seen.
+     * 
+     * @param counter the counter of an authenticated packet
+     * @return true if the counter has not been seen before and is inside the window
+     */
+    public boolean accept(long counter) {
+        if (counter < 0 || counter > REJECT_AFTER) {
+            return false;
+        }
+        if (counter + WINDOW_SIZE <= highest.get()) {
+            return false;
+        }
+        
+        long block = counter >>> BLOCK_SHIFT;
+        int slot = (int) block & SLOT_MASK;
+        int tag = (int) block;
+        long bit = 1L << (counter & BIT_MASK);
+        
+        for (;;) {
+            long word = (long) WORDS.getVolatile(words, slot);
+            // Tags in the same slot differ by multiples of SLOTS; the signed difference
+            // orders them correctly for any two blocks less than 2^31 blocks apart
+            int age = tag - (int) (word >>> 32);
+            if (age == 0) {
+                if ((word & bit) != 0) {
+                    return false;
+                }
+                if (WORDS.compareAndSet(words, slot, word, word | bit)) {
+                    break;
+                }
+            } else if (age > 0) {
+                // The slot still holds an older block: recycle it for this one
+                if (WORDS.compareAndSet(words, slot, word, ((long) tag << 32) | bit)) {
+                    break;
+                }
+            } else {
+                // A newer block already took the slot, so this counter fell out of the window
+                return false;
+            }
+        }
+        
+        long current;
+        while ((current = highest.get()) < counter && !highest.compareAndSet(current, counter)) {
+            // Retry until this counter is recorded or a higher one is
+        }
+        return true;
+    }
+    
+    /**
+     * Get the highest counter accepted so far.
+     * 
+     * @return the highest counter, or -1 if none has been accepted
+     */
+    public long getHighest() {
+        return highest.get();
+    }
+}
@@ -0,0 +1,272 @@
+package com.andrewevl.vpn.session;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.jfr.HandshakeEvent;
+import com.andrewevl.vpn.load.LoadTable;
+import com.andrewevl.vpn.model.Endpoint;
+import com.andrewevl.vpn.service.ClientRegistry;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registry of transport sessions, driving keepalive, rekey and idle expiry from a
+ * single hashed timing wheel.
+ * <p>
+ * Each session owns exactly one wheel timeout, armed for the earliest of its
+ * keepalive, rekey and expiry deadlines. Packet activity only updates timestamps;
+ * when the timeout fires it re-reads them, fires whatever is due and re-arms for
+ * the next deadline; a completed rekey handshake re-arms it for the new rekey
+ * deadline. Arming and cancelling a timeout are O(1), so hundreds of
+ * thousands of sessions cost one timer thread and one timeout object each.
+ */
+@Slf4j
+@Service
+public class SessionManager {
+    
+    private final Map<String, TransportSession> sessions = new ConcurrentHashMap<>();
+    private final HashedWheelTimer timer;
+    private final List<SessionTimerListener> listeners;
+    private final LoadTable loadTable;
+    private final ClientRegistry clientRegistry;
+    
+    private final long keepaliveNanos;
+    private final long idleTimeoutNanos;
+    private final long rekeyNanos;
+    
+    public SessionManager(VpnConfig vpnConfig, ObjectProvider<SessionTimerListener> listenerProvider,
+                          LoadTable loadTable, ClientRegistry clientRegistry) {
+        VpnConfig.SessionConfig config = vpnConfig.getSession();
+        this.keepaliveNanos = TimeUnit.SECONDS.toNanos(config.getKeepaliveInterval());
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(config.getIdleTimeout());
+        this.rekeyNanos = TimeUnit.SECONDS.toNanos(config.getRekeyAfterTime());
+        this.listeners = listenerProvider.orderedStream().toList();
+        this.loadTable = loadTable;
+        this.clientRegistry = clientRegistry;
+        this.timer = new HashedWheelTimer(new DefaultThreadFactory("session-timer", true),
+                config.getTimerTickMillis(), TimeUnit.MILLISECONDS, config.getTimerWheelSize());
+        log.info("Session manager initialized: keepalive {}s, idle timeout {}s, rekey after {}s",
+                config.getKeepaliveInterval(), config.getIdleTimeout(), config.getRekeyAfterTime());
+    }
+    
+    /**
+     * Open a session for a peer, replacing any existing session for the same peer.
+     * 
+     * @param protocol the protocol name
+     * @param username the peer's username
+     * @return the new session
+     */
+    public TransportSession openSession(String protocol, String username) {
+        return openSession(protocol, username, null);
+    }
+    
+    /**
+     * Open a session for a peer that connected through a known endpoint, replacing
+     * any existing session for the same peer. The endpoint's session count in the
+     * load table follows the session, and the peer is marked connected in the client
+     * registry with the session's handshake as its last one.
+     * 
+     * @param protocol the protocol name
+     * @param username the peer's username
+     * @param endpoint the endpoint the peer connected to, or null if unknown
+     * @return the new session
+     */
+    public TransportSession openSession(String protocol, String username, Endpoint endpoint) {
+        return openSession(protocol, username, endpoint, Instant.now());
+    }
+    
+    /**
+     * Open a session for a peer whose handshake completed at a known time.
+     * 
+     * @param protocol the protocol name
+     * @param username the peer's username
+     * @param endpoint the endpoint the peer connected to, or null if unknown
+     * @param handshakeAt when the peer completed the handshake
+     * @return the new session
+     * @see #openSession(String, String, Endpoint)
+     */
+    public TransportSession openSession(String protocol, String username, Endpoint endpoint, Instant handshakeAt) {
+        TransportSession session = new TransportSession(protocol, username, endpoint, System.nanoTime());
+        if (endpoint != null) {
+            loadTable.sessionOpened(endpoint);
+        }
+        TransportSession previous = sessions.put(session.getKey(), session);
+        if (previous != null) {
+            release(previous);
+        }
+        clientRegistry.recordHandshake(protocol, username, handshakeAt);
+        clientRegistry.setConnected(protocol, username, true);
+        arm(session, Math.min(keepaliveNanos, Math.min(idleTimeoutNanos, rekeyNanos)));
+        log.debug("Opened {} session for {}", protocol, username);
+        return session;
+    }
+    
+    /**
+     * Record a completed rekey handshake on an open session.
+     * 
+     * @param session the session
+     */
+    public void handshakeCompleted(TransportSession session) {
+        handshakeCompleted(session, Instant.now());
+    }
+    
+    /**
+     * Record a rekey handshake on an open session that completed at a known time.
+     * 
+     * @param session the session
+     * @param handshakeAt when the handshake completed
+     */
+    public void handshakeCompleted(TransportSession session, Instant handshakeAt) {
+        HandshakeEvent event = new HandshakeEvent();
+        event.begin();
+        synchronized (session) {
+            session.onHandshakeCompleted();
+            // A timeout armed while the rekey was pending would only fire at the next
+            // keepalive or expiry, so move it up to the new rekey deadline
+            if (sessions.get(session.getKey()) == session) {
+                arm(session, Math.min(keepaliveNanos, Math.min(idleTimeoutNanos, rekeyNanos)));
+            }
+        }
+        clientRegistry.recordHandshake(session.getProtocol(), session.getUsername(), handshakeAt);
+        if (event.shouldCommit()) {
+            event.protocol = session.getProtocol();
+            event.user = session.getUsername();
+            event.verdict = "COMPLETED";
+            event.commit();
+        }
+    }
+    
+    /**
+     * Get the session for a peer.
+     * 
+     * @param protocol the protocol name
+     * @param username the peer's username
+     * @return the session, or empty if the peer has no session
+     */
+    public Optional<TransportSession> getSession(String protocol, String username) {
+        return Optional.ofNullable(sessions.get(TransportSession.key(protocol, username)));
+    }
+    
+    /**
+     * Close the session for a peer.
+     * 
+     * @param protocol the protocol name
+     * @param username the peer's username
+     * @return true if a session was closed
+     */
+    public boolean closeSession(String protocol, String username) {
+        TransportSession session = sessions.remove(TransportSession.key(protocol, username));
+        if (session == null) {
+            return false;
+        }
+        release(session);
+        clientRegistry.setConnected(protocol, username, false);
+        log.debug("Closed {} session for {}", protocol, username);
+        return true;
+    }
+    
+    /**
+     * Get all open sessions.
+     * 
+     * @return an unmodifiable view of the open sessions
+     */
+    public Collection<TransportSession> getSessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+    
+    /**
+     * Get the number of open sessions.
+     * 
+     * @return the session count
+     */
+    public int getActiveSessionCount() {
+        return sessions.size();
+    }
+    
+    /**
+     * Stop the timing wheel and drop all sessions.
+     */
+    @PreDestroy
+    public void shutdown() {
+        timer.stop();
+        sessions.clear();
+    }
+    
+    private void onTimeout(TransportSession session, Timeout timeout) {
+        synchronized (session) {
+            // Closed or replaced since this timeout was armed, or the timeout was replaced
+            if (sessions.get(session.getKey()) == session && session.timeout == timeout) {
+                fireDue(session);
+            }
+        }
+    }
+    
+    private void fireDue(TransportSession session) {
+        long now = System.nanoTime();
+        long idleDeadline = session.getLastReceivedNanos() + idleTimeoutNanos;
+        if (now - idleDeadline >= 0) {
+            if (sessions.remove(session.getKey(), session)) {
+                release(session);
+                clientRegistry.setConnected(session.getProtocol(), session.getUsername(), false);
+                log.debug("Evicted idle {} session for {}", session.getProtocol(), session.getUsername());
+                listeners.forEach(listener -> listener.onSessionExpired(session));
+            }
+            return;
+        }
+        
+        long rekeyDeadline = session.getHandshakeNanos() + rekeyNanos;
+        if (!session.isRekeyRequested() && now - rekeyDeadline >= 0) {
+            session.markRekeyRequested();
+            listeners.forEach(listener -> listener.onRekeyDue(session));
+        }
+        
+        long keepaliveDeadline = session.getLastSentNanos() + keepaliveNanos;
+        if (now - keepaliveDeadline >= 0) {
+            session.onPacketSent();
+            keepaliveDeadline = now + keepaliveNanos;
+            listeners.forEach(listener -> listener.onKeepaliveDue(session));
+        }
+        
+        long delay = Math.min(idleDeadline - now, keepaliveDeadline - now);
+        if (!session.isRekeyRequested()) {
+            delay = Math.min(delay, rekeyDeadline - now);
+        }
+        arm(session, Math.max(0, delay));
+    }
+    
+    /**
+     * Arm the session's timeout, replacing the one armed before.
+     */
+    private void arm(TransportSession session, long delayNanos) {
+        synchronized (session) {
+            Timeout previous = session.timeout;
+            if (previous != null) {
+                previous.cancel();
+            }
+            session.timeout = timer.newTimeout(timeout -> onTimeout(session, timeout), delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    private void release(TransportSession session) {
+        Timeout timeout = session.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (session.getEndpoint() != null) {
+            loadTable.sessionClosed(session.getEndpoint());
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.andrewevl.vpn.session;
+
+/**
+ * Callbacks fired by the session timing wheel.
+ * Callbacks run on the single timer thread and must not block.
+ */
+public interface SessionTimerListener {
+    
+    /**
+     * Called when a session has sent nothing for the keepalive interval.
+     * 
+     * @param session the session
+     */
+    default void onKeepaliveDue(TransportSession session) {
+    }
+    
+    /**
+     * Called once per handshake when the session keys reach the rekey age.
+     * 
+     * @param session the session
+     */
+    default void onRekeyDue(TransportSession session) {
+    }
+    
+    /**
+     * Called after an idle session has been evicted.
+     * 
+     * @param session the session
+     */
+    default void onSessionExpired(TransportSession session) {
+    }
+}
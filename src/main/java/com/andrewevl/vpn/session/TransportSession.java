@@ -0,0 +1,111 @@
+package com.andrewevl.vpn.session;
+
+import com.andrewevl.vpn.model.Endpoint;
+import io.netty.util.Timeout;
+import lombok.Getter;
+
+/**
+ * State of an established transport session with a single peer.
+ * Activity timestamps are plain volatile writes so the packet path never touches
+ * the timer; the session timer re-reads them when it fires and re-arms itself.
+ */
+public class TransportSession {
+    
+    @Getter
+    private final String protocol;
+    
+    @Getter
+    private final String username;
+    
+    /**
+     * The endpoint the session runs through, or null if it is not tracked.
+     */
+    @Getter
+    private final Endpoint endpoint;
+    
+    @Getter
+    private final ReplayWindow replayWindow = new ReplayWindow();
+    
+    private volatile long lastReceivedNanos;
+    private volatile long lastSentNanos;
+    private volatile long handshakeNanos;
+    private volatile boolean rekeyRequested;
+    
+    volatile Timeout timeout;
+    
+    TransportSession(String protocol, String username, Endpoint endpoint, long now) {
+        this.protocol = protocol;
+        this.username = username;
+        this.endpoint = endpoint;
+        this.lastReceivedNanos = now;
+        this.lastSentNanos = now;
+        this.handshakeNanos = now;
+    }
+    
+    /**
+     * Get the registry key of this session.
+     * 
+     * @return the session key
+     */
+    public String getKey() {
+        return key(protocol, username);
+    }
+    
+    /**
+     * Record an incoming packet.
+     */
+    public void onPacketReceived() {
+        lastReceivedNanos = System.nanoTime();
+    }
+    
+    /**
+     * Record an outgoing packet.
+     */
+    public void onPacketSent() {
+        lastSentNanos = System.nanoTime();
+    }
+    
+    /**
+     * Record a completed handshake, which resets the rekey timer.
+     */
+    public void onHandshakeCompleted() {
+        long now = System.nanoTime();
+        handshakeNanos = now;
+        lastReceivedNanos = now;
+        rekeyRequested = false;
+    }
+    
+    /**
+     * Get the time of the last incoming packet.
+     * 
+     * @return the {@link System#nanoTime()} of the last incoming packet
+     */
+    public long getLastReceivedNanos() {
+        return lastReceivedNanos;
+    }
+    
+    /**
+     * Get the time of the last completed handshake.
+     * 
+     * @return the {@link System#nanoTime()} of the last handshake
+     */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+    
+    long getLastSentNanos() {
+        return lastSentNanos;
+    }
+    
+    boolean isRekeyRequested() {
+        return rekeyRequested;
+    }
+    
+    void markRekeyRequested() {
+        rekeyRequested = true;
+    }
+    
+    static String key(String protocol, String username) {
+        return protocol.toLowerCase() + ":" + username;
+    }
+}
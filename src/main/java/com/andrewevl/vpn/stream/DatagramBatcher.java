@@ -0,0 +1,125 @@
+package com.andrewevl.vpn.stream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.epoll.SegmentedDatagramPacket;
+import io.netty.channel.socket.DatagramPacket;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the datagrams for one UDP peer that arrive during a read burst and
+ * sends runs of equally sized ones as a single segmented datagram, which the
+ * kernel splits into individual datagrams ({@code UDP_SEGMENT}, generic
+ * segmentation offload). A run ends with a shorter datagram, at
+ * {@link #MAX_SEGMENTS} segments or when the next datagram would push the batch
+ * past the largest size one send can carry.
+ * <p>
+ * Without segmentation support, or after the kernel has refused a segmented
+ * send, datagrams are written one by one and flushed together, which the epoll
+ * transport still sends with one {@code sendmmsg} call. Not thread-safe: a
+ * batcher is only used on its channel's event loop.
+ */
+@Slf4j
+class DatagramBatcher {
+    
+    /**
+     * The most segments the kernel accepts in one send.
+     */
+    static final int MAX_SEGMENTS = 64;
+    
+    /**
+     * The largest UDP payload of one send over IPv6, the stricter of the two families.
+     */
+    static final int MAX_BATCH_BYTES = 0xFFFF - 40 - 8;
+    
+    private final Channel channel;
+    private final InetSocketAddress recipient;
+    private final AtomicBoolean segmentation;
+    private final LongAdder segmentedSends;
+    
+    private CompositeByteBuf batch;
+    private int segmentSize;
+    private int segments;
+    
+    /**
+     * Create a batcher.
+     * 
+     * @param channel the datagram channel to write to
+     * @param recipient the peer every datagram is sent to
+     * @param segmentation whether segmented sends are used, shared by all batchers of a
+     *                     transport and cleared when the kernel refuses one
+     * @param segmentedSends incremented for every segmented send
+     */
+    DatagramBatcher(Channel channel, InetSocketAddress recipient, AtomicBoolean segmentation, LongAdder segmentedSends) {
+        this.channel = channel;
+        this.recipient = recipient;
+        this.segmentation = segmentation;
+        this.segmentedSends = segmentedSends;
+    }
+    
+    /**
+     * Queue a datagram. Ownership of the buffer passes to the batcher.
+     * 
+     * @param datagram the datagram payload
+     */
+    void add(ByteBuf datagram) {
+        int size = datagram.readableBytes();
+        if (!segmentation.get() || size == 0) {
+            // Another batcher may have switched segmentation off while this one holds a batch
+            if (batch != null) {
+                writeBatch();
+            }
+            channel.write(new DatagramPacket(datagram, recipient), channel.voidPromise());
+            return;
+        }
+        if (batch != null && !(size <= segmentSize && segments < MAX_SEGMENTS
+                && batch.readableBytes() + size <= MAX_BATCH_BYTES)) {
+            writeBatch();
+        }
+        if (batch == null) {
+            batch = channel.alloc().compositeDirectBuffer(MAX_SEGMENTS);
+            segmentSize = size;
+        }
+        batch.addComponent(true, datagram);
+        segments++;
+        // Only the last segment may be shorter than the others
+        if (size < segmentSize) {
+            writeBatch();
+        }
+    }
+    
+    /**
+     * Send everything queued.
+     */
+    void flush() {
+        if (batch != null) {
+            writeBatch();
+        }
+        channel.flush();
+    }
+    
+    private void writeBatch() {
+        CompositeByteBuf datagrams = batch;
+        int count = segments;
+        batch = null;
+        segments = 0;
+        if (count == 1) {
+            channel.write(new DatagramPacket(datagrams, recipient), channel.voidPromise());
+            return;
+        }
+        segmentedSends.increment();
+        channel.write(new SegmentedDatagramPacket(datagrams, segmentSize, recipient))
+                .addListener((ChannelFutureListener) future -> {
+                    if (!future.isSuccess() && segmentation.compareAndSet(true, false)) {
+                        log.warn("Segmented UDP send failed, falling back to one datagram per send: {}",
+                                future.cause().getMessage());
+                    }
+                });
+    }
+}
@@ -0,0 +1,45 @@
+package com.andrewevl.vpn.stream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.EncoderException;
+import io.netty.handler.codec.MessageToMessageEncoder;
+
+import java.util.List;
+
+/**
+ * Prefixes each tunnel datagram with its length as an unsigned 16-bit big-endian
+ * integer, the same framing OpenVPN uses over TCP.
+ * <p>
+ * The datagram is not copied: the two-byte header and the datagram become the
+ * components of one composite buffer, which the socket writes with a single
+ * gathering write together with any other frames flushed at the same time.
+ */
+@ChannelHandler.Sharable
+public class StreamFrameEncoder extends MessageToMessageEncoder<ByteBuf> {
+    
+    /**
+     * The length of the length prefix in bytes.
+     */
+    public static final int LENGTH_FIELD_LENGTH = 2;
+    
+    /**
+     * The largest datagram a frame can carry.
+     */
+    public static final int MAX_FRAME_LENGTH = 0xFFFF;
+    
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ByteBuf packet, List<Object> out) {
+        int length = packet.readableBytes();
+        if (length > MAX_FRAME_LENGTH) {
+            throw new EncoderException("Datagram of " + length + " bytes exceeds the maximum frame length");
+        }
+        ByteBuf header = ctx.alloc().buffer(LENGTH_FIELD_LENGTH).writeShort(length);
+        CompositeByteBuf frame = ctx.alloc().compositeBuffer(2);
+        // The encoder releases the packet after encode, the frame keeps its own reference
+        frame.addComponents(true, header, packet.retain());
+        out.add(frame);
+    }
+}
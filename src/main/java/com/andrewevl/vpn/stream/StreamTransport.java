@@ -0,0 +1,394 @@
+package com.andrewevl.vpn.stream;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.handshake.CookieReply;
+import com.andrewevl.vpn.handshake.HandshakeGuard;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.SegmentedDatagramPacket;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Carries tunnel datagrams over TCP, optionally wrapped in TLS, for networks
+ * that block UDP.
+ * <p>
+ * Every accepted stream gets its own UDP socket connected to the local tunnel
+ * port, so the protocol server sees each stream client as an ordinary UDP peer.
+ * Both sockets of a stream are registered with the same event loop and frames
+ * pass between them without locking or copying. Writes in either direction are
+ * flushed once per read burst rather than once per datagram; on the stream side
+ * a {@link FlushConsolidationHandler} additionally merges flushes, so many small
+ * frames leave in one gathering write.
+ * <p>
+ * On Linux the native epoll transport is used when it is available. Datagrams
+ * towards the tunnel are then sent in segmented batches (see {@link DatagramBatcher})
+ * and datagrams from the tunnel are read many at a time with {@code recvmmsg};
+ * elsewhere the NIO transport sends and reads one datagram per call.
+ * <p>
+ * With a {@link HandshakeGuard}, WireGuard handshake initiations from streams are
+ * inspected before they reach the tunnel: under load, initiations without a valid
+ * cookie MAC are answered on the stream with a cookie reply and sources over their
+ * limit are dropped, so a handshake flood over TCP costs the server no handshake
+ * cryptography.
+ */
+@Slf4j
+public class StreamTransport {
+    
+    private final VpnConfig.StreamConfig config;
+    private final InetSocketAddress tunnelAddress;
+    private final SslContext sslContext;
+    private final boolean epoll;
+    private final AtomicBoolean segmentation;
+    private final HandshakeGuard handshakeGuard;
+    private final Supplier<byte[]> responderPublicKey;
+    
+    private static final StreamFrameEncoder FRAME_ENCODER = new StreamFrameEncoder();
+    
+    private final AtomicInteger activeStreams = new AtomicInteger();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder droppedDatagrams = new LongAdder();
+    private final LongAdder segmentedSends = new LongAdder();
+    private final LongAdder cookieReplies = new LongAdder();
+    private final LongAdder droppedHandshakes = new LongAdder();
+    
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+    
+    /**
+     * Create a stream transport.
+     * 
+     * @param config the stream transport configuration
+     * @param sslContext the TLS context, or null for plain TCP
+     */
+    public StreamTransport(VpnConfig.StreamConfig config, SslContext sslContext) {
+        this(config, sslContext, null, null);
+    }
+    
+    /**
+     * Create a stream transport that passes handshake initiations through a guard.
+     * 
+     * @param config the stream transport configuration
+     * @param sslContext the TLS context, or null for plain TCP
+     * @param handshakeGuard the guard deciding on handshake initiations, or null to relay them unchecked
+     * @param responderPublicKey supplies the public key of the tunnel interface for cookie replies, or
+     *                           null when it is unavailable, in which case those initiations are dropped
+     */
+    public StreamTransport(VpnConfig.StreamConfig config, SslContext sslContext,
+                           HandshakeGuard handshakeGuard, Supplier<byte[]> responderPublicKey) {
+        this.config = config;
+        this.handshakeGuard = handshakeGuard;
+        this.responderPublicKey = responderPublicKey;
+        this.tunnelAddress = new InetSocketAddress(config.getTunnelHost(), config.getTunnelPort());
+        this.sslContext = sslContext;
+        this.epoll = Epoll.isAvailable();
+        this.segmentation = new AtomicBoolean(epoll && config.isUdpSegmentation() && SegmentedDatagramPacket.isSupported());
+    }
+    
+    /**
+     * Bind the listening socket.
+     * 
+     * @return the address actually bound, which differs from the configured one for port 0
+     * @throws InterruptedException if interrupted while binding
+     */
+    public InetSocketAddress start() throws InterruptedException {
+        DefaultThreadFactory acceptThreads = new DefaultThreadFactory("stream-accept", true);
+        DefaultThreadFactory workerThreads = new DefaultThreadFactory("stream-transport", true);
+        Class<? extends ServerChannel> serverChannel;
+        if (epoll) {
+            bossGroup = new EpollEventLoopGroup(1, acceptThreads);
+            workerGroup = new EpollEventLoopGroup(config.getWorkerThreads(), workerThreads);
+            serverChannel = EpollServerSocketChannel.class;
+        } else {
+            bossGroup = new NioEventLoopGroup(1, acceptThreads);
+            workerGroup = new NioEventLoopGroup(config.getWorkerThreads(), workerThreads);
+            serverChannel = NioServerSocketChannel.class;
+        }
+        Channel channel = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(serverChannel)
+                .childOption(ChannelOption.TCP_NODELAY, true)
+                .childOption(ChannelOption.AUTO_READ, false)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel channel) {
+                        ChannelPipeline pipeline = channel.pipeline();
+                        if (sslContext != null) {
+                            pipeline.addLast("tls", sslContext.newHandler(channel.alloc()));
+                        }
+                        addFraming(pipeline, config.getFlushConsolidationLimit());
+                        pipeline.addLast("relay", new StreamHandler());
+                    }
+                })
+                .bind(new InetSocketAddress(config.getListenAddress(), config.getPort()))
+                .sync()
+                .channel();
+        log.info("Stream transport listening on {} ({}), relaying to {} over {}{}", channel.localAddress(),
+                sslContext != null ? "TLS" : "TCP", tunnelAddress, epoll ? "epoll" : "NIO",
+                segmentation.get() ? " with UDP segmentation" : "");
+        return (InetSocketAddress) channel.localAddress();
+    }
+    
+    /**
+     * Close all streams and stop the event loops.
+     */
+    public void stop() {
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            workerGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).syncUninterruptibly();
+            bossGroup = null;
+            workerGroup = null;
+        }
+    }
+    
+    /**
+     * Get transport statistics.
+     * 
+     * @return a map of statistic names to values
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("activeStreams", activeStreams.get());
+        stats.put("framesIn", framesIn.sum());
+        stats.put("framesOut", framesOut.sum());
+        stats.put("droppedDatagrams", droppedDatagrams.sum());
+        stats.put("transport", epoll ? "epoll" : "nio");
+        stats.put("udpSegmentation", segmentation.get());
+        stats.put("segmentedSends", segmentedSends.sum());
+        stats.put("cookieReplies", cookieReplies.sum());
+        stats.put("droppedHandshakes", droppedHandshakes.sum());
+        return stats;
+    }
+    
+    /**
+     * Get the number of tunnel datagrams received over streams.
+     * 
+     * @return the frame count
+     */
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+    
+    /**
+     * Get the number of tunnel datagrams sent over streams.
+     * 
+     * @return the frame count
+     */
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+    
+    /**
+     * Get the number of datagrams dropped because their stream had no tunnel
+     * or could not keep up.
+     * 
+     * @return the datagram count
+     */
+    public long getDroppedDatagrams() {
+        return droppedDatagrams.sum();
+    }
+    
+    /**
+     * Add the length-prefix codec and flush consolidation to a stream pipeline.
+     * Inbound, frames split across or packed into TCP segments come out as one
+     * buffer per datagram; outbound, each datagram buffer goes in as one frame.
+     * 
+     * @param pipeline the pipeline, after any TLS handler
+     * @param flushConsolidationLimit the number of flushes merged into one while no read is in progress
+     */
+    static void addFraming(ChannelPipeline pipeline, int flushConsolidationLimit) {
+        pipeline.addLast("flushConsolidation", new FlushConsolidationHandler(flushConsolidationLimit, true));
+        pipeline.addLast("frameDecoder", new LengthFieldBasedFrameDecoder(
+                StreamFrameEncoder.MAX_FRAME_LENGTH + StreamFrameEncoder.LENGTH_FIELD_LENGTH,
+                0, StreamFrameEncoder.LENGTH_FIELD_LENGTH, 0, StreamFrameEncoder.LENGTH_FIELD_LENGTH));
+        pipeline.addLast("frameEncoder", FRAME_ENCODER);
+    }
+    
+    private static boolean isInitiation(ByteBuf datagram) {
+        return datagram.readableBytes() == CookieReply.INITIATION_LENGTH
+                && datagram.getByte(datagram.readerIndex()) == CookieReply.INITIATION_TYPE;
+    }
+    
+    private Bootstrap tunnelBootstrap(Channel stream) {
+        Bootstrap bootstrap = new Bootstrap()
+                .group(stream.eventLoop())
+                .handler(new TunnelHandler(stream));
+        if (!epoll) {
+            return bootstrap.channel(NioDatagramChannel.class);
+        }
+        bootstrap.channel(EpollDatagramChannel.class);
+        if (config.getReceiveBatchSize() > 1) {
+            // A receive buffer larger than the maximum payload makes epoll read with recvmmsg
+            bootstrap.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, config.getMaxDatagramSize())
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(
+                            config.getMaxDatagramSize() * config.getReceiveBatchSize()));
+        }
+        return bootstrap;
+    }
+    
+    /**
+     * Relays frames from a stream to its tunnel socket.
+     */
+    private final class StreamHandler extends ChannelInboundHandlerAdapter {
+        
+        private Channel tunnel;
+        private DatagramBatcher batcher;
+        
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            Channel stream = ctx.channel();
+            activeStreams.incrementAndGet();
+            tunnelBootstrap(stream)
+                    .connect(tunnelAddress)
+                    .addListener((ChannelFutureListener) future -> {
+                        if (!future.isSuccess()) {
+                            log.warn("Failed to open tunnel socket for stream {}: {}", stream.remoteAddress(),
+                                    future.cause().getMessage());
+                            stream.close();
+                            return;
+                        }
+                        tunnel = future.channel();
+                        batcher = new DatagramBatcher(tunnel, tunnelAddress, segmentation, segmentedSends);
+                        tunnel.closeFuture().addListener(closed -> stream.close());
+                        // Streams are only read once their datagrams have somewhere to go
+                        stream.config().setAutoRead(true);
+                    });
+            ctx.fireChannelActive();
+        }
+        
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (tunnel == null || !tunnel.isActive()) {
+                ReferenceCountUtil.release(msg);
+                droppedDatagrams.increment();
+                return;
+            }
+            ByteBuf datagram = (ByteBuf) msg;
+            framesIn.increment();
+            if (handshakeGuard != null && isInitiation(datagram) && !admit(ctx, datagram)) {
+                datagram.release();
+                return;
+            }
+            batcher.add(datagram);
+        }
+        
+        /**
+         * Ask the guard about a handshake initiation and answer it with a cookie
+         * reply if the guard says so.
+         * 
+         * @return true if the initiation goes on to the tunnel
+         */
+        private boolean admit(ChannelHandlerContext ctx, ByteBuf initiation) {
+            InetSocketAddress source = (InetSocketAddress) ctx.channel().remoteAddress();
+            byte[] message = ByteBufUtil.getBytes(initiation);
+            byte[] publicKey = responderPublicKey.get();
+            HandshakeGuard.Verdict verdict = handshakeGuard.inspect(source, message, publicKey);
+            if (verdict == HandshakeGuard.Verdict.ACCEPT) {
+                return true;
+            }
+            if (verdict == HandshakeGuard.Verdict.DROP || publicKey == null) {
+                droppedHandshakes.increment();
+                return false;
+            }
+            cookieReplies.increment();
+            ctx.writeAndFlush(Unpooled.wrappedBuffer(handshakeGuard.cookieReply(source, message, publicKey)),
+                    ctx.voidPromise());
+            return false;
+        }
+        
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (batcher != null) {
+                batcher.flush();
+            }
+            ctx.fireChannelReadComplete();
+        }
+        
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            activeStreams.decrementAndGet();
+            if (tunnel != null) {
+                tunnel.close();
+            }
+            ctx.fireChannelInactive();
+        }
+        
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.debug("Closing stream {}: {}", ctx.channel().remoteAddress(), cause.getMessage());
+            ctx.close();
+        }
+    }
+    
+    /**
+     * Relays datagrams from a tunnel socket to its stream.
+     */
+    private final class TunnelHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+        
+        private final Channel stream;
+        
+        TunnelHandler(Channel stream) {
+            this.stream = stream;
+        }
+        
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+            // A stream that cannot keep up loses datagrams, as the UDP path it replaces would
+            if (!stream.isWritable()) {
+                droppedDatagrams.increment();
+                return;
+            }
+            ByteBuf payload = packet.content().retain();
+            framesOut.increment();
+            stream.write(payload, stream.voidPromise());
+        }
+        
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            stream.flush();
+        }
+        
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.debug("Tunnel socket error for stream {}: {}", stream.remoteAddress(), cause.getMessage());
+        }
+    }
+}
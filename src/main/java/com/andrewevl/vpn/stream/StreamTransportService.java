@@ -0,0 +1,142 @@
+package com.andrewevl.vpn.stream;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.handshake.HandshakeGuard;
+import com.andrewevl.vpn.model.WireGuardProtocol;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Runs the TCP/TLS stream transport when it is enabled. Handshake initiations
+ * from streams pass through the {@link HandshakeGuard}, which checks their first
+ * MAC against the public key of the WireGuard interface and keys cookie replies
+ * with it.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class StreamTransportService {
+    
+    private final VpnConfig vpnConfig;
+    private final HandshakeGuard handshakeGuard;
+    private final WireGuardProtocol wireGuardProtocol;
+    
+    private StreamTransport transport;
+    private volatile byte[] responderPublicKey;
+    
+    /**
+     * Start the transport if it is enabled.
+     */
+    @PostConstruct
+    public void start() {
+        VpnConfig.StreamConfig config = vpnConfig.getStream();
+        if (!config.isEnabled()) {
+            return;
+        }
+        SslContext sslContext = null;
+        if (config.getTlsCertificate() != null || config.getTlsPrivateKey() != null) {
+            if (config.getTlsCertificate() == null || config.getTlsPrivateKey() == null) {
+                log.error("Stream transport TLS needs both vpn.stream.tls-certificate and vpn.stream.tls-private-key, not starting");
+                return;
+            }
+            try {
+                sslContext = SslContextBuilder.forServer(new File(config.getTlsCertificate()),
+                        new File(config.getTlsPrivateKey())).build();
+            } catch (SSLException | IllegalArgumentException e) {
+                log.error("Failed to load stream transport TLS key pair, not starting: {}", e.getMessage());
+                return;
+            }
+        }
+        transport = new StreamTransport(config, sslContext, handshakeGuard, this::responderPublicKey);
+        try {
+            transport.start();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while starting stream transport");
+        }
+    }
+    
+    /**
+     * Read the WireGuard public key on first use, so starting the transport does
+     * not initialize the protocol. Until it can be read, the first MAC of
+     * initiations is not checked and no cookie replies are sent.
+     */
+    private byte[] responderPublicKey() {
+        byte[] key = responderPublicKey;
+        if (key == null) {
+            try {
+                key = wireGuardProtocol.getServerPublicKey();
+                responderPublicKey = key;
+            } catch (IOException | IllegalArgumentException e) {
+                log.warn("Cannot read WireGuard public key for cookie replies: {}", e.getMessage());
+            }
+        }
+        return key;
+    }
+    
+    /**
+     * Stop the transport.
+     */
+    @PreDestroy
+    public void stop() {
+        if (transport != null) {
+            transport.stop();
+        }
+    }
+    
+    /**
+     * Check if the transport is running.
+     * 
+     * @return true if tunnel datagrams are accepted over TCP or TLS
+     */
+    public boolean isEnabled() {
+        return transport != null;
+    }
+    
+    /**
+     * Get transport statistics.
+     * 
+     * @return a map of statistic names to values, empty if the transport is disabled
+     */
+    public Map<String, Object> getStats() {
+        return transport != null ? transport.getStats() : Map.of();
+    }
+    
+    /**
+     * Get the number of tunnel datagrams received over streams.
+     * 
+     * @return the frame count, 0 if the transport is disabled
+     */
+    public long getFramesIn() {
+        return transport != null ? transport.getFramesIn() : 0;
+    }
+    
+    /**
+     * Get the number of tunnel datagrams sent over streams.
+     * 
+     * @return the frame count, 0 if the transport is disabled
+     */
+    public long getFramesOut() {
+        return transport != null ? transport.getFramesOut() : 0;
+    }
+    
+    /**
+     * Get the number of datagrams dropped because their stream had no tunnel
+     * or could not keep up.
+     * 
+     * @return the datagram count, 0 if the transport is disabled
+     */
+    public long getDroppedDatagrams() {
+        return transport != null ? transport.getDroppedDatagrams() : 0;
+    }
+}
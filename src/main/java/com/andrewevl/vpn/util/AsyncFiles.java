@@ -0,0 +1,217 @@
+package com.andrewevl.vpn.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Whole-file reads and writes on {@link AsynchronousFileChannel}.
+ * <p>
+ * The future-returning methods never block the caller. The blocking variants wait
+ * for the future, which on a virtual thread parks only the virtual thread and
+ * frees its carrier for other requests; they replace {@code Files.readAllBytes},
+ * {@code Files.readAllLines} and {@code Files.write} one for one.
+ */
+public final class AsyncFiles {
+    
+    private AsyncFiles() {
+    }
+    
+    /**
+     * Read a whole file.
+     * 
+     * @param path the file
+     * @return a future completed with the file's contents
+     */
+    public static CompletableFuture<byte[]> read(Path path) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+            long size;
+            try {
+                size = channel.size();
+                if (size > Integer.MAX_VALUE - 8) {
+                    throw new IOException("File too large to read at once: " + path);
+                }
+            } catch (IOException e) {
+                close(channel);
+                throw e;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            channel.read(buffer, 0, buffer, new CompletionHandler<>() {
+                @Override
+                public void completed(Integer read, ByteBuffer attachment) {
+                    if (read >= 0 && attachment.hasRemaining()) {
+                        channel.read(attachment, attachment.position(), attachment, this);
+                        return;
+                    }
+                    // A file that shrank while being read yields what was there
+                    close(channel);
+                    byte[] data = new byte[attachment.position()];
+                    attachment.flip().get(data);
+                    result.complete(data);
+                }
+                
+                @Override
+                public void failed(Throwable error, ByteBuffer attachment) {
+                    close(channel);
+                    result.completeExceptionally(error);
+                }
+            });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+    
+    /**
+     * Create or replace a file.
+     * 
+     * @param path the file
+     * @param data the new contents
+     * @return a future completed when all bytes are written
+     */
+    public static CompletableFuture<Void> write(Path path, byte[] data) {
+        return write(path, data, false);
+    }
+    
+    /**
+     * Create or replace a file, optionally forcing its contents to the storage device
+     * before the future completes.
+     * 
+     * @param path the file
+     * @param data the new contents
+     * @param force true to force the contents and metadata to storage
+     * @return a future completed when all bytes are written, and forced if requested
+     */
+    public static CompletableFuture<Void> write(Path path, byte[] data, boolean force) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(path,
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            channel.write(buffer, 0, buffer, new CompletionHandler<>() {
+                @Override
+                public void completed(Integer written, ByteBuffer attachment) {
+                    if (attachment.hasRemaining()) {
+                        channel.write(attachment, attachment.position(), attachment, this);
+                        return;
+                    }
+                    if (force) {
+                        try {
+                            channel.force(true);
+                        } catch (IOException e) {
+                            close(channel);
+                            result.completeExceptionally(e);
+                            return;
+                        }
+                    }
+                    close(channel);
+                    result.complete(null);
+                }
+                
+                @Override
+                public void failed(Throwable error, ByteBuffer attachment) {
+                    close(channel);
+                    result.completeExceptionally(error);
+                }
+            });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+    
+    /**
+     * Read a whole file, waiting for the read to finish.
+     * 
+     * @param path the file
+     * @return the file's contents
+     * @throws IOException if the file cannot be read
+     */
+    public static byte[] readAllBytes(Path path) throws IOException {
+        return await(read(path));
+    }
+    
+    /**
+     * Read a UTF-8 text file as lines, waiting for the read to finish.
+     * 
+     * @param path the file
+     * @return the lines without line terminators
+     * @throws IOException if the file cannot be read
+     */
+    public static List<String> readAllLines(Path path) throws IOException {
+        return new String(readAllBytes(path), StandardCharsets.UTF_8).lines().toList();
+    }
+    
+    /**
+     * Create or replace a file, waiting for the write to finish.
+     * 
+     * @param path the file
+     * @param data the new contents
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeBytes(Path path, byte[] data) throws IOException {
+        await(write(path, data));
+    }
+    
+    /**
+     * Create or replace a file and force it to the storage device, waiting for both.
+     * Only the file contents are forced; a rename or creation also needs its
+     * directory synced to survive a crash.
+     * 
+     * @param path the file
+     * @param data the new contents
+     * @throws IOException if the file cannot be written or forced
+     */
+    public static void writeBytesDurably(Path path, byte[] data) throws IOException {
+        await(write(path, data, true));
+    }
+    
+    /**
+     * Create or replace a UTF-8 text file, terminating every line with the platform
+     * line separator, waiting for the write to finish.
+     * 
+     * @param path the file
+     * @param lines the lines
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeLines(Path path, List<String> lines) throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append(System.lineSeparator());
+        }
+        writeBytes(path, text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException.getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+    
+    private static void close(AsynchronousFileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing useful to do; the data was already transferred or the operation already failed
+        }
+    }
+}
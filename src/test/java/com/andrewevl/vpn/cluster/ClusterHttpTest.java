@@ -0,0 +1,144 @@
+package com.andrewevl.vpn.cluster;
+
+import com.andrewevl.vpn.VpnApplication;
+import com.andrewevl.vpn.service.VpnService;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs three nodes in one JVM, each on its own localhost port, talking plain HTTP
+ * through the real security chain.
+ */
+class ClusterHttpTest {
+
+    private static final String SECRET = "test-cluster-secret";
+    private static final int NODES = 3;
+
+    @TempDir
+    static Path directory;
+
+    private static final List<ConfigurableApplicationContext> contexts = new ArrayList<>();
+    private static final List<Integer> ports = new ArrayList<>();
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeAll
+    static void startNodes() throws Exception {
+        for (int i = 0; i < NODES; i++) {
+            ports.add(freePort());
+        }
+        for (int i = 0; i < NODES; i++) {
+            contexts.add(new SpringApplicationBuilder(VpnApplication.class).run(
+                    "--server.port=" + ports.get(i),
+                    "--vpn.server-address=node-" + i + ".example",
+                    "--vpn.cluster.enabled=true",
+                    "--vpn.cluster.node-id=node-" + i,
+                    "--vpn.cluster.advertise-address=" + baseUrl(i),
+                    "--vpn.cluster.seeds=" + baseUrl(0),
+                    "--vpn.cluster.shared-secret=" + SECRET,
+                    "--vpn.cluster.heartbeat-interval-millis=200",
+                    "--vpn.journal.enabled=false",
+                    "--vpn.health.enabled=false",
+                    "--vpn.pki.directory=" + directory.resolve("pki-" + i),
+                    "--vpn.protocols.wireguard.directory=" + directory.resolve("wireguard-" + i),
+                    "--vpn.protocols.openvpn.directory=" + directory.resolve("openvpn-" + i)));
+        }
+        long deadline = System.currentTimeMillis() + 20_000;
+        while (System.currentTimeMillis() < deadline && !allNodesSeeEachOther()) {
+            Thread.sleep(100);
+        }
+    }
+
+    @AfterAll
+    static void stopNodes() {
+        contexts.forEach(ConfigurableApplicationContext::close);
+    }
+
+    @Test
+    void nodesJoinOverAuthenticatedHttp() {
+        assertThat(allNodesSeeEachOther()).isTrue();
+    }
+
+    @Test
+    void forwardsConfigurationToOwningNode() {
+        VpnService vpnService = contexts.get(0).getBean(VpnService.class);
+        ClusterService clusterService = contexts.get(0).getBean(ClusterService.class);
+
+        String username = null;
+        ClusterNode owner = null;
+        for (int i = 0; owner == null || clusterService.isLocal(owner); i++) {
+            username = "forwarded-" + i;
+            owner = clusterService.assign("wireguard", username);
+        }
+        String config = vpnService.generateClientConfig("wireguard", username);
+
+        assertThat(config).isNotNull().contains(owner.getId() + ".example");
+    }
+
+    @Test
+    void rejectsNodeRequestsWithoutTheSecret() throws Exception {
+        assertThat(post(0, "/api/cluster/messages", null).statusCode()).isEqualTo(401);
+        assertThat(post(0, "/api/cluster/messages", "wrong").statusCode()).isEqualTo(401);
+        assertThat(post(0, "/api/cluster/client-config?protocol=wireguard&username=x", null).statusCode())
+                .isEqualTo(401);
+    }
+
+    @Test
+    void acceptsNodeRequestsWithTheSecretWithoutCsrfToken() throws Exception {
+        assertThat(post(1, "/api/cluster/messages", SECRET).statusCode()).isEqualTo(200);
+    }
+
+    @Test
+    void servesHealthWithoutCredentialsButHidesDetails() throws Exception {
+        HttpResponse<String> health = client.send(
+                HttpRequest.newBuilder(URI.create(baseUrl(2) + "/actuator/health/protocols")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+
+        assertThat(health.statusCode()).isEqualTo(200);
+        assertThat(health.body()).contains("\"status\"").doesNotContain("reason");
+    }
+
+    private HttpResponse<String> post(int node, String path, String secret) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl(node) + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"type\":\"HEARTBEAT\"}"));
+        if (secret != null) {
+            request.header(HttpClusterTransport.SECRET_HEADER, secret);
+        }
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static boolean allNodesSeeEachOther() {
+        return contexts.size() == NODES && contexts.stream().allMatch(context -> {
+            Map<String, Object> status = context.getBean(ClusterService.class).getStatus();
+            return ((List<?>) status.get("members")).size() == NODES;
+        });
+    }
+
+    private static String baseUrl(int node) {
+        return "http://127.0.0.1:" + ports.get(node);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+}
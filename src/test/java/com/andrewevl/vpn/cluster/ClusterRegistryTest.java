@@ -0,0 +1,220 @@
+package com.andrewevl.vpn.cluster;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ClusterRegistryTest {
+
+    private static final long FAILURE_TIMEOUT = 5000;
+    private static final long DEPARTURE_TIMEOUT = 30000;
+
+    private AtomicLong now;
+    private InMemoryClusterTransport transport;
+    private List<ClusterRegistry> nodes;
+
+    @BeforeEach
+    void setUp() {
+        now = new AtomicLong(1_000_000);
+        transport = new InMemoryClusterTransport();
+        nodes = new ArrayList<>();
+    }
+
+    @Test
+    void nodesDiscoverEachOtherThroughSeed() {
+        startNodes(3);
+        heartbeatRounds(2);
+
+        for (ClusterRegistry node : nodes) {
+            assertThat(node.getMembers()).hasSize(3);
+        }
+    }
+
+    @Test
+    void placementIsReplicatedToAllNodes() {
+        startNodes(3);
+        heartbeatRounds(2);
+
+        for (int i = 0; i < 100; i++) {
+            nodes.get(i % 3).assign("wireguard:user" + i);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            String owner = nodes.get(0).lookup("wireguard:user" + i).orElseThrow().getId();
+            assertThat(nodes.get(1).lookup("wireguard:user" + i).orElseThrow().getId()).isEqualTo(owner);
+            assertThat(nodes.get(2).lookup("wireguard:user" + i).orElseThrow().getId()).isEqualTo(owner);
+        }
+        assertThat(nodes.get(2).getAssignmentCount()).isEqualTo(100);
+    }
+
+    @Test
+    void boundsLoadPerNode() {
+        startNodes(3);
+        heartbeatRounds(2);
+
+        for (int i = 0; i < 300; i++) {
+            nodes.get(0).assign("wireguard:user" + i);
+        }
+
+        // Capacity is ceil(1.25 * 300 / 3)
+        for (int load : nodes.get(0).getLoad().values()) {
+            assertThat(load).isLessThanOrEqualTo(125);
+        }
+    }
+
+    @Test
+    void joinKeepsProvisionedClientsAndFillsNewNodeWithNewOnes() {
+        startNodes(2);
+        heartbeatRounds(2);
+        for (int i = 0; i < 300; i++) {
+            nodes.get(0).assign("wireguard:user" + i);
+        }
+        Map<String, String> before = owners(nodes.get(0), 300);
+
+        startNodes(1);
+        heartbeatRounds(2);
+
+        assertThat(owners(nodes.get(0), 300)).isEqualTo(before);
+        assertThat(owners(nodes.get(2), 300)).isEqualTo(before);
+
+        for (int i = 300; i < 450; i++) {
+            nodes.get(1).assign("wireguard:user" + i);
+        }
+        // Capacity is ceil(1.25 * 450 / 3); the old nodes were near it, so the new node takes most new clients
+        Map<String, Integer> load = nodes.get(0).getLoad();
+        assertThat(load.values()).allMatch(count -> count <= 188);
+        assertThat(load.get("node-2")).isGreaterThanOrEqualTo(75);
+    }
+
+    @Test
+    void keepsClientsOfSuspectNodeAndPlacesNewOnesElsewhere() {
+        startNodes(3);
+        heartbeatRounds(2);
+        for (int i = 0; i < 90; i++) {
+            nodes.get(0).assign("wireguard:user" + i);
+        }
+        Map<String, String> before = owners(nodes.get(0), 90);
+
+        transport.disconnect(nodes.get(2).getSelf().getAddress());
+        heartbeatRounds((int) (FAILURE_TIMEOUT / 1000) + 2);
+
+        assertThat(nodes.get(0).getSuspects()).containsExactly("node-2");
+        assertThat(owners(nodes.get(1), 90)).isEqualTo(before);
+        for (int i = 90; i < 120; i++) {
+            assertThat(nodes.get(0).assign("wireguard:user" + i).getId()).isNotEqualTo("node-2");
+        }
+
+        // Back before the departure timeout, nothing has moved
+        transport.register(nodes.get(2), (protocol, username) -> nodes.get(2).getSelf().getEndpoint());
+        heartbeatRounds(2);
+        assertThat(nodes.get(0).getSuspects()).isEmpty();
+        assertThat(owners(nodes.get(0), 90)).isEqualTo(before);
+    }
+
+    @Test
+    void reassignsClientsOfDepartedNode() {
+        startNodes(3);
+        heartbeatRounds(2);
+        for (int i = 0; i < 90; i++) {
+            nodes.get(0).assign("wireguard:user" + i);
+        }
+        Map<String, String> before = owners(nodes.get(0), 90);
+
+        transport.disconnect(nodes.get(2).getSelf().getAddress());
+        heartbeatRounds((int) (DEPARTURE_TIMEOUT / 1000) + 2);
+
+        Map<String, String> after = owners(nodes.get(1), 90);
+        for (String client : before.keySet()) {
+            if (before.get(client).equals("node-2")) {
+                assertThat(after.get(client)).isNotEqualTo("node-2");
+            } else {
+                assertThat(after.get(client)).isEqualTo(before.get(client));
+            }
+        }
+        assertThat(nodes.get(0).getMembers()).hasSize(2);
+    }
+
+    @Test
+    void leavingNodeHandsOverImmediatelyAndGetsUnprovisionedClientsBack() {
+        startNodes(3);
+        heartbeatRounds(2);
+        for (int i = 0; i < 90; i++) {
+            nodes.get(0).assign("wireguard:user" + i);
+        }
+        Map<String, String> before = owners(nodes.get(0), 90);
+        List<String> ownedByLeaver = before.keySet().stream()
+                .filter(client -> before.get(client).equals("node-2"))
+                .sorted()
+                .toList();
+
+        nodes.get(2).leave();
+        transport.disconnect(nodes.get(2).getSelf().getAddress());
+        heartbeatRounds(1);
+        Map<String, String> moved = owners(nodes.get(0), 90);
+        assertThat(moved.values()).doesNotContain("node-2");
+
+        // One moved client is provisioned on its new node before the old one returns
+        String provisioned = ownedByLeaver.get(0);
+        nodes.get(Integer.parseInt(moved.get(provisioned).substring("node-".length()))).confirm(provisioned);
+
+        restartNode(2);
+        ownedByLeaver.forEach(nodes.get(2)::claim);
+        heartbeatRounds(2);
+
+        for (ClusterRegistry node : nodes) {
+            Map<String, String> after = owners(node, 90);
+            for (String client : ownedByLeaver) {
+                assertThat(after.get(client)).isEqualTo(client.equals(provisioned) ? moved.get(client) : "node-2");
+            }
+        }
+    }
+
+    @Test
+    void keepsClaimedClientsLocal() {
+        startNodes(2);
+        heartbeatRounds(2);
+
+        assertThat(nodes.get(1).claim("openvpn:alice").getId()).isEqualTo("node-1");
+        assertThat(nodes.get(0).assign("openvpn:alice").getId()).isEqualTo("node-1");
+    }
+
+    private void startNodes(int count) {
+        for (int i = 0; i < count; i++) {
+            nodes.add(newNode(nodes.size()));
+        }
+    }
+
+    private void restartNode(int index) {
+        nodes.set(index, newNode(index));
+    }
+
+    private ClusterRegistry newNode(int index) {
+        ClusterNode self = new ClusterNode("node-" + index, "mem://node-" + index, "10.1.0." + index);
+        ClusterRegistry registry = new ClusterRegistry(self, transport, List.of("mem://node-0"),
+                64, 0.25, FAILURE_TIMEOUT, DEPARTURE_TIMEOUT, now::get);
+        transport.register(registry, (protocol, username) -> self.getEndpoint());
+        return registry;
+    }
+
+    private void heartbeatRounds(int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            now.addAndGet(1000);
+            nodes.forEach(ClusterRegistry::heartbeat);
+        }
+    }
+
+    private static Map<String, String> owners(ClusterRegistry node, int clients) {
+        Map<String, String> owners = new HashMap<>();
+        for (int i = 0; i < clients; i++) {
+            owners.put("wireguard:user" + i, node.lookup("wireguard:user" + i).orElseThrow().getId());
+        }
+        return owners;
+    }
+}
@@ -0,0 +1,141 @@
+package com.andrewevl.vpn.controller;
+
+import com.andrewevl.vpn.cluster.ClusterService;
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.journal.EventJournal;
+import com.andrewevl.vpn.load.LoadTable;
+import com.andrewevl.vpn.model.Protocol;
+import com.andrewevl.vpn.service.ClientRegistry;
+import com.andrewevl.vpn.service.VpnService;
+import com.andrewevl.vpn.stream.StreamTransportService;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class ProvisioningBackpressureTest {
+
+    private final VpnConfig config = new VpnConfig();
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private VpnService vpnService;
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        config.getProvisioning().setThreads(1);
+        config.getProvisioning().setQueueCapacity(1);
+        config.getProvisioning().setRetryAfterSeconds(7);
+        ClientRegistry clientRegistry = new ClientRegistry();
+        vpnService = new VpnService(List.of(new BlockingProtocol()), clientRegistry, config,
+                new ClusterService(config, new ObjectMapper()), new EventJournal(config));
+        mockMvc = MockMvcBuilders
+                .standaloneSetup(new VpnController(vpnService, new LoadTable(config), clientRegistry,
+                                new StreamTransportService(config, null, null)),
+                        new UnrelatedController())
+                .setControllerAdvice(new ProvisioningExceptionHandler(config))
+                .build();
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        vpnService.shutdown();
+    }
+
+    @Test
+    void rejectsWith429AndRetryAfterOnceQueueIsFull() throws Exception {
+        // One request holds the only thread, the next one takes the only queue slot
+        MvcResult running = mockMvc.perform(post("/api/vpn/protocols/blocking/client-config").param("username", "a"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+        MvcResult queued = mockMvc.perform(post("/api/vpn/protocols/blocking/client-config").param("username", "b"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        assertThat(vpnService.getProvisioningQueueLength()).isEqualTo(1);
+
+        mockMvc.perform(post("/api/vpn/protocols/blocking/client-config").param("username", "c"))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string("Retry-After", "7"))
+                .andExpect(jsonPath("$.retryAfterSeconds").value(7));
+
+        release.countDown();
+        mockMvc.perform(asyncDispatch(running)).andExpect(status().isOk()).andExpect(jsonPath("$.config").value("config-a"));
+        mockMvc.perform(asyncDispatch(queued)).andExpect(status().isOk()).andExpect(jsonPath("$.config").value("config-b"));
+    }
+
+    @Test
+    void leavesRejectionsOfOtherControllersAlone() {
+        assertThatThrownBy(() -> mockMvc.perform(post("/unrelated")))
+                .hasRootCauseInstanceOf(RejectedExecutionException.class);
+    }
+
+    @RestController
+    private static class UnrelatedController {
+
+        @PostMapping("/unrelated")
+        String reject() {
+            throw new RejectedExecutionException("Some other executor is shut down");
+        }
+    }
+
+    private class BlockingProtocol implements Protocol {
+
+        @Override
+        public boolean startServer() {
+            return true;
+        }
+
+        @Override
+        public boolean stopServer() {
+            return true;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return true;
+        }
+
+        @Override
+        public String getName() {
+            return "Blocking";
+        }
+
+        @Override
+        public int getDefaultPort() {
+            return 0;
+        }
+
+        @Override
+        public String generateClientConfig(String username) {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return "config-" + username;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.andrewevl.vpn.controller;
+
+import com.andrewevl.vpn.VpnApplication;
+import com.andrewevl.vpn.journal.EventJournal;
+import com.andrewevl.vpn.journal.JournalEventType;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.io.IOException;
+import java.net.CookieManager;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Drives the journal query endpoint of a running server over HTTP, through the real
+ * Tomcat connector and security chain, with a logged-in session. Each request
+ * reads journal segments from disk on the request thread. The server runs once on
+ * Tomcat's default pool ({@code server.tomcat.threads.max=200}) and once with
+ * {@code spring.threads.virtual.enabled=true}, at several client concurrencies.
+ * Run with {@code ./mvnw test -Dtest=VirtualThreadConcurrencyBenchmark -Dbenchmark=true}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class VirtualThreadConcurrencyBenchmark {
+
+    private static final String USER = "bench";
+    private static final String PASSWORD = "bench";
+    private static final Pattern CSRF_INPUT = Pattern.compile("name=\"_csrf\"[^>]*?value=\"([^\"]+)\"");
+    private static final int JOURNAL_EVENTS = 20_000;
+    private static final int PAGE_SIZE = 100;
+    private static final int REQUESTS = 2_000;
+    private static final int[] CONCURRENCY = {50, 200, 800};
+    private static final int ROUNDS = 2;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void compareTomcatPoolWithVirtualThreads() throws Exception {
+        for (boolean virtual : new boolean[] {false, true}) {
+            int port = freePort();
+            try (ConfigurableApplicationContext context = new SpringApplicationBuilder(VpnApplication.class).run(
+                    "--server.port=" + port,
+                    "--spring.threads.virtual.enabled=" + virtual,
+                    "--spring.security.user.name=" + USER,
+                    "--spring.security.user.password=" + PASSWORD,
+                    "--vpn.health.enabled=false",
+                    "--vpn.journal.directory=" + directory.resolve("journal-" + virtual),
+                    "--vpn.pki.directory=" + directory.resolve("pki-" + virtual),
+                    "--vpn.protocols.wireguard.directory=" + directory.resolve("wireguard-" + virtual),
+                    "--vpn.protocols.openvpn.directory=" + directory.resolve("openvpn-" + virtual),
+                    "--logging.level.root=WARN")) {
+                EventJournal journal = context.getBean(EventJournal.class);
+                for (int i = 0; i < JOURNAL_EVENTS; i++) {
+                    journal.record(JournalEventType.CLIENT_CONFIG_GENERATED, "wireguard", "user" + i, true);
+                }
+                // Let the writer sync the events into a segment
+                Thread.sleep(1_000);
+
+                String baseUrl = "http://127.0.0.1:" + port;
+                HttpClient client = login(baseUrl);
+                URI uri = URI.create(baseUrl + "/api/vpn/journal?limit=" + PAGE_SIZE);
+                for (int concurrency : CONCURRENCY) {
+                    for (int round = 0; round < ROUNDS; round++) {
+                        Result result = run(client, uri, concurrency);
+                        System.out.printf("%s, %d clients, round %d: %d ms, %.0f req/s, p50 %d ms, p99 %d ms, %d failed%n",
+                                virtual ? "virtual threads" : "200-thread pool", concurrency, round, result.millis,
+                                REQUESTS * 1000.0 / result.millis, result.p50, result.p99, result.failed);
+                        assertThat(result.failed).isZero();
+                    }
+                }
+            }
+        }
+    }
+
+    private static Result run(HttpClient client, URI uri, int concurrency) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+        AtomicInteger remaining = new AtomicInteger(REQUESTS);
+        AtomicInteger failed = new AtomicInteger();
+        List<Long> latencies = new ArrayList<>(REQUESTS);
+        long start = System.nanoTime();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<List<Long>>> workers = new ArrayList<>();
+            for (int i = 0; i < concurrency; i++) {
+                workers.add(clients.submit(() -> {
+                    List<Long> own = new ArrayList<>();
+                    while (remaining.getAndDecrement() > 0) {
+                        long sent = System.nanoTime();
+                        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        own.add((System.nanoTime() - sent) / 1_000_000);
+                        if (response.statusCode() != 200) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                    return own;
+                }));
+            }
+            for (Future<List<Long>> worker : workers) {
+                latencies.addAll(worker.get());
+            }
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        latencies.sort(null);
+        return new Result(millis, latencies.get(latencies.size() / 2), latencies.get(latencies.size() * 99 / 100),
+                failed.get());
+    }
+
+    /**
+     * Log in through the form once and keep the session cookie. HTTP Basic would
+     * check the password on every request, and with the encoder Spring Security
+     * upgrades stored passwords to that is a BCrypt hash per request, which would
+     * dominate the measurement.
+     */
+    private static HttpClient login(String baseUrl) throws IOException, InterruptedException {
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .cookieHandler(new CookieManager())
+                .build();
+        String page = client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/login")).GET().build(),
+                HttpResponse.BodyHandlers.ofString()).body();
+        Matcher csrf = CSRF_INPUT.matcher(page);
+        assertThat(csrf.find()).isTrue();
+        String form = "username=" + USER + "&password=" + PASSWORD + "&_csrf="
+                + URLEncoder.encode(csrf.group(1), StandardCharsets.UTF_8);
+        client.send(HttpRequest.newBuilder(URI.create(baseUrl + "/login"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(form))
+                .build(), HttpResponse.BodyHandlers.discarding());
+        return client;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private record Result(long millis, long p50, long p99, int failed) {
+    }
+}
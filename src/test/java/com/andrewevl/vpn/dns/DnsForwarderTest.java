@@ -0,0 +1,212 @@
+package com.andrewevl.vpn.dns;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DnsForwarderTest {
+
+    private StubUpstream upstream;
+    private DnsForwarder forwarder;
+    private InetSocketAddress forwarderAddress;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        upstream = new StubUpstream();
+        upstream.start();
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (forwarder != null) {
+            forwarder.stop();
+        }
+        upstream.close();
+    }
+
+    @Test
+    void answersRepeatedQuestionFromCache() throws Exception {
+        startForwarder(2000);
+
+        byte[] first = ask(query(0x1111, "example.com"));
+        byte[] second = ask(query(0x2222, "EXAMPLE.com"));
+
+        assertThat(DnsMessages.id(first)).isEqualTo(0x1111);
+        assertThat(DnsMessages.id(second)).isEqualTo(0x2222);
+        assertThat(DnsMessages.minTtl(second)).isBetween(59L, 60L);
+        assertThat(upstream.queries.get()).isEqualTo(1);
+    }
+
+    @Test
+    void coalescesConcurrentIdenticalQuestions() throws Exception {
+        upstream.delayMillis = 300;
+        startForwarder(2000);
+
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(3000);
+            for (int id = 1; id <= 5; id++) {
+                byte[] query = query(id, "coalesce.test");
+                client.send(new DatagramPacket(query, query.length, forwarderAddress));
+            }
+            List<Integer> ids = new ArrayList<>();
+            for (int i = 0; i < 5; i++) {
+                ids.add(DnsMessages.id(receive(client)));
+            }
+            assertThat(ids).containsExactlyInAnyOrder(1, 2, 3, 4, 5);
+        }
+        assertThat(upstream.queries.get()).isEqualTo(1);
+    }
+
+    @Test
+    void answersServfailWhenUpstreamIsSilent() throws Exception {
+        upstream.silent = true;
+        startForwarder(200);
+
+        byte[] response = ask(query(0x3333, "silent.test"));
+
+        assertThat(DnsMessages.id(response)).isEqualTo(0x3333);
+        assertThat(DnsMessages.rcode(response)).isEqualTo(DnsMessages.RCODE_SERVFAIL);
+    }
+
+    @Test
+    void answersServfailOnceInFlightLimitIsReached() throws Exception {
+        upstream.silent = true;
+        startForwarder(5000, 2);
+
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(1000);
+            for (int id = 1; id <= 3; id++) {
+                byte[] query = query(id, "name" + id + ".test");
+                client.send(new DatagramPacket(query, query.length, forwarderAddress));
+            }
+            byte[] response = receive(client);
+
+            assertThat(DnsMessages.id(response)).isEqualTo(3);
+            assertThat(DnsMessages.rcode(response)).isEqualTo(DnsMessages.RCODE_SERVFAIL);
+        }
+        assertThat(forwarder.getStats()).containsEntry("rejectedQueries", 1L);
+    }
+
+    @Test
+    void keepsUnavailableAddressPendingUntilItCanBeBound() throws Exception {
+        // 192.0.2.1 is reserved for documentation and never assigned to a local interface
+        InetSocketAddress gateway = new InetSocketAddress("192.0.2.1", 0);
+        forwarder = new DnsForwarder(List.of(gateway), upstream.address(), new DnsCache(100, 3600, 30), 2000, 16);
+
+        assertThat(forwarder.start()).isEmpty();
+        assertThat(forwarder.isListening()).isFalse();
+        assertThat(forwarder.isListening("192.0.2.1")).isFalse();
+        assertThat(forwarder.isFullyBound()).isFalse();
+        assertThat(forwarder.bindPending()).isEmpty();
+        assertThat(forwarder.getStats()).containsEntry("pendingListenAddresses", 1);
+    }
+
+    private void startForwarder(long timeoutMillis) throws InterruptedException {
+        startForwarder(timeoutMillis, 16);
+    }
+
+    private void startForwarder(long timeoutMillis, int maxInFlight) throws InterruptedException {
+        forwarder = new DnsForwarder(List.of(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)),
+                upstream.address(), new DnsCache(100, 3600, 30), timeoutMillis, maxInFlight);
+        forwarderAddress = forwarder.start().get(0);
+        assertThat(forwarder.isFullyBound()).isTrue();
+    }
+
+    private byte[] ask(byte[] query) throws Exception {
+        try (DatagramSocket client = new DatagramSocket()) {
+            client.setSoTimeout(3000);
+            client.send(new DatagramPacket(query, query.length, forwarderAddress));
+            return receive(client);
+        }
+    }
+
+    private static byte[] receive(DatagramSocket socket) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+        socket.receive(packet);
+        return Arrays.copyOf(packet.getData(), packet.getLength());
+    }
+
+    private static byte[] query(int id, String name) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(id >>> 8);
+        out.write(id);
+        out.writeBytes(new byte[] {0x01, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00});
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            out.writeBytes(label.getBytes(StandardCharsets.US_ASCII));
+        }
+        out.writeBytes(new byte[] {0x00, 0x00, 0x01, 0x00, 0x01});
+        return out.toByteArray();
+    }
+
+    /**
+     * Upstream resolver that answers every A question with 192.0.2.1 and a TTL of 60.
+     */
+    private static class StubUpstream extends Thread {
+
+        private final DatagramSocket socket;
+        private final AtomicInteger queries = new AtomicInteger();
+        private volatile long delayMillis;
+        private volatile boolean silent;
+
+        StubUpstream() throws SocketException {
+            socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            setDaemon(true);
+        }
+
+        InetSocketAddress address() {
+            return (InetSocketAddress) socket.getLocalSocketAddress();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!socket.isClosed()) {
+                    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                    socket.receive(packet);
+                    queries.incrementAndGet();
+                    if (silent) {
+                        continue;
+                    }
+                    Thread.sleep(delayMillis);
+                    byte[] response = answer(Arrays.copyOf(packet.getData(), packet.getLength()));
+                    socket.send(new DatagramPacket(response, response.length, packet.getSocketAddress()));
+                }
+            } catch (Exception e) {
+                // Socket closed
+            }
+        }
+
+        void close() {
+            socket.close();
+        }
+
+        private static byte[] answer(byte[] query) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.writeBytes(query);
+            byte[] response = out.toByteArray();
+            response[2] = (byte) 0x81;
+            response[3] = (byte) 0x80;
+            response[7] = 1;
+            out.reset();
+            out.writeBytes(response);
+            out.writeBytes(new byte[] {(byte) 0xC0, 0x0C, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00, 0x00, 0x3C,
+                    0x00, 0x04, (byte) 192, 0, 2, 1});
+            return out.toByteArray();
+        }
+    }
+}
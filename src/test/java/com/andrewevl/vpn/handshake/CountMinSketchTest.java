@@ -0,0 +1,43 @@
+package com.andrewevl.vpn.handshake;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CountMinSketchTest {
+
+    @Test
+    void neverUndercountsAndStaysCloseForHeavyKeys() {
+        CountMinSketch sketch = new CountMinSketch(1024, 4);
+        Map<Long, Integer> counts = new HashMap<>();
+        Random random = new Random(1);
+
+        for (int i = 0; i < 100_000; i++) {
+            // One in ten increments goes to a single heavy source
+            long key = random.nextInt(10) == 0 ? 42 : random.nextInt(20_000);
+            sketch.increment(key);
+            counts.merge(key, 1, Integer::sum);
+        }
+
+        counts.forEach((key, count) -> assertThat(sketch.estimate(key)).isGreaterThanOrEqualTo(count));
+        int heavy = counts.get(42L);
+        // Error bound: e / width * total increments, with high probability over 4 rows
+        assertThat(sketch.estimate(42)).isLessThanOrEqualTo(heavy + (int) (Math.E / 1024 * 100_000));
+    }
+
+    @Test
+    void incrementReturnsEstimateAndClearResets() {
+        CountMinSketch sketch = new CountMinSketch(1000, 3);
+
+        assertThat(sketch.increment(7)).isEqualTo(1);
+        assertThat(sketch.increment(7)).isEqualTo(2);
+        assertThat(sketch.sizeInBytes()).isEqualTo(1024L * 3 * Integer.BYTES);
+
+        sketch.clear();
+        assertThat(sketch.estimate(7)).isZero();
+    }
+}
@@ -0,0 +1,149 @@
+package com.andrewevl.vpn.handshake;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import org.bouncycastle.crypto.digests.Blake2sDigest;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HandshakeGuardTest {
+
+    private static final InetSocketAddress SOURCE = new InetSocketAddress("198.51.100.7", 40000);
+    private static final byte[] PUBLIC_KEY = new byte[32];
+
+    private final HandshakeGuard guard = newGuard(3, 2);
+
+    @Test
+    void admitsEverythingBelowThresholdThenAsksForCookies() {
+        for (int i = 0; i < 3; i++) {
+            assertThat(guard.inspect(SOURCE, initiation(), PUBLIC_KEY)).isEqualTo(HandshakeGuard.Verdict.ACCEPT);
+        }
+        assertThat(guard.isUnderLoad()).isFalse();
+
+        assertThat(guard.inspect(SOURCE, initiation(), PUBLIC_KEY)).isEqualTo(HandshakeGuard.Verdict.COOKIE_REPLY);
+        assertThat(guard.isUnderLoad()).isTrue();
+    }
+
+    @Test
+    void acceptsValidCookieMacUnderLoadAndRateLimitsItsSource() {
+        overload();
+        byte[] cookie = guard.cookieFor(SOURCE);
+
+        assertThat(guard.inspect(SOURCE, withMac2(initiation(), cookie), PUBLIC_KEY)).isEqualTo(HandshakeGuard.Verdict.ACCEPT);
+        assertThat(guard.inspect(SOURCE, withMac2(initiation(), cookie), PUBLIC_KEY)).isEqualTo(HandshakeGuard.Verdict.ACCEPT);
+        assertThat(guard.inspect(SOURCE, withMac2(initiation(), cookie), PUBLIC_KEY)).isEqualTo(HandshakeGuard.Verdict.DROP);
+    }
+
+    @Test
+    void rejectsCookieOfAnotherSource() {
+        overload();
+        byte[] otherCookie = guard.cookieFor(new InetSocketAddress("198.51.100.7", 40001));
+
+        assertThat(guard.inspect(SOURCE, withMac2(initiation(), otherCookie), PUBLIC_KEY))
+                .isEqualTo(HandshakeGuard.Verdict.COOKIE_REPLY);
+    }
+
+    @Test
+    void cookieSurvivesOneSecretRotation() {
+        CookieGenerator generator = new CookieGenerator();
+        byte[] message = withMac2(initiation(), generator.cookieFor(SOURCE));
+        long now = System.currentTimeMillis();
+
+        generator.rotateIfExpired(now + CookieGenerator.SECRET_MAX_AGE_MILLIS);
+        assertThat(generator.isValidMac(SOURCE, message, message.length - CookieGenerator.MAC_LENGTH)).isTrue();
+
+        generator.rotateIfExpired(now + 2 * CookieGenerator.SECRET_MAX_AGE_MILLIS);
+        assertThat(generator.isValidMac(SOURCE, message, message.length - CookieGenerator.MAC_LENGTH)).isFalse();
+    }
+
+    @Test
+    void dropsJunkInitiationWithoutCountingIt() {
+        byte[] junk = new byte[CookieReply.INITIATION_LENGTH];
+        new Random(7).nextBytes(junk);
+        junk[0] = CookieReply.INITIATION_TYPE;
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(guard.inspect(SOURCE, junk, PUBLIC_KEY)).isEqualTo(HandshakeGuard.Verdict.DROP);
+        }
+        assertThat(guard.isUnderLoad()).isFalse();
+        assertThat(guard.inspect(SOURCE, initiation(), PUBLIC_KEY)).isEqualTo(HandshakeGuard.Verdict.ACCEPT);
+        // A key the initiator did not use makes the same initiation junk
+        assertThat(guard.inspect(SOURCE, initiation(), new byte[] {1})).isEqualTo(HandshakeGuard.Verdict.DROP);
+    }
+
+    @Test
+    void leavesOverloadOnceRateFalls() {
+        overload();
+        guard.rollWindow();
+        assertThat(guard.isUnderLoad()).isTrue();
+
+        guard.inspect(SOURCE, initiation(), PUBLIC_KEY);
+        guard.rollWindow();
+        assertThat(guard.isUnderLoad()).isFalse();
+    }
+
+    @Test
+    void concurrentCallersSwitchOnce() throws Exception {
+        HandshakeGuard busy = newGuard(100, 1000);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 1000; i++) {
+                    busy.inspect(SOURCE, initiation(), PUBLIC_KEY);
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(busy.isUnderLoad()).isTrue();
+        assertThat(busy.getStats().get("accepted")).isEqualTo(100L);
+        assertThat(busy.getStats().get("cookieReplies")).isEqualTo(7900L);
+    }
+
+    private void overload() {
+        for (int i = 0; i < 4; i++) {
+            guard.inspect(SOURCE, initiation(), PUBLIC_KEY);
+        }
+    }
+
+    private static HandshakeGuard newGuard(int overloadThreshold, int perSourceLimit) {
+        VpnConfig config = new VpnConfig();
+        config.getHandshake().setOverloadThreshold(overloadThreshold);
+        config.getHandshake().setPerSourceLimit(perSourceLimit);
+        return new HandshakeGuard(config);
+    }
+
+    private static byte[] initiation() {
+        byte[] message = new byte[CookieReply.INITIATION_LENGTH];
+        message[0] = CookieReply.INITIATION_TYPE;
+        int offset = message.length - 2 * CookieGenerator.MAC_LENGTH;
+        Blake2sDigest digest = new Blake2sDigest(CookieGenerator.mac1Key(PUBLIC_KEY), CookieGenerator.MAC_LENGTH,
+                null, null);
+        digest.update(message, 0, offset);
+        digest.doFinal(message, offset);
+        return message;
+    }
+
+    private static byte[] withMac2(byte[] message, byte[] cookie) {
+        int offset = message.length - CookieGenerator.MAC_LENGTH;
+        Blake2sDigest digest = new Blake2sDigest(cookie, CookieGenerator.MAC_LENGTH, null, null);
+        digest.update(message, 0, offset);
+        digest.doFinal(message, offset);
+        return message;
+    }
+}
@@ -0,0 +1,130 @@
+package com.andrewevl.vpn.health;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LivenessProbesTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void portBoundCheckTreatsSilentListenerAsBound() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            ProbeResult result = LivenessProbes.udpPortBound(
+                    new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 200);
+
+            assertThat(result.isUp()).isTrue();
+        }
+    }
+
+    @Test
+    void portBoundCheckReportsClosedPortAsDown() throws Exception {
+        int port;
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+
+        ProbeResult result = LivenessProbes.udpPortBound(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1000);
+
+        assertThat(result.isUp()).isFalse();
+        assertThat(result.getError()).isEqualTo("port unreachable");
+    }
+
+    @Test
+    void resetProbeRequiresServerReset() throws Exception {
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+            Thread.ofPlatform().daemon().start(() -> answerReset(server));
+
+            assertThat(LivenessProbes.openVpnReset(address, 1000).isUp()).isTrue();
+
+            // The responder answered once; a hung server stays silent
+            ProbeResult silent = LivenessProbes.openVpnReset(address, 200);
+            assertThat(silent.isUp()).isFalse();
+            assertThat(silent.getError()).isEqualTo("no reply");
+        }
+    }
+
+    @Test
+    void resetReplyMustAcknowledgeOurSession() {
+        byte[] session = {1, 2, 3, 4, 5, 6, 7, 8};
+        byte[] other = {9, 9, 9, 9, 9, 9, 9, 9};
+
+        assertThat(LivenessProbes.isResetReply(serverReset(session), session)).isTrue();
+        assertThat(LivenessProbes.isResetReply(serverReset(other), session)).isFalse();
+        byte[] wrongOpcode = serverReset(session);
+        wrongOpcode[0] = (byte) (7 << 3);
+        assertThat(LivenessProbes.isResetReply(wrongOpcode, session)).isFalse();
+    }
+
+    @Test
+    void managementProbeExpectsPidAnswerOnUnixSocket() throws Exception {
+        Path socket = directory.resolve("management.sock");
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Thread.ofPlatform().daemon().start(() -> serveManagement(server, "SUCCESS: pid=4242"));
+            assertThat(LivenessProbes.openVpnManagement(socket, 1000).isUp()).isTrue();
+
+            Thread.ofPlatform().daemon().start(() -> serveManagement(server, "ERROR: unknown command"));
+            ProbeResult failed = LivenessProbes.openVpnManagement(socket, 1000);
+            assertThat(failed.isUp()).isFalse();
+            assertThat(failed.getError()).contains("ERROR");
+        }
+
+        assertThat(LivenessProbes.openVpnManagement(directory.resolve("missing.sock"), 200).isUp()).isFalse();
+    }
+
+    private static void answerReset(DatagramSocket server) {
+        try {
+            DatagramPacket request = new DatagramPacket(new byte[1500], 1500);
+            server.receive(request);
+            byte[] reply = serverReset(Arrays.copyOfRange(request.getData(), 1, 9));
+            server.send(new DatagramPacket(reply, reply.length, request.getSocketAddress()));
+        } catch (Exception e) {
+            // The test finished
+        }
+    }
+
+    private static byte[] serverReset(byte[] acknowledgedSession) {
+        // Opcode, server session ID, one ACK for packet 0, acknowledged session ID, message packet ID
+        return ByteBuffer.allocate(1 + 8 + 1 + 4 + 8 + 4)
+                .put((byte) (8 << 3)).putLong(42).put((byte) 1).putInt(0).put(acknowledgedSession).putInt(0)
+                .array();
+    }
+
+    private static void serveManagement(ServerSocketChannel server, String answer) {
+        try (SocketChannel client = server.accept()) {
+            PrintWriter out = new PrintWriter(Channels.newOutputStream(client), true, StandardCharsets.US_ASCII);
+            BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.US_ASCII));
+            out.print(">INFO:OpenVPN Management Interface Version 5 -- type 'help' for more info\r\n");
+            out.flush();
+            if ("pid".equals(in.readLine())) {
+                out.print(">BYTECOUNT:100,200\r\n" + answer + "\r\n");
+                out.flush();
+            }
+            in.readLine();
+        } catch (Exception e) {
+            // The probe gave up or closed the connection
+        }
+    }
+}
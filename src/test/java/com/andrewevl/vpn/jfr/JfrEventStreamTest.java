@@ -0,0 +1,104 @@
+package com.andrewevl.vpn.jfr;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.handshake.CookieReply;
+import com.andrewevl.vpn.handshake.HandshakeGuard;
+import com.andrewevl.vpn.nat.NatService;
+import com.andrewevl.vpn.stream.StreamTransportService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class JfrEventStreamTest {
+
+    private JfrEventStream eventStream;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        VpnConfig vpnConfig = new VpnConfig();
+        eventStream = new JfrEventStream(vpnConfig, new NatService(vpnConfig),
+                new StreamTransportService(vpnConfig, null, null));
+        eventStream.initialize();
+    }
+
+    @AfterEach
+    void tearDown() {
+        eventStream.shutdown();
+    }
+
+    @Test
+    void recordsEventsOnlyWhileStreaming() throws InterruptedException {
+        emitClientConfig("before");
+        assertThat(eventStream.start()).isTrue();
+        assertThat(eventStream.start()).isFalse();
+        emitClientConfig("alice");
+
+        Map<String, Object> event = awaitClientConfigEvent("alice").orElseThrow();
+
+        assertThat(event.get("protocol")).isEqualTo("WireGuard");
+        assertThat(event.get("bytes")).isEqualTo(42L);
+        assertThat(event.get("success")).isEqualTo(true);
+        assertThat(findClientConfigEvent("before")).isEmpty();
+        assertThat(eventStream.stop()).isTrue();
+        assertThat(eventStream.isRunning()).isFalse();
+    }
+
+    @Test
+    void recordsHandshakeVerdicts() throws InterruptedException {
+        HandshakeGuard guard = new HandshakeGuard(new VpnConfig());
+        InetSocketAddress source = new InetSocketAddress("192.0.2.7", 51820);
+        eventStream.start();
+
+        // No valid first MAC for this key
+        guard.inspect(source, new byte[CookieReply.INITIATION_LENGTH], new byte[32]);
+
+        Map<String, Object> event = awaitEvent(HandshakeEvent.NAME, "source", source.toString()).orElseThrow();
+        assertThat(event.get("protocol")).isEqualTo("WireGuard");
+        assertThat(event.get("verdict")).isEqualTo("DROP");
+    }
+
+    private static void emitClientConfig(String user) {
+        ClientConfigEvent event = new ClientConfigEvent();
+        event.begin();
+        event.protocol = "WireGuard";
+        event.user = user;
+        event.bytes = 42;
+        event.success = true;
+        event.commit();
+    }
+
+    private Optional<Map<String, Object>> awaitClientConfigEvent(String user) throws InterruptedException {
+        return awaitEvent(ClientConfigEvent.NAME, "user", user);
+    }
+
+    private Optional<Map<String, Object>> findClientConfigEvent(String user) {
+        return findEvent(ClientConfigEvent.NAME, "user", user);
+    }
+
+    private Optional<Map<String, Object>> awaitEvent(String name, String field, Object value)
+            throws InterruptedException {
+        // The stream delivers events in chunks, about once a second
+        for (int i = 0; i < 100; i++) {
+            Optional<Map<String, Object>> event = findEvent(name, field, value);
+            if (event.isPresent()) {
+                return event;
+            }
+            Thread.sleep(100);
+        }
+        return Optional.empty();
+    }
+
+    private Optional<Map<String, Object>> findEvent(String name, String field, Object value) {
+        List<Map<String, Object>> events = eventStream.getRecentEvents(null);
+        return events.stream()
+                .filter(event -> name.equals(event.get("event")) && value.equals(event.get(field)))
+                .findFirst();
+    }
+}
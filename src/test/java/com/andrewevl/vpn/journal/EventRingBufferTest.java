@@ -0,0 +1,52 @@
+package com.andrewevl.vpn.journal;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EventRingBufferTest {
+
+    @Test
+    void dropsEventsWhenFullInsteadOfBlocking() {
+        EventRingBuffer ring = new EventRingBuffer(4);
+        for (int i = 0; i < 6; i++) {
+            ring.tryPublish(i, 0, JournalEventType.PROTOCOL_STARTED, "wireguard", null, true);
+        }
+
+        List<Long> seconds = new ArrayList<>();
+        assertThat(ring.drain(slot -> seconds.add(slot.epochSecond), 100)).isEqualTo(4);
+        assertThat(seconds).containsExactly(0L, 1L, 2L, 3L);
+        assertThat(ring.getDroppedCount()).isEqualTo(2);
+        assertThat(ring.tryPublish(9, 0, JournalEventType.PROTOCOL_STOPPED, "wireguard", null, true)).isTrue();
+    }
+
+    @Test
+    void deliversEveryEventFromConcurrentProducers() throws InterruptedException {
+        EventRingBuffer ring = new EventRingBuffer(1 << 16);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            String user = "user" + p;
+            Thread producer = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    ring.tryPublish(i, 0, JournalEventType.CLIENT_CONFIG_GENERATED, "openvpn", user, true);
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        AtomicInteger consumed = new AtomicInteger();
+        while (ring.drain(slot -> consumed.incrementAndGet(), 1024) > 0) {
+            // Keep draining until the ring is empty
+        }
+        assertThat(consumed.get()).isEqualTo(40_000);
+        assertThat(ring.isEmpty()).isTrue();
+    }
+}
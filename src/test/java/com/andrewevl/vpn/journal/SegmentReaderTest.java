@@ -0,0 +1,87 @@
+package com.andrewevl.vpn.journal;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SegmentReaderTest {
+
+    private static final long START = 1_800_000_000L;
+
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    void readsTimeRangeAcrossSegments() throws IOException {
+        // Small segments so the events span many files
+        try (SegmentWriter writer = new SegmentWriter(directory, 256)) {
+            for (int i = 0; i < 100; i++) {
+                writer.append(slot(START + i, i % 2 == 0 ? "alice" : null, i % 3 != 0));
+            }
+        }
+
+        List<JournalEvent> events = SegmentReader.read(directory,
+                Instant.ofEpochSecond(START + 40), Instant.ofEpochSecond(START + 50), 100);
+
+        assertThat(events).hasSize(10);
+        assertThat(events.get(0).getTimestamp()).isEqualTo(Instant.ofEpochSecond(START + 40, 500));
+        assertThat(events.get(0).getSubject()).isEqualTo("alice");
+        assertThat(events.get(1).getSubject()).isNull();
+        assertThat(events.get(0).isSuccess()).isTrue();
+        assertThat(events.get(2).isSuccess()).isFalse();
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.count()).isGreaterThan(10);
+        }
+    }
+
+    @Test
+    void stopsAtTornRecord() throws IOException {
+        try (SegmentWriter writer = new SegmentWriter(directory, 1 << 20)) {
+            for (int i = 0; i < 3; i++) {
+                writer.append(slot(START + i, "bob", true));
+            }
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        Files.write(segment, new byte[]{0, 0, 0, 40, 1, 2, 3}, StandardOpenOption.APPEND);
+
+        assertThat(SegmentReader.read(directory, Instant.EPOCH, Instant.ofEpochSecond(START + 10), 100)).hasSize(3);
+    }
+
+    private static EventRingBuffer.Slot slot(long epochSecond, String subject, boolean success) {
+        EventRingBuffer.Slot slot = new EventRingBuffer.Slot();
+        slot.epochSecond = epochSecond;
+        slot.nano = 500;
+        slot.type = JournalEventType.CLIENT_CONFIG_GENERATED;
+        slot.protocol = "openvpn";
+        slot.subject = subject;
+        slot.success = success;
+        return slot;
+    }
+}
@@ -0,0 +1,81 @@
+package com.andrewevl.vpn.load;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.model.Endpoint;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EndpointSelectorTest {
+
+    private static final Endpoint FIRST = new Endpoint("203.0.113.1", 1194);
+    private static final Endpoint SECOND = new Endpoint("203.0.113.2", 1194);
+    private static final Endpoint THIRD = new Endpoint("203.0.113.3", 1194);
+
+    private VpnConfig vpnConfig;
+    private double cpu;
+    private LoadTable loadTable;
+    private EndpointSelector selector;
+
+    @BeforeEach
+    void setUp() {
+        vpnConfig = new VpnConfig();
+        vpnConfig.getLoad().setMaxSessionsPerEndpoint(10);
+        vpnConfig.getLoad().setMaxThroughputPerEndpoint(1_000_000);
+        vpnConfig.getLoad().setMaxEndpoints(2);
+        vpnConfig.getLoad().setSmoothing(1.0);
+        loadTable = new LoadTable(vpnConfig.getLoad(), () -> cpu);
+        selector = new EndpointSelector(loadTable, vpnConfig);
+    }
+
+    @Test
+    void keepsOrderWhenIdle() {
+        assertThat(selector.rank(List.of(FIRST, SECOND, THIRD))).containsExactly(FIRST, SECOND);
+    }
+
+    @Test
+    void prefersEndpointWithFewerSessions() {
+        for (int i = 0; i < 5; i++) {
+            loadTable.sessionOpened(FIRST);
+        }
+        loadTable.sessionOpened(SECOND);
+
+        assertThat(selector.rank(List.of(FIRST, SECOND, THIRD))).containsExactly(THIRD, SECOND);
+    }
+
+    @Test
+    void prefersEndpointWithLessThroughput() throws InterruptedException {
+        loadTable.recordTraffic(FIRST, 500);
+        Thread.sleep(100);
+        loadTable.refresh();
+
+        assertThat(loadTable.getSaturation(FIRST)).isGreaterThan(0.0);
+        assertThat(selector.rank(List.of(FIRST, SECOND))).containsExactly(SECOND, FIRST);
+    }
+
+    @Test
+    void dropsSaturatedEndpointsUnlessAllAreSaturated() {
+        for (int i = 0; i < 10; i++) {
+            loadTable.sessionOpened(FIRST);
+        }
+        assertThat(selector.rank(List.of(FIRST, SECOND))).containsExactly(SECOND);
+
+        cpu = 1.0;
+        loadTable.refresh();
+        assertThat(selector.rank(List.of(FIRST, SECOND))).containsExactly(FIRST, SECOND);
+    }
+
+    @Test
+    void sessionCountFollowsOpenAndClose() {
+        loadTable.sessionOpened(FIRST);
+        loadTable.sessionOpened(FIRST);
+        loadTable.sessionClosed(FIRST);
+        loadTable.sessionClosed(FIRST);
+        loadTable.sessionClosed(FIRST);
+
+        assertThat(loadTable.getSessions(FIRST)).isEqualTo(0);
+    }
+}
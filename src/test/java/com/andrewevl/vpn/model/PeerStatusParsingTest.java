@@ -0,0 +1,69 @@
+package com.andrewevl.vpn.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PeerStatusParsingTest {
+
+    @Test
+    void parsesWireGuardDumpByClientComment() {
+        WireGuardProtocol wireGuard = new WireGuardProtocol();
+        wireGuard.setServerAddress("vpn.example.com");
+        Map<String, String> usernames = WireGuardProtocol.usernamesByKey(List.of(
+                "[Interface]", "PrivateKey = server", "", "# alice", "[Peer]", "PublicKey = alice-key",
+                "AllowedIPs = 10.0.0.20/32"));
+
+        List<PeerStatus> peers = wireGuard.parseDump(List.of(
+                "server-private\tserver-public\t51820\toff",
+                "alice-key\t(none)\t198.51.100.7:40000\t10.0.0.20/32\t1718269200\t1234\t5678\t25",
+                "stranger-key\t(none)\t(none)\t10.0.0.99/32\t0\t0\t0\toff"), usernames);
+
+        assertThat(peers).containsExactly(new PeerStatus("alice", new Endpoint("vpn.example.com", 51820),
+                Instant.ofEpochSecond(1718269200), 1234, 5678));
+    }
+
+    @Test
+    void parsesOpenVpnStatusVersion2() {
+        OpenVpnProtocol openVpn = new OpenVpnProtocol();
+        openVpn.setServerAddress("vpn.example.com");
+
+        List<PeerStatus> peers = openVpn.parseStatus(List.of(
+                "TITLE,OpenVPN 2.6.8",
+                "HEADER,CLIENT_LIST,Common Name,Real Address,Virtual Address,Virtual IPv6 Address,Bytes Received,"
+                        + "Bytes Sent,Connected Since,Connected Since (time_t),Username,Client ID,Peer ID,Data Channel Cipher",
+                "CLIENT_LIST,alice,198.51.100.7:40000,10.8.0.6,,1234,5678,2024-06-13 09:00:00,1718269200,UNDEF,0,0,AES-256-GCM",
+                "CLIENT_LIST,UNDEF,198.51.100.8:40000,,,10,0,2024-06-13 09:00:00,1718269200,UNDEF,1,1,none",
+                "HEADER,ROUTING_TABLE,Virtual Address,Common Name,Real Address,Last Ref,Last Ref (time_t)",
+                "ROUTING_TABLE,10.8.0.6,alice,198.51.100.7:40000,2024-06-13 09:05:00,1718269500",
+                "END"));
+
+        assertThat(peers).containsExactly(new PeerStatus("alice", new Endpoint("vpn.example.com", 1194),
+                Instant.ofEpochSecond(1718269200), 1234, 5678));
+    }
+
+    @Test
+    void parsesOpenVpnStatusVersion1() {
+        OpenVpnProtocol openVpn = new OpenVpnProtocol();
+
+        List<PeerStatus> peers = openVpn.parseStatus(List.of(
+                "OpenVPN CLIENT LIST",
+                "Updated,2024-06-13 09:05:00",
+                "Common Name,Real Address,Bytes Received,Bytes Sent,Connected Since",
+                "alice,198.51.100.7:40000,1234,5678,2024-06-13 09:00:00",
+                "ROUTING TABLE",
+                "Virtual Address,Common Name,Real Address,Last Ref",
+                "10.8.0.6,alice,198.51.100.7:40000,2024-06-13 09:05:00",
+                "GLOBAL STATS",
+                "END"));
+
+        assertThat(peers).hasSize(1);
+        assertThat(peers.get(0).getUsername()).isEqualTo("alice");
+        assertThat(peers.get(0).getReceivedBytes()).isEqualTo(1234);
+        assertThat(peers.get(0).getLastHandshakeAt()).isNotNull();
+    }
+}
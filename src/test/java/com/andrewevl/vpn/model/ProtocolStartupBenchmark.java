@@ -0,0 +1,141 @@
+package com.andrewevl.vpn.model;
+
+import com.andrewevl.vpn.util.AsyncFiles;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the old startup, where every protocol instance created its
+ * configuration directory, keys and default files in its constructor one after
+ * another, with construction without I/O followed by the parallel warm-up that
+ * {@code VpnConfigInitializer} runs once the application is ready. Each shard
+ * generates an X25519 key pair, writes its key and configuration files and waits
+ * for a key-generation command such as {@code wg genkey} to finish.
+ * Run with {@code ./mvnw test -Dtest=ProtocolStartupBenchmark -Dbenchmark=true}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ProtocolStartupBenchmark {
+
+    private static final int PROTOCOLS = 2;
+    private static final int SHARDS = 8;
+    private static final long KEYGEN_COMMAND_MILLIS = 15;
+    private static final int ROUNDS = 3;
+
+    @Test
+    void compareEagerWithParallelWarmUp() throws Exception {
+        for (int round = 0; round < ROUNDS; round++) {
+            long eagerStart = System.nanoTime();
+            List<ShardedProtocol> eager = create(Files.createTempDirectory("startup-eager"));
+            for (ShardedProtocol protocol : eager) {
+                for (AbstractProtocol shard : protocol.getShards()) {
+                    shard.initialize();
+                }
+            }
+            long eagerMillis = millisSince(eagerStart);
+            eager.forEach(ShardedProtocol::shutdown);
+
+            long lazyStart = System.nanoTime();
+            List<ShardedProtocol> lazy = create(Files.createTempDirectory("startup-lazy"));
+            long readyMillis = millisSince(lazyStart);
+            try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                CompletableFuture.allOf(lazy.stream()
+                        .map(protocol -> CompletableFuture.runAsync(protocol::initialize, executor))
+                        .toArray(CompletableFuture[]::new)).join();
+            }
+            long warmMillis = millisSince(lazyStart);
+            lazy.forEach(ShardedProtocol::shutdown);
+
+            System.out.printf("round %d: %d protocols x %d shards | eager: ready after %d ms | lazy: ready after %d ms, warm after %d ms%n",
+                    round, PROTOCOLS, SHARDS, eagerMillis, readyMillis, warmMillis);
+        }
+    }
+
+    private static List<ShardedProtocol> create(Path directory) {
+        List<ShardedProtocol> protocols = new ArrayList<>();
+        for (int i = 0; i < PROTOCOLS; i++) {
+            protocols.add(new ShardedProtocol(new KeyedProtocol(directory.resolve("protocol" + i), 51820, 0), SHARDS));
+        }
+        return protocols;
+    }
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static final class KeyedProtocol extends AbstractProtocol {
+
+        private final Path baseDir;
+        private final Path configDir;
+
+        KeyedProtocol(Path baseDir, int port, int index) {
+            super(port);
+            this.baseDir = baseDir;
+            this.configDir = index == 0 ? baseDir : baseDir.resolve("shard" + index);
+        }
+
+        @Override
+        protected void doInitialize() throws IOException {
+            Files.createDirectories(configDir);
+            KeyPair keyPair;
+            try {
+                keyPair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+                Thread.sleep(KEYGEN_COMMAND_MILLIS);
+            } catch (GeneralSecurityException | InterruptedException e) {
+                throw new IOException(e);
+            }
+            Base64.Encoder base64 = Base64.getEncoder();
+            AsyncFiles.writeBytes(configDir.resolve("privatekey"), base64.encode(keyPair.getPrivate().getEncoded()));
+            AsyncFiles.writeBytes(configDir.resolve("publickey"), base64.encode(keyPair.getPublic().getEncoded()));
+            AsyncFiles.writeLines(configDir.resolve("server.conf"), List.of("[Interface]", "ListenPort = " + port));
+        }
+
+        @Override
+        protected void doStart() {
+        }
+
+        @Override
+        protected void doStop() {
+        }
+
+        @Override
+        public String getName() {
+            return "Keyed";
+        }
+
+        @Override
+        public int getDefaultPort() {
+            return 51820;
+        }
+
+        @Override
+        public String generateClientConfig(String username) {
+            initialize();
+            return username;
+        }
+
+        @Override
+        public Map<String, Instant> getExistingClients() {
+            return findClientConfigs(configDir.toString(), ".conf", "server.conf");
+        }
+
+        @Override
+        public AbstractProtocol createShard(int index) {
+            return new KeyedProtocol(baseDir, port + index, index);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.andrewevl.vpn.model;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ShardedProtocolTest {
+
+    private ShardedProtocol sharded;
+
+    @AfterEach
+    void tearDown() {
+        sharded.shutdown();
+    }
+
+    @Test
+    void assignsNewUsersToLeastLoadedShard() {
+        StubProtocol primary = new StubProtocol(51820, 0, Map.of("alice", Instant.EPOCH, "bob", Instant.EPOCH));
+        sharded = new ShardedProtocol(primary, 3);
+
+        assertThat(sharded.generateClientConfig("carol")).isEqualTo("shard-1:carol");
+        assertThat(sharded.generateClientConfig("dave")).isEqualTo("shard-2:dave");
+        assertThat(sharded.generateClientConfig("erin")).isEqualTo("shard-1:erin");
+        assertThat(sharded.getPeerCount()).isEqualTo(5);
+    }
+
+    @Test
+    void readsExistingPeersOnInitializationNotConstruction() {
+        StubProtocol primary = new StubProtocol(51820, 0, Map.of("alice", Instant.EPOCH));
+        sharded = new ShardedProtocol(primary, 2);
+        assertThat(primary.existingReads).isZero();
+
+        sharded.initialize();
+        sharded.generateClientConfig("bob");
+
+        assertThat(primary.existingReads).isEqualTo(1);
+        assertThat(sharded.generateClientConfig("alice")).isEqualTo("shard-0:alice");
+        assertThat(sharded.getPeerCount()).isEqualTo(2);
+    }
+
+    @Test
+    void keepsUsersOnTheirShard() {
+        sharded = new ShardedProtocol(new StubProtocol(51820, 0, Map.of("alice", Instant.EPOCH)), 2);
+
+        assertThat(sharded.generateClientConfig("alice")).isEqualTo("shard-0:alice");
+        assertThat(sharded.generateClientConfig("bob")).isEqualTo("shard-1:bob");
+        assertThat(sharded.generateClientConfig("bob")).isEqualTo("shard-1:bob");
+        assertThat(sharded.getPeerCount()).isEqualTo(2);
+    }
+
+    @Test
+    void generatesBatchAsOneCallPerShard() {
+        StubProtocol primary = new StubProtocol(51820, 0, Map.of("alice", Instant.EPOCH, "bob", Instant.EPOCH));
+        sharded = new ShardedProtocol(primary, 2);
+        sharded.generateClientConfig("carol");
+
+        Map<String, String> configs = sharded.generateClientConfigs(List.of("alice", "carol", "bob"));
+
+        assertThat(configs).containsExactly(Map.entry("alice", "shard-0:alice"), Map.entry("carol", "shard-1:carol"),
+                Map.entry("bob", "shard-0:bob"));
+        assertThat(primary.batches).containsExactly(List.of("alice", "bob"));
+    }
+
+    @Test
+    void listsGatewayOfEveryShard() {
+        sharded = new ShardedProtocol(new OpenVpnProtocol(1194), 3);
+
+        assertThat(sharded.getGatewayAddresses()).containsExactly("10.8.0.1", "10.8.1.1", "10.8.2.1");
+    }
+
+    @Test
+    void aggregatesStatusAcrossShards() {
+        sharded = new ShardedProtocol(new StubProtocol(51820, 0, Map.of()), 2);
+
+        List<AbstractProtocol> shards = sharded.getShards();
+        assertThat(shards).hasSize(2);
+        assertThat(shards.get(1).getPort()).isEqualTo(51821);
+
+        shards.get(0).startServer();
+        assertThat(sharded.isRunning()).isFalse();
+        assertThat(sharded.startServer()).isTrue();
+        assertThat(sharded.isRunning()).isTrue();
+        assertThat(sharded.getShardStatus()).hasSize(2);
+    }
+
+    @Test
+    void serializesWritesPerShard() throws Exception {
+        StubProtocol primary = new StubProtocol(51820, 0, Map.of());
+        sharded = new ShardedProtocol(primary, 1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            int client = i;
+            threads.add(Thread.ofPlatform().start(() -> {
+                for (int j = 0; j < 50; j++) {
+                    sharded.generateClientConfig("user-" + client + "-" + j);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertThat(primary.maxConcurrentWrites).isEqualTo(1);
+        assertThat(primary.writes).isEqualTo(400);
+    }
+
+    private static final class StubProtocol extends AbstractProtocol {
+
+        private final int index;
+        private final Map<String, Instant> existing;
+        private int activeWrites;
+        private int maxConcurrentWrites;
+        private int writes;
+        private int existingReads;
+        private final List<List<String>> batches = new ArrayList<>();
+
+        StubProtocol(int port, int index, Map<String, Instant> existing) {
+            super(port);
+            this.index = index;
+            this.existing = existing;
+        }
+
+        @Override
+        protected void doStart() {
+        }
+
+        @Override
+        protected void doStop() {
+        }
+
+        @Override
+        public String getName() {
+            return "Stub";
+        }
+
+        @Override
+        public int getDefaultPort() {
+            return 51820;
+        }
+
+        @Override
+        public String generateClientConfig(String username) {
+            // Deliberately unsynchronized: the shard event loop must be the only writer
+            maxConcurrentWrites = Math.max(maxConcurrentWrites, ++activeWrites);
+            writes++;
+            activeWrites--;
+            return "shard-" + index + ":" + username;
+        }
+
+        @Override
+        public Map<String, String> generateClientConfigs(Collection<String> usernames) {
+            batches.add(List.copyOf(usernames));
+            return super.generateClientConfigs(usernames);
+        }
+
+        @Override
+        public Map<String, Instant> getExistingClients() {
+            existingReads++;
+            return existing;
+        }
+
+        @Override
+        public AbstractProtocol createShard(int index) {
+            return new StubProtocol(port + index, index, Map.of());
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.andrewevl.vpn.nat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LongLongHashMapTest {
+
+    @Test
+    void putGetAndRemove() {
+        LongLongHashMap map = new LongLongHashMap(4, -1);
+
+        assertThat(map.put(42, 1)).isEqualTo(-1);
+        assertThat(map.put(42, 2)).isEqualTo(1);
+        assertThat(map.put(0, 7)).isEqualTo(-1);
+        assertThat(map.get(42)).isEqualTo(2);
+        assertThat(map.get(0)).isEqualTo(7);
+        assertThat(map.get(43)).isEqualTo(-1);
+        assertThat(map.size()).isEqualTo(2);
+
+        assertThat(map.remove(42)).isEqualTo(2);
+        assertThat(map.remove(0)).isEqualTo(7);
+        assertThat(map.get(42)).isEqualTo(-1);
+        assertThat(map.size()).isZero();
+    }
+
+    @Test
+    void matchesHashMapUnderRandomOperations() {
+        LongLongHashMap map = new LongLongHashMap(16, -1);
+        Map<Long, Long> reference = new HashMap<>();
+        Random random = new Random(1);
+
+        for (int i = 0; i < 200_000; i++) {
+            long key = random.nextInt(5_000);
+            if (random.nextInt(3) == 0) {
+                assertThat(map.remove(key)).isEqualTo(reference.getOrDefault(key, -1L));
+                reference.remove(key);
+            } else {
+                long value = random.nextLong() & Long.MAX_VALUE;
+                assertThat(map.put(key, value)).isEqualTo(reference.getOrDefault(key, -1L));
+                reference.put(key, value);
+            }
+        }
+
+        assertThat(map.size()).isEqualTo(reference.size());
+        reference.forEach((key, value) -> assertThat(map.get(key)).isEqualTo(value));
+    }
+
+    @Test
+    void retainIfRemovesRejectedEntries() {
+        LongLongHashMap map = new LongLongHashMap(4, -1);
+        for (long key = 0; key < 100; key++) {
+            map.put(key, key * 10);
+        }
+
+        assertThat(map.retainIf((key, value) -> key % 3 != 0)).isEqualTo(34);
+        assertThat(map.size()).isEqualTo(66);
+        for (long key = 0; key < 100; key++) {
+            assertThat(map.get(key)).isEqualTo(key % 3 == 0 ? -1 : key * 10);
+        }
+    }
+}
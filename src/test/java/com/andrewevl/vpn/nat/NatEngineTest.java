@@ -0,0 +1,188 @@
+package com.andrewevl.vpn.nat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class NatEngineTest {
+
+    private static final int CLIENT = address(10, 0, 0, 10);
+    private static final int OTHER_CLIENT = address(10, 0, 0, 11);
+    private static final int REMOTE = address(1, 1, 1, 1);
+    private static final int EXTERNAL = address(203, 0, 113, 7);
+
+    private NatTable table;
+    private InMemoryPacketSink uplink;
+    private InMemoryPacketSink tunnel;
+    private NatEngine engine;
+
+    @BeforeEach
+    void setUp() {
+        table = new NatTable(20000, 20999, 4);
+        uplink = new InMemoryPacketSink();
+        tunnel = new InMemoryPacketSink();
+        engine = new NatEngine(EXTERNAL, table, uplink, tunnel);
+    }
+
+    @Test
+    void translatesUdpRoundTrip() {
+        assertThat(engine.outbound(packet(IpPackets.PROTOCOL_UDP, CLIENT, 5353, REMOTE, 53))).isTrue();
+
+        List<ByteBuffer> sent = uplink.drain();
+        assertThat(sent).hasSize(1);
+        ByteBuffer translated = sent.get(0);
+        assertThat(IpPackets.address(translated, IpPackets.IP_SOURCE_OFFSET)).isEqualTo(EXTERNAL);
+        int externalPort = IpPackets.port(translated, IpPackets.L4_SOURCE_PORT_OFFSET);
+        assertThat(externalPort).isBetween(20000, 20999);
+        assertChecksumsValid(translated);
+
+        assertThat(engine.inbound(packet(IpPackets.PROTOCOL_UDP, REMOTE, 53, EXTERNAL, externalPort))).isTrue();
+
+        ByteBuffer reply = tunnel.drain().get(0);
+        assertThat(IpPackets.address(reply, IpPackets.IP_DESTINATION_OFFSET)).isEqualTo(CLIENT);
+        assertThat(IpPackets.port(reply, IpPackets.L4_DESTINATION_PORT_OFFSET)).isEqualTo(5353);
+        assertChecksumsValid(reply);
+    }
+
+    @Test
+    void translatesTcpAndKeepsMappingStable() {
+        engine.outbound(packet(IpPackets.PROTOCOL_TCP, CLIENT, 40000, REMOTE, 443));
+        engine.outbound(packet(IpPackets.PROTOCOL_TCP, CLIENT, 40000, address(8, 8, 8, 8), 443));
+        engine.outbound(packet(IpPackets.PROTOCOL_TCP, OTHER_CLIENT, 40000, REMOTE, 443));
+
+        List<ByteBuffer> sent = uplink.drain();
+        assertThat(sent).hasSize(3);
+        sent.forEach(NatEngineTest::assertChecksumsValid);
+        int first = IpPackets.port(sent.get(0), IpPackets.L4_SOURCE_PORT_OFFSET);
+        assertThat(IpPackets.port(sent.get(1), IpPackets.L4_SOURCE_PORT_OFFSET)).isEqualTo(first);
+        assertThat(IpPackets.port(sent.get(2), IpPackets.L4_SOURCE_PORT_OFFSET)).isNotEqualTo(first);
+        assertThat(table.size()).isEqualTo(2);
+    }
+
+    @Test
+    void dropsUnsolicitedAndMismatchedInbound() {
+        assertThat(engine.inbound(packet(IpPackets.PROTOCOL_UDP, REMOTE, 53, EXTERNAL, 20001))).isFalse();
+
+        engine.outbound(packet(IpPackets.PROTOCOL_UDP, CLIENT, 5353, REMOTE, 53));
+        int externalPort = IpPackets.port(uplink.drain().get(0), IpPackets.L4_SOURCE_PORT_OFFSET);
+
+        assertThat(engine.inbound(packet(IpPackets.PROTOCOL_TCP, REMOTE, 53, EXTERNAL, externalPort))).isFalse();
+        assertThat(engine.inbound(packet(IpPackets.PROTOCOL_UDP, REMOTE, 53, REMOTE, externalPort))).isFalse();
+        assertThat(tunnel.drain()).isEmpty();
+        assertThat(engine.getDroppedCount()).isEqualTo(3);
+    }
+
+    @Test
+    void acceptsInboundOnlyFromContactedEndpoints() {
+        int dns = address(8, 8, 8, 8);
+        engine.outbound(packet(IpPackets.PROTOCOL_UDP, CLIENT, 5353, REMOTE, 53));
+        int externalPort = IpPackets.port(uplink.drain().get(0), IpPackets.L4_SOURCE_PORT_OFFSET);
+
+        assertThat(engine.inbound(packet(IpPackets.PROTOCOL_UDP, dns, 53, EXTERNAL, externalPort))).isFalse();
+        assertThat(engine.inbound(packet(IpPackets.PROTOCOL_UDP, REMOTE, 54, EXTERNAL, externalPort))).isFalse();
+
+        engine.outbound(packet(IpPackets.PROTOCOL_UDP, CLIENT, 5353, dns, 53));
+        assertThat(IpPackets.port(uplink.drain().get(0), IpPackets.L4_SOURCE_PORT_OFFSET)).isEqualTo(externalPort);
+        assertThat(engine.inbound(packet(IpPackets.PROTOCOL_UDP, dns, 53, EXTERNAL, externalPort))).isTrue();
+        assertThat(engine.inbound(packet(IpPackets.PROTOCOL_UDP, REMOTE, 53, EXTERNAL, externalPort))).isTrue();
+        assertThat(tunnel.drain()).hasSize(2);
+    }
+
+    @Test
+    void expiresIdleMappings() {
+        long now = System.currentTimeMillis();
+        int udpPort = table.mapOutbound(IpPackets.PROTOCOL_UDP, CLIENT, 5353, REMOTE, 53, now);
+        table.mapOutbound(IpPackets.PROTOCOL_TCP, CLIENT, 40000, REMOTE, 443, now);
+
+        assertThat(table.expireIdle(now + 60_000, 30_000, 3_600_000)).isEqualTo(1);
+        assertThat(table.lookupInbound(IpPackets.PROTOCOL_UDP, udpPort, REMOTE, 53, now)).isEqualTo(NatTable.NOT_FOUND);
+        assertThat(table.size()).isEqualTo(1);
+    }
+
+    @Test
+    void inboundOfAnotherProtocolDoesNotKeepMappingAlive() {
+        long now = System.currentTimeMillis();
+        int udpPort = table.mapOutbound(IpPackets.PROTOCOL_UDP, CLIENT, 5353, REMOTE, 53, now);
+
+        assertThat(table.lookupInbound(IpPackets.PROTOCOL_TCP, udpPort, REMOTE, 53, now + 25_000))
+                .isEqualTo(NatTable.NOT_FOUND);
+
+        assertThat(table.expireIdle(now + 35_000, 30_000, 3_600_000)).isEqualTo(1);
+    }
+
+    @Test
+    void expiredMappingDoesNotLeakItsEndpointsToTheNextFlow() {
+        NatTable single = new NatTable(30000, 30000, 1);
+        long now = System.currentTimeMillis();
+        single.mapOutbound(IpPackets.PROTOCOL_UDP, CLIENT, 5353, REMOTE, 53, now);
+        single.expireIdle(now + 60_000, 30_000, 30_000);
+
+        int externalPort = single.mapOutbound(IpPackets.PROTOCOL_UDP, OTHER_CLIENT, 5353, address(8, 8, 8, 8), 53, now);
+        assertThat(externalPort).isEqualTo(30000);
+        assertThat(single.lookupInbound(IpPackets.PROTOCOL_UDP, externalPort, REMOTE, 53, now))
+                .isEqualTo(NatTable.NOT_FOUND);
+    }
+
+    @Test
+    void reportsExhaustedPortRange() {
+        NatTable small = new NatTable(30000, 30001, 1);
+        long now = System.currentTimeMillis();
+
+        assertThat(small.mapOutbound(IpPackets.PROTOCOL_UDP, CLIENT, 1, REMOTE, 53, now)).isEqualTo(30000);
+        assertThat(small.mapOutbound(IpPackets.PROTOCOL_UDP, CLIENT, 2, REMOTE, 53, now)).isEqualTo(30001);
+        assertThat(small.mapOutbound(IpPackets.PROTOCOL_UDP, CLIENT, 3, REMOTE, 53, now))
+                .isEqualTo((int) NatTable.NOT_FOUND);
+    }
+
+    private static ByteBuffer packet(int protocol, int source, int sourcePort, int destination, int destinationPort) {
+        int transportLength = protocol == IpPackets.PROTOCOL_TCP ? 20 : 8;
+        int payloadLength = 11;
+        ByteBuffer packet = ByteBuffer.allocate(20 + transportLength + payloadLength);
+        packet.put(0, (byte) 0x45);
+        packet.putShort(2, (short) packet.capacity());
+        packet.put(8, (byte) 64);
+        packet.put(9, (byte) protocol);
+        packet.putInt(12, source);
+        packet.putInt(16, destination);
+        packet.putShort(10, (short) IpPackets.checksum(packet, 0, 20, 0));
+
+        packet.putShort(20, (short) sourcePort);
+        packet.putShort(22, (short) destinationPort);
+        if (protocol == IpPackets.PROTOCOL_TCP) {
+            packet.put(32, (byte) 0x50);
+        } else {
+            packet.putShort(24, (short) (transportLength + payloadLength));
+        }
+        for (int i = 0; i < payloadLength; i++) {
+            packet.put(20 + transportLength + i, (byte) ('a' + i));
+        }
+        int checksumOffset = 20 + (protocol == IpPackets.PROTOCOL_TCP ? 16 : 6);
+        packet.putShort(checksumOffset, (short) IpPackets.checksum(packet, 20, transportLength + payloadLength,
+                pseudoHeaderSum(packet)));
+        return packet;
+    }
+
+    private static void assertChecksumsValid(ByteBuffer packet) {
+        int start = packet.position();
+        assertThat(IpPackets.checksum(packet, start, 20, 0)).isZero();
+        int transportLength = packet.remaining() - 20;
+        assertThat(IpPackets.checksum(packet, start + 20, transportLength, pseudoHeaderSum(packet))).isZero();
+    }
+
+    private static long pseudoHeaderSum(ByteBuffer packet) {
+        int start = packet.position();
+        long sum = 0;
+        for (int offset = 12; offset < 20; offset += 2) {
+            sum += packet.getShort(start + offset) & 0xFFFF;
+        }
+        return sum + (packet.get(start + 9) & 0xFF) + (packet.remaining() - 20);
+    }
+
+    private static int address(int a, int b, int c, int d) {
+        return (a << 24) | (b << 16) | (c << 8) | d;
+    }
+}
@@ -0,0 +1,68 @@
+package com.andrewevl.vpn.pki;
+
+import org.bouncycastle.asn1.x509.Extension;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CRLReason;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CrlIssuerTest {
+
+    private static final Instant NOW = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+
+    private KeyPair caKeys;
+    private CrlIssuer issuer;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+        generator.initialize(new ECGenParameterSpec("secp256r1"));
+        caKeys = generator.generateKeyPair();
+        issuer = new CrlIssuer("CN=Test CA", caKeys);
+    }
+
+    @Test
+    void issuesSignedBaseCrl() throws Exception {
+        List<RevokedCertificate> entries = List.of(
+                new RevokedCertificate(BigInteger.valueOf(7), NOW, 0, 1),
+                new RevokedCertificate(new BigInteger("123456789abcdef", 16), NOW, 1, 2));
+
+        X509CRL crl = parse(issuer.issue(entries, BigInteger.ONE, null, NOW, NOW.plusSeconds(3600)));
+
+        crl.verify(caKeys.getPublic());
+        assertThat(crl.getIssuerX500Principal().getName()).isEqualTo("CN=Test CA");
+        assertThat(crl.getRevokedCertificates()).hasSize(2);
+        assertThat(crl.getRevokedCertificate(BigInteger.valueOf(7))).isNotNull();
+        assertThat(crl.getRevokedCertificate(new BigInteger("123456789abcdef", 16)).getRevocationReason())
+                .isEqualTo(CRLReason.KEY_COMPROMISE);
+        assertThat(crl.getExtensionValue(Extension.deltaCRLIndicator.getId())).isNull();
+    }
+
+    @Test
+    void marksDeltaCrlWithCriticalBaseNumber() throws Exception {
+        List<RevokedCertificate> entries = List.of(new RevokedCertificate(BigInteger.TWO, NOW, 0, 5));
+
+        X509CRL crl = parse(issuer.issue(entries, BigInteger.valueOf(4), BigInteger.valueOf(3), NOW,
+                NOW.plusSeconds(3600)));
+
+        crl.verify(caKeys.getPublic());
+        assertThat(crl.getCriticalExtensionOIDs()).contains(Extension.deltaCRLIndicator.getId());
+        assertThat(crl.getRevokedCertificates()).hasSize(1);
+    }
+
+    private static X509CRL parse(byte[] der) throws Exception {
+        return (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(new ByteArrayInputStream(der));
+    }
+}
@@ -0,0 +1,48 @@
+package com.andrewevl.vpn.pki;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigInteger;
+import java.time.Instant;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RevocationIndexTest {
+
+    private final RevocationIndex index = new RevocationIndex(16, 0.01);
+
+    @Test
+    void findsEveryRevocationAfterFilterGrows() {
+        for (int i = 1; i <= 1000; i++) {
+            index.revoke(BigInteger.valueOf(i).shiftLeft(100), Instant.EPOCH, 0);
+        }
+
+        for (int i = 1; i <= 1000; i++) {
+            assertThat(index.isRevoked(BigInteger.valueOf(i).shiftLeft(100))).isTrue();
+        }
+        assertThat(index.isRevoked(BigInteger.valueOf(1001).shiftLeft(100))).isFalse();
+        assertThat(index.size()).isEqualTo(1000);
+    }
+
+    @Test
+    void keepsFirstRevocationOfSerial() {
+        assertThat(index.revoke(BigInteger.TEN, Instant.EPOCH, 1)).isTrue();
+        assertThat(index.revoke(BigInteger.TEN, Instant.EPOCH.plusSeconds(1), 4)).isFalse();
+
+        assertThat(index.get(BigInteger.TEN).map(RevokedCertificate::getReason)).contains(1);
+        assertThat(index.getLastSequence()).isEqualTo(1);
+    }
+
+    @Test
+    void listsRevocationsAfterSequenceInRevocationOrder() {
+        index.revoke(BigInteger.valueOf(30), Instant.EPOCH, 0);
+        long baseSequence = index.getLastSequence();
+        index.revoke(BigInteger.valueOf(20), Instant.EPOCH, 0);
+        index.revoke(BigInteger.valueOf(10), Instant.EPOCH, 0);
+
+        assertThat(index.getRevokedAfter(baseSequence).stream().map(RevokedCertificate::getSerial).toList())
+                .containsExactly(BigInteger.valueOf(20), BigInteger.valueOf(10));
+        assertThat(index.getAll().stream().map(RevokedCertificate::getSerial).toList())
+                .containsExactly(BigInteger.valueOf(10), BigInteger.valueOf(20), BigInteger.valueOf(30));
+    }
+}
@@ -0,0 +1,97 @@
+package com.andrewevl.vpn.pki;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.CertificateList;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.cert.CRLReason;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RevocationServiceTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void createsSigningKeyReadableOnlyByOwner() throws Exception {
+        newService();
+
+        assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(directory.resolve("ca.key"))))
+                .isEqualTo("rw-------");
+    }
+
+    @Test
+    void revocationSurvivesRestartWithoutScheduledPublish() throws Exception {
+        RevocationService service = newService();
+        assertThat(service.revoke(BigInteger.valueOf(42), CRLReason.KEY_COMPROMISE.ordinal())).isTrue();
+
+        // No publish() call: a crash right after revoke() returned must not lose the entry
+        RevocationService restarted = newService();
+        assertThat(restarted.isRevoked(BigInteger.valueOf(42))).isTrue();
+        assertThat(restarted.getRevocation(BigInteger.valueOf(42)).orElseThrow().getReason())
+                .isEqualTo(CRLReason.KEY_COMPROMISE.ordinal());
+    }
+
+    @Test
+    void concurrentRevocationsAreAllDurableWhenAcknowledged() throws Exception {
+        RevocationService service = newService();
+        List<Future<Boolean>> results = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 1; i <= 200; i++) {
+                BigInteger serial = BigInteger.valueOf(i);
+                results.add(executor.submit(() -> service.revoke(serial, CRLReason.UNSPECIFIED.ordinal())));
+            }
+        }
+        for (Future<Boolean> result : results) {
+            assertThat(result.get()).isTrue();
+        }
+
+        RevocationService restarted = newService();
+        for (int i = 1; i <= 200; i++) {
+            assertThat(restarted.isRevoked(BigInteger.valueOf(i))).as("serial %d", i).isTrue();
+        }
+    }
+
+    @Test
+    void batchRevocationWritesOneDelta() throws Exception {
+        RevocationService service = newService();
+        service.revoke(BigInteger.ONE, CRLReason.UNSPECIFIED.ordinal());
+        BigInteger before = crlNumber(service.getDeltaCrl().orElseThrow());
+
+        Map<BigInteger, Boolean> revoked = service.revokeAll(
+                List.of(BigInteger.ONE, BigInteger.TWO, BigInteger.TEN), CRLReason.SUPERSEDED.ordinal());
+
+        assertThat(revoked).containsExactly(
+                Map.entry(BigInteger.ONE, false), Map.entry(BigInteger.TWO, true), Map.entry(BigInteger.TEN, true));
+        assertThat(crlNumber(service.getDeltaCrl().orElseThrow())).isEqualTo(before.add(BigInteger.ONE));
+        assertThat(newService().isRevoked(BigInteger.TEN)).isTrue();
+    }
+
+    private static BigInteger crlNumber(byte[] der) {
+        Extensions extensions = CertificateList.getInstance(der).getTBSCertList().getExtensions();
+        return CRLNumber.getInstance(extensions.getExtension(Extension.cRLNumber).getParsedValue()).getCRLNumber();
+    }
+
+    private RevocationService newService() {
+        VpnConfig config = new VpnConfig();
+        config.getPki().setDirectory(directory.toString());
+        RevocationService service = new RevocationService(config);
+        service.initialize();
+        return service;
+    }
+}
@@ -0,0 +1,124 @@
+package com.andrewevl.vpn.service;
+
+import com.andrewevl.vpn.model.ClientPage;
+import com.andrewevl.vpn.model.ClientQuery;
+import com.andrewevl.vpn.model.ClientRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ClientRegistryTest {
+
+    private static final Instant EPOCH = Instant.parse("2026-01-01T00:00:00Z");
+
+    private ClientRegistry registry;
+
+    @BeforeEach
+    void setUp() {
+        registry = new ClientRegistry();
+        for (int i = 0; i < 50; i++) {
+            String username = (i % 2 == 0 ? "alice" : "bob") + String.format("%02d", i);
+            registry.register("wireguard", username, EPOCH);
+            registry.recordHandshake("wireguard", username, EPOCH.plusSeconds(100 - i));
+        }
+        registry.register("openvpn", "alice99", EPOCH);
+    }
+
+    @Test
+    void pagesThroughPrefixMatchesInUsernameOrder() {
+        ClientQuery query = new ClientQuery();
+        query.setPrefix("alice");
+        query.setLimit(10);
+
+        List<String> usernames = collect(query);
+
+        assertThat(usernames).hasSize(25).isSorted().allMatch(username -> username.startsWith("alice"));
+    }
+
+    @Test
+    void pagesThroughHandshakeRangeInTimeOrder() {
+        ClientQuery query = new ClientQuery();
+        query.setHandshakeAfter(EPOCH.plusSeconds(60));
+        query.setHandshakeBefore(EPOCH.plusSeconds(70));
+        query.setLimit(3);
+
+        List<String> usernames = collect(query);
+
+        // Client i shook hands at 100 - i seconds, so [60, 70) is clients 40 down to 31
+        assertThat(usernames).hasSize(10).first().isEqualTo("alice40");
+        assertThat(usernames).last().isEqualTo("bob31");
+    }
+
+    @Test
+    void newerHandshakeMovesClientInIndex() {
+        registry.recordHandshake("wireguard", "alice00", EPOCH.plusSeconds(500));
+        registry.recordHandshake("wireguard", "alice00", EPOCH.plusSeconds(400));
+
+        ClientQuery query = new ClientQuery();
+        query.setHandshakeAfter(EPOCH.plusSeconds(100));
+
+        assertThat(collect(query)).containsExactly("alice00");
+        assertThat(registry.getClient("wireguard", "alice00").map(ClientRecord::getLastHandshakeAt))
+                .contains(EPOCH.plusSeconds(500));
+    }
+
+    @Test
+    void filtersByConnectionStatus() {
+        registry.setConnected("wireguard", "bob01", true);
+        registry.setConnected("wireguard", "alice02", true);
+
+        ClientQuery query = new ClientQuery();
+        query.setConnected(true);
+
+        assertThat(collect(query)).containsExactly("alice02", "bob01");
+        query.setConnected(false);
+        assertThat(collect(query)).hasSize(48);
+    }
+
+    @Test
+    void pagesConnectedClientsByPrefixAndForgetsDisconnected() {
+        registry.setConnected("wireguard", "alice02", true);
+        registry.setConnected("wireguard", "alice04", true);
+        registry.setConnected("wireguard", "bob03", true);
+        registry.setConnected("wireguard", "alice02", false);
+
+        ClientQuery query = new ClientQuery();
+        query.setConnected(true);
+        query.setPrefix("alice");
+        query.setLimit(1);
+
+        assertThat(collect(query)).containsExactly("alice04");
+        query.setPrefix(null);
+        assertThat(collect(query)).containsExactly("alice04", "bob03");
+    }
+
+    @Test
+    void rejectsCursorOfDifferentOrdering() {
+        ClientQuery byUsername = new ClientQuery();
+        byUsername.setLimit(1);
+        String cursor = registry.findClients("wireguard", byUsername).getNextCursor();
+
+        ClientQuery byHandshake = new ClientQuery();
+        byHandshake.setHandshakeAfter(EPOCH);
+        byHandshake.setCursor(cursor);
+
+        assertThatThrownBy(() -> registry.findClients("wireguard", byHandshake))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private List<String> collect(ClientQuery query) {
+        List<String> usernames = new ArrayList<>();
+        do {
+            ClientPage page = registry.findClients("wireguard", query);
+            page.getClients().forEach(client -> usernames.add(client.getUsername()));
+            query.setCursor(page.getNextCursor());
+        } while (query.getCursor() != null);
+        return usernames;
+    }
+}
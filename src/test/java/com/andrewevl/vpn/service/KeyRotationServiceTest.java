@@ -0,0 +1,157 @@
+package com.andrewevl.vpn.service;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeyRotationServiceTest {
+
+    private final VpnConfig config = new VpnConfig();
+    private final ClientRegistry clientRegistry = new ClientRegistry();
+    private final List<Long> batchStarts = Collections.synchronizedList(new ArrayList<>());
+    private final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+    private KeyRotationService service;
+
+    @AfterEach
+    void tearDown() {
+        if (service != null) {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    void startsEachBatchAtRandomPointInsideItsSlot() throws Exception {
+        register("wireguard", 10);
+        start(4, 1000, this::record);
+
+        long started = System.nanoTime();
+        KeyRotationService.RotationRun run = service.startRun(Duration.ofMillis(1000), Duration.ofMillis(100)).orElseThrow();
+        awaitDone(run);
+
+        assertThat(batches).hasSize(10).allSatisfy(batch -> assertThat(batch).hasSize(1));
+        long jittered = 0;
+        for (int i = 0; i < batchStarts.size(); i++) {
+            long offset = TimeUnit.NANOSECONDS.toMillis(batchStarts.get(i) - started) - i * 100L;
+            assertThat(offset).isBetween(0L, 150L);
+            if (offset > 5) {
+                jittered++;
+            }
+        }
+        assertThat(jittered).isPositive();
+        assertThat(run.getProgress()).containsEntry("completed", 10).containsEntry("failed", 0);
+    }
+
+    @Test
+    void capsRotationsPerSecondAcrossBatches() throws Exception {
+        register("wireguard", 20);
+        start(4, 20, this::record);
+
+        KeyRotationService.RotationRun run = service.startRun(Duration.ofMillis(100), Duration.ofMillis(10)).orElseThrow();
+        awaitDone(run);
+
+        // Ten batches of two; at 20 per second each batch holds off the next one for 100 ms
+        assertThat(batches).hasSize(10);
+        for (int i = 1; i < batchStarts.size(); i++) {
+            assertThat(TimeUnit.NANOSECONDS.toMillis(batchStarts.get(i) - batchStarts.get(i - 1)))
+                    .isGreaterThanOrEqualTo(95L);
+        }
+    }
+
+    @Test
+    void boundsConcurrentBatchesAndGroupsByProtocol() throws Exception {
+        register("wireguard", 8);
+        register("openvpn", 8);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        start(2, 1000, (protocol, usernames) -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            return record(protocol, usernames);
+        });
+
+        KeyRotationService.RotationRun run = service.startRun(Duration.ofMillis(40), Duration.ofMillis(10)).orElseThrow();
+        awaitDone(run);
+
+        assertThat(maxRunning.get()).isBetween(1, 2);
+        assertThat(batches).allSatisfy(batch -> assertThat(batch).allMatch(user -> user.startsWith(batch.get(0).split("-")[0])));
+        assertThat(batches.stream().mapToInt(List::size).sum()).isEqualTo(16);
+        assertThat(run.getProgress()).containsEntry("completed", 16).containsEntry("inFlight", 0);
+    }
+
+    @Test
+    void countsFailuresPerClient() throws Exception {
+        register("wireguard", 4);
+        start(4, 1000, (protocol, usernames) -> {
+            Map<String, Boolean> results = new LinkedHashMap<>();
+            usernames.forEach(username -> results.put(username, username.endsWith("-0")));
+            return results;
+        });
+
+        KeyRotationService.RotationRun run = service.startRun(Duration.ofMillis(10), Duration.ofMillis(10)).orElseThrow();
+        awaitDone(run);
+
+        assertThat(run.getProgress()).containsEntry("completed", 1).containsEntry("failed", 3);
+    }
+
+    @Test
+    void skipsProtocolsThatCannotRotateKeys() throws Exception {
+        register("wireguard", 3);
+        register("openvpn", 3);
+        service = new KeyRotationService(config, this::record, "wireguard"::equals, clientRegistry);
+
+        KeyRotationService.RotationRun run = service.startRun(Duration.ofMillis(10), Duration.ofMillis(10)).orElseThrow();
+        awaitDone(run);
+
+        assertThat(batches).flatMap(batch -> batch).containsExactlyInAnyOrder("wireguard-0", "wireguard-1", "wireguard-2");
+        assertThat(run.getProgress()).containsEntry("completed", 3);
+    }
+
+    private void register(String protocol, int count) {
+        Instant old = Instant.now().minus(Duration.ofDays(365));
+        for (int i = 0; i < count; i++) {
+            clientRegistry.register(protocol, protocol + "-" + i, old);
+        }
+    }
+
+    private void start(int maxConcurrent, int maxPerSecond,
+                       BiFunction<String, List<String>, Map<String, Boolean>> rotator) {
+        VpnConfig.RotationConfig rotation = config.getRotation();
+        rotation.setMaxConcurrent(maxConcurrent);
+        rotation.setMaxPerSecond(maxPerSecond);
+        service = new KeyRotationService(config, rotator, clientRegistry);
+    }
+
+    private Map<String, Boolean> record(String protocol, List<String> usernames) {
+        batchStarts.add(System.nanoTime());
+        batches.add(List.copyOf(usernames));
+        Map<String, Boolean> results = new LinkedHashMap<>();
+        usernames.forEach(username -> results.put(username, true));
+        return results;
+    }
+
+    private static void awaitDone(KeyRotationService.RotationRun run) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!run.isDone() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(run.isDone()).isTrue();
+    }
+}
@@ -0,0 +1,87 @@
+package com.andrewevl.vpn.session;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.load.LoadTable;
+import com.andrewevl.vpn.model.Endpoint;
+import com.andrewevl.vpn.model.PeerStatus;
+import com.andrewevl.vpn.service.ClientRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PeerStatusPollerTest {
+
+    private static final Endpoint ENDPOINT = new Endpoint("vpn.example.com", 51820);
+
+    private final VpnConfig config = new VpnConfig();
+    private final ClientRegistry clientRegistry = new ClientRegistry();
+    private final LoadTable loadTable = new LoadTable(config);
+    private SessionManager manager;
+    private PeerStatusPoller poller;
+
+    @BeforeEach
+    void setUp() {
+        clientRegistry.register("wireguard", "alice", Instant.EPOCH);
+        clientRegistry.register("wireguard", "bob", Instant.EPOCH);
+        manager = new SessionManager(config, new DefaultListableBeanFactory().getBeanProvider(SessionTimerListener.class),
+                loadTable, clientRegistry);
+        poller = new PeerStatusPoller(Map::of, manager, loadTable, config);
+    }
+
+    @AfterEach
+    void tearDown() {
+        manager.shutdown();
+    }
+
+    @Test
+    void opensSessionForRecentHandshakeAndMarksClientConnected() {
+        Instant handshakeAt = Instant.now().minusSeconds(5);
+        poller.update("wireguard", List.of(peer("alice", handshakeAt, 100, 100),
+                peer("bob", Instant.now().minus(Duration.ofHours(1)), 100, 100)));
+
+        assertThat(manager.getSession("wireguard", "alice")).isPresent();
+        assertThat(manager.getSession("wireguard", "bob")).isEmpty();
+        assertThat(loadTable.getSessions(ENDPOINT)).isEqualTo(1);
+        assertThat(clientRegistry.getClient("wireguard", "alice").orElseThrow().isConnected()).isTrue();
+        assertThat(clientRegistry.getClient("wireguard", "alice").orElseThrow().getLastHandshakeAt()).isEqualTo(handshakeAt);
+    }
+
+    @Test
+    void recordsCounterGrowthAsTraffic() {
+        Instant handshakeAt = Instant.now();
+        poller.update("wireguard", List.of(peer("alice", handshakeAt, 1_000, 2_000)));
+        poller.update("wireguard", List.of(peer("alice", handshakeAt, 301_000, 302_000)));
+        loadTable.refresh();
+
+        Map<?, ?> endpoints = (Map<?, ?>) loadTable.getSnapshot().get("endpoints");
+        Map<?, ?> load = (Map<?, ?>) endpoints.get("vpn.example.com:51820");
+        assertThat((Long) load.get("bytesPerSecond")).isPositive();
+    }
+
+    @Test
+    void recordsRekeyAndClosesSessionsOfUnlistedPeers() {
+        Instant first = Instant.now().minusSeconds(60);
+        Instant second = Instant.now();
+        poller.update("wireguard", List.of(peer("alice", first, 0, 0)));
+        poller.update("wireguard", List.of(peer("alice", second, 0, 0)));
+        assertThat(clientRegistry.getClient("wireguard", "alice").orElseThrow().getLastHandshakeAt()).isEqualTo(second);
+
+        poller.update("wireguard", List.of());
+
+        assertThat(manager.getSession("wireguard", "alice")).isEmpty();
+        assertThat(loadTable.getSessions(ENDPOINT)).isZero();
+        assertThat(clientRegistry.getClient("wireguard", "alice").orElseThrow().isConnected()).isFalse();
+    }
+
+    private static PeerStatus peer(String username, Instant handshakeAt, long received, long sent) {
+        return new PeerStatus(username, ENDPOINT, handshakeAt, received, sent);
+    }
+}
@@ -0,0 +1,80 @@
+package com.andrewevl.vpn.session;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compares the replay window against a naive set of seen counters.
+ * Run with {@code ./mvnw test -Dtest=ReplayWindowBenchmark -Dbenchmark=true}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class ReplayWindowBenchmark {
+
+    private static final int PACKETS = 5_000_000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    void compareWithSetBasedCheck() {
+        long[] counters = reorderedCounters();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            ReplayWindow window = new ReplayWindow();
+            Result windowResult = measure(() -> {
+                int accepted = 0;
+                for (long counter : counters) {
+                    if (window.accept(counter)) {
+                        accepted++;
+                    }
+                }
+                return accepted;
+            });
+
+            Set<Long> seen = ConcurrentHashMap.newKeySet();
+            Result setResult = measure(() -> {
+                int accepted = 0;
+                for (long counter : counters) {
+                    if (seen.add(counter)) {
+                        accepted++;
+                    }
+                }
+                return accepted;
+            });
+
+            System.out.printf("round %d: window %.1f ns/packet, %d bytes allocated | set %.1f ns/packet, %d bytes allocated%n",
+                    round, windowResult.nanosPerPacket(), windowResult.allocatedBytes(),
+                    setResult.nanosPerPacket(), setResult.allocatedBytes());
+        }
+    }
+
+    /**
+     * Sequential counters with every group of 16 reversed, as produced by parallel receive paths.
+     */
+    private static long[] reorderedCounters() {
+        long[] counters = new long[PACKETS];
+        for (int i = 0; i < PACKETS; i++) {
+            counters[i] = (i & ~15) + (15 - (i & 15));
+        }
+        return counters;
+    }
+
+    private static Result measure(java.util.function.IntSupplier work) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        int accepted = work.getAsInt();
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        if (accepted != PACKETS) {
+            throw new IllegalStateException("Expected " + PACKETS + " accepted packets but got " + accepted);
+        }
+        return new Result((double) elapsed / PACKETS, allocated);
+    }
+
+    private record Result(double nanosPerPacket, long allocatedBytes) {
+    }
+}
@@ -0,0 +1,88 @@
+package com.andrewevl.vpn.session;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ReplayWindowTest {
+
+    @Test
+    void acceptsEachCounterOnce() {
+        ReplayWindow window = new ReplayWindow();
+
+        for (long counter = 0; counter < 10_000; counter++) {
+            assertThat(window.accept(counter)).isTrue();
+            assertThat(window.accept(counter)).isFalse();
+        }
+        assertThat(window.getHighest()).isEqualTo(9_999);
+    }
+
+    @Test
+    void acceptsReorderedCountersInsideWindow() {
+        ReplayWindow window = new ReplayWindow();
+
+        assertThat(window.accept(5_000)).isTrue();
+        assertThat(window.accept(5_000 - ReplayWindow.WINDOW_SIZE + 1)).isTrue();
+        assertThat(window.accept(4_999)).isTrue();
+        assertThat(window.accept(4_999)).isFalse();
+    }
+
+    @Test
+    void rejectsCountersBehindWindow() {
+        ReplayWindow window = new ReplayWindow();
+
+        assertThat(window.accept(5_000)).isTrue();
+        assertThat(window.accept(5_000 - ReplayWindow.WINDOW_SIZE)).isFalse();
+        assertThat(window.accept(0)).isFalse();
+    }
+
+    @Test
+    void rejectsCountersOutOfRange() {
+        ReplayWindow window = new ReplayWindow();
+
+        assertThat(window.accept(-1)).isFalse();
+        assertThat(window.accept(ReplayWindow.REJECT_AFTER + 1)).isFalse();
+        assertThat(window.accept(Long.MAX_VALUE)).isFalse();
+    }
+
+    @Test
+    void acceptsEachCounterOnceAcrossConcurrentReceivers() throws InterruptedException {
+        ReplayWindow window = new ReplayWindow();
+        int threads = 4;
+        int counters = 200_000;
+        AtomicInteger accepted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        // Every receiver sees every counter, slightly out of order, as if duplicated across paths
+        for (int t = 0; t < threads; t++) {
+            int offset = t;
+            executor.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                for (int i = 0; i < counters; i++) {
+                    long counter = i ^ (offset & 7);
+                    if (window.accept(counter)) {
+                        accepted.incrementAndGet();
+                    }
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertThat(executor.awaitTermination(30, TimeUnit.SECONDS)).isTrue();
+
+        assertThat(accepted.get()).isEqualTo(counters);
+        assertThat(window.getHighest()).isEqualTo(counters - 1);
+    }
+}
@@ -0,0 +1,120 @@
+package com.andrewevl.vpn.session;
+
+import com.andrewevl.vpn.config.VpnConfig;
+import com.andrewevl.vpn.load.LoadTable;
+import com.andrewevl.vpn.model.Endpoint;
+import com.andrewevl.vpn.service.ClientRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SessionManagerTest {
+
+    private static final Endpoint ENDPOINT = new Endpoint("vpn.example.com", 51820);
+
+    private final VpnConfig config = new VpnConfig();
+    private final ClientRegistry clientRegistry = new ClientRegistry();
+    private final RecordingListener listener = new RecordingListener();
+    private LoadTable loadTable;
+    private SessionManager manager;
+
+    @AfterEach
+    void tearDown() {
+        if (manager != null) {
+            manager.shutdown();
+        }
+    }
+
+    @Test
+    void sendsKeepaliveWhenNothingWasSent() throws Exception {
+        start(1, 60, 60);
+        TransportSession session = manager.openSession("wireguard", "alice", ENDPOINT);
+
+        assertThat(listener.keepalive.await(3, TimeUnit.SECONDS)).isTrue();
+        assertThat(manager.getSession("wireguard", "alice")).contains(session);
+        assertThat(listener.rekeys).hasValue(0);
+    }
+
+    @Test
+    void requestsRekeyOncePerHandshake() throws Exception {
+        start(60, 60, 1);
+        TransportSession session = manager.openSession("wireguard", "alice", ENDPOINT);
+
+        Thread.sleep(2_500);
+        assertThat(listener.rekeys).hasValue(1);
+
+        manager.handshakeCompleted(session);
+        Thread.sleep(1_500);
+        assertThat(listener.rekeys).hasValue(2);
+    }
+
+    @Test
+    void evictsIdleSessionAndReleasesItsLoad() throws Exception {
+        start(60, 1, 60);
+        manager.openSession("wireguard", "alice", ENDPOINT);
+        assertThat(loadTable.getSessions(ENDPOINT)).isEqualTo(1);
+        assertThat(clientRegistry.getClient("wireguard", "alice").orElseThrow().isConnected()).isTrue();
+
+        assertThat(listener.expired.await(3, TimeUnit.SECONDS)).isTrue();
+        assertThat(manager.getSession("wireguard", "alice")).isEmpty();
+        assertThat(loadTable.getSessions(ENDPOINT)).isZero();
+        assertThat(clientRegistry.getClient("wireguard", "alice").orElseThrow().isConnected()).isFalse();
+    }
+
+    @Test
+    void incomingTrafficKeepsSessionAlive() throws Exception {
+        start(60, 1, 60);
+        TransportSession session = manager.openSession("wireguard", "alice", ENDPOINT);
+
+        for (int i = 0; i < 10; i++) {
+            Thread.sleep(200);
+            session.onPacketReceived();
+        }
+
+        assertThat(manager.getSession("wireguard", "alice")).contains(session);
+        assertThat(listener.expired.getCount()).isEqualTo(1);
+    }
+
+    private void start(int keepaliveSeconds, int idleTimeoutSeconds, int rekeySeconds) {
+        VpnConfig.SessionConfig session = config.getSession();
+        session.setKeepaliveInterval(keepaliveSeconds);
+        session.setIdleTimeout(idleTimeoutSeconds);
+        session.setRekeyAfterTime(rekeySeconds);
+        session.setTimerTickMillis(10);
+        DefaultListableBeanFactory beanFactory = new DefaultListableBeanFactory();
+        beanFactory.registerSingleton("listener", listener);
+        loadTable = new LoadTable(config);
+        clientRegistry.register("wireguard", "alice", Instant.now());
+        manager = new SessionManager(config, beanFactory.getBeanProvider(SessionTimerListener.class),
+                loadTable, clientRegistry);
+    }
+
+    private static final class RecordingListener implements SessionTimerListener {
+
+        private final CountDownLatch keepalive = new CountDownLatch(1);
+        private final CountDownLatch expired = new CountDownLatch(1);
+        private final AtomicInteger rekeys = new AtomicInteger();
+
+        @Override
+        public void onKeepaliveDue(TransportSession session) {
+            keepalive.countDown();
+        }
+
+        @Override
+        public void onRekeyDue(TransportSession session) {
+            rekeys.incrementAndGet();
+        }
+
+        @Override
+        public void onSessionExpired(TransportSession session) {
+            expired.countDown();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.andrewevl.vpn.stream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.epoll.SegmentedDatagramPacket;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DatagramBatcherTest {
+
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+    private final InetSocketAddress recipient = new InetSocketAddress("127.0.0.1", 51820);
+    private final AtomicBoolean segmentation = new AtomicBoolean(true);
+    private final LongAdder segmentedSends = new LongAdder();
+    private final DatagramBatcher batcher = new DatagramBatcher(channel, recipient, segmentation, segmentedSends);
+
+    @AfterEach
+    void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void batchesEqualSizedDatagramsAndEndsOnShorterOne() {
+        batcher.add(datagram(1, 100));
+        batcher.add(datagram(2, 100));
+        batcher.add(datagram(3, 40));
+        batcher.add(datagram(4, 100));
+        batcher.flush();
+
+        SegmentedDatagramPacket first = channel.readOutbound();
+        assertThat(first.segmentSize()).isEqualTo(100);
+        assertThat(first.content().readableBytes()).isEqualTo(240);
+        first.release();
+        DatagramPacket second = channel.readOutbound();
+        assertThat(second).isNotInstanceOf(SegmentedDatagramPacket.class);
+        assertThat(second.content().getByte(0)).isEqualTo((byte) 4);
+        second.release();
+        assertThat(segmentedSends.sum()).isEqualTo(1);
+    }
+
+    @Test
+    void sendsPendingBatchBeforeFallingBackToSingleSends() {
+        batcher.add(datagram(1, 100));
+        batcher.add(datagram(2, 100));
+        segmentation.set(false);
+        batcher.add(datagram(3, 100));
+        batcher.flush();
+
+        SegmentedDatagramPacket batch = channel.readOutbound();
+        assertThat(batch.content().getByte(0)).isEqualTo((byte) 1);
+        assertThat(batch.content().getByte(100)).isEqualTo((byte) 2);
+        batch.release();
+        DatagramPacket single = channel.readOutbound();
+        assertThat(single.content().getByte(0)).isEqualTo((byte) 3);
+        single.release();
+        assertThat((Object) channel.readOutbound()).isNull();
+    }
+
+    private static ByteBuf datagram(int marker, int size) {
+        return Unpooled.buffer(size).writeByte(marker).writeZero(size - 1);
+    }
+}
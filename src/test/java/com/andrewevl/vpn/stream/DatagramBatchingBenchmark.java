@@ -0,0 +1,123 @@
+package com.andrewevl.vpn.stream;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.SegmentedDatagramPacket;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends bursts of WireGuard-sized datagrams over loopback through a
+ * {@link DatagramBatcher}, once as segmented batches and once one datagram per
+ * write, and reports the packets per second the receiver read with
+ * {@code recvmmsg}. Needs Linux with the epoll transport.
+ * Run with {@code ./mvnw test -Dtest=DatagramBatchingBenchmark -Dbenchmark=true}.
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+class DatagramBatchingBenchmark {
+
+    private static final int DATAGRAM_SIZE = 1420;
+    private static final int BURST = 64;
+    private static final int BURSTS = 20_000;
+    private static final int ROUNDS = 3;
+
+    @Test
+    void compareSegmentedWithSingleSends() throws Exception {
+        if (!Epoll.isAvailable()) {
+            System.out.println("epoll transport unavailable, nothing to compare: " + Epoll.unavailabilityCause());
+            return;
+        }
+        System.out.println("UDP segmentation supported: " + SegmentedDatagramPacket.isSupported());
+        EventLoopGroup group = new EpollEventLoopGroup(2);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                Result single = run(group, false);
+                Result segmented = run(group, SegmentedDatagramPacket.isSupported());
+                System.out.printf("round %d: single sends %,d pps received (%,d segmented sends) | batched %,d pps received (%,d segmented sends)%n",
+                        round, single.packetsPerSecond, single.segmentedSends,
+                        segmented.packetsPerSecond, segmented.segmentedSends);
+            }
+        } finally {
+            group.shutdownGracefully().syncUninterruptibly();
+        }
+    }
+
+    private static Result run(EventLoopGroup group, boolean segmentation) throws Exception {
+        LongAdder received = new LongAdder();
+        AtomicLong lastReceivedAt = new AtomicLong();
+        Channel receiver = new Bootstrap()
+                .group(group)
+                .channel(EpollDatagramChannel.class)
+                .option(ChannelOption.SO_RCVBUF, 8 * 1024 * 1024)
+                .option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, 2048)
+                .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(2048 * 32))
+                .handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+                        received.increment();
+                        lastReceivedAt.lazySet(System.nanoTime());
+                    }
+                })
+                .bind(new InetSocketAddress("127.0.0.1", 0))
+                .sync()
+                .channel();
+        InetSocketAddress recipient = (InetSocketAddress) receiver.localAddress();
+        Channel sender = new Bootstrap()
+                .group(group)
+                .channel(EpollDatagramChannel.class)
+                .option(ChannelOption.SO_SNDBUF, 8 * 1024 * 1024)
+                .handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+                    }
+                })
+                .connect(recipient)
+                .sync()
+                .channel();
+
+        LongAdder segmentedSends = new LongAdder();
+        DatagramBatcher batcher = new DatagramBatcher(sender, recipient, new AtomicBoolean(segmentation), segmentedSends);
+        long start = System.nanoTime();
+        for (int burst = 0; burst < BURSTS; burst++) {
+            sender.eventLoop().submit(() -> {
+                for (int i = 0; i < BURST; i++) {
+                    ByteBuf datagram = sender.alloc().directBuffer(DATAGRAM_SIZE);
+                    datagram.writeZero(DATAGRAM_SIZE);
+                    batcher.add(datagram);
+                }
+                batcher.flush();
+            }).sync();
+        }
+        // Let the receiver drain what is still queued in its socket; datagrams dropped
+        // on overload are not counted, and the clock stops at the last one received
+        long expected = (long) BURST * BURSTS;
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (received.sum() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        long elapsed = Math.max(1, lastReceivedAt.get() - start);
+
+        sender.close().sync();
+        receiver.close().sync();
+        return new Result(received.sum() * 1_000_000_000L / elapsed, segmentedSends.sum());
+    }
+
+    private record Result(long packetsPerSecond, long segmentedSends) {
+    }
+}
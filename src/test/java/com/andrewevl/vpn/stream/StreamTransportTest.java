@@ -0,0 +1,97 @@
+package com.andrewevl.vpn.stream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StreamTransportTest {
+
+    private final EmbeddedChannel channel = new EmbeddedChannel();
+
+    @AfterEach
+    void tearDown() {
+        channel.finishAndReleaseAll();
+    }
+
+    @Test
+    void framesDatagramsWithoutCopying() {
+        StreamTransport.addFraming(channel.pipeline(), 1);
+        byte[] datagram = "handshake".getBytes(StandardCharsets.US_ASCII);
+        ByteBuf packet = Unpooled.wrappedBuffer(datagram);
+
+        channel.writeAndFlush(packet);
+
+        CompositeByteBuf frame = channel.readOutbound();
+        assertThat(frame.numComponents()).isEqualTo(2);
+        assertThat(frame.readUnsignedShort()).isEqualTo(9);
+        assertThat(frame.component(1).array()).isSameAs(datagram);
+        assertThat(frame.toString(StandardCharsets.US_ASCII)).isEqualTo("handshake");
+        frame.release();
+        assertThat(packet.refCnt()).isZero();
+    }
+
+    @Test
+    void decodesFramesSplitAcrossAndPackedIntoReads() {
+        StreamTransport.addFraming(channel.pipeline(), 1);
+        byte[] stream = ByteBufUtil.decodeHexDump("0003616263" + "0000" + "000568656c6c6f");
+
+        channel.writeInbound(Unpooled.wrappedBuffer(stream, 0, 4));
+        assertThat((Object) channel.readInbound()).isNull();
+        channel.writeInbound(Unpooled.wrappedBuffer(stream, 4, stream.length - 4));
+
+        assertThat(readInbound()).isEqualTo("abc");
+        assertThat(readInbound()).isEmpty();
+        assertThat(readInbound()).isEqualTo("hello");
+        assertThat((Object) channel.readInbound()).isNull();
+    }
+
+    @Test
+    void consolidatesFlushesDuringReads() {
+        AtomicInteger socketFlushes = new AtomicInteger();
+        channel.pipeline().addLast(new ChannelOutboundHandlerAdapter() {
+            @Override
+            public void flush(ChannelHandlerContext ctx) {
+                socketFlushes.incrementAndGet();
+                ctx.flush();
+            }
+        });
+        StreamTransport.addFraming(channel.pipeline(), 64);
+        // Echo every frame with its own flush, as the relay does for every datagram
+        channel.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                ctx.writeAndFlush(msg);
+            }
+        });
+
+        ByteBuf frames = Unpooled.buffer();
+        for (int i = 0; i < 10; i++) {
+            frames.writeShort(1).writeByte(i);
+        }
+        channel.writeInbound(frames);
+
+        assertThat(channel.outboundMessages()).hasSize(10);
+        assertThat(socketFlushes).hasValue(1);
+    }
+
+    private String readInbound() {
+        ByteBuf frame = channel.readInbound();
+        try {
+            return frame.toString(StandardCharsets.US_ASCII);
+        } finally {
+            frame.release();
+        }
+    }
+}
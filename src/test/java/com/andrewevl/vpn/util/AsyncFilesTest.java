@@ -0,0 +1,82 @@
+package com.andrewevl.vpn.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AsyncFilesTest {
+
+    private Path directory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        directory = Files.createTempDirectory("async-files");
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Test
+    void writesAndReadsLines() throws IOException {
+        Path file = directory.resolve("wg0.conf");
+        List<String> lines = List.of("[Interface]", "ListenPort = 51820", "", "# alice");
+
+        AsyncFiles.writeLines(file, lines);
+
+        assertThat(AsyncFiles.readAllLines(file)).isEqualTo(lines);
+        assertThat(Files.readAllLines(file)).isEqualTo(lines);
+    }
+
+    @Test
+    void overwriteTruncates() throws IOException {
+        Path file = directory.resolve("privatekey");
+        AsyncFiles.writeBytes(file, "a much longer first value".getBytes(StandardCharsets.UTF_8));
+        AsyncFiles.writeBytes(file, "short".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(new String(AsyncFiles.readAllBytes(file), StandardCharsets.UTF_8)).isEqualTo("short");
+    }
+
+    @Test
+    void readsLargeAndEmptyFiles() throws IOException {
+        byte[] large = new byte[3 * 1024 * 1024 + 17];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) i;
+        }
+        Path largeFile = directory.resolve("large");
+        Path emptyFile = directory.resolve("empty");
+        AsyncFiles.writeBytes(largeFile, large);
+        AsyncFiles.writeBytes(emptyFile, new byte[0]);
+
+        assertThat(AsyncFiles.readAllBytes(largeFile)).isEqualTo(large);
+        assertThat(AsyncFiles.readAllBytes(emptyFile).length).isEqualTo(0);
+    }
+
+    @Test
+    void reportsMissingFileAsIOException() {
+        IOException error = null;
+        try {
+            AsyncFiles.readAllBytes(directory.resolve("missing"));
+        } catch (IOException e) {
+            error = e;
+        }
+
+        assertThat(error).isInstanceOf(NoSuchFileException.class);
+    }
+}